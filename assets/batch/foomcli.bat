@@ -23,7 +23,7 @@ if [%1]==[] (
 
 if "%1"=="--help" goto usage
 
-if not "%1"=="start" if not "%1"=="stop" if not "%1"=="status" if not "%1"=="validate" if not "%1"=="shutdown" if not "%1"=="config" if not "%1"=="autodetect" if not "%1"=="settings" (
+if not "%1"=="start" if not "%1"=="stop" if not "%1"=="status" if not "%1"=="validate" if not "%1"=="shutdown" if not "%1"=="config" if not "%1"=="autodetect" if not "%1"=="settings" if not "%1"=="metrics" if not "%1"=="pac" (
     echo Unknown command "%1", try 'foomcli --help' for more information
     exit /B 1
 )
@@ -63,6 +63,16 @@ if "%1"=="settings" if "%2"=="-d" if [%3]==[]  (
     exit /B 1
 )
 
+if "%1"=="pac" if [%2]==[]  (
+    echo Invalid command: the URL is missing, try 'foomcli --help' for more information
+    exit /B 1
+)
+
+if "%1"=="pac" if "%2"=="-f" if [%3]==[]  (
+    echo Invalid command: the filepath is missing, try 'foomcli --help' for more information
+    exit /B 1
+)
+
 set "CTL_USER=admin:winfoom"
 
 if not defined FOOM_LOCATION set "FOOM_LOCATION=localhost:9999"
@@ -95,8 +105,16 @@ if "%1"=="config" (
             curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
         )
     ) else (
-        if "%1"=="validate" echo It may take some time, please be pacient ...
-        curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
+        if "%1"=="pac" (
+            if "%2"=="-f" (
+                curl -X POST -H "Content-Type: application/json" -d @%3 --user %CTL_USER% http://%FOOM_LOCATION%/%1
+            ) else (
+                curl -G --data-urlencode "url=%~2" --user %CTL_USER% http://%FOOM_LOCATION%/%1
+            )
+        ) else (
+            if "%1"=="validate" echo It may take some time, please be pacient ...
+            curl --user %CTL_USER% http://%FOOM_LOCATION%/%1
+        )
     )
 )
 
@@ -124,6 +142,7 @@ echo    stop                               - stop the local proxy facade
 echo    status                             - get the current status of the local proxy facade
 echo    shutdown                           - shutdown the application
 echo    validate                           - test the local proxy facade configuration
+echo    metrics                            - print the runtime metrics (connection pools, etc.)
 echo    autodetect                         - attempt to apply Internet Explorer settings
 echo    config                             - print the current configuration
 echo    config -f [json_filepath]          - apply the proxy configuration, where the [json_filepath] is
@@ -132,6 +151,10 @@ echo    config -d [json_content]           - apply the proxy configuration, wher
 echo                                       the JSON object containing the configuration to be applied
 echo    config -t [proxy_type]             - change the proxy type, where [proxy_type] can be
 echo                                       one of: direct, http, pac, socks4, socks5
+echo    pac [url]                          - evaluate the PAC script for the [url], printing the proxy line,
+echo                                       the non-blacklisted proxies, where the result comes from and the evaluation time
+echo    pac -f [json_filepath]             - evaluate the PAC script in parallel for each URL of the JSON array
+echo                                       in the [json_filepath] file, also printing the overall throughput
 echo    settings                           - print the current settings
 echo    settings -f [json_filepath]        - apply the proxy settings, where the [json_filepath] is
 echo                                       the path to the JSON file containing the settings to be applied
@@ -31,6 +31,7 @@ usage() {
   echo "status                        - get the current status of the local proxy facade"
   echo "shutdown                      - shutdown the application"
   echo "validate                      - test the local proxy facade configuration"
+  echo "metrics                       - print the runtime metrics (connection pools, etc.)"
   echo "config                        - print the current configuration"
   echo "config -f [json_filepath]     - apply the proxy configuration, where the [json_filepath] is"
   echo "                              the path to the JSON file containing the configuration to be applied"
@@ -38,6 +39,10 @@ usage() {
   echo "                              the JSON object containing the configuration to be applied"
   echo "config -t [proxy_type]        - change the proxy type, where [proxy_type] can be"
   echo "                              one of: direct, http, pac, socks4, socks5"
+  echo "pac [url]                     - evaluate the PAC script for the [url], printing the proxy line,"
+  echo "                              the non-blacklisted proxies, where the result comes from and the evaluation time"
+  echo "pac -f [json_filepath]        - evaluate the PAC script in parallel for each URL of the JSON array"
+  echo "                              in the [json_filepath] file, also printing the overall throughput"
   echo "settings                      - print the current settings"
   echo "settings -f [json_filepath]   - apply the proxy settings, where the [json_filepath] is"
   echo "                              the path to the JSON file containing the settings to be applied"
@@ -53,7 +58,7 @@ if [ "$1" == "--help" ]; then
   exit 0
 fi
 
-if [[ "$1" != "start" && "$1" != "stop" && "$1" != "status" && "$1" != "validate" && "$1" != "shutdown" && "$1" != "config"  && "$1" != "settings" ]]; then
+if [[ "$1" != "start" && "$1" != "stop" && "$1" != "status" && "$1" != "validate" && "$1" != "shutdown" && "$1" != "config"  && "$1" != "settings" && "$1" != "metrics" && "$1" != "pac" ]]; then
   echo "Invalid command, try 'foomcli --help' for more information"
   exit 1
 fi
@@ -80,6 +85,17 @@ if [ "$1" == "settings" ]; then
   fi
 fi
 
+if [ "$1" == "pac" ]; then
+  if [ -z "$2" ]; then
+    echo "Missing URL, try 'foomcli --help' for more information"
+    exit 1
+  fi
+  if [[ "$2" == "-f" && -z "$3" ]]; then
+    echo "Missing option's value, try 'foomcli --help' for more information"
+    exit 1
+  fi
+fi
+
 CTL_USER="admin:winfoom"
 
 if [ -z ${FOOM_LOCATION+x} ]; then FOOM_LOCATION=localhost:9999; fi
@@ -102,6 +118,12 @@ elif [ "$1" == "settings" ]; then
   else
     curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
   fi
+elif [ "$1" == "pac" ]; then
+  if [ "$2" == "-f" ]; then
+    curl -w '\n' -X POST -H "Content-Type: application/json" -d @"$3" --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
+  else
+    curl -w '\n' -G --data-urlencode "url=$2" --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
+  fi
 else
   if [ "$1" == "validate" ]; then echo "It may take some time, please be pacient ..."; fi
   curl -w '\n' --user "$CTL_USER" http://$FOOM_LOCATION/"$1"
@@ -15,14 +15,18 @@ package org.kpax.winfoom.api;
 
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
 import org.apache.http.auth.Credentials;
+import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.bootstrap.HttpServer;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
@@ -35,9 +39,13 @@ import org.kpax.winfoom.api.json.Views;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.exception.PacScriptException;
 import org.kpax.winfoom.proxy.ProxyController;
 import org.kpax.winfoom.proxy.ProxyExecutorService;
 import org.kpax.winfoom.proxy.ProxyValidator;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.proxy.pac.PacEvaluation;
+import org.kpax.winfoom.proxy.pac.PacScriptEvaluator;
 import org.kpax.winfoom.util.BeanUtils;
 import org.kpax.winfoom.util.JsonUtils;
 import org.springframework.context.ConfigurableApplicationContext;
@@ -45,8 +53,21 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -60,6 +81,19 @@ public class ApiController implements AutoCloseable {
 
     private static final int SHUTDOWN_GRACE_PERIOD = 1000;
 
+    /**
+     * The maximum number of PAC script evaluations run at once for the API, all the requests together.
+     */
+    private static final int MAX_PAC_EVALUATIONS = 4;
+
+    /**
+     * The API evaluations of a batch use at most this fraction of the PAC script engines,
+     * the others being left to the proxied requests.
+     */
+    private static final int PAC_ENGINES_SHARE_DIVISOR = 4;
+
+    private final Semaphore pacEvaluationPermits = new Semaphore(MAX_PAC_EVALUATIONS);
+
     private HttpServer apiServer;
 
     private final ProxyConfig proxyConfig;
@@ -85,6 +119,8 @@ public class ApiController implements AutoCloseable {
         registerAutodetectHandler(serverBootstrap, credentials);
         registerConfigHandler(serverBootstrap, credentials);
         registerSettingsHandler(serverBootstrap, credentials);
+        registerMetricsHandler(serverBootstrap, credentials);
+        registerPacHandler(serverBootstrap, credentials);
         registerShutdownHandler(serverBootstrap, credentials);
 
         apiServer = serverBootstrap.create();
@@ -110,6 +146,182 @@ public class ApiController implements AutoCloseable {
                         });
     }
 
+    private ServerBootstrap registerMetricsHandler(ServerBootstrap serverBootstrap, Credentials credentials) {
+        return serverBootstrap.
+                registerHandler("/metrics",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                log.debug("'metrics' command received");
+                                try {
+                                    Map<String, Object> metrics = new TreeMap<>();
+                                    applicationContext.getBeansOfType(MetricsSource.class).values().
+                                            forEach(metricsSource -> metrics.put(metricsSource.getMetricsName(),
+                                                    metricsSource.getMetrics()));
+                                    response.setEntity(new StringEntity(new ObjectMapper().
+                                            writerWithDefaultPrettyPrinter().
+                                            writeValueAsString(metrics)));
+                                } catch (Exception e) {
+                                    log.error("Error on serializing metrics", e);
+                                    response.setEntity(new StringEntity("Failed to get metrics: " + e.getMessage()));
+                                }
+                            }
+                        });
+    }
+
+    private ServerBootstrap registerPacHandler(ServerBootstrap serverBootstrap, Credentials credentials) {
+        return serverBootstrap.
+                registerHandler("/pac",
+                        new GenericHttpRequestHandler(credentials, executorService, systemConfig) {
+                            @Override
+                            public void doGet(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                log.debug("'pac get' command received");
+                                if (!isPacAvailable(response)) {
+                                    return;
+                                }
+                                String url;
+                                try {
+                                    url = new URIBuilder(request.getRequestLine().getUri()).getQueryParams().stream().
+                                            filter(param -> "url".equals(param.getName())).
+                                            map(NameValuePair::getValue).
+                                            findFirst().orElse(null);
+                                } catch (URISyntaxException e) {
+                                    url = null;
+                                }
+                                if (url == null) {
+                                    response.setEntity(new StringEntity("Failed to evaluate the PAC script: no url parameter found"));
+                                    return;
+                                }
+                                PacScriptEvaluator pacScriptEvaluator = applicationContext.getBean(PacScriptEvaluator.class);
+                                response.setEntity(new StringEntity(new ObjectMapper().
+                                        writerWithDefaultPrettyPrinter().
+                                        writeValueAsString(evaluatePac(pacScriptEvaluator, url))));
+                            }
+
+                            @Override
+                            public void doPost(HttpRequest request, HttpResponse response, HttpContext context)
+                                    throws IOException {
+                                log.debug("'pac post' command received");
+                                if (!isPacAvailable(response)) {
+                                    return;
+                                }
+                                if (request instanceof BasicHttpEntityEnclosingRequest entityEnclosingRequest) {
+                                    String[] urls;
+                                    try {
+                                        String json = IOUtils.toString(entityEnclosingRequest.getEntity().getContent(), StandardCharsets.UTF_8);
+                                        urls = new ObjectMapper().readValue(json, String[].class);
+                                    } catch (IOException e) {
+                                        log.error("Error on parsing JSON", e);
+                                        response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
+                                        return;
+                                    }
+                                    try {
+                                        response.setEntity(new StringEntity(new ObjectMapper().
+                                                writerWithDefaultPrettyPrinter().
+                                                writeValueAsString(evaluatePac(urls))));
+                                    } catch (InterruptedException | ExecutionException e) {
+                                        log.error("Error on evaluating the PAC script", e);
+                                        response.setEntity(new StringEntity("Failed to evaluate the PAC script: " + e.getMessage()));
+                                    }
+                                } else {
+                                    response.setEntity(new StringEntity("Failed to evaluate the PAC script: no JSON found"));
+                                }
+                            }
+                        });
+    }
+
+    private boolean isPacAvailable(HttpResponse response) throws UnsupportedEncodingException {
+        if (!proxyController.isRunning()) {
+            response.setEntity(new StringEntity("The local proxy server is down, you need to start it before evaluating the PAC script"));
+            return false;
+        }
+        if (!proxyConfig.isAutoConfig()) {
+            response.setEntity(new StringEntity("The proxy type is not PAC"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the URLs in parallel, using at most a quarter of the PAC script engines
+     * and no more than {@value #MAX_PAC_EVALUATIONS} at once.
+     */
+    private Map<String, Object> evaluatePac(String[] urls) throws InterruptedException, ExecutionException {
+        PacScriptEvaluator pacScriptEvaluator = applicationContext.getBean(PacScriptEvaluator.class);
+        int parallelism = Math.max(1, Math.min(MAX_PAC_EVALUATIONS,
+                pacScriptEvaluator.getEvaluationParallelism() / PAC_ENGINES_SHARE_DIVISOR));
+        Semaphore permits = new Semaphore(parallelism);
+        List<Future<Map<String, Object>>> futures = new ArrayList<>(urls.length);
+        long start = System.nanoTime();
+        try {
+            for (String url : urls) {
+                permits.acquire();
+                futures.add(executorService.submit(() -> {
+                    try {
+                        return evaluatePac(pacScriptEvaluator, url);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            List<Map<String, Object>> results = new ArrayList<>(urls.length);
+            for (Future<Map<String, Object>> future : futures) {
+                results.add(future.get());
+            }
+            long durationNanos = System.nanoTime() - start;
+            Map<String, Object> batch = new LinkedHashMap<>();
+            batch.put("count", urls.length);
+            batch.put("parallelism", parallelism);
+            batch.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(durationNanos));
+            batch.put("evaluationsPerSecond", durationNanos > 0 ? urls.length * 1_000_000_000L / durationNanos : 0);
+            batch.put("results", results);
+            return batch;
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Evaluate the URL without side effects on the proxied requests (see {@link PacScriptEvaluator#evaluateUnrecorded(URI)}).
+     */
+    private Map<String, Object> evaluatePac(PacScriptEvaluator pacScriptEvaluator, String url) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("url", url);
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() == null) {
+                result.put("error", "Invalid URL: no host found");
+                return result;
+            }
+            PacEvaluation evaluation;
+            pacEvaluationPermits.acquire();
+            try {
+                evaluation = pacScriptEvaluator.evaluateUnrecorded(uri);
+            } finally {
+                pacEvaluationPermits.release();
+            }
+            result.put("proxyLine", evaluation.getProxyLine());
+            result.put("proxies", evaluation.getProxies().stream().
+                    map(proxyInfo -> proxyInfo.getProxyHost() != null
+                            ? proxyInfo.getType() + " " + proxyInfo.getProxyHost().toHostString()
+                            : proxyInfo.getType().toString()).
+                    toList());
+            result.put("source", evaluation.getSource());
+            result.put("durationMicros", TimeUnit.NANOSECONDS.toMicros(evaluation.getDurationNanos()));
+        } catch (URISyntaxException e) {
+            result.put("error", "Invalid URL: " + e.getMessage());
+        } catch (PacScriptException e) {
+            log.debug("Error on evaluating the PAC script", e);
+            result.put("error", e.getCause() != null ? e.getCause().toString() : e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.put("error", "Evaluation interrupted");
+        }
+        return result;
+    }
+
     private ServerBootstrap registerSettingsHandler(ServerBootstrap serverBootstrap, Credentials credentials) {
         return serverBootstrap.
                 registerHandler("/settings",
@@ -119,11 +331,17 @@ public class ApiController implements AutoCloseable {
                                     throws IOException {
                                 log.debug("'settings' command received");
                                 try {
-                                    response.setEntity(new StringEntity(new ObjectMapper().
-                                            configure(MapperFeature.DEFAULT_VIEW_INCLUSION, false).
+                                    ObjectMapper objectMapper = new ObjectMapper().
+                                            configure(MapperFeature.DEFAULT_VIEW_INCLUSION, false);
+                                    ObjectNode settings = objectMapper.readValue(objectMapper.
+                                            writerWithView(Views.getSettingsView()).
+                                            writeValueAsString(proxyConfig), ObjectNode.class);
+                                    for (String name : SettingsDto.SYSTEM_PROPERTIES) {
+                                        settings.putPOJO(name, PropertyUtils.getProperty(systemConfig, name));
+                                    }
+                                    response.setEntity(new StringEntity(objectMapper.
                                             writerWithDefaultPrettyPrinter().
-                                            withView(Views.getSettingsView()).
-                                            writeValueAsString(proxyConfig)));
+                                            writeValueAsString(settings)));
                                 } catch (Exception e) {
                                     log.error("Error on serializing proxy settings", e);
                                     response.setEntity(new StringEntity("Failed to get proxy settings: " + e.getMessage()));
@@ -139,36 +357,78 @@ public class ApiController implements AutoCloseable {
                                     response.setEntity(new StringEntity("Forbidden: Modifying settings is disabled"));
                                     return;
                                 }
-                                boolean running = proxyController.isRunning();
-                                if (running) {
-                                    response.setEntity(new StringEntity("The local proxy server is up, you need to stop it before changing settings"));
-                                } else {
-                                    if (request instanceof BasicHttpEntityEnclosingRequest entityEnclosingRequest) {
-                                        try {
-                                            String json = IOUtils.toString(entityEnclosingRequest.getEntity().getContent(), StandardCharsets.UTF_8);
-                                            SettingsDto settingsDto = new ObjectMapper().readValue(json, SettingsDto.class);
-                                            settingsDto.validate();
-                                            BeanUtils.copyProperties(JsonUtils.getFieldNames(json), settingsDto, proxyConfig);
+                                if (request instanceof BasicHttpEntityEnclosingRequest entityEnclosingRequest) {
+                                    try {
+                                        String json = IOUtils.toString(entityEnclosingRequest.getEntity().getContent(), StandardCharsets.UTF_8);
+                                        SettingsDto settingsDto = new ObjectMapper().readValue(json, SettingsDto.class);
+                                        settingsDto.validate(systemConfig);
+                                        List<String> fieldNames = new ArrayList<>();
+                                        JsonUtils.getFieldNames(json).forEachRemaining(fieldNames::add);
+                                        List<String> systemFieldNames = fieldNames.stream().
+                                                filter(SettingsDto.SYSTEM_PROPERTIES::contains).toList();
+                                        // The system settings are applied to the running proxy, they are not persisted
+                                        changeProperties(settingsDto, fieldNames.stream().
+                                                        filter(name -> !systemFieldNames.contains(name)).toList(),
+                                                systemFieldNames, Set.copyOf(systemFieldNames));
+                                        if (systemFieldNames.isEmpty()) {
                                             response.setEntity(new StringEntity("Proxy settings changed"));
-                                        } catch (IOException e) {
-                                            log.error("Error on parsing JSON", e);
-                                            response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
-                                        } catch (InvalidProxySettingsException e) {
-                                            log.error("Invalid JSON", e);
-                                            response.setEntity(new StringEntity("Invalid JSON: " + e.getMessage()));
-                                        } catch (IllegalAccessException | NoSuchMethodException |
-                                                 InvocationTargetException e) {
-                                            log.error("Error on applying proxy settings", e);
-                                            response.setEntity(new StringEntity("Failed to change proxy settings: " + e.getMessage()));
+                                        } else {
+                                            response.setEntity(new StringEntity("Proxy settings changed, the system settings " +
+                                                    systemFieldNames + " are not persisted"));
                                         }
-                                    } else {
-                                        response.setEntity(new StringEntity("Failed to changed proxy settings: no JSON found"));
+                                    } catch (IOException e) {
+                                        log.error("Error on parsing JSON", e);
+                                        response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
+                                    } catch (InvalidProxySettingsException e) {
+                                        log.error("Invalid JSON", e);
+                                        response.setEntity(new StringEntity("Invalid JSON: " + e.getMessage()));
+                                    } catch (Exception e) {
+                                        log.error("Error on applying proxy settings", e);
+                                        response.setEntity(new StringEntity("Failed to change proxy settings: " + e.getMessage()));
                                     }
+                                } else {
+                                    response.setEntity(new StringEntity("Failed to changed proxy settings: no JSON found"));
                                 }
                             }
                         });
     }
 
+    /**
+     * Copy the fields to the configurations, then apply the reconfigured ones to the running proxy.
+     * <p>When a step fails, the previous values are restored and applied again,
+     * so that a rejected change is not left half done.
+     *
+     * @param source           the DTO holding the new values.
+     * @param proxyFieldNames  the fields to copy to {@link ProxyConfig}.
+     * @param systemFieldNames the fields to copy to {@link SystemConfig}.
+     * @param reconfigured     the fields to apply to the running proxy.
+     */
+    private void changeProperties(Object source, List<String> proxyFieldNames, List<String> systemFieldNames,
+                                  Set<String> reconfigured) throws Exception {
+        Deque<Map.Entry<String, Object>> proxyPreviousValues = new ArrayDeque<>();
+        Deque<Map.Entry<String, Object>> systemPreviousValues = new ArrayDeque<>();
+        try {
+            BeanUtils.copyProperties(proxyFieldNames.iterator(), source, proxyConfig, proxyPreviousValues);
+            BeanUtils.copyProperties(systemFieldNames.iterator(), source, systemConfig, systemPreviousValues);
+            if (!reconfigured.isEmpty()) {
+                proxyController.reconfigure(reconfigured);
+            }
+        } catch (Exception e) {
+            log.warn("Cannot change the properties {} {}, restore the previous values",
+                    proxyFieldNames, systemFieldNames);
+            try {
+                BeanUtils.restoreProperties(systemPreviousValues, systemConfig);
+                BeanUtils.restoreProperties(proxyPreviousValues, proxyConfig);
+                if (!reconfigured.isEmpty()) {
+                    proxyController.reconfigure(reconfigured);
+                }
+            } catch (Exception restoreException) {
+                e.addSuppressed(restoreException);
+            }
+            throw e;
+        }
+    }
+
     private ServerBootstrap registerConfigHandler(ServerBootstrap serverBootstrap, Credentials credentials) {
         return serverBootstrap.
                 registerHandler("/config",
@@ -198,31 +458,38 @@ public class ApiController implements AutoCloseable {
                                     response.setEntity(new StringEntity("Forbidden: Modifying configuration is disabled"));
                                     return;
                                 }
-                                boolean running = proxyController.isRunning();
-                                if (running) {
-                                    response.setEntity(new StringEntity("The local proxy server is up, you need to stop it before applying configuration"));
-                                } else {
-                                    if (request instanceof BasicHttpEntityEnclosingRequest entityEnclosingRequest) {
-                                        try {
-                                            String json = IOUtils.toString(entityEnclosingRequest.getEntity().getContent(), StandardCharsets.UTF_8);
-                                            ConfigDto configDto = new ObjectMapper().readValue(json, ConfigDto.class);
-                                            configDto.validate();
-                                            BeanUtils.copyProperties(JsonUtils.getFieldNames(json), configDto, proxyConfig);
-                                            response.setEntity(new StringEntity("Proxy configuration changed"));
-                                        } catch (IOException e) {
-                                            log.error("Error on parsing JSON", e);
-                                            response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
-                                        } catch (InvalidProxySettingsException e) {
-                                            log.error("Invalid JSON", e);
-                                            response.setEntity(new StringEntity("Invalid JSON: " + e.getMessage()));
-                                        } catch (IllegalAccessException | NoSuchMethodException |
-                                                 InvocationTargetException e) {
-                                            log.error("Error on applying proxy configuration", e);
-                                            response.setEntity(new StringEntity("Failed to changed proxy configuration: " + e.getMessage()));
+                                if (request instanceof BasicHttpEntityEnclosingRequest entityEnclosingRequest) {
+                                    try {
+                                        String json = IOUtils.toString(entityEnclosingRequest.getEntity().getContent(), StandardCharsets.UTF_8);
+                                        ConfigDto configDto = new ObjectMapper().readValue(json, ConfigDto.class);
+                                        configDto.validate();
+                                        List<String> fieldNames = new ArrayList<>();
+                                        JsonUtils.getFieldNames(json).forEachRemaining(fieldNames::add);
+                                        boolean running = proxyController.isRunning();
+                                        if (running) {
+                                            // Only the live fields can be changed while running
+                                            List<String> changed = BeanUtils.getChangedProperties(fieldNames.stream().
+                                                    filter(name -> !ConfigDto.LIVE_PROPERTIES.contains(name)).toList(), configDto, proxyConfig);
+                                            if (!changed.isEmpty()) {
+                                                response.setEntity(new StringEntity("The local proxy server is up, you need to stop it before changing " + changed));
+                                                return;
+                                            }
                                         }
-                                    } else {
-                                        response.setEntity(new StringEntity("Failed to changed proxy configuration: no JSON found"));
+                                        changeProperties(configDto, fieldNames, List.of(),
+                                                running ? Set.copyOf(fieldNames) : Set.of());
+                                        response.setEntity(new StringEntity("Proxy configuration changed"));
+                                    } catch (IOException e) {
+                                        log.error("Error on parsing JSON", e);
+                                        response.setEntity(new StringEntity("Failed to parse JSON: " + e.getMessage()));
+                                    } catch (InvalidProxySettingsException e) {
+                                        log.error("Invalid JSON", e);
+                                        response.setEntity(new StringEntity("Invalid JSON: " + e.getMessage()));
+                                    } catch (Exception e) {
+                                        log.error("Error on applying proxy configuration", e);
+                                        response.setEntity(new StringEntity("Failed to changed proxy configuration: " + e.getMessage()));
                                     }
+                                } else {
+                                    response.setEntity(new StringEntity("Failed to changed proxy configuration: no JSON found"));
                                 }
                             }
                         });
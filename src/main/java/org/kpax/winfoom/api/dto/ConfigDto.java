@@ -22,6 +22,8 @@ import org.kpax.winfoom.exception.InvalidProxySettingsException;
 import org.kpax.winfoom.util.HttpUtils;
 import org.springframework.util.Assert;
 
+import java.util.Set;
+
 /**
  * The config DTO for API server.
  */
@@ -30,6 +32,11 @@ import org.springframework.util.Assert;
 @ToString
 public class ConfigDto {
 
+    /**
+     * The fields that can be changed while the local proxy server is running.
+     */
+    public static final Set<String> LIVE_PROPERTIES = Set.of("proxyPacFileLocation", "blacklistTimeout", "proxyTestUrl");
+
     private ProxyConfig.Type proxyType;
     private Boolean useCurrentCredentials;
     private String proxyUsername;
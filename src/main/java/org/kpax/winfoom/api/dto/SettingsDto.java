@@ -16,9 +16,12 @@ package org.kpax.winfoom.api.dto;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.InvalidProxySettingsException;
 import org.kpax.winfoom.util.HttpUtils;
 
+import java.util.List;
+
 /**
  * The settings DTO for API server.
  */
@@ -27,14 +30,72 @@ import org.kpax.winfoom.util.HttpUtils;
 @ToString
 public class SettingsDto {
 
+    /**
+     * The system settings that can be changed while the local proxy server is running.
+     * <p>They are applied to {@link org.kpax.winfoom.config.SystemConfig}, without being persisted.
+     */
+    public static final List<String> SYSTEM_PROPERTIES = List.of("maxConnections", "maxConnectionsPerRoute",
+            "socketConnectTimeout", "socketSoTimeout", "connectionRequestTimeout", "connectionManagerIdleTimeout",
+            "pacScriptEnginePoolMaxTotal", "pacScriptEnginePoolMaxWait", "pacScriptEvaluationTimeout",
+            "cacheGlobPatternCapacity", "cacheIpNetworkCapacity", "cacheDateTimeRangeCapacity",
+            "cachePacLastResultCapacity", "cachePacProxyLineCapacity");
+
     private Integer apiPort;
     private Boolean autodetect;
     private Boolean autostart;
 
-    public void validate() throws InvalidProxySettingsException {
+    private Integer maxConnections;
+    private Integer maxConnectionsPerRoute;
+    private Integer socketConnectTimeout;
+    private Integer socketSoTimeout;
+    private Integer connectionRequestTimeout;
+    private Integer connectionManagerIdleTimeout;
+    private Integer pacScriptEnginePoolMaxTotal;
+    private Integer pacScriptEnginePoolMaxWait;
+    private Integer pacScriptEvaluationTimeout;
+    private Integer cacheGlobPatternCapacity;
+    private Integer cacheIpNetworkCapacity;
+    private Integer cacheDateTimeRangeCapacity;
+    private Integer cachePacLastResultCapacity;
+    private Integer cachePacProxyLineCapacity;
+
+    /**
+     * @param systemConfig the current system settings, merged with the provided ones for the checks
+     *                     involving several settings.
+     * @throws InvalidProxySettingsException if a setting is not valid.
+     */
+    public void validate(SystemConfig systemConfig) throws InvalidProxySettingsException {
         if (apiPort != null && !HttpUtils.isValidPort(apiPort)) {
             throw new InvalidProxySettingsException("Invalid apiPort, allowed range: 1 - 65535");
         }
+        validatePositive("maxConnections", maxConnections);
+        validatePositive("maxConnectionsPerRoute", maxConnectionsPerRoute);
+        validatePositive("socketConnectTimeout", socketConnectTimeout);
+        validatePositive("socketSoTimeout", socketSoTimeout);
+        validatePositive("connectionRequestTimeout", connectionRequestTimeout);
+        validatePositive("connectionManagerIdleTimeout", connectionManagerIdleTimeout);
+        validatePositive("pacScriptEnginePoolMaxTotal", pacScriptEnginePoolMaxTotal);
+        validatePositive("pacScriptEvaluationTimeout", pacScriptEvaluationTimeout);
+        validatePositive("cacheGlobPatternCapacity", cacheGlobPatternCapacity);
+        validatePositive("cacheIpNetworkCapacity", cacheIpNetworkCapacity);
+        validatePositive("cacheDateTimeRangeCapacity", cacheDateTimeRangeCapacity);
+        validatePositive("cachePacLastResultCapacity", cachePacLastResultCapacity);
+        validatePositive("cachePacProxyLineCapacity", cachePacProxyLineCapacity);
+        if (pacScriptEnginePoolMaxWait != null && pacScriptEnginePoolMaxWait < 0) {
+            throw new InvalidProxySettingsException("Invalid pacScriptEnginePoolMaxWait, it cannot be negative");
+        }
+        int mergedMaxConnections = maxConnections != null ? maxConnections : systemConfig.getMaxConnections();
+        int mergedMaxConnectionsPerRoute = maxConnectionsPerRoute != null
+                ? maxConnectionsPerRoute : systemConfig.getMaxConnectionsPerRoute();
+        if (mergedMaxConnectionsPerRoute > mergedMaxConnections) {
+            throw new InvalidProxySettingsException("Invalid maxConnectionsPerRoute, it cannot exceed maxConnections");
+        }
+    }
+
+    private static void validatePositive(String name, Integer value) throws InvalidProxySettingsException {
+        if (value != null && value < 1) {
+            throw new InvalidProxySettingsException("Invalid " + name + ", it must be positive");
+        }
     }
 
 }
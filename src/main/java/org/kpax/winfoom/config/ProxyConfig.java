@@ -161,6 +161,21 @@ public class ProxyConfig {
     @Value("${proxy.pac.password:#{null}}")
     private String proxyPacPassword;
 
+    /**
+     * The per SOCKS proxy credentials, for the PAC mode: comma separated {@code host:port=username:password} entries.
+     */
+    @Getter
+    @Value("${proxy.pac.socks.credentials:#{null}}")
+    private String proxyPacSocksCredentials;
+
+    /**
+     * The hosts connected directly in the manual proxy modes: comma separated domains, networks (CIDR) or IP addresses.
+     */
+    @ToString.Include
+    @Getter
+    @Value("${proxy.bypass:#{null}}")
+    private String proxyBypass;
+
     @ToString.Include
     @Setter
     @Value("${pac.http.auth.protocol:#{null}}")
@@ -564,6 +579,11 @@ public class ProxyConfig {
         } else {
             config.clearProperty("proxy.pac.password");
         }
+        if (StringUtils.isNotEmpty(proxyPacSocksCredentials)) {
+            setProperty(config, "proxy.pac.socks.credentials", encode(Base64.getEncoder().encodeToString(proxyPacSocksCredentials.getBytes())));
+        } else {
+            config.clearProperty("proxy.pac.socks.credentials");
+        }
         setProperty(config, "pac.http.auth.protocol", pacHttpAuthProtocol);
         setProperty(config, "blacklist.timeout", blacklistTimeout);
 
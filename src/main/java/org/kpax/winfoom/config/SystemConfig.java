@@ -14,9 +14,11 @@ package org.kpax.winfoom.config;
 
 import jakarta.annotation.PostConstruct;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Component;
@@ -29,7 +31,9 @@ import java.util.Optional;
 
 /**
  * The proxy facade system configuration.
- * <p>This settings cannot change once the application is started.
+ * <p>This settings cannot change once the application is started, except the ones having a setter:
+ * these can be changed while the local proxy server is running (see {@code POST /settings}),
+ * affecting only the new connections.
  *
  * @author Eugen Covaci
  */
@@ -61,13 +65,15 @@ public class SystemConfig {
      * Connection pool property:  max polled connections per route.
      */
     @Value("${maxConnections.perRoute:20}")
-    private Integer maxConnectionsPerRoute;
+    @Setter
+    private volatile Integer maxConnectionsPerRoute;
 
     /**
      * Connection pool property: max polled connections.
      */
     @Value("${maxConnections:600}")
-    private Integer maxConnections;
+    @Setter
+    private volatile Integer maxConnections;
 
     /**
      * The max size of the entity buffer (bytes).
@@ -87,7 +93,53 @@ public class SystemConfig {
      * to be purged by a scheduled task (seconds).
      */
     @Value("${connectionManager.idleTimeout:100}")
-    private Integer connectionManagerIdleTimeout;
+    @Setter
+    private volatile Integer connectionManagerIdleTimeout;
+
+    /**
+     * Whether to use the per-route lock-striped connection pool
+     * instead of the default, globally locked one.
+     */
+    @Value("${connectionManager.striped:false}")
+    private boolean connectionManagerStriped;
+
+    /**
+     * The period of inactivity after which a pooled connection
+     * is checked for staleness before being leased (milliseconds, disabled when not positive).
+     */
+    @Value("${connectionManager.validateAfterInactivity:2000}")
+    private Integer connectionManagerValidateAfterInactivity;
+
+    /**
+     * Whether to adjust the per-route connection limits
+     * according to the pending leases and the lease wait times.
+     */
+    @Value("${connectionManager.adaptive:false}")
+    private boolean connectionManagerAdaptive;
+
+    /**
+     * The frequency of adjusting the per-route connection limits (seconds).
+     */
+    @Value("${connectionManager.adaptive.interval:10}")
+    private Integer connectionManagerAdaptiveInterval;
+
+    /**
+     * The number of connections to open per upstream proxy when the local proxy starts (disabled when zero).
+     */
+    @Value("${connectionManager.warmup.connections:0}")
+    private Integer connectionManagerWarmupConnections;
+
+    /**
+     * The comma separated URLs used to warm up the connections (the proxy test URL when empty).
+     */
+    @Value("${connectionManager.warmup.urls:#{null}}")
+    private String connectionManagerWarmupUrls;
+
+    /**
+     * The maximum duration of the connections warm-up (seconds).
+     */
+    @Value("${connectionManager.warmup.deadline:30}")
+    private Integer connectionManagerWarmupDeadline;
 
     /**
      * The maximum number of pending connections.
@@ -95,23 +147,137 @@ public class SystemConfig {
     @Value("${serverSocket.backlog:1000}")
     private Integer serverSocketBacklog;
 
+    /**
+     * The path of an optional Unix domain socket the local proxy server listens on,
+     * besides the loopback TCP port (disabled when empty).
+     */
+    @Value("${serverSocket.unixPath:#{null}}")
+    private String serverSocketUnixPath;
+
+    /**
+     * The loopback port of an optional inbound SOCKS5 listener (disabled when 0).
+     */
+    @Value("${serverSocket.socks5Port:0}")
+    private Integer serverSocketSocks5Port;
+
     /**
      * The timeout for read/write through socket channel (seconds).
      */
     @Value("${socket.soTimeout:65}")
-    private Integer socketSoTimeout;
+    @Setter
+    private volatile Integer socketSoTimeout;
 
     /**
      * The timeout for socket connect (seconds).
      */
     @Value("${socket.connectTimeout:20}")
-    private Integer socketConnectTimeout;
+    @Setter
+    private volatile Integer socketConnectTimeout;
 
     /**
      * The timeout for request connection (seconds).
      */
     @Value("${connection.request.timeout:30}")
-    private Integer connectionRequestTimeout;
+    @Setter
+    private volatile Integer connectionRequestTimeout;
+
+    /**
+     * Whether to keep a few sockets to the upstream HTTP proxy connected in advance
+     * (manual proxy only, used by the CONNECT requests).
+     */
+    @Value("${connection.speculative.enabled:false}")
+    private boolean connectionSpeculativeEnabled;
+
+    /**
+     * Whether to answer the CONNECT requests before the upstream HTTP proxy accepts the tunnel (manual proxy only).
+     */
+    @Value("${connect.optimistic.enabled:false}")
+    private boolean connectOptimisticEnabled;
+
+    /**
+     * The maximum number of TLS sessions kept for resumption (unlimited when zero).
+     */
+    @Value("${tls.sessionCache.size:1000}")
+    private Integer tlsSessionCacheSize;
+
+    /**
+     * The lifetime of a cached TLS session (seconds, unlimited when zero).
+     */
+    @Value("${tls.sessionCache.timeout:86400}")
+    private Integer tlsSessionCacheTimeout;
+
+    /**
+     * Whether to retry the idempotent requests the upstream never answered
+     * (like those sent over a silently dropped pooled connection).
+     */
+    @Value("${request.retry.enabled:false}")
+    private boolean requestRetryEnabled;
+
+    /**
+     * The maximum number of retries per request.
+     */
+    @Value("${request.retry.count:1}")
+    private Integer requestRetryCount;
+
+    /**
+     * Whether to collapse the identical concurrent GET requests into a single upstream request.
+     */
+    @Value("${request.coalescing.enabled:false}")
+    private boolean requestCoalescingEnabled;
+
+    /**
+     * Whether to fetch the large GET responses in parts, with parallel {@code Range} requests.
+     */
+    @Value("${rangedDownload.enabled:false}")
+    private boolean rangedDownloadEnabled;
+
+    /**
+     * The minimum response size for a parallel download (megabytes).
+     */
+    @Value("${rangedDownload.threshold:64}")
+    private Integer rangedDownloadThreshold;
+
+    /**
+     * The size of a parallel download part (megabytes).
+     */
+    @Value("${rangedDownload.partSize:4}")
+    private Integer rangedDownloadPartSize;
+
+    /**
+     * The maximum number of parts fetched, and buffered, at a time.
+     */
+    @Value("${rangedDownload.parallelism:4}")
+    private Integer rangedDownloadParallelism;
+
+    /**
+     * Whether to cache the plain-HTTP GET responses.
+     */
+    @Value("${responseCache.enabled:false}")
+    private boolean responseCacheEnabled;
+
+    /**
+     * The maximum size of the response cache's memory tier (megabytes).
+     */
+    @Value("${responseCache.memory.maxSize:64}")
+    private Integer responseCacheMemoryMaxSize;
+
+    /**
+     * The maximum size of the response cache's disk tier (megabytes, disabled when zero).
+     */
+    @Value("${responseCache.disk.maxSize:1024}")
+    private Integer responseCacheDiskMaxSize;
+
+    /**
+     * The directory of the response cache's disk tier (a {@code cache} directory next to the temp one when empty).
+     */
+    @Value("${responseCache.directory:#{null}}")
+    private String responseCacheDirectory;
+
+    /**
+     * The maximum size of a cached response body (megabytes).
+     */
+    @Value("${responseCache.maxEntrySize:256}")
+    private Integer responseCacheMaxEntrySize;
 
     /**
      * This is a Java system property.<br>
@@ -124,10 +290,39 @@ public class SystemConfig {
     private boolean preferIPv6Addresses;
 
     /**
-     * The cache2k globPattern capacity.
+     * The minimum cache2k globPattern capacity, grown to the PAC script's distinct {@code shExpMatch} patterns.
      */
     @Value("${cache.globPattern.capacity:100}")
-    private Integer cacheGlobPatternCapacity;
+    @Setter
+    private volatile Integer cacheGlobPatternCapacity;
+
+    /**
+     * The cache2k capacity of the {@code isInNet}, respectively {@code isInNetEx} parsed networks.
+     */
+    @Value("${cache.ipNetwork.capacity:500}")
+    @Setter
+    private volatile Integer cacheIpNetworkCapacity;
+
+    /**
+     * The cache2k capacity of the compiled {@code weekdayRange}, {@code dateRange} and {@code timeRange} calls.
+     */
+    @Value("${cache.dateTimeRange.capacity:200}")
+    @Setter
+    private volatile Integer cacheDateTimeRangeCapacity;
+
+    /**
+     * The cache2k capacity of the last PAC script result per host, used as fallback.
+     */
+    @Value("${cache.pacLastResult.capacity:1000}")
+    @Setter
+    private volatile Integer cachePacLastResultCapacity;
+
+    /**
+     * The cache2k capacity of the parsed PAC proxy lines, respectively of the interned proxies.
+     */
+    @Value("${cache.pacProxyLine.capacity:1000}")
+    @Setter
+    private volatile Integer cachePacProxyLineCapacity;
 
     /**
      * The cache2k credentialsProvider capacity.
@@ -139,7 +334,8 @@ public class SystemConfig {
      * The pacScriptEngine pool maximum total instances.
      */
     @Value("${pacScriptEngine.pool.maxTotal:100}")
-    private Integer pacScriptEnginePoolMaxTotal;
+    @Setter
+    private volatile Integer pacScriptEnginePoolMaxTotal;
 
     /**
      * The pacScriptEngine pool min idle instances.
@@ -147,6 +343,86 @@ public class SystemConfig {
     @Value("${pacScriptEngine.pool.minIdle:20}")
     private Integer pacScriptEnginePoolMinIdle;
 
+    /**
+     * The maximum time to wait for a pacScriptEngine when the pool is exhausted (seconds), zero for unlimited.
+     */
+    @Value("${pacScriptEngine.pool.maxWait:5}")
+    @Setter
+    private volatile Integer pacScriptEnginePoolMaxWait;
+
+    /**
+     * Whether to size the pacScriptEngine pool according to the concurrent evaluations and the memory budget.
+     */
+    @Value("${pacScriptEngine.pool.adaptive:false}")
+    private boolean pacScriptEnginePoolAdaptive;
+
+    /**
+     * The frequency of adjusting the pacScriptEngine pool size (seconds).
+     */
+    @Value("${pacScriptEngine.pool.adaptive.interval:10}")
+    private Integer pacScriptEnginePoolAdaptiveInterval;
+
+    /**
+     * The estimated heap memory the adaptive pacScriptEngine pool may use (MB).
+     */
+    @Value("${pacScriptEngine.pool.memoryBudget:128}")
+    private Integer pacScriptEnginePoolMemoryBudget;
+
+    /**
+     * The time after which an idle pacScriptEngine is evicted from the adaptive pool (seconds).
+     */
+    @Value("${pacScriptEngine.pool.idleTimeout:60}")
+    private Integer pacScriptEnginePoolIdleTimeout;
+
+    /**
+     * The maximum duration of a PAC script evaluation (seconds), zero for unlimited.
+     */
+    @Value("${pacScript.evaluation.timeout:5}")
+    @Setter
+    private volatile Integer pacScriptEvaluationTimeout;
+
+    /**
+     * The proxy line used when the PAC script cannot be evaluated in time.
+     */
+    @Value("${pacScript.evaluation.fallback:DIRECT}")
+    private String pacScriptEvaluationFallback;
+
+    /**
+     * Whether to use the host's last PAC script result, if any, when the PAC script cannot be evaluated in time.
+     */
+    @Value("${pacScript.evaluation.fallback.lastResult:true}")
+    private boolean pacScriptEvaluationFallbackLastResult;
+
+    /**
+     * Whether to compile the PAC scripts written in a simple subset of JavaScript, to be evaluated without the JavaScript engine.
+     */
+    @Value("${pacScript.compiler.enabled:false}")
+    private boolean pacScriptCompilerEnabled;
+
+    /**
+     * Whether to reload the PAC script when it changes, without restarting the local proxy.
+     */
+    @Value("${pacScript.watch:false}")
+    private boolean pacScriptWatch;
+
+    /**
+     * The frequency of checking the PAC script for changes (seconds).
+     */
+    @Value("${pacScript.watch.interval:30}")
+    private Integer pacScriptWatchInterval;
+
+    /**
+     * Whether to start with the local copy of the last good remote PAC script, refreshed in background.
+     */
+    @Value("${pacScript.localCopy:true}")
+    private boolean pacScriptLocalCopy;
+
+    /**
+     * The connect and read timeout for getting the remote PAC script (seconds).
+     */
+    @Value("${pacScript.fetch.timeout:10}")
+    private Integer pacScriptFetchTimeout;
+
     /**
      * The request timeout for API server (seconds).
      */
@@ -176,6 +452,10 @@ public class SystemConfig {
                 .setSocketTimeout(socketSoTimeout * 1000);
     }
 
+    public SocketConfig.Builder applyConfig(final SocketConfig.Builder configBuilder) {
+        return configBuilder.setSoTimeout(socketSoTimeout * 1000);
+    }
+
     public Socket configureSocket(final Socket socket) throws SocketException {
         socket.setSoTimeout(socketSoTimeout * 1000);
         return socket;
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * It adjusts the per-route connection limits according to the pending leases and the lease wait times.
+ * <p>A route under pressure (pending leases or long lease waits) gets a higher limit, taken from what is left of the
+ * {@code maxConnections} budget. A route whose limit has been raised and is no longer used gets it lowered
+ * back, never below {@code maxConnections.perRoute}.
+ * <p>The lease waits are measured against {@code connection.request.timeout}: the closer they get to it,
+ * the faster the limit grows.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class AdaptivePoolSizer {
+
+    /**
+     * A lease wait longer than the connection request timeout divided by this value means pressure.
+     */
+    private static final int WAIT_THRESHOLD_DIVISOR = 10;
+
+    /**
+     * The lowest lease wait meaning pressure (milliseconds).
+     */
+    private static final long MIN_WAIT_THRESHOLD_MILLIS = 50;
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyController proxyController;
+
+    private final ConnectionPoolingManager connectionPoolingManager;
+
+    /**
+     * A job that adjusts the per-route limits of the active connection managers.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.connectionManagerAdaptiveInterval * 1000}")
+    void adjustRouteLimits() {
+        if (systemConfig.isConnectionManagerAdaptive() && proxyController.isRunning()) {
+            connectionPoolingManager.getActiveConnectionManagers().forEach((type, connectionManager) -> {
+                try {
+                    adjustRouteLimits(type, connectionManager);
+                } catch (Exception e) {
+                    log.debug("Error on adjusting the route limits", e);
+                }
+            });
+        }
+    }
+
+    private void adjustRouteLimits(String type, PoolingConnectionManager connectionManager) {
+        int baseLimit = connectionManager.getDefaultMaxPerRoute();
+        long requestTimeoutMillis = TimeUnit.SECONDS.toMillis(systemConfig.getConnectionRequestTimeout());
+        long waitThresholdMillis = Math.max(MIN_WAIT_THRESHOLD_MILLIS, requestTimeoutMillis / WAIT_THRESHOLD_DIVISOR);
+        List<RoutePressure> pressures = new ArrayList<>();
+
+        // The connections held by each route, or its whole limit if raised
+        int reserved = 0;
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            PoolStats stats = connectionManager.getStats(route);
+            LeaseWaitStatistics.Snapshot leaseWait = connectionManager.getLeaseWaitStatistics().drain(route);
+            int limit = connectionManager.getMaxPerRoute(route);
+            if (stats.getPending() > 0 || leaseWait.getMaxMillis() >= waitThresholdMillis) {
+                pressures.add(new RoutePressure(route, limit, reservedBy(limit, baseLimit, stats),
+                        stats.getPending(), leaseWait.getMaxMillis()));
+            } else if (limit > baseLimit && stats.getLeased() <= limit / 2) {
+                int newLimit = Math.max(baseLimit, limit - Math.max(1, limit / 4));
+                log.debug("Lower the {} route {} limit from {} to {}", type, route, limit, newLimit);
+                connectionManager.setMaxPerRoute(route, newLimit);
+                limit = newLimit;
+            }
+            reserved += reservedBy(limit, baseLimit, stats);
+        }
+
+        int budget = connectionManager.getMaxTotal() - reserved;
+        pressures.sort(Comparator.comparingLong(RoutePressure::getLeaseWaitMaxMillis).
+                thenComparingInt(RoutePressure::getPending).reversed());
+        for (RoutePressure pressure : pressures) {
+            if (budget <= 0) {
+                log.debug("No {} connection budget left for raising route limits", type);
+                break;
+            }
+            int step = requestTimeoutMillis > 0 && pressure.getLeaseWaitMaxMillis() >= requestTimeoutMillis / 2
+                    ? pressure.getLimit() : Math.max(1, pressure.getLimit() / 4);
+            int newLimit = Math.min(pressure.getLimit() + Math.max(step, pressure.getPending()),
+                    pressure.getReserved() + budget);
+            if (newLimit > pressure.getLimit()) {
+                log.debug("Raise the {} route {} limit from {} to {} (pending: {}, max lease wait: {} ms)",
+                        type, pressure.getRoute(), pressure.getLimit(), newLimit,
+                        pressure.getPending(), pressure.getLeaseWaitMaxMillis());
+                connectionManager.setMaxPerRoute(pressure.getRoute(), newLimit);
+                budget -= newLimit - pressure.getReserved();
+            }
+        }
+    }
+
+    /**
+     * A route with a raised limit reserves it entirely, otherwise only the connections it holds.
+     */
+    private static int reservedBy(int limit, int baseLimit, PoolStats stats) {
+        return limit > baseLimit ? limit : stats.getLeased() + stats.getAvailable();
+    }
+
+    @RequiredArgsConstructor
+    @Getter
+    private static class RoutePressure {
+
+        private final HttpRoute route;
+
+        private final int limit;
+
+        private final int reserved;
+
+        private final int pending;
+
+        private final long leaseWaitMaxMillis;
+
+    }
+
+}
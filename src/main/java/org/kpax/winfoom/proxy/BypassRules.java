@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.proxy.pac.net.IpNetwork;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The compiled form of a {@code noProxy} like bypass list.
+ * <p>The entries are separated by commas or whitespaces:
+ * <ul>
+ * <li>{@code example.com} matches the domain and its subdomains</li>
+ * <li>{@code .example.com} or {@code *.example.com} matches only the subdomains</li>
+ * <li>{@code 10.0.0.0/8}, {@code fe80::/10} matches the IP literals in the network
+ * (an address without prefix length matches only itself)</li>
+ * <li>{@code <local>} matches the plain hostnames (no dots)</li>
+ * <li>{@code *} matches everything</li>
+ * </ul>
+ * <p>The host names are not resolved: the networks only match the hosts given as IP literals.
+ * The domains are kept in a trie of reversed characters and the networks in binary prefix trees,
+ * so that matching an IPv4 or a host name walks the host once, without allocating.
+ */
+@ThreadSafe
+final class BypassRules {
+
+    static final BypassRules EMPTY = new BypassRules();
+
+    private final DomainNode domains = new DomainNode();
+
+    private final BitNode ipv4Networks = new BitNode();
+
+    private final BitNode ipv6Networks = new BitNode();
+
+    private boolean all;
+
+    private boolean plainHostnames;
+
+    private boolean empty = true;
+
+    private BypassRules() {
+    }
+
+    /**
+     * Compile the bypass list.
+     *
+     * @param bypassList the comma or whitespace separated entries.
+     * @return the compiled rules.
+     * @throws IllegalArgumentException if an entry is not valid.
+     */
+    static BypassRules compile(final String bypassList) {
+        if (StringUtils.isBlank(bypassList)) {
+            return EMPTY;
+        }
+        BypassRules rules = new BypassRules();
+        for (String entry : bypassList.trim().split("[,\\s]+")) {
+            if (!entry.isEmpty()) {
+                rules.add(entry.toLowerCase(Locale.ROOT));
+            }
+        }
+        return rules;
+    }
+
+    private void add(String entry) {
+        empty = false;
+        if (entry.equals("*")) {
+            all = true;
+        } else if (entry.equals("<local>")) {
+            plainHostnames = true;
+        } else if (entry.indexOf('/') > 0 || entry.indexOf(':') >= 0 || parseIpv4(entry) != -1) {
+            addNetwork(entry);
+        } else if (entry.startsWith("*.")) {
+            addDomain(entry.substring(2), false);
+        } else if (entry.startsWith(".")) {
+            addDomain(entry.substring(1), false);
+        } else {
+            addDomain(entry, true);
+        }
+    }
+
+    private void addDomain(String domain, boolean exact) {
+        domain = StringUtils.removeEnd(domain, ".");
+        if (domain.isEmpty()) {
+            throw new IllegalArgumentException("Invalid bypass domain");
+        }
+        DomainNode node = domains;
+        for (int i = domain.length() - 1; i >= 0; i--) {
+            node = node.getOrAddChild(domain.charAt(i));
+        }
+        node.exact |= exact;
+        node.subdomains = true;
+    }
+
+    private void addNetwork(String network) {
+        int slashIndex = network.indexOf('/');
+        String address = slashIndex > 0 ? network.substring(0, slashIndex) : network;
+        byte[] bytes;
+        try {
+            // Only the IP literals, so that there is no DNS lookup
+            if (!isIpLiteral(address)) {
+                throw new IllegalArgumentException("Invalid bypass network: " + network);
+            }
+            bytes = InetAddress.getByName(StringUtils.strip(address, "[]")).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid bypass network: " + network, e);
+        }
+        int maxLength = bytes.length * 8;
+        int prefixLength;
+        try {
+            prefixLength = slashIndex > 0 ? Integer.parseInt(network.substring(slashIndex + 1)) : maxLength;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid bypass network: " + network, e);
+        }
+        if (prefixLength < 0 || prefixLength > maxLength) {
+            throw new IllegalArgumentException("Invalid bypass network: " + network);
+        }
+        BitNode node = bytes.length == 4 ? ipv4Networks : ipv6Networks;
+        for (int i = 0; i < prefixLength; i++) {
+            node = node.getOrAddChild(bit(bytes, i));
+        }
+        node.terminal = true;
+    }
+
+    /**
+     * @param host the host name or the IP literal (IPv6 literals may be enclosed in brackets).
+     * @return {@code true} iff the host should be connected directly.
+     */
+    boolean matches(final String host) {
+        if (empty || host == null || host.isEmpty()) {
+            return false;
+        }
+        if (all) {
+            return true;
+        }
+        if (host.indexOf(':') >= 0) {
+            return matchesIpv6(host);
+        }
+        long ipv4 = parseIpv4(host);
+        if (ipv4 != -1) {
+            return matchesIpv4((int) ipv4);
+        }
+        return (plainHostnames && host.indexOf('.') < 0) || matchesDomain(host);
+    }
+
+    private boolean matchesDomain(String host) {
+        int end = host.length();
+        if (host.charAt(end - 1) == '.') {
+            end--;
+        }
+        DomainNode node = domains;
+        for (int i = end - 1; i >= 0; i--) {
+            node = node.getChild(Character.toLowerCase(host.charAt(i)));
+            if (node == null) {
+                return false;
+            }
+            if (i == 0) {
+                return node.exact;
+            }
+            if (node.subdomains && host.charAt(i - 1) == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesIpv4(int address) {
+        BitNode node = ipv4Networks;
+        for (int i = 0; !node.terminal; i++) {
+            node = i < 32 ? node.getChild((address >>> (31 - i)) & 1) : null;
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesIpv6(String host) {
+        long[] address = new long[2];
+        if (!IpNetwork.parseIpv6(host, address)) {
+            // Not an IP literal, like a host with a port
+            return false;
+        }
+        if (address[0] == 0 && (address[1] >>> 32) == 0xFFFFL) {
+            // An IPv4-mapped address
+            return matchesIpv4((int) address[1]);
+        }
+        BitNode node = ipv6Networks;
+        for (int i = 0; !node.terminal; i++) {
+            node = i < 128 ? node.getChild(bit(address, i)) : null;
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int bit(byte[] bytes, int index) {
+        return (bytes[index >> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    private static int bit(long[] address, int index) {
+        return (int) (address[index >> 6] >>> (63 - (index & 63))) & 1;
+    }
+
+    private static boolean isIpLiteral(String value) {
+        return parseIpv4(value) != -1 || IpNetwork.parseIpv6(value, new long[2]);
+    }
+
+    /**
+     * Parse a dotted decimal IPv4 address.
+     *
+     * @return the address or {@code -1} when not an IPv4 literal.
+     */
+    private static long parseIpv4(String value) {
+        long address = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet == -1 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet != -1 && dots < 3) {
+                address = (address << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        return dots == 3 && octet != -1 ? (address << 8) | octet : -1;
+    }
+
+    private static class DomainNode {
+
+        private char[] keys = new char[0];
+
+        private DomainNode[] children = new DomainNode[0];
+
+        /**
+         * The domain itself matches.
+         */
+        private boolean exact;
+
+        /**
+         * The subdomains match.
+         */
+        private boolean subdomains;
+
+        DomainNode getChild(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        DomainNode getOrAddChild(char key) {
+            DomainNode child = getChild(key);
+            if (child == null) {
+                child = new DomainNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = key;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private static class BitNode {
+
+        private final BitNode[] children = new BitNode[2];
+
+        private boolean terminal;
+
+        BitNode getChild(int bit) {
+            return children[bit];
+        }
+
+        BitNode getOrAddChild(int bit) {
+            if (children[bit] == null) {
+                children[bit] = new BitNode();
+            }
+            return children[bit];
+        }
+    }
+
+}
@@ -40,6 +40,7 @@ import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Locale;
+import java.util.function.BooleanSupplier;
 
 /**
  * It encapsulates a client's connection.
@@ -54,9 +55,9 @@ import java.util.Locale;
 public class ClientConnection implements StreamSource, AutoCloseable {
 
     /**
-     * The underlying socket.
+     * Whether the underlying socket is closed.
      */
-    private final Socket socket;
+    private final BooleanSupplier closedSupplier;
 
     private final ProxyConfig proxyConfig;
 
@@ -93,6 +94,11 @@ public class ClientConnection implements StreamSource, AutoCloseable {
     @Getter
     private final boolean connect;
 
+    /**
+     * The source of the sockets to the upstream proxy connected in advance, if any.
+     */
+    private SpeculativeConnector speculativeConnector;
+
     /**
      * Constructor.<br>
      * Has the responsibility of parsing the request and initiate various objects.
@@ -107,11 +113,36 @@ public class ClientConnection implements StreamSource, AutoCloseable {
     ClientConnection(final Socket socket,
                      final ProxyConfig proxyConfig,
                      final SystemConfig systemConfig) throws IOException, HttpException {
-        this.socket = socket;
+        this(socket.getInputStream(), socket.getOutputStream(), socket::isClosed, proxyConfig, systemConfig);
+    }
+
+    /**
+     * Constructor for a client connected through a Unix domain socket.
+     *
+     * @param channelStreams the streams of the accepted {@link java.nio.channels.SocketChannel}
+     * @param proxyConfig
+     * @param systemConfig
+     * @throws IOException
+     * @throws HttpException
+     * @see #ClientConnection(Socket, ProxyConfig, SystemConfig)
+     */
+    ClientConnection(final SocketChannelStreams channelStreams,
+                     final ProxyConfig proxyConfig,
+                     final SystemConfig systemConfig) throws IOException, HttpException {
+        this(channelStreams.getInputStream(), channelStreams.getOutputStream(),
+                channelStreams::isClosed, proxyConfig, systemConfig);
+    }
+
+    private ClientConnection(final InputStream inputStream,
+                             final OutputStream outputStream,
+                             final BooleanSupplier closedSupplier,
+                             final ProxyConfig proxyConfig,
+                             final SystemConfig systemConfig) throws IOException, HttpException {
+        this.closedSupplier = closedSupplier;
         this.proxyConfig = proxyConfig;
         this.systemConfig = systemConfig;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
 
         // Parse the request
         try {
@@ -293,11 +324,25 @@ public class ClientConnection implements StreamSource, AutoCloseable {
         EntityUtils.consume(entity);
     }
 
+    void setSpeculativeConnector(SpeculativeConnector speculativeConnector) {
+        this.speculativeConnector = speculativeConnector;
+    }
+
+    /**
+     * Take a socket to the upstream proxy connected in advance.
+     *
+     * @param proxy the upstream proxy.
+     * @return the connected socket or {@code null} if there is none usable.
+     */
+    public Socket takeSpeculativeSocket(@NotNull HttpHost proxy) {
+        return speculativeConnector != null ? speculativeConnector.take(proxy) : null;
+    }
+
     /**
      * @return {@code true} iff the underlying socket is closed.
      */
     public boolean isClosed() {
-        return socket.isClosed();
+        return closedSupplier.getAsBoolean();
     }
 
     /**
@@ -44,8 +44,21 @@ public abstract class ClientConnectionHandler {
      * @throws Exception
      */
     public void handleConnection(@NotNull final Socket socket) throws Exception {
-        try (ClientConnection clientConnection = new ClientConnection(
-                socket, proxyConfig, systemConfig)) {
+        handleConnection(new ClientConnection(socket, proxyConfig, systemConfig));
+    }
+
+    /**
+     * Create a {@link ClientConnection} instance for a Unix domain socket client then process it.
+     *
+     * @param channelStreams the streams of the client's socket channel
+     * @throws Exception
+     */
+    void handleConnection(@NotNull final SocketChannelStreams channelStreams) throws Exception {
+        handleConnection(new ClientConnection(channelStreams, proxyConfig, systemConfig));
+    }
+
+    private void handleConnection(final ClientConnection clientConnection) throws Exception {
+        try (clientConnection) {
             RequestLine requestLine = clientConnection.getRequestLine();
             log.debug("Handle request: {}", requestLine);
             clientConnection.prepare();
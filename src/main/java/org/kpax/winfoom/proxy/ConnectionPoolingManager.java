@@ -16,12 +16,18 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.pool.PoolStats;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ConfigChangeListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.core.annotation.Order;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -29,7 +35,11 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,7 +51,7 @@ import java.util.concurrent.TimeUnit;
 @ThreadSafe
 @Order(1)
 @Component
-class ConnectionPoolingManager implements StopListener {
+class ConnectionPoolingManager implements StopListener, ConfigChangeListener, MetricsSource {
 
     private final SystemConfig systemConfig;
 
@@ -51,31 +61,33 @@ class ConnectionPoolingManager implements StopListener {
 
     private final Socks4ConnectionSocketFactory socks4ConnectionSocketFactory;
 
+    private final ProxyTlsContext proxyTlsContext;
+
     /**
      * For HTTP proxy type
      */
-    private final SingletonSupplier<PoolingHttpClientConnectionManager> httpSupplier =
-            new SingletonSupplier<>(() -> createConnectionManager(null));
+    private final SingletonSupplier<PoolingConnectionManager> httpSupplier =
+            new SingletonSupplier<>(this::createHttpConnectionManager);
 
     /**
      * For SOCKS5 proxy type
      */
-    private final SingletonSupplier<PoolingHttpClientConnectionManager> socks5Supplier =
+    private final SingletonSupplier<PoolingConnectionManager> socks5Supplier =
             new SingletonSupplier<>(() -> createSocksConnectionManager(false));
 
     /**
      * For SOCKS4 proxy type
      */
-    private final SingletonSupplier<PoolingHttpClientConnectionManager> socks4Supplier =
+    private final SingletonSupplier<PoolingConnectionManager> socks4Supplier =
             new SingletonSupplier<>(() -> createSocksConnectionManager(true));
 
-    private final List<SingletonSupplier<PoolingHttpClientConnectionManager>> poolingHttpSuppliers =
+    private final List<SingletonSupplier<PoolingConnectionManager>> poolingHttpSuppliers =
             Arrays.asList(httpSupplier, socks5Supplier, socks4Supplier);
 
     /**
      * Lazy getter for HTTP proxy.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link PoolingConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getHttpConnectionManager() {
         return httpSupplier.get();
@@ -84,7 +96,7 @@ class ConnectionPoolingManager implements StopListener {
     /**
      * Lazy getter for SOCKS5 proxy.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link PoolingConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getSocks5ConnectionManager() {
         return socks5Supplier.get();
@@ -94,7 +106,7 @@ class ConnectionPoolingManager implements StopListener {
      * Lazy getter for SOCKS proxy.
      *
      * @param isSocks4 {@code true} iff the proxy type is SOCKS v4
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link PoolingConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getSocksConnectionManager(boolean isSocks4) {
         return isSocks4 ? socks4Supplier.get() : socks5Supplier.get();
@@ -103,12 +115,23 @@ class ConnectionPoolingManager implements StopListener {
     /**
      * Lazy getter for SOCKS4 proxy.
      *
-     * @return the existent {@link PoolingHttpClientConnectionManager} instance or a new one if {@code null}.
+     * @return the existent {@link PoolingConnectionManager} instance or a new one if {@code null}.
      */
     HttpClientConnectionManager getSocks4ConnectionManager() {
         return socks4Supplier.get();
     }
 
+    /**
+     * @return the connection managers created so far, by proxy type.
+     */
+    Map<String, PoolingConnectionManager> getActiveConnectionManagers() {
+        Map<String, PoolingConnectionManager> connectionManagers = new LinkedHashMap<>();
+        httpSupplier.value().ifPresent(connectionManager -> connectionManagers.put("http", connectionManager));
+        socks5Supplier.value().ifPresent(connectionManager -> connectionManagers.put("socks5", connectionManager));
+        socks4Supplier.value().ifPresent(connectionManager -> connectionManagers.put("socks4", connectionManager));
+        return connectionManagers;
+    }
+
     /**
      * A job that closes the idle/expired HTTP connections.
      */
@@ -118,12 +141,12 @@ class ConnectionPoolingManager implements StopListener {
             log.debug("Execute connection manager pool clean up task");
             poolingHttpSuppliers.stream().filter(SingletonSupplier::hasValue).forEach((connectionManagerSupplier) -> {
                 try {
-                    PoolingHttpClientConnectionManager connectionManager = connectionManagerSupplier.get();
+                    PoolingConnectionManager connectionManager = connectionManagerSupplier.get();
                     connectionManager.closeExpiredConnections();
                     connectionManager.closeIdleConnections(systemConfig.getConnectionManagerIdleTimeout(),
                             TimeUnit.SECONDS);
                     if (log.isDebugEnabled()) {
-                        log.debug("PoolingHttpClientConnectionManager statistics {}",
+                        log.debug("Connection manager statistics {}",
                                 connectionManager.getTotalStats());
                     }
                 } catch (Exception e) {
@@ -134,43 +157,126 @@ class ConnectionPoolingManager implements StopListener {
     }
 
     /**
-     * Create a generic {@link PoolingHttpClientConnectionManager}
+     * Create a generic {@link PoolingConnectionManager}
+     * <p>It is a {@link StripedHttpClientConnectionManager} when {@code connectionManager.striped} is set,
+     * a {@link DefaultPoolingConnectionManager} otherwise.
      *
      * @param socketFactoryRegistry the {@link Registry} instance used to configure the
-     *                              {@link PoolingHttpClientConnectionManager}.
-     * @return the new {@link PoolingHttpClientConnectionManager} instance.
+     *                              {@link PoolingConnectionManager}.
+     * @param dnsResolver           the {@link DnsResolver} or {@code null} for the system's one.
+     * @return the new {@link PoolingConnectionManager} instance.
      * @throws IllegalStateException when the proxy is not started.
      */
-    private PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+    private PoolingConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                                             DnsResolver dnsResolver) {
         Assert.state(proxyController.isRunning(), "Cannot create connectionManagers: ConnectionPoolingManager is not started");
-        PoolingHttpClientConnectionManager connectionManager = socketFactoryRegistry != null
-                ? new PoolingHttpClientConnectionManager(socketFactoryRegistry) :
-                new PoolingHttpClientConnectionManager();
-        log.info("Configure connection manager");
+        PoolingConnectionManager connectionManager = systemConfig.isConnectionManagerStriped()
+                ? new StripedHttpClientConnectionManager(socketFactoryRegistry, dnsResolver) :
+                new DefaultPoolingConnectionManager(socketFactoryRegistry, dnsResolver);
+        log.info("Configure connection manager {}", connectionManager.getClass().getSimpleName());
+        connectionManager.setDefaultSocketConfig(systemConfig.applyConfig(SocketConfig.custom()).build());
         if (systemConfig.getMaxConnections() != null) {
             connectionManager.setMaxTotal(systemConfig.getMaxConnections());
         }
         if (systemConfig.getMaxConnectionsPerRoute() != null) {
             connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
         }
+        if (systemConfig.getConnectionManagerValidateAfterInactivity() != null) {
+            connectionManager.setValidateAfterInactivity(systemConfig.getConnectionManagerValidateAfterInactivity());
+        }
         return connectionManager;
     }
 
     /**
-     * Create a SOCKS {@link PoolingHttpClientConnectionManager}
+     * Create the HTTP {@link PoolingConnectionManager}, speaking TLS to the HTTPS proxies.
+     *
+     * @return the new {@link PoolingConnectionManager} instance.
+     * @throws IllegalStateException when the proxy is not started.
+     */
+    private PoolingConnectionManager createHttpConnectionManager() {
+        return createConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", proxyTlsContext.getSocketFactory())
+                .build(), null);
+    }
+
+    /**
+     * Create a SOCKS {@link PoolingConnectionManager}
      *
      * @param isSocks4 whether the SOCKS version is {@code 4} or not.
-     * @return the new {@link PoolingHttpClientConnectionManager} instance.
+     * @return the new {@link PoolingConnectionManager} instance.
      * @throws IllegalStateException when the proxy is not started.
      */
-    private PoolingHttpClientConnectionManager createSocksConnectionManager(boolean isSocks4) {
+    private PoolingConnectionManager createSocksConnectionManager(boolean isSocks4) {
         ConnectionSocketFactory connectionSocketFactory = isSocks4
                 ? socks4ConnectionSocketFactory : socksConnectionSocketFactory;
         Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
                 .register("http", connectionSocketFactory)
                 .register("https", connectionSocketFactory)
                 .build();
-        return createConnectionManager(socketFactoryRegistry);
+        return createConnectionManager(socketFactoryRegistry, SocksConnectionSocketFactory.UNRESOLVED_DNS_RESOLVER);
+    }
+
+    /**
+     * Apply the new connection limits to the active connection managers.
+     * <p>The leased connections are kept, the pool shrinking as they are released.
+     */
+    @Override
+    public void onConfigChange(Set<String> properties) {
+        getActiveConnectionManagers().forEach((type, connectionManager) -> {
+            if (properties.contains("maxConnections") && systemConfig.getMaxConnections() != null) {
+                log.info("Change the {} connection manager's max total to {}", type, systemConfig.getMaxConnections());
+                connectionManager.setMaxTotal(systemConfig.getMaxConnections());
+            }
+            if (properties.contains("maxConnectionsPerRoute") && systemConfig.getMaxConnectionsPerRoute() != null) {
+                log.info("Change the {} connection manager's default max per route to {}",
+                        type, systemConfig.getMaxConnectionsPerRoute());
+                connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
+            }
+            if (properties.contains("socketSoTimeout")) {
+                connectionManager.setDefaultSocketConfig(systemConfig.applyConfig(SocketConfig.custom()).build());
+            }
+        });
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "connectionPool";
+    }
+
+    /**
+     * The current limits and statistics of each connection manager, per route.
+     */
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        getActiveConnectionManagers().forEach((type, connectionManager) -> {
+            Map<String, Object> routes = new TreeMap<>();
+            for (HttpRoute route : connectionManager.getRoutes()) {
+                Map<String, Object> routeMetrics = toMetrics(connectionManager.getStats(route));
+                LeaseWaitStatistics.Snapshot leaseWait = connectionManager.getLeaseWaitStatistics().peek(route);
+                routeMetrics.put("leases", leaseWait.getCount());
+                routeMetrics.put("leaseWaitAverageMillis", leaseWait.getAverageMillis());
+                routeMetrics.put("leaseWaitMaxMillis", leaseWait.getMaxMillis());
+                routes.put(route.toString(), routeMetrics);
+            }
+            Map<String, Object> connectionManagerMetrics = new LinkedHashMap<>();
+            connectionManagerMetrics.put("implementation", connectionManager.getClass().getSimpleName());
+            connectionManagerMetrics.put("defaultMaxPerRoute", connectionManager.getDefaultMaxPerRoute());
+            connectionManagerMetrics.put("total", toMetrics(connectionManager.getTotalStats()));
+            connectionManagerMetrics.put("routes", routes);
+            metrics.put(type, connectionManagerMetrics);
+        });
+        return metrics;
+    }
+
+    private static Map<String, Object> toMetrics(PoolStats poolStats) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("max", poolStats.getMax());
+        metrics.put("leased", poolStats.getLeased());
+        metrics.put("pending", poolStats.getPending());
+        metrics.put("available", poolStats.getAvailable());
+        return metrics;
     }
 
     @Override
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StartListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.proxy.pac.PacScriptEvaluator;
+import org.kpax.winfoom.util.HttpUtils;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It opens, and authenticates when required, a number of connections per upstream proxy
+ * right after the local proxy server starts, so that the first wave of requests finds them pooled.
+ * <p>The warm-up runs in background and never takes longer than {@code connectionManager.warmup.deadline}.
+ * <p><b>Note:</b> the pool is keyed by route (upstream proxy and target host),
+ * so only the requests to the warm-up URLs' hosts benefit from it.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class ConnectionWarmUp implements StartListener, StopListener, MetricsSource {
+
+    /**
+     * How often to check whether the local proxy server is started (milliseconds).
+     */
+    private static final long START_POLL_INTERVAL = 100;
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ProxyController proxyController;
+
+    private final ProxyExecutorService executorService;
+
+    private final HttpClientBuilderFactory clientBuilderFactory;
+
+    private final PacScriptEvaluator pacScriptEvaluator;
+
+    private final AtomicInteger requested = new AtomicInteger();
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private volatile State state = State.IDLE;
+
+    private volatile long elapsedMillis;
+
+    private volatile Future<?> warmUpFuture;
+
+    @Override
+    public void onStart() {
+        Integer connections = systemConfig.getConnectionManagerWarmupConnections();
+        if (connections == null || connections < 1) {
+            log.debug("Connections warm-up is disabled");
+            return;
+        }
+        requested.set(0);
+        opened.set(0);
+        failed.set(0);
+        elapsedMillis = 0;
+        state = State.WAITING;
+        warmUpFuture = executorService.submit(() -> warmUp(connections));
+    }
+
+    private void warmUp(int connections) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(systemConfig.getConnectionManagerWarmupDeadline());
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // The connection managers are available only after the local proxy server is started
+            while (!proxyController.isRunning()) {
+                if (System.nanoTime() >= deadline) {
+                    log.warn("Connections warm-up skipped: the local proxy server did not start in time");
+                    state = State.EXPIRED;
+                    return;
+                }
+                Thread.sleep(START_POLL_INTERVAL);
+            }
+            state = State.RUNNING;
+            for (String url : getWarmUpUrls()) {
+                URI uri = URI.create(url.trim());
+                for (ProxyInfo proxyInfo : getUpstreams(uri)) {
+                    log.info("Warm up {} connections to {} via {}", connections, uri, proxyInfo);
+                    futures.add(executorService.submit(() -> warmUp(proxyInfo, uri, connections, deadline)));
+                }
+            }
+            boolean expired = false;
+            for (Future<?> future : futures) {
+                try {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    expired = true;
+                }
+            }
+            state = expired ? State.EXPIRED : State.DONE;
+        } catch (InterruptedException e) {
+            log.debug("Connections warm-up interrupted");
+            // Release the connections still being opened or held
+            futures.forEach(future -> future.cancel(true));
+            state = State.CANCELLED;
+        } catch (Exception e) {
+            log.warn("Error on connections warm-up", e);
+            state = State.FAILED;
+        } finally {
+            elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            log.info("Connections warm-up {}: {} of {} connections opened, {} failed in {} ms",
+                    state.name().toLowerCase(), opened.get(), requested.get(), failed.get(), elapsedMillis);
+        }
+    }
+
+    /**
+     * Open the connections in parallel, each one kept leased until all of them are opened,
+     * otherwise the pool would hand the same connection to several requests.
+     */
+    private void warmUp(ProxyInfo proxyInfo, URI uri, int connections, long deadline) {
+        CountDownLatch latch = new CountDownLatch(connections);
+        List<Future<?>> futures = new ArrayList<>();
+        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
+            for (int i = 0; i < connections; i++) {
+                requested.incrementAndGet();
+                futures.add(executorService.submit(() -> openConnection(httpClient, proxyInfo, uri, latch, deadline)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.debug("Error on warming up connections via " + proxyInfo, e);
+        }
+    }
+
+    private void openConnection(CloseableHttpClient httpClient, ProxyInfo proxyInfo, URI uri,
+                                CountDownLatch latch, long deadline) {
+        HttpClientContext context = HttpClientContext.create();
+        if (proxyInfo.getType().isSocks()) {
+            context.setAttribute(HttpUtils.SOCKS_ADDRESS, new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                    proxyInfo.getProxyHost().getPort()));
+        }
+        boolean counted = false;
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri), context)) {
+            opened.incrementAndGet();
+            latch.countDown();
+            counted = true;
+            log.debug("Warm-up connection opened via {}: {}", proxyInfo, response.getStatusLine());
+            latch.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            EntityUtils.consume(response.getEntity());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            log.debug("Failed to open warm-up connection via " + proxyInfo, e);
+        } finally {
+            if (!counted) {
+                latch.countDown();
+            }
+        }
+    }
+
+    private List<String> getWarmUpUrls() {
+        String urls = systemConfig.getConnectionManagerWarmupUrls();
+        return List.of(StringUtils.isNotBlank(urls) ? urls.split(",") : new String[]{proxyConfig.getProxyTestUrl()});
+    }
+
+    private List<ProxyInfo> getUpstreams(URI uri) throws Exception {
+        if (proxyConfig.isAutoConfig()) {
+            return pacScriptEvaluator.findProxyForURL(uri);
+        }
+        return List.of(new ProxyInfo(proxyConfig.getProxyType(), proxyConfig.getProxyType().isDirect() ? null :
+                new HttpHost(proxyConfig.getProxyHost(), proxyConfig.getProxyPort())));
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "connectionWarmUp";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("state", state);
+        metrics.put("requested", requested.get());
+        metrics.put("opened", opened.get());
+        metrics.put("failed", failed.get());
+        metrics.put("elapsedMillis", elapsedMillis);
+        return metrics;
+    }
+
+    @Override
+    public void onStop() {
+        Future<?> future = warmUpFuture;
+        if (future != null && !future.isDone()) {
+            log.debug("Cancel the connections warm-up");
+            future.cancel(true);
+        }
+        warmUpFuture = null;
+    }
+
+    enum State {
+        IDLE, WAITING, RUNNING, DONE, EXPIRED, CANCELLED, FAILED
+    }
+
+}
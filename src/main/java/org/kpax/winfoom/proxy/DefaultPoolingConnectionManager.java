@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link PoolingHttpClientConnectionManager} based {@link PoolingConnectionManager}.
+ * <p>All the lease/release operations are serialized by a single pool lock.
+ */
+@ThreadSafe
+class DefaultPoolingConnectionManager extends PoolingHttpClientConnectionManager implements PoolingConnectionManager {
+
+    private final LeaseWaitStatistics leaseWaitStatistics = new LeaseWaitStatistics();
+
+    DefaultPoolingConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                    DnsResolver dnsResolver) {
+        super(socketFactoryRegistry, dnsResolver);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        final ConnectionRequest connectionRequest = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+
+            @Override
+            public boolean cancel() {
+                return connectionRequest.cancel();
+            }
+
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    return connectionRequest.get(timeout, unit);
+                } finally {
+                    leaseWaitStatistics.record(route, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    @Override
+    public LeaseWaitStatistics getLeaseWaitStatistics() {
+        return leaseWaitStatistics;
+    }
+
+}
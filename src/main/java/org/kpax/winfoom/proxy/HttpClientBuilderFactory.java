@@ -46,6 +46,8 @@ public class HttpClientBuilderFactory {
 
     private final ConnectionPoolingManager connectionPoolingManager;
 
+    private final IdempotentRequestRetryHandler retryHandler;
+
     /**
      * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
      *
@@ -70,19 +72,33 @@ public class HttpClientBuilderFactory {
      */
     private HttpClientBuilder createHttpClientBuilder(ProxyInfo proxyInfo) {
         RequestConfig requestConfig = systemConfig.applyConfig(RequestConfig.custom()).
-                setProxy(new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort())).
+                setProxy(new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort(),
+                        proxyInfo.getProxyHost().getSchemeName())).
                 setCircularRedirectsAllowed(true).
                 build();
-        return HttpClients.custom().
+        HttpClientBuilder builder = HttpClients.custom().
                 setDefaultCredentialsProvider(credentialsProviderSupplier.get()).
                 setDefaultAuthSchemeRegistry(authSchemeRegistrySupplier.get()).
                 setConnectionManager(connectionPoolingManager.getHttpConnectionManager()).
                 setConnectionManagerShared(true).
                 setDefaultRequestConfig(requestConfig).
                 setRoutePlanner(new DefaultProxyRoutePlanner(requestConfig.getProxy())).
-                disableAutomaticRetries().
                 disableRedirectHandling().
                 disableCookieManagement();
+        if (isWarmupEnabled()) {
+            // All requests authenticate with the same credentials, so let
+            // the warmed up connection-based authenticated connections be reused by any request
+            builder.disableConnectionState();
+        }
+        return applyRetryPolicy(builder);
+    }
+
+    /**
+     * @return {@code true} iff {@code connectionManager.warmup.connections} is positive.
+     */
+    private boolean isWarmupEnabled() {
+        Integer connections = systemConfig.getConnectionManagerWarmupConnections();
+        return connections != null && connections > 0;
     }
 
     /**
@@ -91,15 +107,14 @@ public class HttpClientBuilderFactory {
      * @return a pre-configured {@link HttpClientBuilder} instance for direct connections (no proxy).
      */
     private HttpClientBuilder createDirectClientBuilder() {
-        return HttpClients.custom()
+        return applyRetryPolicy(HttpClients.custom()
                 .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
                 .setConnectionManagerShared(true)
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
                         .build())
-                .disableAutomaticRetries()
                 .disableRedirectHandling()
-                .disableCookieManagement();
+                .disableCookieManagement());
     }
 
     /**
@@ -109,15 +124,25 @@ public class HttpClientBuilderFactory {
      * @return a pre-configured {@link HttpClientBuilder} instance for SOCKS proxies.
      */
     private HttpClientBuilder createSocksClientBuilder(boolean isSocks4) {
-        return HttpClients.custom()
+        return applyRetryPolicy(HttpClients.custom()
                 .setConnectionManager(connectionPoolingManager.getSocksConnectionManager(isSocks4))
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
                         .build())
                 .setConnectionManagerShared(true)
-                .disableAutomaticRetries()
                 .disableRedirectHandling()
-                .disableCookieManagement();
+                .disableCookieManagement());
+    }
+
+    /**
+     * Retry the idempotent requests the upstream never answered, when enabled.
+     *
+     * @param builder the {@link HttpClientBuilder} instance.
+     * @return the same {@link HttpClientBuilder} instance.
+     */
+    private HttpClientBuilder applyRetryPolicy(HttpClientBuilder builder) {
+        return systemConfig.isRequestRetryEnabled()
+                ? builder.setRetryHandler(retryHandler) : builder.disableAutomaticRetries();
     }
 
 }
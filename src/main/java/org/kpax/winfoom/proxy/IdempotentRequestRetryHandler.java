@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link HttpRequestRetryHandler} that retries only the idempotent requests the upstream never acknowledged:
+ * either the request has not been sent, or, for the safe methods only, the connection was closed without
+ * any response (typically a pooled connection silently dropped by the upstream proxy).
+ * A sent {@code PUT}/{@code DELETE} is never retried, since the upstream may have applied it.
+ * <p>The connect failures are not retried, so that they still lead to the next proxy/blacklisting.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class IdempotentRequestRetryHandler implements HttpRequestRetryHandler, MetricsSource {
+
+    /**
+     * The idempotent methods, as defined by RFC 7231.
+     */
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+
+    /**
+     * The safe methods, as defined by RFC 7231: the only ones retried once sent.
+     */
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+
+    private static final Set<Class<? extends IOException>> NON_RETRIABLE_EXCEPTIONS = Set.of(
+            InterruptedIOException.class,
+            UnknownHostException.class,
+            ConnectException.class,
+            SSLException.class);
+
+    private final SystemConfig systemConfig;
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder nonRepeatable = new LongAdder();
+
+    @Override
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        if (executionCount > systemConfig.getRequestRetryCount()) {
+            return false;
+        }
+        if (NON_RETRIABLE_EXCEPTIONS.stream().anyMatch(c -> c.isInstance(exception))) {
+            return false;
+        }
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        if (clientContext.isRequestSent() && !(exception instanceof NoHttpResponseException)) {
+            return false;
+        }
+        HttpRequest request = clientContext.getRequest();
+        if (request instanceof HttpRequestWrapper requestWrapper) {
+            request = requestWrapper.getOriginal();
+        }
+        if (request == null || (request instanceof HttpUriRequest uriRequest && uriRequest.isAborted())) {
+            return false;
+        }
+        String method = request.getRequestLine().getMethod().toUpperCase(Locale.ROOT);
+        if (!IDEMPOTENT_METHODS.contains(method)) {
+            return false;
+        }
+        if (clientContext.isRequestSent() && !SAFE_METHODS.contains(method)) {
+            log.debug("Cannot retry {}: the request has been sent", request.getRequestLine());
+            return false;
+        }
+        if (request instanceof HttpEntityEnclosingRequest entityEnclosingRequest) {
+            HttpEntity entity = entityEnclosingRequest.getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                log.debug("Cannot retry {}: the request body cannot be replayed", request.getRequestLine());
+                nonRepeatable.increment();
+                return false;
+            }
+        }
+        log.debug("Retry {} (execution count {}) after: {}", request.getRequestLine(), executionCount,
+                exception.getMessage());
+        retries.increment();
+        return true;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "requestRetry";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", systemConfig.isRequestRetryEnabled());
+        metrics.put("retries", retries.sum());
+        metrics.put("nonRepeatable", nonRepeatable.sum());
+        return metrics;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects the time spent by the threads waiting for a pooled connection, per route.
+ * <p>The samples are accumulated in a window that is consumed by {@link #drain(HttpRoute)}.
+ * Each window is an immutable value swapped atomically, so that a sample recorded while
+ * draining lands either in the drained window or in the next one, never lost.
+ */
+@ThreadSafe
+class LeaseWaitStatistics {
+
+    private final ConcurrentMap<HttpRoute, AtomicReference<Window>> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Record a lease.
+     *
+     * @param route     the route
+     * @param waitNanos the time spent waiting for the connection (nanoseconds)
+     */
+    void record(HttpRoute route, long waitNanos) {
+        windows.computeIfAbsent(route, r -> new AtomicReference<>(Window.EMPTY))
+                .accumulateAndGet(new Window(1, waitNanos, waitNanos), Window::add);
+    }
+
+    /**
+     * Get the samples recorded since the previous call, then start a new window.
+     *
+     * @param route the route
+     * @return the current window snapshot.
+     */
+    Snapshot drain(HttpRoute route) {
+        AtomicReference<Window> window = windows.get(route);
+        return window != null ? window.getAndSet(Window.EMPTY).snapshot() : Snapshot.EMPTY;
+    }
+
+    /**
+     * Get the samples recorded since the previous {@link #drain(HttpRoute)} call, leaving the window untouched.
+     *
+     * @param route the route
+     * @return the current window snapshot.
+     */
+    Snapshot peek(HttpRoute route) {
+        AtomicReference<Window> window = windows.get(route);
+        return window != null ? window.get().snapshot() : Snapshot.EMPTY;
+    }
+
+    private static final class Window {
+
+        private static final Window EMPTY = new Window(0, 0, 0);
+
+        private final long count;
+
+        private final long totalNanos;
+
+        private final long maxNanos;
+
+        private Window(long count, long totalNanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        private Window add(Window other) {
+            return new Window(count + other.count, totalNanos + other.totalNanos, Math.max(maxNanos, other.maxNanos));
+        }
+
+        private Snapshot snapshot() {
+            return count == 0 ? Snapshot.EMPTY : new Snapshot(count,
+                    TimeUnit.NANOSECONDS.toMillis(totalNanos / count),
+                    TimeUnit.NANOSECONDS.toMillis(maxNanos));
+        }
+    }
+
+    /**
+     * The lease wait statistics of a window.
+     */
+    static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(0, 0, 0);
+
+        private final long count;
+
+        private final long averageMillis;
+
+        private final long maxMillis;
+
+        private Snapshot(long count, long averageMillis, long maxMillis) {
+            this.count = count;
+            this.averageMillis = averageMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getAverageMillis() {
+            return averageMillis;
+        }
+
+        long getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+}
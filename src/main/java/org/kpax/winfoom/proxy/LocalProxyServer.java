@@ -14,8 +14,11 @@ package org.kpax.winfoom.proxy;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
@@ -27,9 +30,19 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The local proxy server.
@@ -43,6 +56,16 @@ import java.net.SocketException;
 @Component
 class LocalProxyServer implements StopListener {
 
+    /**
+     * The file type bits of the {@code unix:mode} attribute.
+     */
+    private static final int S_IFMT = 0170000;
+
+    /**
+     * The file type of a socket.
+     */
+    private static final int S_IFSOCK = 0140000;
+
     private final SystemConfig systemConfig;
 
     private final ProxyConfig proxyConfig;
@@ -51,8 +74,30 @@ class LocalProxyServer implements StopListener {
 
     private final ClientConnectionHandlerSelector clientConnectionHandlerSelector;
 
+    private final Socks5ConnectionHandler socks5ConnectionHandler;
+
     private volatile ServerSocket serverSocket;
 
+    /**
+     * The optional inbound SOCKS5 listener.
+     */
+    private volatile ServerSocket socks5ServerSocket;
+
+    /**
+     * The optional Unix domain socket listener.
+     */
+    private volatile ServerSocketChannel unixServerChannel;
+
+    /**
+     * The path of the Unix domain socket file, if any.
+     */
+    private volatile Path unixSocketPath;
+
+    /**
+     * The file key of the Unix domain socket file created by this server, if available.
+     */
+    private volatile Object unixSocketFileKey;
+
     /**
      * Start the local proxy server.
      * <p>This means:
@@ -60,6 +105,8 @@ class LocalProxyServer implements StopListener {
      * <li>Opens a {@link ServerSocket} on a local port, then listen for connections</li>
      * <li>When a connection arrives, it delegates the handling to the {@link ClientConnectionHandler}, on a new
      * thread.</li>
+     * <li>If configured, opens a Unix domain socket listener feeding the same {@link ClientConnectionHandler}.</li>
+     * <li>If configured, opens a SOCKS5 listener on a second local port.</li>
      * </ul>
      *
      * @throws Exception
@@ -92,13 +139,156 @@ class LocalProxyServer implements StopListener {
                 }
             });
             log.info("Server started, listening on port: {}", proxyConfig.getLocalPort());
+            if (StringUtils.isNotEmpty(systemConfig.getServerSocketUnixPath())) {
+                startUnixDomainListener(clientConnectionHandler);
+            }
+            if (systemConfig.getServerSocketSocks5Port() > 0) {
+                startSocks5Listener();
+            }
         } catch (Exception e) {
             // Cleanup on exception
-            close();
+            onStop();
             throw e;
         }
     }
 
+    /**
+     * Open a {@link ServerSocketChannel} bound to the configured Unix domain socket path,
+     * then listen for connections.
+     * <p>Local clients connecting this way skip the loopback TCP stack entirely.
+     *
+     * @param clientConnectionHandler the handler of the accepted connections
+     * @throws IOException
+     */
+    private void startUnixDomainListener(ClientConnectionHandler clientConnectionHandler) throws IOException {
+        Path socketPath = Path.of(systemConfig.getServerSocketUnixPath());
+        deleteStaleUnixSocket(socketPath);
+        unixServerChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        unixServerChannel.bind(UnixDomainSocketAddress.of(socketPath), systemConfig.getServerSocketBacklog());
+        unixSocketPath = socketPath;
+        unixSocketFileKey = Files.readAttributes(socketPath, BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS).fileKey();
+        final ServerSocketChannel serverChannel = unixServerChannel;
+        executorService.submit(() -> {
+            while (true) {
+                try {
+                    SocketChannel socketChannel = serverChannel.accept();
+                    executorService.submit(() -> {
+                        SocketChannelStreams channelStreams = null;
+                        try {
+                            // No SO_TIMEOUT for Unix domain sockets, the streams apply it
+                            channelStreams = new SocketChannelStreams(socketChannel,
+                                    TimeUnit.SECONDS.toMillis(systemConfig.getSocketSoTimeout()));
+                            clientConnectionHandler.handleConnection(channelStreams);
+                        } catch (Exception e) {
+                            log.debug("Error on handling Unix domain socket connection", e);
+                        } finally {
+                            InputOutputs.close(channelStreams != null ? channelStreams : socketChannel);
+                        }
+                    });
+                } catch (ClosedChannelException e) {
+
+                    // The ServerSocketChannel has been closed, exit the while loop
+                    break;
+                } catch (Exception e) {
+                    log.debug("Generic error on getting Unix domain socket connection", e);
+                }
+            }
+        });
+        log.info("Server listening on Unix domain socket: {}", unixSocketPath);
+    }
+
+    /**
+     * Remove a socket file left behind by a previous run, which prevents binding.
+     * <p>Anything else found at the path, or a socket still accepting connections, is left in place.
+     *
+     * @param socketPath the Unix domain socket path
+     * @throws IOException when the path cannot be used
+     */
+    static void deleteStaleUnixSocket(Path socketPath) throws IOException {
+        if (!Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocket(socketPath)) {
+            throw new IOException("Cannot listen on " + socketPath + ": the file exists and it is not a socket");
+        }
+        try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            probe.connect(UnixDomainSocketAddress.of(socketPath));
+            throw new IOException("Cannot listen on " + socketPath + ": the socket is in use");
+        } catch (ConnectException e) {
+            log.info("Delete the stale Unix domain socket file: {}", socketPath);
+            Files.delete(socketPath);
+        }
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * Delete the Unix domain socket file, unless it has been replaced since this server created it.
+     */
+    private void deleteUnixSocket(Path socketPath, Object fileKey) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(socketPath, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (fileKey != null ? fileKey.equals(attributes.fileKey()) : isSocket(socketPath)) {
+                Files.delete(socketPath);
+            } else {
+                log.debug("The Unix domain socket file has been replaced, keep it: {}", socketPath);
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("The Unix domain socket file is already gone: {}", socketPath);
+        } catch (IOException e) {
+            log.debug("Cannot delete the Unix domain socket file", e);
+        }
+    }
+
+    /**
+     * Open a {@link ServerSocket} on the configured SOCKS5 port, then listen for connections.
+     *
+     * @throws IOException
+     */
+    private void startSocks5Listener() throws IOException {
+        socks5ServerSocket = new ServerSocket();
+        socks5ServerSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                systemConfig.getServerSocketSocks5Port()), systemConfig.getServerSocketBacklog());
+        final ServerSocket socks5Socket = socks5ServerSocket;
+        executorService.submit(() -> {
+            while (true) {
+                try {
+                    Socket socket = socks5Socket.accept();
+                    executorService.submit(() -> {
+                        try {
+                            systemConfig.configureSocket(socket);
+                            socks5ConnectionHandler.handleConnection(socket);
+                        } catch (Exception e) {
+                            log.debug("Error on handling SOCKS5 connection", e);
+                        } finally {
+                            InputOutputs.close(socket);
+                        }
+                    });
+                } catch (SocketException e) {
+
+                    // The ServerSocket has been closed, exit the while loop
+                    if (socks5Socket.isClosed()) {
+                        break;
+                    } else {
+                        log.debug("Socket error on getting SOCKS5 connection", e);
+                    }
+                } catch (Exception e) {
+                    log.debug("Generic error on getting SOCKS5 connection", e);
+                }
+            }
+        });
+        log.info("SOCKS5 listener started, listening on port: {}", systemConfig.getServerSocketSocks5Port());
+    }
+
     private void initiateSocketConnection(ClientConnectionHandler clientConnectionHandler) throws IOException {
         Socket socket = serverSocket.accept();
         executorService.submit(() -> {
@@ -117,5 +307,18 @@ class LocalProxyServer implements StopListener {
     public synchronized void onStop() {
         log.info("Close the local proxy server");
         InputOutputs.close(serverSocket);
+        if (socks5ServerSocket != null) {
+            InputOutputs.close(socks5ServerSocket);
+            socks5ServerSocket = null;
+        }
+        if (unixServerChannel != null) {
+            InputOutputs.close(unixServerChannel);
+            unixServerChannel = null;
+            if (unixSocketPath != null) {
+                deleteUnixSocket(unixSocketPath, unixSocketFileKey);
+                unixSocketPath = null;
+                unixSocketFileKey = null;
+            }
+        }
     }
 }
@@ -35,6 +35,10 @@ class ManualClientConnectionHandler extends ClientConnectionHandler implements S
 
     private final ConnectionProcessorSelector connectionProcessorSelector;
 
+    private final SpeculativeConnector speculativeConnector;
+
+    private final ProxyBypass proxyBypass;
+
     /**
      * Supplier for ProxyInfo, manual case.
      */
@@ -42,9 +46,13 @@ class ManualClientConnectionHandler extends ClientConnectionHandler implements S
 
     public ManualClientConnectionHandler(ProxyConfig proxyConfig,
                                          SystemConfig systemConfig,
-                                         ConnectionProcessorSelector connectionProcessorSelector) {
+                                         ConnectionProcessorSelector connectionProcessorSelector,
+                                         SpeculativeConnector speculativeConnector,
+                                         ProxyBypass proxyBypass) {
         super(proxyConfig, systemConfig);
         this.connectionProcessorSelector = connectionProcessorSelector;
+        this.speculativeConnector = speculativeConnector;
+        this.proxyBypass = proxyBypass;
         this.proxyInfoSupplier = new SingletonSupplier<>(
                 () -> new ProxyInfo(proxyConfig.getProxyType(), proxyConfig.getProxyType().isDirect() ? null :
                         new HttpHost(proxyConfig.getProxyHost(), proxyConfig.getProxyPort())));
@@ -52,12 +60,17 @@ class ManualClientConnectionHandler extends ClientConnectionHandler implements S
 
     @Override
     void processConnection(ClientConnection clientConnection) {
+        ProxyInfo proxyInfo = proxyBypass.select(clientConnection.getRequestUri().getHost(), proxyInfoSupplier.get());
         ClientConnectionProcessor connectionProcessor = connectionProcessorSelector.select(clientConnection.isConnect(),
-                proxyInfoSupplier.get().getType().isHttp());
+                proxyInfo.getType().isHttp());
+        if (clientConnection.isConnect() && proxyInfo.getType().isHttp()) {
+            // Only the tunnels through the proxy use a bare socket
+            clientConnection.setSpeculativeConnector(speculativeConnector);
+        }
         try {
-            connectionProcessor.process(clientConnection, proxyInfoSupplier.get());
+            connectionProcessor.process(clientConnection, proxyInfo);
         } catch (ProxyConnectException e) {
-            log.debug("Failed to connect to proxy: {}, send the error response", proxyInfoSupplier.get());
+            log.debug("Failed to connect to proxy: {}, send the error response", proxyInfo);
             // Cannot connect to the remote proxy,
             // commit a response with 502 error code
             clientConnection.writeBadGatewayResponse(e.getMessage());
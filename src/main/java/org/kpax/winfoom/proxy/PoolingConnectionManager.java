@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+
+import java.io.Closeable;
+import java.util.Set;
+
+/**
+ * A pooling {@link HttpClientConnectionManager} that exposes its pool controls.
+ *
+ * @see DefaultPoolingConnectionManager
+ * @see StripedHttpClientConnectionManager
+ */
+interface PoolingConnectionManager extends HttpClientConnectionManager, ConnPoolControl<HttpRoute>, Closeable {
+
+    /**
+     * @return the routes having a connection pool.
+     */
+    Set<HttpRoute> getRoutes();
+
+    /**
+     * @return the socket configuration applied when connecting.
+     */
+    SocketConfig getDefaultSocketConfig();
+
+    /**
+     * @param socketConfig the socket configuration applied when connecting.
+     */
+    void setDefaultSocketConfig(SocketConfig socketConfig);
+
+    /**
+     * @return the period of inactivity in milliseconds after which persistent connections are re-validated.
+     */
+    int getValidateAfterInactivity();
+
+    /**
+     * @param ms the period of inactivity in milliseconds after which persistent connections must
+     *           be re-validated prior to being leased.
+     */
+    void setValidateAfterInactivity(int ms);
+
+    /**
+     * @return the time spent waiting for leases, per route.
+     */
+    LeaseWaitStatistics getLeaseWaitStatistics();
+
+    /**
+     * Close the pool, with all its connections.
+     */
+    @Override
+    void close();
+}
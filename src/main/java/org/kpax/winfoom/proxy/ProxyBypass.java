@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.exception.InvalidProxySettingsException;
+import org.kpax.winfoom.proxy.listener.StartListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decide which hosts are connected directly in the manual proxy modes,
+ * according to the {@code proxy.bypass} list (see {@link BypassRules}).
+ */
+@Slf4j
+@ThreadSafe
+@Component
+class ProxyBypass implements StartListener, StopListener, MetricsSource {
+
+    private static final ProxyInfo DIRECT = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    private final ProxyConfig proxyConfig;
+
+    private final SingletonSupplier<BypassRules> bypassRulesSupplier;
+
+    private final LongAdder bypassed = new LongAdder();
+
+    ProxyBypass(ProxyConfig proxyConfig) {
+        this.proxyConfig = proxyConfig;
+        this.bypassRulesSupplier = new SingletonSupplier<>(() -> BypassRules.compile(proxyConfig.getProxyBypass()));
+    }
+
+    /**
+     * Select the proxy for a host.
+     *
+     * @param host  the request's host.
+     * @param proxy the configured proxy.
+     * @return the {@code DIRECT} proxy if the host is bypassed, otherwise the configured proxy.
+     */
+    ProxyInfo select(String host, ProxyInfo proxy) {
+        if (proxy.getType().isDirect() || !bypassRulesSupplier.get().matches(host)) {
+            return proxy;
+        }
+        log.debug("Bypass the proxy for {}", host);
+        bypassed.increment();
+        return DIRECT;
+    }
+
+    /**
+     * Compile the bypass list, so that an invalid one fails the start.
+     */
+    @Override
+    public void onStart() throws InvalidProxySettingsException {
+        if (proxyConfig.isAutoConfig()) {
+            return;
+        }
+        try {
+            bypassRulesSupplier.get();
+        } catch (IllegalArgumentException e) {
+            bypassRulesSupplier.reset();
+            throw new InvalidProxySettingsException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        bypassRulesSupplier.reset();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "proxyBypass";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("bypassed", bypassed.sum());
+        return metrics;
+    }
+
+}
@@ -18,18 +18,17 @@ import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.annotation.TypeQualifier;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.proxy.pac.net.IpAddresses;
+import org.kpax.winfoom.proxy.listener.ConfigChangeListener;
 import org.kpax.winfoom.proxy.listener.StartListener;
 import org.kpax.winfoom.proxy.listener.StopListener;
-import org.kpax.winfoom.util.DomainUser;
 import org.springframework.context.support.AbstractApplicationContext;
 import org.springframework.core.annotation.AnnotationAwareOrderComparator;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -74,16 +73,6 @@ public class ProxyController {
             resetState();
             throw e;
         }
-
-        if (proxyConfig.getProxyType().isSocks5() || proxyConfig.isPacAuthManualMode()) {
-            Authenticator.setDefault(new Authenticator() {
-                public PasswordAuthentication getPasswordAuthentication() {
-                    String proxyPassword = proxyConfig.getProxyPassword();
-                    return (new PasswordAuthentication(DomainUser.extractUsername(proxyConfig.getProxyUsername()),
-                            proxyPassword != null ? proxyPassword.toCharArray() : new char[0]));
-                }
-            });
-        }
         applicationContext.getBean(LocalProxyServer.class).start();
         started = true;
     }
@@ -115,7 +104,6 @@ public class ProxyController {
 
     /**
      * Reset the Spring beans state.
-     * <p>Also, it removes the {@link Authenticator}, if any.
      */
     private void resetState() {
         callStopListeners();
@@ -125,11 +113,6 @@ public class ProxyController {
         // Though unlikely, we take no chances.
         IpAddresses.allPrimaryAddresses.reset();
         IpAddresses.primaryIPv4Address.reset();
-
-        // Remove auth for SOCKS proxy
-        if (proxyConfig.getProxyType().isSocks5() || proxyConfig.isPacAuthManualMode()) {
-            Authenticator.setDefault(null);
-        }
     }
 
     void callStopListeners() {
@@ -140,6 +123,38 @@ public class ProxyController {
                 map(b -> (StopListener) b).forEach(StopListener::onStop);
     }
 
+    /**
+     * Apply a configuration change without ending the proxy session.
+     * <p>All the {@link ConfigChangeListener} singletons are called, even if some of them fail.
+     *
+     * @param properties the names of the changed properties.
+     * @throws Exception the first error thrown by a listener.
+     */
+    public synchronized void reconfigure(Set<String> properties) throws Exception {
+        if (!started) {
+            log.debug("Not started, nothing to reconfigure");
+            return;
+        }
+        log.debug("Call all ConfigChangeListener.onConfigChange singletons for: {}", properties);
+        Exception error = null;
+        for (ConfigChangeListener listener : Stream.of(applicationContext.getBeanNamesForType(ConfigChangeListener.class)).
+                map(applicationContext.getBeanFactory()::getSingleton).
+                filter(Objects::nonNull).sorted(AnnotationAwareOrderComparator.INSTANCE).
+                map(b -> (ConfigChangeListener) b).collect(Collectors.toList())) {
+            try {
+                listener.onConfigChange(properties);
+            } catch (Exception e) {
+                log.warn("Error on reconfiguring {}", listener.getClass(), e);
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
     public boolean isRunning() {
         return started;
     }
@@ -22,14 +22,25 @@ import java.util.Objects;
 /**
  * Encapsulate the proxy information: type, host an port
  */
-@Getter
 @ThreadSafe
 public final class ProxyInfo {
 
+    @Getter
     private final ProxyType type;
 
+    @Getter
     private final HttpHost proxyHost;
 
+    /**
+     * The proxy host as {@code host:port}, compared by {@link #equals(Object)}.
+     */
+    private final String hostString;
+
+    /**
+     * The hash code, computed once since instances are used as map keys (like by the blacklist).
+     */
+    private final int hash;
+
     public ProxyInfo(PacType type) {
         this(type, null);
     }
@@ -38,6 +49,8 @@ public final class ProxyInfo {
         Assert.notNull(type, "type cannot be null");
         this.type = type;
         this.proxyHost = proxyHost;
+        this.hostString = proxyHost != null ? proxyHost.toHostString() : null;
+        this.hash = Objects.hash(type, hostString);
     }
 
     @Override
@@ -53,14 +66,14 @@ public final class ProxyInfo {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ProxyInfo proxyInfo = (ProxyInfo) o;
-        return type == proxyInfo.type &&
-                Objects.equals(proxyHost != null ? proxyHost.toHostString() : null,
-                        proxyInfo.proxyHost != null ? proxyInfo.proxyHost.toHostString() : null);
+        return hash == proxyInfo.hash &&
+                type == proxyInfo.type &&
+                Objects.equals(hostString, proxyInfo.hostString);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, proxyHost != null ? proxyHost.toHostString() : null);
+        return hash;
     }
 
     /**
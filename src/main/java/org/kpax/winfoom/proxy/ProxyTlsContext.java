@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TLS support for the connections to the upstream: the {@code HTTPS} proxies and,
+ * for the pooled connections, the {@code https} target hosts.
+ * <p>All the TLS connections share one {@link SSLContext}, so that its client session cache
+ * lets a new connection to a known host resume the previous session instead of doing a full handshake,
+ * be it pooled or a CONNECT tunnel.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class ProxyTlsContext implements MetricsSource {
+
+    static final String HTTPS_SCHEME = "https";
+
+    private final SystemConfig systemConfig;
+
+    private final LongAdder handshakes = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+    private SSLContext sslContext;
+
+    private SSLConnectionSocketFactory socketFactory;
+
+    @PostConstruct
+    void init() {
+        init(SSLContexts.createDefault());
+    }
+
+    void init(@NotNull SSLContext sslContext) {
+        this.sslContext = sslContext;
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(systemConfig.getTlsSessionCacheSize());
+        sessionContext.setSessionTimeout(systemConfig.getTlsSessionCacheTimeout());
+        socketFactory = new InstrumentedSocketFactory(sslContext);
+    }
+
+    /**
+     * @return the shared socket factory, to be registered for the {@code https} scheme.
+     */
+    SSLConnectionSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * @param host the upstream host.
+     * @return {@code true} iff the connection to this host must be secured.
+     */
+    static boolean isSecure(@NotNull HttpHost host) {
+        return HTTPS_SCHEME.equalsIgnoreCase(host.getSchemeName());
+    }
+
+    /**
+     * Layer TLS over a connected socket, when the host requires it.
+     *
+     * @param socket the socket connected to the host.
+     * @param host   the upstream host.
+     * @return the TLS socket or the same socket, if the host is not secure.
+     * @throws IOException on handshake failure, in which case the socket is closed.
+     */
+    Socket secure(@NotNull Socket socket, @NotNull HttpHost host) throws IOException {
+        if (!isSecure(host)) {
+            return socket;
+        }
+        try {
+            return socketFactory.createLayeredSocket(socket, host.getHostName(), host.getPort(),
+                    HttpClientContext.create());
+        } catch (IOException e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+    }
+
+    private void recordHandshake(long nanos) {
+        handshakes.increment();
+        handshakeNanos.add(nanos);
+        maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "upstreamTls";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long count = handshakes.sum();
+        metrics.put("handshakes", count);
+        metrics.put("failed", failed.sum());
+        metrics.put("handshakeAverageMillis", count > 0
+                ? TimeUnit.NANOSECONDS.toMillis(handshakeNanos.sum() / count) : 0);
+        metrics.put("handshakeMaxMillis", TimeUnit.NANOSECONDS.toMillis(maxHandshakeNanos.get()));
+        metrics.put("cachedSessions", sslContext != null
+                ? Collections.list(sslContext.getClientSessionContext().getIds()).size() : 0);
+        return metrics;
+    }
+
+    /**
+     * Measure the handshakes, which take place when the TLS layer is created.
+     */
+    private class InstrumentedSocketFactory extends SSLConnectionSocketFactory {
+
+        InstrumentedSocketFactory(SSLContext sslContext) {
+            super(sslContext);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            long start = System.nanoTime();
+            Socket layeredSocket;
+            try {
+                layeredSocket = super.createLayeredSocket(socket, target, port, context);
+            } catch (IOException e) {
+                failed.increment();
+                throw e;
+            }
+            long nanos = System.nanoTime() - start;
+            recordHandshake(nanos);
+            log.debug("TLS handshake with {}:{} done in {} ms", target, port, TimeUnit.NANOSECONDS.toMillis(nanos));
+            return layeredSocket;
+        }
+    }
+
+}
@@ -71,6 +71,11 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
      */
     private boolean streaming = true;
 
+    /**
+     * Whether the streaming write failed midway, leaving the entity impossible to replay.
+     */
+    private boolean streamingFailed;
+
     public RepeatableHttpEntity(final HttpRequest request,
                                 final SessionInputBufferImpl inputBuffer,
                                 final Path tempDirectory,
@@ -83,9 +88,13 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
         this.internalBufferLength = internalBufferLength;
     }
 
+    /**
+     * The entity can be replayed unless the first write failed midway,
+     * since only part of the content has been cached.
+     */
     @Override
     public boolean isRepeatable() {
-        return true;
+        return !streamingFailed;
     }
 
     @Override
@@ -123,8 +132,13 @@ public class RepeatableHttpEntity extends AbstractHttpEntity implements Closeabl
     @Override
     public void writeTo(OutputStream outStream) throws IOException {
         if (streaming) {
+            if (streamingFailed) {
+                throw new IOException("Cannot replay the entity: the previous write failed midway");
+            }
+            streamingFailed = true;
             writeStreaming(outStream);
             streaming = false;
+            streamingFailed = false;
         } else {
             if (bufferedBytes != null) {
                 outStream.write(bufferedBytes);
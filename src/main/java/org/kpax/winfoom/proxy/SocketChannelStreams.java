@@ -0,0 +1,163 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+/**
+ * Blocking streams over a {@link SocketChannel}, each read and write being bounded by a timeout,
+ * like {@link java.net.Socket#setSoTimeout(int)} does for a socket.
+ * <p>Needed for the Unix domain socket channels, which have no {@code SO_TIMEOUT}: the channel is switched to
+ * non-blocking mode and every stream waits on its own {@link Selector}, so that a reader and a writer
+ * can use it at the same time.
+ * <p>Closing this instance closes the channel.
+ */
+final class SocketChannelStreams implements AutoCloseable {
+
+    private final SocketChannel channel;
+
+    /**
+     * The read/write timeout (milliseconds), {@code 0} meaning no timeout.
+     */
+    private final long timeoutMillis;
+
+    private final Selector readSelector;
+
+    private final Selector writeSelector;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            int n;
+            while ((n = channel.read(buffer)) == 0) {
+                await(readSelector, "Read timed out");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            SocketChannelStreams.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    await(writeSelector, "Write timed out");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            SocketChannelStreams.this.close();
+        }
+    };
+
+    /**
+     * @param channel       the connected channel.
+     * @param timeoutMillis the read/write timeout (milliseconds), {@code 0} meaning no timeout.
+     * @throws IOException
+     */
+    SocketChannelStreams(SocketChannel channel, long timeoutMillis) throws IOException {
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            this.writeSelector = Selector.open();
+            this.readSelector = selector;
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            if (selector != null) {
+                InputOutputs.close(selector);
+            }
+            throw e;
+        }
+    }
+
+    private void await(Selector selector, String timeoutMessage) throws IOException {
+        int ready;
+        try {
+            ready = timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.select();
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (ready == 0 && timeoutMillis > 0) {
+            throw new SocketTimeoutException(timeoutMessage);
+        }
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    /**
+     * Close the selectors, waking up any blocked read or write, then the channel.
+     */
+    @Override
+    public void close() {
+        InputOutputs.close(readSelector);
+        InputOutputs.close(writeSelector);
+        InputOutputs.close(channel);
+    }
+
+}
@@ -12,15 +12,10 @@
 
 package org.kpax.winfoom.proxy;
 
-import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
-import org.kpax.winfoom.util.HttpUtils;
 import org.springframework.stereotype.Component;
 
-import java.io.IOException;
-import java.net.Socket;
-
 /**
  * A specialized version of {@link SocksConnectionSocketFactory} for SOCKS4 proxy.
  */
@@ -28,19 +23,13 @@ import java.net.Socket;
 @Component
 class Socks4ConnectionSocketFactory extends SocksConnectionSocketFactory {
 
-    public Socks4ConnectionSocketFactory(SystemConfig systemConfig) {
-        super(systemConfig);
+    public Socks4ConnectionSocketFactory(SystemConfig systemConfig, SocksConnector socksConnector) {
+        super(systemConfig, socksConnector);
     }
 
     @Override
-    public Socket createSocket(final HttpContext context) throws IOException {
-        Socket socket = super.createSocket(context);
-        try {
-            HttpUtils.setSocks4(socket);
-        } catch (UnsupportedOperationException e) {
-            throw new IOException(e);
-        }
-        return socket;
+    boolean isSocks4() {
+        return true;
     }
 
-}
\ No newline at end of file
+}
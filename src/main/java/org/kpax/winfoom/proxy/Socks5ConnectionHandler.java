@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.pac.PacScriptEvaluator;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.StreamSource;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Handle the connections accepted by the inbound SOCKS5 listener.
+ * <p>Only the {@code CONNECT} command without authentication is supported (the listener is bound to loopback).
+ * The destination is routed like a HTTP CONNECT request: through the manual proxy or the PAC proxies,
+ * trying the next one when a proxy cannot be connected, then the streams are relayed as they are.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class Socks5ConnectionHandler {
+
+    private static final int SOCKS5_VERSION = 5;
+
+    private static final int CONNECT_COMMAND = 1;
+
+    private static final int NO_AUTHENTICATION = 0;
+
+    private static final int NO_ACCEPTABLE_METHODS = 0xFF;
+
+    private static final int IPV4 = 1;
+
+    private static final int DOMAIN_NAME = 3;
+
+    private static final int IPV6 = 4;
+
+    private static final int SUCCEEDED = 0;
+
+    private static final int GENERAL_FAILURE = 1;
+
+    private static final int NOT_ALLOWED = 2;
+
+    private static final int NETWORK_UNREACHABLE = 3;
+
+    private static final int HOST_UNREACHABLE = 4;
+
+    private static final int CONNECTION_REFUSED = 5;
+
+    private static final int TTL_EXPIRED = 6;
+
+    private static final int COMMAND_NOT_SUPPORTED = 7;
+
+    private static final int ADDRESS_TYPE_NOT_SUPPORTED = 8;
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ProxyExecutorService executorService;
+
+    private final PacScriptEvaluator pacScriptEvaluator;
+
+    private final ProxyBlacklist proxyBlacklist;
+
+    private final TunnelConnection tunnelConnection;
+
+    private final SocksConnector socksConnector;
+
+    private final ProxyBypass proxyBypass;
+
+    /**
+     * Negotiate, connect to the destination then relay the streams until one of the sides closes.
+     *
+     * @param socket the client's socket.
+     * @throws Exception
+     */
+    void handleConnection(@NotNull final Socket socket) throws Exception {
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        OutputStream outputStream = socket.getOutputStream();
+
+        if (inputStream.readUnsignedByte() != SOCKS5_VERSION) {
+            throw new SocketException("Unsupported SOCKS version");
+        }
+        byte[] methods = new byte[inputStream.readUnsignedByte()];
+        inputStream.readFully(methods);
+        if (!containsNoAuthentication(methods)) {
+            outputStream.write(new byte[]{SOCKS5_VERSION, (byte) NO_ACCEPTABLE_METHODS});
+            return;
+        }
+        outputStream.write(new byte[]{SOCKS5_VERSION, NO_AUTHENTICATION});
+
+        // The request's head includes the first byte of the destination address
+        byte[] head = new byte[5];
+        inputStream.readFully(head);
+        if (head[0] != SOCKS5_VERSION || head[2] != 0) {
+            log.debug("Invalid SOCKS5 request: version {}, reserved {}", head[0], head[2]);
+            writeReply(outputStream, GENERAL_FAILURE);
+            return;
+        }
+        if (head[1] != CONNECT_COMMAND) {
+            writeReply(outputStream, COMMAND_NOT_SUPPORTED);
+            return;
+        }
+        String host;
+        switch (head[3]) {
+            case IPV4, IPV6 -> {
+                byte[] address = new byte[head[3] == IPV4 ? 4 : 16];
+                address[0] = head[4];
+                inputStream.readFully(address, 1, address.length - 1);
+                host = InetAddress.getByAddress(address).getHostAddress();
+            }
+            case DOMAIN_NAME -> {
+                byte[] name = new byte[head[4] & 0xFF];
+                inputStream.readFully(name);
+                host = new String(name, StandardCharsets.ISO_8859_1);
+            }
+            default -> {
+                writeReply(outputStream, ADDRESS_TYPE_NOT_SUPPORTED);
+                return;
+            }
+        }
+        int port = inputStream.readUnsignedShort();
+        log.debug("Handle SOCKS5 CONNECT to {}:{}", host, port);
+
+        HttpHost target = new HttpHost(host, port);
+        Closeable upstream = null;
+        StreamSource upstreamSource = null;
+        Exception failure = null;
+        for (Iterator<ProxyInfo> itr = getProxies(target).iterator(); itr.hasNext() && upstream == null; ) {
+            ProxyInfo proxyInfo = itr.next();
+            try {
+                if (proxyInfo.getType().isHttp()) {
+                    Tunnel tunnel = tunnelConnection.open(new HttpHost(proxyInfo.getProxyHost().getHostName(),
+                                    proxyInfo.getProxyHost().getPort(), proxyInfo.getProxyHost().getSchemeName()),
+                            target, HttpVersion.HTTP_1_1);
+                    upstream = tunnel;
+                    upstreamSource = tunnel;
+                } else {
+                    Socket upstreamSocket = openSocket(proxyInfo, target);
+                    upstream = upstreamSocket;
+                    upstreamSource = StreamSource.from(upstreamSocket);
+                }
+            } catch (Exception e) {
+                log.debug("Failed to connect to {} via {}", target, proxyInfo, e);
+                failure = e;
+                if (isProxyConnectFailure(proxyInfo, e)) {
+                    if (proxyConfig.isAutoConfig()) {
+                        proxyBlacklist.blacklist(proxyInfo);
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+        if (upstream == null) {
+            writeReply(outputStream, failure != null ? toReplyCode(failure) : GENERAL_FAILURE);
+            return;
+        }
+        try {
+            writeReply(outputStream, SUCCEEDED);
+            InputOutputs.duplex(executorService, upstreamSource, StreamSource.from(socket));
+        } finally {
+            InputOutputs.close(upstream);
+        }
+    }
+
+    private List<ProxyInfo> getProxies(HttpHost target) throws Exception {
+        if (proxyConfig.isAutoConfig()) {
+            return pacScriptEvaluator.findProxyForURL(
+                    new URI("http", null, target.getHostName(), target.getPort(), null, null, null));
+        }
+        return List.of(proxyBypass.select(target.getHostName(),
+                new ProxyInfo(proxyConfig.getProxyType(), proxyConfig.getProxyType().isDirect() ? null :
+                        new HttpHost(proxyConfig.getProxyHost(), proxyConfig.getProxyPort()))));
+    }
+
+    private Socket openSocket(ProxyInfo proxyInfo, HttpHost target) throws IOException {
+        if (proxyInfo.getType().isSocks()) {
+            return socksConnector.connect(new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                            proxyInfo.getProxyHost().getPort()),
+                    proxyInfo.getType().isSocks4(), target.getHostName(), target.getPort());
+        }
+        Socket socket = systemConfig.configureSocket(new Socket());
+        try {
+            socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
+                    systemConfig.getSocketConnectTimeout() * 1000);
+            return socket;
+        } catch (IOException e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the upstream proxy itself could not be reached, so that the next one might be tried.
+     */
+    private static boolean isProxyConnectFailure(ProxyInfo proxyInfo, Exception e) {
+        return !proxyInfo.getType().isDirect()
+                && (e instanceof ConnectException || e instanceof UnknownHostException);
+    }
+
+    private static int toReplyCode(Exception e) {
+        if (e instanceof TunnelRefusedException) {
+            int status = ((TunnelRefusedException) e).getResponse().getStatusLine().getStatusCode();
+            return status == HttpStatus.SC_FORBIDDEN || status == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED
+                    ? NOT_ALLOWED : HOST_UNREACHABLE;
+        } else if (e instanceof UnknownHostException) {
+            return HOST_UNREACHABLE;
+        } else if (e instanceof ConnectException) {
+            return CONNECTION_REFUSED;
+        } else if (e instanceof SocketTimeoutException) {
+            return TTL_EXPIRED;
+        } else if (e instanceof SocketException) {
+            // Relay the upstream SOCKS proxy's reply
+            String message = StringUtils.defaultString(e.getMessage());
+            if (message.equals(SocksConnector.AUTHENTICATION_FAILED) || message.contains("not allowed")) {
+                return NOT_ALLOWED;
+            } else if (message.contains("Network unreachable")) {
+                return NETWORK_UNREACHABLE;
+            } else if (message.contains("Host unreachable") || message.contains("couldn't reach")) {
+                return HOST_UNREACHABLE;
+            } else if (message.contains("Connection refused")) {
+                return CONNECTION_REFUSED;
+            }
+        }
+        return GENERAL_FAILURE;
+    }
+
+    private static boolean containsNoAuthentication(byte[] methods) {
+        for (byte method : methods) {
+            if (method == NO_AUTHENTICATION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a reply with an unspecified bound address.
+     */
+    private static void writeReply(OutputStream outputStream, int replyCode) throws IOException {
+        outputStream.write(new byte[]{SOCKS5_VERSION, (byte) replyCode, 0, IPV4, 0, 0, 0, 0, 0, 0});
+        outputStream.flush();
+    }
+
+}
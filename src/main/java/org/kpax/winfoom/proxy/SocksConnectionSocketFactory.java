@@ -15,6 +15,7 @@ package org.kpax.winfoom.proxy;
 import lombok.RequiredArgsConstructor;
 import org.apache.http.HttpHost;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.annotation.ThreadSafe;
@@ -27,19 +28,34 @@ import java.net.*;
 
 /**
  * A {@link ConnectionSocketFactory} implementation for SOCKS proxy.
+ * <p>The target host name is resolved by the proxy, see {@link #UNRESOLVED_DNS_RESOLVER}.
  */
 @RequiredArgsConstructor
 @ThreadSafe
 @Component
 class SocksConnectionSocketFactory implements ConnectionSocketFactory {
 
+    /**
+     * A {@link DnsResolver} that leaves the host names to be resolved by the SOCKS proxy:
+     * the connection socket factory only uses the host name and the port.
+     */
+    static final DnsResolver UNRESOLVED_DNS_RESOLVER =
+            host -> new InetAddress[]{InetAddress.getByAddress(host, new byte[4])};
+
     private final SystemConfig systemConfig;
 
+    private final SocksConnector socksConnector;
+
+    /**
+     * @return whether the SOCKS version is {@code 4} or not.
+     */
+    boolean isSocks4() {
+        return false;
+    }
+
     @Override
     public Socket createSocket(final HttpContext context) throws IOException {
-        InetSocketAddress socketAddress = (InetSocketAddress) context.getAttribute(HttpUtils.SOCKS_ADDRESS);
-        Proxy proxy = new Proxy(Proxy.Type.SOCKS, socketAddress);
-        return systemConfig.configureSocket(new Socket(proxy));
+        return systemConfig.configureSocket(new Socket());
     }
 
     @Override
@@ -54,8 +70,10 @@ class SocksConnectionSocketFactory implements ConnectionSocketFactory {
         if (localAddress != null) {
             currentSocket.bind(localAddress);
         }
+        InetSocketAddress proxyAddress = (InetSocketAddress) context.getAttribute(HttpUtils.SOCKS_ADDRESS);
         try {
-            currentSocket.connect(remoteAddress, connectTimeout);
+            socksConnector.connect(currentSocket, proxyAddress, isSocks4(),
+                    host.getHostName(), remoteAddress.getPort(), connectTimeout);
         } catch (SocketTimeoutException e) {
             throw new ConnectTimeoutException(e, host, remoteAddress.getAddress());
         } catch (SocketException e) {
@@ -70,4 +88,4 @@ class SocksConnectionSocketFactory implements ConnectionSocketFactory {
         return currentSocket;
     }
 
-}
\ No newline at end of file
+}
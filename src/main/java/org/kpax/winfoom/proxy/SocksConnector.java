@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.util.DomainUser;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A SOCKS4a/SOCKS5 client.
+ * <p>Unlike the JDK's SOCKS implementation, it sends the target host name to the proxy,
+ * to be resolved remotely, and looks up the credentials per proxy instead of using the JVM-wide
+ * {@link Authenticator}.
+ * <p>Each handshake message is written with a single write and each reply is read with at most two reads.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+public class SocksConnector implements StopListener {
+
+    /**
+     * The message of the exception thrown on authentication failure,
+     * see {@link org.kpax.winfoom.util.HttpUtils#isSOCKSAuthenticationFailed(SocketException)}.
+     */
+    static final String AUTHENTICATION_FAILED = "SOCKS : authentication failed";
+
+    private static final int SOCKS4_VERSION = 4;
+
+    private static final int SOCKS5_VERSION = 5;
+
+    private static final int CONNECT_COMMAND = 1;
+
+    private static final int NO_AUTHENTICATION = 0;
+
+    private static final int USERNAME_PASSWORD = 2;
+
+    private static final int NO_ACCEPTABLE_METHODS = 0xFF;
+
+    private static final int IPV4 = 1;
+
+    private static final int DOMAIN_NAME = 3;
+
+    private static final int IPV6 = 4;
+
+    private static final String[] SOCKS5_REPLIES = {
+            "succeeded",
+            "General SOCKS server failure",
+            "Connection not allowed by ruleset",
+            "Network unreachable",
+            "Host unreachable",
+            "Connection refused",
+            "TTL expired",
+            "Command not supported",
+            "Address type not supported"};
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyConfig proxyConfig;
+
+    /**
+     * The per proxy credentials of the auto config mode, by {@code host:port}.
+     */
+    private final SingletonSupplier<Map<String, PasswordAuthentication>> pacCredentialsSupplier =
+            new SingletonSupplier<>(this::parsePacCredentials);
+
+    /**
+     * Open a socket to the target host through a SOCKS proxy.
+     *
+     * @param proxyAddress the SOCKS proxy address.
+     * @param socks4       whether the SOCKS version is {@code 4} or not.
+     * @param host         the target host name or IP address.
+     * @param port         the target port.
+     * @return the connected socket.
+     * @throws IOException
+     */
+    public Socket connect(@NotNull InetSocketAddress proxyAddress, boolean socks4,
+                          @NotNull String host, int port) throws IOException {
+        Socket socket = systemConfig.configureSocket(new Socket());
+        try {
+            connect(socket, proxyAddress, socks4, host, port, systemConfig.getSocketConnectTimeout() * 1000);
+            return socket;
+        } catch (IOException e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Connect a socket to the SOCKS proxy, then ask the proxy to connect to the target host.
+     *
+     * @param socket         the unconnected socket.
+     * @param proxyAddress   the SOCKS proxy address.
+     * @param socks4         whether the SOCKS version is {@code 4} or not.
+     * @param host           the target host name or IP address.
+     * @param port           the target port.
+     * @param connectTimeout the timeout for connecting to the proxy (milliseconds).
+     * @throws IOException
+     */
+    void connect(@NotNull Socket socket, @NotNull InetSocketAddress proxyAddress, boolean socks4,
+                 @NotNull String host, int port, int connectTimeout) throws IOException {
+        socket.connect(proxyAddress, connectTimeout);
+        PasswordAuthentication credentials = getCredentials(proxyAddress);
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        OutputStream outputStream = socket.getOutputStream();
+        if (socks4) {
+            socks4Connect(inputStream, outputStream, credentials, host, port);
+        } else {
+            socks5Connect(inputStream, outputStream, credentials, host, port);
+        }
+        log.debug("Connected to {}:{} via SOCKS proxy {}", host, port, proxyAddress);
+    }
+
+    /**
+     * SOCKS4, or SOCKS4a when the target is not an IP address.
+     */
+    private void socks4Connect(DataInputStream inputStream, OutputStream outputStream,
+                               PasswordAuthentication credentials, String host, int port) throws IOException {
+        byte[] userId = credentials != null
+                ? credentials.getUserName().getBytes(StandardCharsets.ISO_8859_1) : new byte[0];
+        boolean domainName = !InetAddressUtils.isIPv4Address(host);
+        if (domainName && InetAddressUtils.isIPv6Address(host)) {
+            throw new SocketException("SOCKS4 does not support IPv6 addresses");
+        }
+        byte[] hostBytes = domainName ? host.getBytes(StandardCharsets.ISO_8859_1) : new byte[0];
+        ByteBuffer request = ByteBuffer.allocate(9 + userId.length + (domainName ? hostBytes.length + 1 : 0));
+        request.put((byte) SOCKS4_VERSION).put((byte) CONNECT_COMMAND).putShort((short) port);
+        if (domainName) {
+            // 0.0.0.x tells the proxy to resolve the host name following the user id
+            request.put(new byte[]{0, 0, 0, 1});
+        } else {
+            request.put(InetAddress.getByName(host).getAddress());
+        }
+        request.put(userId).put((byte) 0);
+        if (domainName) {
+            request.put(hostBytes).put((byte) 0);
+        }
+        outputStream.write(request.array());
+        outputStream.flush();
+
+        byte[] reply = new byte[8];
+        inputStream.readFully(reply);
+        switch (reply[1]) {
+            case 90:
+                return;
+            case 91:
+                throw new SocketException("SOCKS request rejected");
+            case 92:
+                throw new SocketException("SOCKS server couldn't reach destination");
+            case 93:
+                throw new SocketException(AUTHENTICATION_FAILED);
+            default:
+                throw new SocketException("Reply from SOCKS server has bad status: " + reply[1]);
+        }
+    }
+
+    private void socks5Connect(DataInputStream inputStream, OutputStream outputStream,
+                               PasswordAuthentication credentials, String host, int port) throws IOException {
+        // Greeting
+        outputStream.write(credentials != null
+                ? new byte[]{SOCKS5_VERSION, 2, NO_AUTHENTICATION, USERNAME_PASSWORD}
+                : new byte[]{SOCKS5_VERSION, 1, NO_AUTHENTICATION});
+        outputStream.flush();
+        byte[] method = new byte[2];
+        inputStream.readFully(method);
+        if (method[0] != SOCKS5_VERSION) {
+            throw new SocketException("Malformed reply from SOCKS server");
+        }
+        int selected = method[1] & 0xFF;
+        if (selected == USERNAME_PASSWORD && credentials != null) {
+            authenticate(inputStream, outputStream, credentials);
+        } else if (selected == NO_ACCEPTABLE_METHODS) {
+            throw new SocketException(AUTHENTICATION_FAILED);
+        } else if (selected != NO_AUTHENTICATION) {
+            throw new SocketException("SOCKS : unsupported authentication method " + selected);
+        }
+
+        // Connect request
+        byte[] address;
+        int addressType;
+        if (InetAddressUtils.isIPv4Address(host)) {
+            addressType = IPV4;
+            address = InetAddress.getByName(host).getAddress();
+        } else if (InetAddressUtils.isIPv6Address(host)) {
+            addressType = IPV6;
+            address = InetAddress.getByName(host).getAddress();
+        } else {
+            byte[] hostBytes = host.getBytes(StandardCharsets.ISO_8859_1);
+            if (hostBytes.length > 255) {
+                throw new SocketException("SOCKS : host name too long");
+            }
+            addressType = DOMAIN_NAME;
+            address = new byte[hostBytes.length + 1];
+            address[0] = (byte) hostBytes.length;
+            System.arraycopy(hostBytes, 0, address, 1, hostBytes.length);
+        }
+        ByteBuffer request = ByteBuffer.allocate(6 + address.length);
+        request.put((byte) SOCKS5_VERSION).put((byte) CONNECT_COMMAND).put((byte) 0).put((byte) addressType)
+                .put(address).putShort((short) port);
+        outputStream.write(request.array());
+        outputStream.flush();
+
+        // The reply's head includes the first byte of the bound address
+        byte[] head = new byte[5];
+        inputStream.readFully(head);
+        if (head[0] != SOCKS5_VERSION) {
+            throw new SocketException("Malformed reply from SOCKS server");
+        }
+        int status = head[1] & 0xFF;
+        if (status != 0) {
+            throw new SocketException("SOCKS: " + (status < SOCKS5_REPLIES.length
+                    ? SOCKS5_REPLIES[status] : "Reply from SOCKS server has bad status: " + status));
+        }
+        int remaining = switch (head[3]) {
+            case IPV4 -> 4 - 1 + 2;
+            case IPV6 -> 16 - 1 + 2;
+            case DOMAIN_NAME -> (head[4] & 0xFF) + 2;
+            default -> throw new SocketException("Reply from SOCKS server contains wrong address type");
+        };
+        inputStream.readFully(new byte[remaining]);
+    }
+
+    /**
+     * The username/password authentication (RFC 1929), each of them being at most 255 bytes long.
+     */
+    private void authenticate(DataInputStream inputStream, OutputStream outputStream,
+                              PasswordAuthentication credentials) throws IOException {
+        byte[] username = credentials.getUserName().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] password = new String(credentials.getPassword()).getBytes(StandardCharsets.ISO_8859_1);
+        if (username.length > 255) {
+            throw new SocketException("SOCKS : username too long, at most 255 bytes allowed");
+        }
+        if (password.length > 255) {
+            throw new SocketException("SOCKS : password too long, at most 255 bytes allowed");
+        }
+        ByteBuffer request = ByteBuffer.allocate(3 + username.length + password.length);
+        request.put((byte) 1).put((byte) username.length).put(username).put((byte) password.length).put(password);
+        outputStream.write(request.array());
+        outputStream.flush();
+        byte[] reply = new byte[2];
+        inputStream.readFully(reply);
+        if (reply[1] != 0) {
+            throw new SocketException(AUTHENTICATION_FAILED);
+        }
+    }
+
+    /**
+     * @param proxyAddress the SOCKS proxy address.
+     * @return the credentials for this proxy or {@code null} if none.
+     */
+    PasswordAuthentication getCredentials(@NotNull InetSocketAddress proxyAddress) {
+        if (proxyConfig.isAutoConfig()) {
+            PasswordAuthentication credentials = pacCredentialsSupplier.get().get(
+                    toKey(proxyAddress.getHostString(), proxyAddress.getPort()));
+            if (credentials != null || !proxyConfig.isPacAuthManualMode()) {
+                return credentials;
+            }
+        } else if (!proxyConfig.getProxyType().isSocks5()) {
+            return null;
+        }
+        if (StringUtils.isEmpty(proxyConfig.getProxyUsername())) {
+            return null;
+        }
+        String proxyPassword = proxyConfig.getProxyPassword();
+        return new PasswordAuthentication(DomainUser.extractUsername(proxyConfig.getProxyUsername()),
+                proxyPassword != null ? proxyPassword.toCharArray() : new char[0]);
+    }
+
+    /**
+     * Parse the comma separated {@code host:port=username:password} entries.
+     */
+    private Map<String, PasswordAuthentication> parsePacCredentials() {
+        Map<String, PasswordAuthentication> credentials = new HashMap<>();
+        String entries = proxyConfig.getProxyPacSocksCredentials();
+        if (StringUtils.isNotBlank(entries)) {
+            for (String entry : entries.split(",")) {
+                String proxy = StringUtils.substringBefore(entry, "=").trim();
+                String userInfo = StringUtils.substringAfter(entry, "=").trim();
+                int colonIndex = proxy.lastIndexOf(':');
+                int port = colonIndex > 0 ? NumberUtils.toInt(proxy.substring(colonIndex + 1)) : 0;
+                if (port <= 0 || userInfo.isEmpty()) {
+                    log.warn("Ignore invalid SOCKS credentials entry for: {}", proxy);
+                    continue;
+                }
+                credentials.put(toKey(proxy.substring(0, colonIndex), port),
+                        new PasswordAuthentication(StringUtils.substringBefore(userInfo, ":"),
+                                StringUtils.substringAfter(userInfo, ":").toCharArray()));
+            }
+        }
+        return credentials;
+    }
+
+    private static String toKey(String host, int port) {
+        return host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    @Override
+    public void onStop() {
+        pacCredentialsSupplier.reset();
+    }
+
+}
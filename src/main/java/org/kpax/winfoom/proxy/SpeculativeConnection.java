@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A socket to the upstream proxy, connected in advance.
+ * <p>It is either taken, by the processor needing it, or cancelled.
+ * A socket connected after the cancellation is closed right away.
+ */
+@Slf4j
+@ThreadSafe
+final class SpeculativeConnection {
+
+    private final SpeculativeConnector connector;
+
+    private final HttpHost proxy;
+
+    private final CompletableFuture<Socket> socketFuture = new CompletableFuture<>();
+
+    private volatile long connectedNanos;
+
+    private boolean done;
+
+    SpeculativeConnection(SpeculativeConnector connector, HttpHost proxy) {
+        this.connector = connector;
+        this.proxy = proxy;
+    }
+
+    HttpHost getProxy() {
+        return proxy;
+    }
+
+    void connected(Socket socket) {
+        connectedNanos = System.nanoTime();
+        if (!socketFuture.complete(socket)) {
+            log.debug("Close the speculative socket to {}, no longer needed", proxy);
+            InputOutputs.close(socket);
+        }
+    }
+
+    void failed(Exception e) {
+        socketFuture.completeExceptionally(e);
+    }
+
+    /**
+     * Wait for the speculative connect to finish, then take the socket.
+     *
+     * @param proxy the proxy the caller needs to connect to.
+     * @return the connected socket or {@code null} if it cannot be used,
+     * in which case the caller should open a socket on its own.
+     */
+    synchronized Socket take(@NotNull HttpHost proxy) {
+        if (done) {
+            return null;
+        }
+        if (!this.proxy.equals(proxy)) {
+            cancel();
+            return null;
+        }
+        done = true;
+        Socket socket;
+        try {
+            socket = socketFuture.get(connector.getConnectTimeout(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Speculative connect to {} failed: {}", proxy, e.getMessage());
+            discard();
+            connector.recordFailed();
+            return null;
+        }
+        if (System.nanoTime() - connectedNanos > TimeUnit.MILLISECONDS.toNanos(connector.getMaxIdleMillis())
+                || socket.isClosed()) {
+            log.debug("The speculative socket to {} has been idle for too long", proxy);
+            InputOutputs.close(socket);
+            connector.recordExpired();
+            return null;
+        }
+        connector.recordUsed();
+        return socket;
+    }
+
+    /**
+     * Cancel the connect or close the socket, if not taken.
+     */
+    synchronized void cancel() {
+        if (!done) {
+            done = true;
+            discard();
+            connector.recordCancelled();
+        }
+    }
+
+    private void discard() {
+        // Completed in the meantime
+        if (!socketFuture.cancel(false) && !socketFuture.isCompletedExceptionally()) {
+            InputOutputs.close(socketFuture.join());
+        }
+    }
+
+}
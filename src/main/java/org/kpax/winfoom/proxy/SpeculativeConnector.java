@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * It keeps a few sockets to the upstream HTTP proxy connected in advance,
+ * so that a CONNECT request does not wait for the TCP handshake.
+ * <p>The pool is filled on demand only: each CONNECT request tunneled through the proxy takes a warm socket,
+ * if any, and triggers connecting the missing ones, up to {@value #MAX_WARM_SOCKETS}.
+ * The plain HTTP requests, the bypassed hosts and the idle periods open no socket.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class SpeculativeConnector implements MetricsSource, StopListener {
+
+    /**
+     * The maximum number of sockets connected, or connecting, in advance.
+     */
+    static final int MAX_WARM_SOCKETS = 2;
+
+    /**
+     * A speculative socket unused for longer than this might have been dropped by the upstream (milliseconds).
+     */
+    private static final long MAX_IDLE_MILLIS = 5000;
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyExecutorService executorService;
+
+    private final LongAdder started = new LongAdder();
+
+    private final LongAdder used = new LongAdder();
+
+    private final LongAdder cancelled = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * The warm sockets, oldest first, guarded by {@code this}.
+     */
+    private final Deque<SpeculativeConnection> warmConnections = new ArrayDeque<>();
+
+    boolean isEnabled() {
+        return systemConfig.isConnectionSpeculativeEnabled();
+    }
+
+    /**
+     * Take a warm socket, then start connecting the missing ones in background.
+     *
+     * @param proxy the upstream HTTP proxy.
+     * @return the connected socket or {@code null} if there is none usable.
+     */
+    Socket take(@NotNull HttpHost proxy) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Socket socket = null;
+        while (socket == null) {
+            SpeculativeConnection connection;
+            synchronized (this) {
+                connection = warmConnections.pollFirst();
+            }
+            if (connection == null) {
+                break;
+            }
+            socket = connection.take(proxy);
+        }
+        fill(proxy);
+        return socket;
+    }
+
+    private void fill(HttpHost proxy) {
+        List<SpeculativeConnection> connections = new ArrayList<>();
+        synchronized (this) {
+            while (warmConnections.size() < MAX_WARM_SOCKETS) {
+                SpeculativeConnection connection = new SpeculativeConnection(this, proxy);
+                warmConnections.addLast(connection);
+                connections.add(connection);
+            }
+        }
+        connections.forEach(this::connect);
+    }
+
+    private void connect(SpeculativeConnection connection) {
+        HttpHost proxy = connection.getProxy();
+        started.increment();
+        executorService.submit(() -> {
+            Socket socket = new Socket();
+            try {
+                systemConfig.configureSocket(socket);
+                socket.connect(new InetSocketAddress(proxy.getHostName(), proxy.getPort()),
+                        systemConfig.getSocketConnectTimeout() * 1000);
+                connection.connected(socket);
+            } catch (Exception e) {
+                InputOutputs.close(socket);
+                connection.failed(e);
+            }
+        });
+    }
+
+    int getConnectTimeout() {
+        return systemConfig.getSocketConnectTimeout();
+    }
+
+    long getMaxIdleMillis() {
+        return MAX_IDLE_MILLIS;
+    }
+
+    void recordUsed() {
+        used.increment();
+    }
+
+    void recordCancelled() {
+        cancelled.increment();
+    }
+
+    void recordExpired() {
+        expired.increment();
+    }
+
+    void recordFailed() {
+        failed.increment();
+    }
+
+    /**
+     * Close the warm sockets.
+     */
+    @Override
+    public void onStop() {
+        List<SpeculativeConnection> connections;
+        synchronized (this) {
+            connections = new ArrayList<>(warmConnections);
+            warmConnections.clear();
+        }
+        connections.forEach(SpeculativeConnection::cancel);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "speculativeConnect";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", isEnabled());
+        synchronized (this) {
+            metrics.put("warm", warmConnections.size());
+        }
+        metrics.put("started", started.sum());
+        metrics.put("used", used.sum());
+        metrics.put("cancelled", cancelled.sum());
+        metrics.put("expired", expired.sum());
+        metrics.put("failed", failed.sum());
+        return metrics;
+    }
+
+}
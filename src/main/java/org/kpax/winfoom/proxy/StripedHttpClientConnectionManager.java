@@ -0,0 +1,823 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionOperator;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.ConnectionShutdownException;
+import org.apache.http.impl.conn.DefaultHttpClientConnectionOperator;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.springframework.util.Assert;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link PoolingConnectionManager} whose lease/release paths are striped per route.
+ * <p>Each route has its own lease permits and its own lock-free stack of available connections,
+ * so that the threads working on different routes never contend. The only shared state is the
+ * permit counter enforcing the {@code maxTotal} limit, which is taken only when a new connection
+ * needs to be created.
+ * <p>It keeps the {@link org.apache.http.impl.conn.PoolingHttpClientConnectionManager} semantics:
+ * the open connections per route are limited by {@code maxPerRoute}, all the open connections
+ * are limited by {@code maxTotal}, the connections are matched by state and the idle connections of other
+ * routes are closed when {@code maxTotal} is reached.
+ *
+ * @see DefaultPoolingConnectionManager
+ */
+@Slf4j
+@ThreadSafe
+class StripedHttpClientConnectionManager implements PoolingConnectionManager {
+
+    /**
+     * While waiting for the total limit, how often to look for idle connections to close.
+     */
+    private static final long EVICTION_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ConcurrentMap<HttpRoute, RoutePool> routePools = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<HttpRoute, Integer> maxPerRoute = new ConcurrentHashMap<>();
+
+    /**
+     * The leased connections.
+     */
+    private final Set<PoolEntry> leased = ConcurrentHashMap.newKeySet();
+
+    private final HttpClientConnectionOperator connectionOperator;
+
+    private final HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory =
+            ManagedHttpClientConnectionFactory.INSTANCE;
+
+    /**
+     * The permits for opening new connections, sized to {@code maxTotal}.
+     */
+    private final ResizableSemaphore totalPermits;
+
+    private final LeaseWaitStatistics leaseWaitStatistics = new LeaseWaitStatistics();
+
+    private volatile int defaultMaxPerRoute = 2;
+
+    private volatile int validateAfterInactivity = 2000;
+
+    private volatile SocketConfig defaultSocketConfig = SocketConfig.DEFAULT;
+
+    private volatile boolean shutdown;
+
+    StripedHttpClientConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                       DnsResolver dnsResolver) {
+        this.connectionOperator = new DefaultHttpClientConnectionOperator(socketFactoryRegistry, null, dnsResolver);
+        this.totalPermits = new ResizableSemaphore(20, false);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        Assert.notNull(route, "HTTP route cannot be null");
+        if (shutdown) {
+            throw new IllegalStateException("Connection pool shut down");
+        }
+        final RoutePool pool = getPool(route);
+        return new ConnectionRequest() {
+
+            private boolean cancelled;
+
+            private boolean done;
+
+            /**
+             * The thread waiting in {@link #get(long, TimeUnit)}, woken up by {@link #cancel()}.
+             */
+            private Thread waiter;
+
+            @Override
+            public synchronized boolean cancel() {
+                if (cancelled || done) {
+                    return false;
+                }
+                cancelled = true;
+                if (waiter != null) {
+                    waiter.interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                synchronized (this) {
+                    if (cancelled) {
+                        throw new ExecutionException(new CancellationException("Operation aborted"));
+                    }
+                    waiter = Thread.currentThread();
+                }
+                long start = System.nanoTime();
+                try {
+                    HttpClientConnection connection = lease(pool, state, timeout, unit);
+                    synchronized (this) {
+                        done = true;
+                    }
+                    return connection;
+                } catch (InterruptedException e) {
+                    synchronized (this) {
+                        if (cancelled) {
+                            throw new ExecutionException(new CancellationException("Operation aborted"));
+                        }
+                    }
+                    throw e;
+                } finally {
+                    synchronized (this) {
+                        waiter = null;
+                        if (cancelled) {
+                            // Clear the wake-up, in case it came after the wait
+                            Thread.interrupted();
+                        }
+                    }
+                    leaseWaitStatistics.record(route, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    private HttpClientConnection lease(final RoutePool pool, final Object state, long timeout, TimeUnit unit)
+            throws InterruptedException, ConnectionPoolTimeoutException {
+        long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : Long.MAX_VALUE;
+        if (!acquire(pool.leasePermits, deadline)) {
+            throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+        }
+        boolean success = false;
+        try {
+            if (shutdown) {
+                throw new IllegalStateException("Connection pool shut down");
+            }
+            PoolEntry entry = takeAvailable(pool, state);
+            if (entry == null) {
+                if (!acquireTotal(pool, deadline)) {
+                    throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+                }
+                try {
+                    entry = new PoolEntry(pool, connectionFactory.create(pool.route, ConnectionConfig.DEFAULT));
+                } catch (RuntimeException e) {
+                    totalPermits.release();
+                    throw e;
+                }
+            }
+            pool.leasedCount.incrementAndGet();
+            leased.add(entry);
+            success = true;
+            return new ConnectionProxy(entry);
+        } finally {
+            if (!success) {
+                pool.leasePermits.release();
+            }
+        }
+    }
+
+    /**
+     * Take the most recently used available connection matching the state, if any.
+     * <p>The expired or stale connections found on the way are closed.
+     * When there is no match and the route is full, the oldest available connection
+     * is closed to make room for a new one.
+     */
+    private PoolEntry takeAvailable(final RoutePool pool, final Object state) {
+        for (PoolEntry entry : pool.available) {
+            if ((entry.state == null || Objects.equals(entry.state, state)) && pool.remove(entry)) {
+                long now = System.currentTimeMillis();
+                if (entry.isExpired(now)) {
+                    discard(entry);
+                } else if (validateAfterInactivity > 0
+                        && entry.updated + validateAfterInactivity <= now
+                        && entry.connection.isStale()) {
+                    discard(entry);
+                } else {
+                    return entry;
+                }
+            }
+        }
+        if (pool.leasedCount.get() + pool.availableCount.get() >= pool.leasePermits.getPermits()) {
+            PoolEntry oldest = pool.pollOldest();
+            if (oldest != null) {
+                discard(oldest);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Acquire a permit to open a new connection, closing idle connections if {@code maxTotal} is reached.
+     */
+    private boolean acquireTotal(final RoutePool pool, long deadline) throws InterruptedException {
+        while (true) {
+            if (totalPermits.tryAcquire()) {
+                return true;
+            }
+            if (evictOne(pool)) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (totalPermits.tryAcquire(Math.min(remaining, EVICTION_RETRY_NANOS), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Close the oldest available connection, preferably of another route.
+     */
+    private boolean evictOne(final RoutePool current) {
+        for (RoutePool pool : routePools.values()) {
+            if (pool != current) {
+                PoolEntry entry = pool.pollOldest();
+                if (entry != null) {
+                    discard(entry);
+                    return true;
+                }
+            }
+        }
+        PoolEntry entry = current.pollOldest();
+        if (entry != null) {
+            discard(entry);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean acquire(final Semaphore semaphore, long deadline) throws InterruptedException {
+        if (deadline == Long.MAX_VALUE) {
+            semaphore.acquire();
+            return true;
+        }
+        return semaphore.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void releaseConnection(final HttpClientConnection connection, final Object state,
+                                  long keepAlive, TimeUnit timeUnit) {
+        Assert.notNull(connection, "Managed connection cannot be null");
+        final PoolEntry entry = asProxy(connection).detach();
+        if (entry == null) {
+            // Already released
+            return;
+        }
+        leased.remove(entry);
+        final RoutePool pool = entry.pool;
+        try {
+            if (!shutdown && entry.routeComplete && entry.connection.isOpen()) {
+                long now = System.currentTimeMillis();
+                entry.state = state;
+                entry.updated = now;
+                entry.expiry = keepAlive > 0 ? now + (timeUnit != null ? timeUnit : TimeUnit.MILLISECONDS).toMillis(keepAlive)
+                        : Long.MAX_VALUE;
+                if (log.isDebugEnabled()) {
+                    log.debug("Connection {} can be kept alive {}", entry.connection,
+                            keepAlive > 0 ? "for " + keepAlive + " " + timeUnit : "indefinitely");
+                }
+                pool.push(entry);
+            } else {
+                discard(entry);
+            }
+        } finally {
+            pool.leasedCount.decrementAndGet();
+            pool.leasePermits.release();
+        }
+        trim(pool);
+        if (shutdown) {
+            closeAvailable(pool);
+        }
+    }
+
+    /**
+     * Close the oldest available connections while the route is above its limit (after a resize).
+     */
+    private void trim(final RoutePool pool) {
+        while (pool.leasedCount.get() + pool.availableCount.get() > pool.leasePermits.getPermits()) {
+            PoolEntry oldest = pool.pollOldest();
+            if (oldest == null) {
+                break;
+            }
+            discard(oldest);
+        }
+    }
+
+    @Override
+    public void connect(final HttpClientConnection connection, final HttpRoute route,
+                        int connectTimeout, final HttpContext context) throws IOException {
+        final HttpHost host = route.getProxyHost() != null ? route.getProxyHost() : route.getTargetHost();
+        connectionOperator.connect(getLeased(connection).connection, host,
+                route.getLocalSocketAddress(), connectTimeout, defaultSocketConfig, context);
+    }
+
+    @Override
+    public void upgrade(final HttpClientConnection connection, final HttpRoute route,
+                        final HttpContext context) throws IOException {
+        connectionOperator.upgrade(getLeased(connection).connection, route.getTargetHost(), context);
+    }
+
+    @Override
+    public void routeComplete(final HttpClientConnection connection, final HttpRoute route,
+                              final HttpContext context) {
+        getLeased(connection).routeComplete = true;
+    }
+
+    private static PoolEntry getLeased(final HttpClientConnection connection) {
+        Assert.notNull(connection, "Managed connection cannot be null");
+        return asProxy(connection).getPoolEntry();
+    }
+
+    private static ConnectionProxy asProxy(final HttpClientConnection connection) {
+        if (!(connection instanceof ConnectionProxy)) {
+            throw new IllegalStateException("Unexpected connection proxy class: " + connection.getClass());
+        }
+        return (ConnectionProxy) connection;
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+        long cutoff = System.currentTimeMillis() - Math.max(0, timeUnit.toMillis(idleTime));
+        for (RoutePool pool : routePools.values()) {
+            for (PoolEntry entry : pool.available) {
+                if (entry.updated <= cutoff && pool.remove(entry)) {
+                    discard(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        long now = System.currentTimeMillis();
+        for (RoutePool pool : routePools.values()) {
+            for (PoolEntry entry : pool.available) {
+                if (entry.isExpired(now) && pool.remove(entry)) {
+                    discard(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (!shutdown) {
+            shutdown = true;
+            log.debug("Connection manager is shutting down");
+            routePools.values().forEach(this::closeAvailable);
+            for (PoolEntry entry : leased) {
+                try {
+                    entry.connection.shutdown();
+                } catch (IOException e) {
+                    log.debug("I/O exception shutting down connection", e);
+                }
+            }
+            leased.clear();
+            log.debug("Connection manager shut down");
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private void closeAvailable(final RoutePool pool) {
+        PoolEntry entry;
+        while ((entry = pool.pollOldest()) != null) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Close the connection and give back its permit.
+     */
+    private void discard(final PoolEntry entry) {
+        try {
+            entry.connection.close();
+        } catch (IOException e) {
+            log.debug("I/O exception closing connection", e);
+        } finally {
+            totalPermits.release();
+        }
+    }
+
+    private RoutePool getPool(final HttpRoute route) {
+        return routePools.computeIfAbsent(route, r -> new RoutePool(r, getMaxPerRoute(r)));
+    }
+
+    @Override
+    public void setMaxTotal(int max) {
+        Assert.isTrue(max > 0, "Max value must be positive");
+        totalPermits.resize(max);
+    }
+
+    @Override
+    public int getMaxTotal() {
+        return totalPermits.getPermits();
+    }
+
+    @Override
+    public void setDefaultMaxPerRoute(int max) {
+        Assert.isTrue(max > 0, "Max per route value must be positive");
+        this.defaultMaxPerRoute = max;
+        routePools.forEach((route, pool) -> {
+            if (!maxPerRoute.containsKey(route)) {
+                pool.leasePermits.resize(max);
+            }
+        });
+    }
+
+    @Override
+    public int getDefaultMaxPerRoute() {
+        return defaultMaxPerRoute;
+    }
+
+    @Override
+    public void setMaxPerRoute(final HttpRoute route, int max) {
+        Assert.notNull(route, "HTTP route cannot be null");
+        Assert.isTrue(max > 0, "Max per route value must be positive");
+        maxPerRoute.put(route, max);
+        RoutePool pool = getPool(route);
+        pool.leasePermits.resize(max);
+        trim(pool);
+    }
+
+    @Override
+    public int getMaxPerRoute(final HttpRoute route) {
+        Assert.notNull(route, "HTTP route cannot be null");
+        return maxPerRoute.getOrDefault(route, defaultMaxPerRoute);
+    }
+
+    @Override
+    public PoolStats getTotalStats() {
+        int leasedTotal = 0;
+        int pending = totalPermits.getQueueLength();
+        int available = 0;
+        for (RoutePool pool : routePools.values()) {
+            leasedTotal += pool.leasedCount.get();
+            pending += pool.leasePermits.getQueueLength();
+            available += pool.availableCount.get();
+        }
+        return new PoolStats(leasedTotal, pending, available, getMaxTotal());
+    }
+
+    @Override
+    public PoolStats getStats(final HttpRoute route) {
+        Assert.notNull(route, "HTTP route cannot be null");
+        RoutePool pool = routePools.get(route);
+        if (pool == null) {
+            return new PoolStats(0, 0, 0, getMaxPerRoute(route));
+        }
+        return new PoolStats(pool.leasedCount.get(), pool.leasePermits.getQueueLength(),
+                pool.availableCount.get(), pool.leasePermits.getPermits());
+    }
+
+    @Override
+    public Set<HttpRoute> getRoutes() {
+        return new HashSet<>(routePools.keySet());
+    }
+
+    @Override
+    public LeaseWaitStatistics getLeaseWaitStatistics() {
+        return leaseWaitStatistics;
+    }
+
+    @Override
+    public SocketConfig getDefaultSocketConfig() {
+        return defaultSocketConfig;
+    }
+
+    @Override
+    public void setDefaultSocketConfig(final SocketConfig socketConfig) {
+        this.defaultSocketConfig = socketConfig != null ? socketConfig : SocketConfig.DEFAULT;
+    }
+
+    @Override
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    @Override
+    public void setValidateAfterInactivity(int ms) {
+        this.validateAfterInactivity = ms;
+    }
+
+    /**
+     * The per route pool.
+     */
+    private static final class RoutePool {
+
+        private final HttpRoute route;
+
+        /**
+         * The permits for leasing a connection, sized to {@code maxPerRoute}.
+         */
+        private final ResizableSemaphore leasePermits;
+
+        /**
+         * The available connections, the most recently released first.
+         */
+        private final Deque<PoolEntry> available = new ConcurrentLinkedDeque<>();
+
+        private final AtomicInteger availableCount = new AtomicInteger();
+
+        private final AtomicInteger leasedCount = new AtomicInteger();
+
+        private RoutePool(HttpRoute route, int max) {
+            this.route = route;
+            this.leasePermits = new ResizableSemaphore(max, true);
+        }
+
+        private void push(PoolEntry entry) {
+            available.addFirst(entry);
+            availableCount.incrementAndGet();
+        }
+
+        private boolean remove(PoolEntry entry) {
+            if (available.removeFirstOccurrence(entry)) {
+                availableCount.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        private PoolEntry pollOldest() {
+            PoolEntry entry = available.pollLast();
+            if (entry != null) {
+                availableCount.decrementAndGet();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * A pooled connection.
+     */
+    private static final class PoolEntry {
+
+        private final RoutePool pool;
+
+        private final ManagedHttpClientConnection connection;
+
+        private volatile Object state;
+
+        private volatile long updated = System.currentTimeMillis();
+
+        private volatile long expiry = Long.MAX_VALUE;
+
+        private volatile boolean routeComplete;
+
+        private PoolEntry(RoutePool pool, ManagedHttpClientConnection connection) {
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiry;
+        }
+    }
+
+    /**
+     * The connection handed out to the client, like the {@code CPoolProxy}
+     * of {@link org.apache.http.impl.conn.PoolingHttpClientConnectionManager}:
+     * it is detached from its pool entry on release, any later use failing with {@link ConnectionShutdownException}.
+     */
+    private static final class ConnectionProxy implements ManagedHttpClientConnection, HttpContext {
+
+        private volatile PoolEntry poolEntry;
+
+        private ConnectionProxy(PoolEntry poolEntry) {
+            this.poolEntry = poolEntry;
+        }
+
+        private PoolEntry getPoolEntry() {
+            PoolEntry entry = poolEntry;
+            if (entry == null) {
+                throw new ConnectionShutdownException();
+            }
+            return entry;
+        }
+
+        /**
+         * @return the pool entry or {@code null} if already detached.
+         */
+        private synchronized PoolEntry detach() {
+            PoolEntry entry = poolEntry;
+            poolEntry = null;
+            return entry;
+        }
+
+        private ManagedHttpClientConnection getConnection() {
+            return getPoolEntry().connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            PoolEntry entry = poolEntry;
+            if (entry != null) {
+                entry.connection.close();
+            }
+        }
+
+        @Override
+        public void shutdown() throws IOException {
+            PoolEntry entry = poolEntry;
+            if (entry != null) {
+                entry.connection.shutdown();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            PoolEntry entry = poolEntry;
+            return entry != null && entry.connection.isOpen();
+        }
+
+        @Override
+        public boolean isStale() {
+            PoolEntry entry = poolEntry;
+            return entry == null || entry.connection.isStale();
+        }
+
+        @Override
+        public void setSocketTimeout(int timeout) {
+            getConnection().setSocketTimeout(timeout);
+        }
+
+        @Override
+        public int getSocketTimeout() {
+            return getConnection().getSocketTimeout();
+        }
+
+        @Override
+        public String getId() {
+            return getConnection().getId();
+        }
+
+        @Override
+        public void bind(Socket socket) throws IOException {
+            getConnection().bind(socket);
+        }
+
+        @Override
+        public Socket getSocket() {
+            return getConnection().getSocket();
+        }
+
+        @Override
+        public SSLSession getSSLSession() {
+            return getConnection().getSSLSession();
+        }
+
+        @Override
+        public boolean isResponseAvailable(int timeout) throws IOException {
+            return getConnection().isResponseAvailable(timeout);
+        }
+
+        @Override
+        public void sendRequestHeader(HttpRequest request) throws HttpException, IOException {
+            getConnection().sendRequestHeader(request);
+        }
+
+        @Override
+        public void sendRequestEntity(HttpEntityEnclosingRequest request) throws HttpException, IOException {
+            getConnection().sendRequestEntity(request);
+        }
+
+        @Override
+        public HttpResponse receiveResponseHeader() throws HttpException, IOException {
+            return getConnection().receiveResponseHeader();
+        }
+
+        @Override
+        public void receiveResponseEntity(HttpResponse response) throws HttpException, IOException {
+            getConnection().receiveResponseEntity(response);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            getConnection().flush();
+        }
+
+        @Override
+        public HttpConnectionMetrics getMetrics() {
+            return getConnection().getMetrics();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return getConnection().getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return getConnection().getLocalPort();
+        }
+
+        @Override
+        public InetAddress getRemoteAddress() {
+            return getConnection().getRemoteAddress();
+        }
+
+        @Override
+        public int getRemotePort() {
+            return getConnection().getRemotePort();
+        }
+
+        @Override
+        public Object getAttribute(String id) {
+            ManagedHttpClientConnection connection = getConnection();
+            return connection instanceof HttpContext ? ((HttpContext) connection).getAttribute(id) : null;
+        }
+
+        @Override
+        public void setAttribute(String id, Object obj) {
+            ManagedHttpClientConnection connection = getConnection();
+            if (connection instanceof HttpContext) {
+                ((HttpContext) connection).setAttribute(id, obj);
+            }
+        }
+
+        @Override
+        public Object removeAttribute(String id) {
+            ManagedHttpClientConnection connection = getConnection();
+            return connection instanceof HttpContext ? ((HttpContext) connection).removeAttribute(id) : null;
+        }
+
+        @Override
+        public String toString() {
+            PoolEntry entry = poolEntry;
+            return entry != null ? entry.connection.toString() : "detached";
+        }
+    }
+
+    /**
+     * A {@link Semaphore} whose number of permits can be changed.
+     * <p>Shrinking it does not affect the permits already taken.
+     */
+    private static final class ResizableSemaphore extends Semaphore {
+
+        private volatile int permits;
+
+        private ResizableSemaphore(int permits, boolean fair) {
+            super(permits, fair);
+            this.permits = permits;
+        }
+
+        private synchronized void resize(int newPermits) {
+            int delta = newPermits - permits;
+            permits = newPermits;
+            if (delta > 0) {
+                release(delta);
+            } else if (delta < 0) {
+                reducePermits(-delta);
+            }
+        }
+
+        private int getPermits() {
+            return permits;
+        }
+    }
+
+}
@@ -50,7 +50,7 @@ import java.io.IOException;
 import java.net.Socket;
 
 /**
- * Establish a tunnel via an HTTP proxy.<br>
+ * Establish a tunnel via an HTTP proxy, over TLS for the {@code https} proxies.<br>
  * It is an adaptation of {@link org.apache.http.impl.client.ProxyClient}
  *
  * @author Eugen Covaci
@@ -67,6 +67,8 @@ public class TunnelConnection {
 
     private final SystemConfig systemConfig;
 
+    private final ProxyTlsContext proxyTlsContext;
+
     private HttpProcessor httpProcessor;
     private HttpRequestExecutor requestExec;
     private ProxyAuthenticationStrategy proxyAuthStrategy;
@@ -84,6 +86,23 @@ public class TunnelConnection {
     public Tunnel open(final HttpHost proxy, final HttpHost target,
                        final ProtocolVersion protocolVersion)
             throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, null);
+    }
+
+    /**
+     * Open a tunnel, optionally over an already connected socket to the proxy.
+     *
+     * @param proxy           the proxy host.
+     * @param target          the target host.
+     * @param protocolVersion the CONNECT request's protocol version.
+     * @param socket          the connected socket to the proxy or {@code null} to open a new one.
+     * @return the tunnel.
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Tunnel open(final HttpHost proxy, final HttpHost target,
+                       final ProtocolVersion protocolVersion, final Socket socket)
+            throws IOException, HttpException {
         Args.notNull(proxy, "Proxy host");
         Args.notNull(target, "Target host");
 
@@ -97,6 +116,9 @@ public class TunnelConnection {
                 proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
         final ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route,
                 ConnectionConfig.DEFAULT);
+        if (socket != null) {
+            connection.bind(proxyTlsContext.secure(socket, proxy));
+        }
         final HttpContext context = new BasicHttpContext();
         final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
 
@@ -141,7 +163,7 @@ public class TunnelConnection {
             if (!connection.isOpen()) {
                 Socket socket = new Socket(proxy.getHostName(), proxy.getPort());
                 systemConfig.configureSocket(socket);
-                connection.bind(socket);
+                connection.bind(proxyTlsContext.secure(socket, proxy));
             }
 
             authenticator.generateAuthResponse(connect, proxyAuthState, context);
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import lombok.Getter;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
+import org.apache.http.ParseException;
+import org.kpax.winfoom.annotation.NotNull;
+
+import java.util.Locale;
+
+/**
+ * The {@code Cache-Control} directives of a HTTP message relevant to a shared cache (RFC 9111, section 5.2).
+ * <p>A {@code Pragma: no-cache} request header is treated as {@code Cache-Control: no-cache}.
+ */
+@Getter
+final class CacheControl {
+
+    private boolean noStore;
+
+    private boolean noCache;
+
+    private boolean privateResponse;
+
+    private boolean publicResponse;
+
+    private boolean mustRevalidate;
+
+    /**
+     * The {@code max-age} directive value (seconds), negative when missing.
+     */
+    private long maxAge = -1;
+
+    /**
+     * The {@code s-maxage} directive value (seconds), negative when missing.
+     */
+    private long sharedMaxAge = -1;
+
+    private CacheControl() {
+    }
+
+    static CacheControl of(@NotNull final HttpMessage message) {
+        CacheControl cacheControl = new CacheControl();
+        for (Header header : message.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            HeaderElement[] elements;
+            try {
+                elements = header.getElements();
+            } catch (ParseException e) {
+                // An invalid Cache-Control header means we cannot tell, so do not cache
+                cacheControl.noStore = true;
+                continue;
+            }
+            for (HeaderElement element : elements) {
+                switch (element.getName().toLowerCase(Locale.ROOT)) {
+                    case "no-store" -> cacheControl.noStore = true;
+                    case "no-cache" -> cacheControl.noCache = true;
+                    case "private" -> cacheControl.privateResponse = true;
+                    case "public" -> cacheControl.publicResponse = true;
+                    case "must-revalidate", "proxy-revalidate" -> cacheControl.mustRevalidate = true;
+                    case "max-age" -> cacheControl.maxAge = parseSeconds(element.getValue());
+                    case "s-maxage" -> cacheControl.sharedMaxAge = parseSeconds(element.getValue());
+                    default -> {
+                        // Not relevant
+                    }
+                }
+            }
+        }
+        for (Header header : message.getHeaders(HttpHeaders.PRAGMA)) {
+            if (header.getValue() != null && header.getValue().toLowerCase(Locale.ROOT).contains("no-cache")) {
+                cacheControl.noCache = true;
+            }
+        }
+        return cacheControl;
+    }
+
+    /**
+     * An invalid delta-seconds value is treated as zero, that is stale (RFC 9111, section 1.2.2).
+     */
+    private static long parseSeconds(final String value) {
+        try {
+            return value != null ? Math.max(0, Long.parseLong(value.trim())) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
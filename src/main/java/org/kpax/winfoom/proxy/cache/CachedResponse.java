@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A response stored by the {@link HttpResponseCache}: the response head, the request header values it
+ * was selected by ({@code Vary}) and the body, kept either in memory or in a file of the disk tier.
+ * <p>The head is replaced on revalidation, the body never changes.
+ */
+@Slf4j
+@ThreadSafe
+public final class CachedResponse {
+
+    /**
+     * The heuristic freshness lifetime is this fraction of the time since the last modification.
+     */
+    private static final double HEURISTIC_FRACTION = 0.1;
+
+    private static final long MAX_HEURISTIC_LIFETIME = TimeUnit.DAYS.toMillis(1);
+
+    @Getter
+    private final long id;
+
+    @Getter
+    private final String key;
+
+    /**
+     * The values of the request headers nominated by the {@code Vary} response header.
+     */
+    @Getter
+    private final Map<String, String> varyValues;
+
+    @Getter
+    private final long bodyLength;
+
+    /**
+     * The number of the open body files, so that a removed entry's file gets deleted only when unused.
+     */
+    private final AtomicInteger readers = new AtomicInteger();
+
+    private volatile Head head;
+
+    private volatile byte[] body;
+
+    private volatile Path bodyFile;
+
+    private volatile boolean removed;
+
+    CachedResponse(long id, String key, Map<String, String> varyValues, HttpResponse response,
+                   long requestTime, long responseTime, byte[] body, Path bodyFile, long bodyLength) {
+        this.id = id;
+        this.key = key;
+        this.varyValues = varyValues;
+        this.head = new Head(response, requestTime, responseTime);
+        this.body = body;
+        this.bodyFile = bodyFile;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * @return the stored response head (do not modify it).
+     */
+    HttpResponse getResponse() {
+        return head.response;
+    }
+
+    long getRequestTime() {
+        return head.requestTime;
+    }
+
+    long getResponseTime() {
+        return head.responseTime;
+    }
+
+    void setHead(HttpResponse response, long requestTime, long responseTime) {
+        this.head = new Head(response, requestTime, responseTime);
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    Path getBodyFile() {
+        return bodyFile;
+    }
+
+    boolean isInMemory() {
+        return body != null;
+    }
+
+    /**
+     * Move the body to the disk tier. The file must be fully written.
+     */
+    void movedToDisk(@NotNull Path file) {
+        // The file first, so that a reader always finds one of them
+        this.bodyFile = file;
+        this.body = null;
+    }
+
+    boolean matches(@NotNull HttpRequest request) {
+        return varyValues.entrySet().stream().allMatch(
+                e -> e.getValue().equals(HttpResponseCache.selectHeaderValue(request, e.getKey())));
+    }
+
+    public String getFirstHeaderValue(@NotNull String name) {
+        return Optional.ofNullable(head.response.getFirstHeader(name)).map(Header::getValue).orElse(null);
+    }
+
+    /**
+     * Create a copy of the stored response, having the {@code Age} header computed for the current time.
+     *
+     * @param now the current time (milliseconds).
+     * @return a new {@link HttpResponse} instance.
+     */
+    public HttpResponse toHttpResponse(long now) {
+        HttpResponse response = new BasicHttpResponse(head.response.getStatusLine());
+        response.setHeaders(head.response.getAllHeaders());
+        response.setHeader(HttpHeaders.AGE, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(getCurrentAge(now))));
+        return response;
+    }
+
+    /**
+     * Compute the current age of the response (RFC 9111, section 4.2.3).
+     *
+     * @param now the current time (milliseconds).
+     * @return the current age (milliseconds).
+     */
+    long getCurrentAge(long now) {
+        Head head = this.head;
+        long dateValue = Optional.ofNullable(parseDate(head.response, HttpHeaders.DATE)).
+                map(Date::getTime).orElse(head.responseTime);
+        long apparentAge = Math.max(0, head.responseTime - dateValue);
+        long responseDelay = head.responseTime - head.requestTime;
+        long correctedInitialAge = Math.max(apparentAge, getAgeValue(head.response) + responseDelay);
+        return correctedInitialAge + Math.max(0, now - head.responseTime);
+    }
+
+    /**
+     * Compute the freshness lifetime of the response (RFC 9111, section 4.2.1),
+     * falling back to a heuristic one when the response has a {@code Last-Modified} header.
+     *
+     * @return the freshness lifetime (milliseconds).
+     */
+    long getFreshnessLifetime() {
+        Head head = this.head;
+        CacheControl cacheControl = CacheControl.of(head.response);
+        if (cacheControl.getSharedMaxAge() >= 0) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.getSharedMaxAge());
+        }
+        if (cacheControl.getMaxAge() >= 0) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.getMaxAge());
+        }
+        Date date = parseDate(head.response, HttpHeaders.DATE);
+        long dateValue = date != null ? date.getTime() : head.responseTime;
+        if (head.response.containsHeader(HttpHeaders.EXPIRES)) {
+            // An invalid date (like "0") means already expired
+            Date expires = parseDate(head.response, HttpHeaders.EXPIRES);
+            return expires != null ? Math.max(0, expires.getTime() - dateValue) : 0;
+        }
+        Date lastModified = parseDate(head.response, HttpHeaders.LAST_MODIFIED);
+        if (lastModified != null) {
+            return Math.min(MAX_HEURISTIC_LIFETIME,
+                    (long) (Math.max(0, dateValue - lastModified.getTime()) * HEURISTIC_FRACTION));
+        }
+        return 0;
+    }
+
+    /**
+     * Open the body for reading.
+     *
+     * @return the body's {@link InputStream} or {@code null} if the entry has been removed in the meantime.
+     */
+    InputStream openBody() throws IOException {
+        byte[] body = this.body;
+        if (body != null) {
+            return new ByteArrayInputStream(body);
+        }
+        readers.incrementAndGet();
+        if (removed) {
+            release();
+            return null;
+        }
+        try {
+            return new FilterInputStream(Files.newInputStream(bodyFile)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!closed) {
+                            closed = true;
+                            release();
+                        }
+                    }
+                }
+            };
+        } catch (NoSuchFileException e) {
+            release();
+            return null;
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Mark the entry removed and delete its body file, unless it is open.
+     */
+    void remove() {
+        removed = true;
+        body = null;
+        if (readers.get() == 0) {
+            deleteBodyFile();
+        }
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    private void release() {
+        if (readers.decrementAndGet() == 0 && removed) {
+            deleteBodyFile();
+        }
+    }
+
+    private void deleteBodyFile() {
+        Path file = bodyFile;
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.debug("Cannot delete cached body file " + file, e);
+            }
+        }
+    }
+
+    private static long getAgeValue(HttpResponse response) {
+        Header age = response.getFirstHeader(HttpHeaders.AGE);
+        if (age != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(age.getValue().trim())));
+            } catch (NumberFormatException e) {
+                // Ignore it
+            }
+        }
+        return 0;
+    }
+
+    static Date parseDate(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? DateUtils.parseDate(header.getValue()) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof CachedResponse that && id == that.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return "CachedResponse{" +
+                "key='" + key + '\'' +
+                ", varyValues=" + varyValues +
+                ", bodyLength=" + bodyLength +
+                ", inMemory=" + isInMemory() +
+                '}';
+    }
+
+    private static final class Head {
+
+        private final HttpResponse response;
+
+        private final long requestTime;
+
+        private final long responseTime;
+
+        private Head(HttpResponse response, long requestTime, long responseTime) {
+            this.response = response;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+    }
+
+}
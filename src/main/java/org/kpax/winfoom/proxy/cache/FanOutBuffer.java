@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only buffer written by one thread and read, from the beginning, by any number of readers,
+ * each one at its own pace.
+ * <p>The first {@code memoryLimit} bytes are kept in memory, the rest are spilled into a temp file.
+ * The readers block until more bytes are written, the buffer is completed or failed.
+ */
+@Slf4j
+@ThreadSafe
+final class FanOutBuffer implements Closeable {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final Path tempDirectory;
+
+    private final int memoryLimit;
+
+    private final long readTimeoutMillis;
+
+    private byte[] memory = new byte[0];
+
+    /**
+     * Written only by the writer, then published through {@link #length}.
+     */
+    private int memoryLength;
+
+    private Path tempFile;
+
+    private FileChannel fileChannel;
+
+    /**
+     * The number of bytes available to the readers, guarded by the lock.
+     */
+    private long length;
+
+    private boolean completed;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    FanOutBuffer(Path tempDirectory, int memoryLimit, long readTimeoutMillis) {
+        this.tempDirectory = tempDirectory;
+        this.memoryLimit = memoryLimit;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Called by the writer only.
+     *
+     * @param len the number of bytes to be written.
+     * @return {@code true} iff they would be kept in memory.
+     */
+    boolean fitsInMemory(int len) {
+        return memoryLength + len <= memoryLimit;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        int inMemory = Math.min(len, memoryLimit - memoryLength);
+        if (inMemory > 0) {
+            lock.lock();
+            try {
+                if (memoryLength + inMemory > memory.length) {
+                    memory = Arrays.copyOf(memory, Math.min(memoryLimit,
+                            Math.max(memoryLength + inMemory, memory.length * 2)));
+                }
+                System.arraycopy(b, off, memory, memoryLength, inMemory);
+                memoryLength += inMemory;
+                length += inMemory;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (inMemory < len) {
+            if (fileChannel == null) {
+                tempFile = tempDirectory.resolve(InputOutputs.generateCacheFilename());
+                fileChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(b, off + inMemory, len - inMemory);
+            while (byteBuffer.hasRemaining()) {
+                fileChannel.write(byteBuffer);
+            }
+            lock.lock();
+            try {
+                length += len - inMemory;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    void complete() {
+        lock.lock();
+        try {
+            completed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            if (!completed) {
+                failure = e;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a new {@link InputStream} reading the buffer from the beginning.
+     */
+    InputStream newReader() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                long available;
+                long fileOffset;
+                lock.lock();
+                try {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+                    while (position >= length && !completed && failure == null && !closed) {
+                        if (nanos <= 0) {
+                            throw new SocketTimeoutException("Timeout on waiting for the upstream response body");
+                        }
+                        nanos = changed.awaitNanos(nanos);
+                    }
+                    if (position < length) {
+                        if (position < memoryLength) {
+                            int count = (int) Math.min(len, memoryLength - position);
+                            System.arraycopy(memory, (int) position, b, off, count);
+                            position += count;
+                            return count;
+                        }
+                        available = length - position;
+                        fileOffset = position - memoryLength;
+                    } else if (completed) {
+                        return -1;
+                    } else if (failure != null) {
+                        throw new IOException("The upstream response failed", failure);
+                    } else {
+                        throw new IOException("The buffer is closed");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted on waiting for the upstream response body", e);
+                } finally {
+                    lock.unlock();
+                }
+
+                // The file range below length is never written again
+                int count = fileChannel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), fileOffset);
+                if (count > 0) {
+                    position += count;
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Release the memory and delete the temp file. Must be called after all the readers are done.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            memory = null;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (fileChannel != null) {
+            InputOutputs.close(fileChannel);
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                log.debug("Cannot delete the fan-out temp file " + tempFile, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,877 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A shared HTTP cache (RFC 9111) for the plain-HTTP GET responses.
+ * <p>The responses are kept in a memory tier, evicted in LRU order into a disk tier,
+ * then evicted from the disk tier in LRU order as well.
+ * <p>The disk tier's index is written on stop. On loading, only the entries whose body file is intact are kept
+ * and the unreferenced body files are deleted.
+ * <p><b>Note:</b> only the responses with a known freshness or with validators are stored.
+ * The requests with credentials or ranges, and the responses setting cookies, are never cached.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+public class HttpResponseCache implements StopListener, MetricsSource {
+
+    /**
+     * The status codes that are cacheable by default (RFC 9110, section 15.1).
+     */
+    private static final Set<Integer> HEURISTICALLY_CACHEABLE_CODES =
+            Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+
+    /**
+     * The headers not stored with a response, either hop-by-hop or rewritten by the proxy.
+     */
+    private static final Set<String> NON_STORED_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade",
+            "content-length");
+
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+
+    /**
+     * The headers a {@code 304 Not Modified} response keeps from the stored one (RFC 9110, section 15.4.5).
+     */
+    private static final Set<String> NOT_MODIFIED_HEADERS = Set.of("cache-control", "content-location", "date",
+            "etag", "expires", "vary", "age");
+
+    private static final List<String> CONDITIONAL_HEADERS = List.of(HttpHeaders.IF_NONE_MATCH,
+            HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.IF_MATCH, HttpHeaders.IF_UNMODIFIED_SINCE, HttpHeaders.IF_RANGE);
+
+    /**
+     * A memory tier entry is at most this fraction of the memory tier, larger bodies go straight to disk.
+     */
+    private static final int MEMORY_ENTRY_DIVISOR = 8;
+
+    /**
+     * The longest URI or header value stored, to keep the index compact.
+     */
+    private static final int MAX_STORED_STRING_LENGTH = 8192;
+
+    private static final String INDEX_FILE = "index.bin";
+
+    private static final String BODY_FILE_SUFFIX = ".body";
+
+    private static final int INDEX_MAGIC = 0x57464349;
+
+    private static final int INDEX_VERSION = 1;
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The stored responses, by key, one for each {@code Vary} selection.
+     */
+    private final Map<String, List<CachedResponse>> entries = new HashMap<>();
+
+    private final LinkedHashMap<Long, CachedResponse> memoryTier = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<Long, CachedResponse> diskTier = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong idGenerator = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder revalidations = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder stores = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    private long memoryBytes;
+
+    private long diskBytes;
+
+    private Path directory;
+
+    @PostConstruct
+    void init() {
+        if (!systemConfig.isResponseCacheEnabled()) {
+            return;
+        }
+        directory = StringUtils.isNotBlank(systemConfig.getResponseCacheDirectory())
+                ? Paths.get(systemConfig.getResponseCacheDirectory())
+                : proxyConfig.getTempDirectory().resolveSibling("cache");
+        if (isDiskTierEnabled()) {
+            try {
+                Files.createDirectories(directory);
+                log.info("Using response cache directory {}", directory);
+                loadIndex();
+            } catch (Exception e) {
+                log.warn("Cannot use the response cache directory " + directory + ", the disk tier is disabled", e);
+                directory = null;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return systemConfig.isResponseCacheEnabled();
+    }
+
+    private boolean isDiskTierEnabled() {
+        return directory != null && systemConfig.getResponseCacheDiskMaxSize() > 0;
+    }
+
+    /**
+     * Check whether a request may be answered from cache or its response stored.
+     *
+     * @param request the client's request.
+     * @return {@code true} iff the request is cacheable.
+     */
+    public boolean isCacheable(@NotNull HttpRequest request) {
+        return isEnabled()
+                && "GET".equalsIgnoreCase(request.getRequestLine().getMethod())
+                && !request.containsHeader(HttpHeaders.AUTHORIZATION)
+                && !request.containsHeader(HttpHeaders.RANGE)
+                && !request.containsHeader(HttpHeaders.IF_RANGE)
+                && !CacheControl.of(request).isNoStore();
+    }
+
+    /**
+     * Find the stored response matching a request, fresh or not.
+     *
+     * @param uri     the request URI.
+     * @param request the client's request.
+     * @return the stored response or {@code null} if there is none.
+     */
+    public CachedResponse lookup(@NotNull URI uri, @NotNull HttpRequest request) {
+        String key = toKey(uri);
+        lock.lock();
+        try {
+            List<CachedResponse> variants = entries.get(key);
+            if (variants != null) {
+                for (CachedResponse cachedResponse : variants) {
+                    if (cachedResponse.matches(request)) {
+                        // Touch it, for LRU
+                        if (memoryTier.get(cachedResponse.getId()) == null) {
+                            diskTier.get(cachedResponse.getId());
+                        }
+                        return cachedResponse;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether a stored response can be served without revalidation (RFC 9111, section 4.2).
+     *
+     * @param cachedResponse the stored response.
+     * @param request        the client's request.
+     * @return {@code true} iff the response is fresh for this request.
+     */
+    public boolean isFresh(@NotNull CachedResponse cachedResponse, @NotNull HttpRequest request) {
+        CacheControl requestCacheControl = CacheControl.of(request);
+        if (requestCacheControl.isNoCache() || CacheControl.of(cachedResponse.getResponse()).isNoCache()) {
+            return false;
+        }
+        long age = cachedResponse.getCurrentAge(System.currentTimeMillis());
+        if (requestCacheControl.getMaxAge() >= 0 && age > requestCacheControl.getMaxAge() * 1000) {
+            return false;
+        }
+        return age < cachedResponse.getFreshnessLifetime();
+    }
+
+    /**
+     * Evaluate the client's own validators against a stored response (RFC 9110, section 13.2.2):
+     * {@code If-None-Match} with the weak comparison, otherwise {@code If-Modified-Since}.
+     *
+     * @param cachedResponse the stored response.
+     * @param request        the client's request.
+     * @return {@code true} iff the client's copy is current, so it must get a {@code 304 Not Modified}.
+     */
+    public boolean isNotModified(@NotNull CachedResponse cachedResponse, @NotNull HttpRequest request) {
+        Header[] ifNoneMatch = request.getHeaders(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch.length > 0) {
+            String etag = cachedResponse.getFirstHeaderValue(HttpHeaders.ETAG);
+            return etag != null && Stream.of(ifNoneMatch).anyMatch(h -> matchesEntityTag(h.getValue(), etag));
+        }
+        Header ifModifiedSince = request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        Date since = ifModifiedSince != null ? DateUtils.parseDate(ifModifiedSince.getValue()) : null;
+        if (since == null) {
+            return false;
+        }
+        HttpResponse stored = cachedResponse.getResponse();
+        Date lastModified = Optional.ofNullable(CachedResponse.parseDate(stored, HttpHeaders.LAST_MODIFIED))
+                .orElseGet(() -> CachedResponse.parseDate(stored, HttpHeaders.DATE));
+        return lastModified != null && !lastModified.after(since);
+    }
+
+    /**
+     * @param condition an {@code If-None-Match} value: {@code *} or a list of entity tags.
+     * @param etag      the stored response's entity tag.
+     * @return {@code true} iff the condition holds one entity tag weakly matching the stored one.
+     */
+    static boolean matchesEntityTag(String condition, String etag) {
+        String opaqueTag = toOpaqueTag(etag);
+        int i = 0;
+        while (i < condition.length()) {
+            char c = condition.charAt(i);
+            if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '*') {
+                return true;
+            } else {
+                int start = condition.startsWith("W/", i) ? i + 2 : i;
+                if (start >= condition.length()) {
+                    return false;
+                }
+                int end = condition.charAt(start) == '"' && start + 1 < condition.length()
+                        ? condition.indexOf('"', start + 1) + 1 : condition.indexOf(',', start);
+                if (end <= 0) {
+                    end = condition.length();
+                }
+                if (condition.substring(start, end).equals(opaqueTag)) {
+                    return true;
+                }
+                i = end;
+            }
+        }
+        return false;
+    }
+
+    private static String toOpaqueTag(String etag) {
+        String tag = etag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Create the {@code 304 Not Modified} response to a client holding the stored response.
+     *
+     * @param cachedResponse the stored response.
+     * @return a new {@link HttpResponse} instance.
+     */
+    public HttpResponse toNotModifiedResponse(@NotNull CachedResponse cachedResponse) {
+        HttpResponse stored = cachedResponse.toHttpResponse(System.currentTimeMillis());
+        HttpResponse notModified = new BasicHttpResponse(new BasicStatusLine(
+                stored.getStatusLine().getProtocolVersion(), HttpStatus.SC_NOT_MODIFIED, "Not Modified"));
+        for (Header header : stored.getAllHeaders()) {
+            if (NOT_MODIFIED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                notModified.addHeader(header);
+            }
+        }
+        return notModified;
+    }
+
+    /**
+     * Make a request conditional on the validators of a stored response, unless the client did it already.
+     *
+     * @param request        the client's request.
+     * @param cachedResponse the stored response.
+     * @return {@code true} iff the validators have been added.
+     */
+    public boolean addValidators(@NotNull HttpRequest request, @NotNull CachedResponse cachedResponse) {
+        if (CONDITIONAL_HEADERS.stream().anyMatch(request::containsHeader)) {
+            return false;
+        }
+        String etag = cachedResponse.getFirstHeaderValue(HttpHeaders.ETAG);
+        String lastModified = cachedResponse.getFirstHeaderValue(HttpHeaders.LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            return false;
+        }
+        if (etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the validators added by {@link #addValidators(HttpRequest, CachedResponse)}.
+     *
+     * @param request the client's request.
+     */
+    public void removeValidators(@NotNull HttpRequest request) {
+        request.removeHeaders(HttpHeaders.IF_NONE_MATCH);
+        request.removeHeaders(HttpHeaders.IF_MODIFIED_SINCE);
+    }
+
+    /**
+     * Update a stored response with the headers of a {@code 304 Not Modified} response (RFC 9111, section 4.3.4).
+     *
+     * @param cachedResponse the stored response.
+     * @param notModified    the {@code 304} response.
+     * @param requestTime    when the conditional request was sent.
+     * @param responseTime   when the {@code 304} response was received.
+     */
+    public void revalidated(@NotNull CachedResponse cachedResponse, @NotNull HttpResponse notModified,
+                            long requestTime, long responseTime) {
+        HttpResponse stored = cachedResponse.getResponse();
+        HttpResponse updated = new BasicHttpResponse(stored.getStatusLine());
+        for (Header header : stored.getAllHeaders()) {
+            if (!notModified.containsHeader(header.getName()) || isNotStored(header.getName())) {
+                updated.addHeader(header);
+            }
+        }
+        for (Header header : notModified.getAllHeaders()) {
+            if (!isNotStored(header.getName())) {
+                updated.addHeader(header);
+            }
+        }
+        cachedResponse.setHead(updated, requestTime, responseTime);
+        revalidations.increment();
+        if (CacheControl.of(updated).isNoStore()) {
+            remove(cachedResponse);
+        }
+    }
+
+    public void recordHit(@NotNull CachedResponse cachedResponse) {
+        hits.increment();
+        bytesSaved.add(cachedResponse.getBodyLength());
+    }
+
+    /**
+     * Record a hit answered with {@code 304 Not Modified}, the client already holding the body.
+     */
+    public void recordNotModifiedHit() {
+        hits.increment();
+    }
+
+    public void recordRevalidatedHit(@NotNull CachedResponse cachedResponse) {
+        bytesSaved.add(cachedResponse.getBodyLength());
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Open the body of a stored response.
+     *
+     * @param cachedResponse the stored response.
+     * @return the body's {@link InputStream} or {@code null} if it is no longer available.
+     */
+    public InputStream openBody(@NotNull CachedResponse cachedResponse) {
+        try {
+            InputStream inputStream = cachedResponse.openBody();
+            if (inputStream != null) {
+                return inputStream;
+            }
+        } catch (IOException e) {
+            log.debug("Cannot open the cached body of " + cachedResponse, e);
+        }
+        remove(cachedResponse);
+        return null;
+    }
+
+    /**
+     * Start capturing a response to be stored, if it is storable (RFC 9111, section 3).
+     *
+     * @param uri          the request URI.
+     * @param request      the client's request.
+     * @param response     the response.
+     * @param requestTime  when the request was sent.
+     * @param responseTime when the response was received.
+     * @return the {@link ResponseCapture} to write the response body into or {@code null} when not storable.
+     */
+    public ResponseCapture capture(@NotNull URI uri, @NotNull HttpRequest request, @NotNull HttpResponse response,
+                                   long requestTime, long responseTime) {
+        if (!isStorable(uri, response)) {
+            return null;
+        }
+        HttpResponse stored = new BasicHttpResponse(response.getStatusLine());
+        for (Header header : response.getAllHeaders()) {
+            if (!isNotStored(header.getName())) {
+                stored.addHeader(header);
+            }
+        }
+        Map<String, String> varyValues = selectVaryValues(request, response);
+        if (varyValues.values().stream().anyMatch(v -> v.length() > MAX_STORED_STRING_LENGTH)) {
+            return null;
+        }
+        long memoryLimit = isDiskTierEnabled() ? getMemoryMaxBytes() / MEMORY_ENTRY_DIVISOR : getMemoryMaxBytes();
+        return new ResponseCapture(this, idGenerator.incrementAndGet(), toKey(uri), varyValues,
+                stored, requestTime, responseTime, memoryLimit,
+                systemConfig.getResponseCacheMaxEntrySize() * MEGABYTE);
+    }
+
+    private boolean isStorable(URI uri, HttpResponse response) {
+        return isStorable(response)
+                && uri.toString().length() <= MAX_STORED_STRING_LENGTH
+                && Stream.of(response.getAllHeaders()).allMatch(h -> StringUtils.length(h.getValue()) <= MAX_STORED_STRING_LENGTH);
+    }
+
+    /**
+     * Check whether a shared cache could store a response (RFC 9111, section 3): a cacheable status code,
+     * an explicit freshness or validators, no cookies and no {@code Vary: *}.
+     *
+     * @param response the response.
+     * @return {@code true} iff the response is storable, whatever its size.
+     */
+    static boolean isStorable(HttpResponse response) {
+        CacheControl cacheControl = CacheControl.of(response);
+        if (cacheControl.isNoStore() || cacheControl.isPrivateResponse()) {
+            return false;
+        }
+        int statusCode = response.getStatusLine().getStatusCode();
+        boolean explicitFreshness = cacheControl.getSharedMaxAge() >= 0 || cacheControl.getMaxAge() >= 0
+                || response.containsHeader(HttpHeaders.EXPIRES);
+        if (!HEURISTICALLY_CACHEABLE_CODES.contains(statusCode)
+                && !(explicitFreshness && (statusCode == HttpStatus.SC_MOVED_TEMPORARILY
+                || statusCode == HttpStatus.SC_TEMPORARY_REDIRECT))) {
+            return false;
+        }
+        if (!explicitFreshness && !response.containsHeader(HttpHeaders.LAST_MODIFIED)
+                && !response.containsHeader(HttpHeaders.ETAG)) {
+            return false;
+        }
+        return !response.containsHeader("Set-Cookie") && !getVaryNames(response).contains("*");
+    }
+
+    /**
+     * Remove the stored responses of a URI after a successful unsafe request (RFC 9111, section 4.4).
+     *
+     * @param uri      the request URI.
+     * @param request  the client's request.
+     * @param response the response.
+     */
+    public void invalidate(@NotNull URI uri, @NotNull HttpRequest request, @NotNull HttpResponse response) {
+        if (!isEnabled() || SAFE_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT))
+                || response.getStatusLine().getStatusCode() >= HttpStatus.SC_BAD_REQUEST) {
+            return;
+        }
+        List<CachedResponse> removed;
+        lock.lock();
+        try {
+            List<CachedResponse> variants = entries.get(toKey(uri));
+            removed = variants != null ? new ArrayList<>(variants) : Collections.emptyList();
+            removed.forEach(this::detach);
+        } finally {
+            lock.unlock();
+        }
+        removed.forEach(CachedResponse::remove);
+    }
+
+    void store(@NotNull CachedResponse cachedResponse) throws IOException {
+        if (!cachedResponse.isInMemory()) {
+            Path bodyFile = getBodyFile(cachedResponse.getId());
+            Files.move(cachedResponse.getBodyFile(), bodyFile, StandardCopyOption.REPLACE_EXISTING);
+            cachedResponse.movedToDisk(bodyFile);
+        }
+        List<CachedResponse> removed = new ArrayList<>();
+        List<CachedResponse> demoted = new ArrayList<>();
+        lock.lock();
+        try {
+            List<CachedResponse> variants = entries.computeIfAbsent(cachedResponse.getKey(), k -> new ArrayList<>(1));
+            for (Iterator<CachedResponse> itr = variants.iterator(); itr.hasNext(); ) {
+                CachedResponse variant = itr.next();
+                if (variant.getVaryValues().equals(cachedResponse.getVaryValues())) {
+                    itr.remove();
+                    detachFromTiers(variant);
+                    removed.add(variant);
+                }
+            }
+            variants.add(cachedResponse);
+            if (cachedResponse.isInMemory()) {
+                memoryTier.put(cachedResponse.getId(), cachedResponse);
+                memoryBytes += cachedResponse.getBodyLength();
+            } else {
+                diskTier.put(cachedResponse.getId(), cachedResponse);
+                diskBytes += cachedResponse.getBodyLength();
+            }
+            stores.increment();
+            evict(demoted, removed);
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Stored {}", cachedResponse);
+        removed.forEach(CachedResponse::remove);
+        demote(demoted);
+    }
+
+    /**
+     * Select the memory tier entries to be moved into the disk tier
+     * and the disk tier entries to be removed, in LRU order.
+     * <p>Must be called under the lock.
+     */
+    private void evict(List<CachedResponse> demoted, List<CachedResponse> removed) {
+        long memoryMaxBytes = getMemoryMaxBytes();
+        for (Iterator<CachedResponse> itr = memoryTier.values().iterator();
+             memoryBytes > memoryMaxBytes && itr.hasNext(); ) {
+            CachedResponse victim = itr.next();
+            itr.remove();
+            memoryBytes -= victim.getBodyLength();
+            if (isDiskTierEnabled()) {
+                demoted.add(victim);
+            } else {
+                detach(victim);
+                removed.add(victim);
+                evictions.increment();
+            }
+        }
+        long diskMaxBytes = systemConfig.getResponseCacheDiskMaxSize() * MEGABYTE;
+        for (Iterator<CachedResponse> itr = diskTier.values().iterator();
+             diskBytes > diskMaxBytes && itr.hasNext(); ) {
+            CachedResponse victim = itr.next();
+            itr.remove();
+            diskBytes -= victim.getBodyLength();
+            detach(victim);
+            removed.add(victim);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Write the bodies of some memory tier entries into files, then move them into the disk tier.
+     */
+    private void demote(List<CachedResponse> demoted) {
+        while (!demoted.isEmpty()) {
+            List<CachedResponse> written = new ArrayList<>();
+            for (CachedResponse cachedResponse : demoted) {
+                byte[] body = cachedResponse.getBody();
+                if (body == null) {
+                    continue;// Removed in the meantime
+                }
+                Path bodyFile = getBodyFile(cachedResponse.getId());
+                try {
+                    Files.write(bodyFile, body);
+                    cachedResponse.movedToDisk(bodyFile);
+                    written.add(cachedResponse);
+                } catch (IOException e) {
+                    log.debug("Cannot write the cached body file " + bodyFile, e);
+                    remove(cachedResponse);
+                }
+            }
+            List<CachedResponse> removed = new ArrayList<>();
+            demoted = new ArrayList<>();
+            lock.lock();
+            try {
+                for (CachedResponse cachedResponse : written) {
+                    if (cachedResponse.isRemoved()) {
+                        removed.add(cachedResponse);// To delete its file
+                    } else {
+                        diskTier.put(cachedResponse.getId(), cachedResponse);
+                        diskBytes += cachedResponse.getBodyLength();
+                    }
+                }
+                evict(demoted, removed);
+            } finally {
+                lock.unlock();
+            }
+            removed.forEach(CachedResponse::remove);
+        }
+    }
+
+    private void remove(CachedResponse cachedResponse) {
+        lock.lock();
+        try {
+            detach(cachedResponse);
+        } finally {
+            lock.unlock();
+        }
+        cachedResponse.remove();
+    }
+
+    /**
+     * Must be called under the lock.
+     */
+    private void detach(CachedResponse cachedResponse) {
+        List<CachedResponse> variants = entries.get(cachedResponse.getKey());
+        if (variants != null && variants.remove(cachedResponse) && variants.isEmpty()) {
+            entries.remove(cachedResponse.getKey());
+        }
+        detachFromTiers(cachedResponse);
+    }
+
+    /**
+     * Must be called under the lock.
+     */
+    private void detachFromTiers(CachedResponse cachedResponse) {
+        if (memoryTier.remove(cachedResponse.getId()) != null) {
+            memoryBytes -= cachedResponse.getBodyLength();
+        }
+        if (diskTier.remove(cachedResponse.getId()) != null) {
+            diskBytes -= cachedResponse.getBodyLength();
+        }
+    }
+
+    Path getTempBodyFile(long id) {
+        return isDiskTierEnabled() ? directory.resolve(id + BODY_FILE_SUFFIX + ".tmp") : null;
+    }
+
+    private Path getBodyFile(long id) {
+        return directory.resolve(id + BODY_FILE_SUFFIX);
+    }
+
+    private long getMemoryMaxBytes() {
+        return systemConfig.getResponseCacheMemoryMaxSize() * MEGABYTE;
+    }
+
+    /**
+     * Load the disk tier's index, then delete the body files not referenced by it.
+     */
+    private void loadIndex() throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (Files.exists(indexFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                    throw new IOException("Unknown index format");
+                }
+                long maxId = 0;
+                for (int count = in.readInt(); count > 0; count--) {
+                    CachedResponse cachedResponse = readEntry(in);
+                    maxId = Math.max(maxId, cachedResponse.getId());
+                    Path bodyFile = cachedResponse.getBodyFile();
+                    if (Files.isRegularFile(bodyFile) && Files.size(bodyFile) == cachedResponse.getBodyLength()) {
+                        entries.computeIfAbsent(cachedResponse.getKey(), k -> new ArrayList<>(1)).add(cachedResponse);
+                        diskTier.put(cachedResponse.getId(), cachedResponse);
+                        diskBytes += cachedResponse.getBodyLength();
+                    }
+                }
+                idGenerator.set(maxId);
+            } catch (IOException e) {
+                log.warn("Cannot read the response cache index, the disk tier is emptied", e);
+                entries.clear();
+                diskTier.clear();
+                diskBytes = 0;
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + BODY_FILE_SUFFIX + "*")) {
+            Set<Path> referenced = diskTier.values().stream().map(CachedResponse::getBodyFile).collect(Collectors.toSet());
+            for (Path file : files) {
+                if (!referenced.contains(file)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        List<CachedResponse> removed = new ArrayList<>();
+        evict(new ArrayList<>(), removed);
+        removed.forEach(CachedResponse::remove);
+        log.info("Response cache disk tier loaded: {} entries, {} bytes", diskTier.size(), diskBytes);
+    }
+
+    /**
+     * Move the memory tier into the disk tier, then write the index, in LRU order.
+     */
+    private void writeIndex() throws IOException {
+        List<CachedResponse> inMemory;
+        lock.lock();
+        try {
+            inMemory = new ArrayList<>(memoryTier.values());
+            memoryTier.clear();
+            memoryBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+        demote(inMemory);
+        lock.lock();
+        try {
+            Path tempIndexFile = directory.resolve(INDEX_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempIndexFile)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(diskTier.size());
+                for (CachedResponse cachedResponse : diskTier.values()) {
+                    writeEntry(out, cachedResponse);
+                }
+            }
+            Files.move(tempIndexFile, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Response cache index written: {} entries, {} bytes", diskTier.size(), diskBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, CachedResponse cachedResponse) throws IOException {
+        HttpResponse response = cachedResponse.getResponse();
+        out.writeLong(cachedResponse.getId());
+        out.writeUTF(cachedResponse.getKey());
+        out.writeShort(cachedResponse.getVaryValues().size());
+        for (Map.Entry<String, String> entry : cachedResponse.getVaryValues().entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        ProtocolVersion protocolVersion = response.getStatusLine().getProtocolVersion();
+        out.writeUTF(protocolVersion.getProtocol());
+        out.writeByte(protocolVersion.getMajor());
+        out.writeByte(protocolVersion.getMinor());
+        out.writeShort(response.getStatusLine().getStatusCode());
+        out.writeUTF(StringUtils.defaultString(response.getStatusLine().getReasonPhrase()));
+        Header[] headers = response.getAllHeaders();
+        out.writeShort(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.getName());
+            out.writeUTF(StringUtils.defaultString(header.getValue()));
+        }
+        out.writeLong(cachedResponse.getRequestTime());
+        out.writeLong(cachedResponse.getResponseTime());
+        out.writeLong(cachedResponse.getBodyLength());
+    }
+
+    private CachedResponse readEntry(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        String key = in.readUTF();
+        Map<String, String> varyValues = new TreeMap<>();
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            varyValues.put(in.readUTF(), in.readUTF());
+        }
+        ProtocolVersion protocolVersion = new ProtocolVersion(in.readUTF(), in.readByte(), in.readByte());
+        HttpResponse response = new BasicHttpResponse(
+                new BasicStatusLine(protocolVersion, in.readUnsignedShort(), in.readUTF()));
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            response.addHeader(in.readUTF(), in.readUTF());
+        }
+        long requestTime = in.readLong();
+        long responseTime = in.readLong();
+        long bodyLength = in.readLong();
+        return new CachedResponse(id, key, varyValues, response, requestTime, responseTime,
+                null, getBodyFile(id), bodyLength);
+    }
+
+    private static boolean isNotStored(String headerName) {
+        return NON_STORED_HEADERS.contains(headerName.toLowerCase(Locale.ROOT));
+    }
+
+    static String toKey(URI uri) {
+        return uri.getFragment() != null ? StringUtils.substringBefore(uri.toString(), "#") : uri.toString();
+    }
+
+    static List<String> getVaryNames(HttpResponse response) {
+        return Stream.of(response.getHeaders(HttpHeaders.VARY)).
+                flatMap(h -> Arrays.stream(h.getValue().split(","))).
+                map(s -> s.trim().toLowerCase(Locale.ROOT)).
+                filter(StringUtils::isNotEmpty).
+                collect(Collectors.toList());
+    }
+
+    private static Map<String, String> selectVaryValues(HttpRequest request, HttpResponse response) {
+        Map<String, String> varyValues = new TreeMap<>();
+        for (String name : getVaryNames(response)) {
+            varyValues.put(name, selectHeaderValue(request, name));
+        }
+        return varyValues;
+    }
+
+    /**
+     * Normalize the values of a request header nominated by {@code Vary} (RFC 9111, section 4.1).
+     */
+    static String selectHeaderValue(HttpRequest request, String name) {
+        return Stream.of(request.getHeaders(name)).
+                flatMap(h -> Arrays.stream(h.getValue().split(","))).
+                map(String::trim).
+                collect(Collectors.joining(","));
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "responseCache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", isEnabled());
+        long hitCount = hits.sum();
+        long revalidationCount = revalidations.sum();
+        long missCount = misses.sum();
+        long total = hitCount + revalidationCount + missCount;
+        metrics.put("hits", hitCount);
+        metrics.put("revalidations", revalidationCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRatio", total > 0 ? (double) (hitCount + revalidationCount) / total : 0);
+        metrics.put("bytesSaved", bytesSaved.sum());
+        metrics.put("stores", stores.sum());
+        metrics.put("evictions", evictions.sum());
+        lock.lock();
+        try {
+            metrics.put("entries", memoryTier.size() + diskTier.size());
+            metrics.put("memoryBytes", memoryBytes);
+            metrics.put("diskBytes", diskBytes);
+        } finally {
+            lock.unlock();
+        }
+        return metrics;
+    }
+
+    @Override
+    public void onStop() {
+        if (isDiskTierEnabled()) {
+            try {
+                writeIndex();
+            } catch (Exception e) {
+                log.warn("Cannot write the response cache index", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpResponse;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A participant to an upstream request shared by identical concurrent client requests.
+ * <p>The leader executes the request, publishes the response head then writes the body,
+ * which is fanned out to the followers as it streams in.
+ * A follower that cannot use the leader's response (it was not shareable, it varies or it failed
+ * before the head was published) must execute the request on its own.
+ */
+@Slf4j
+@NotThreadSafe
+public final class InFlightResponse implements Closeable {
+
+    private final Flight flight;
+
+    private final boolean leader;
+
+    private InputStream body;
+
+    private boolean closed;
+
+    InFlightResponse(Flight flight, boolean leader) {
+        this.flight = flight;
+        this.leader = leader;
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * Called by the leader when the response is received.
+     *
+     * @param response the upstream response.
+     * @return {@code true} iff the response is shared with the followers.
+     */
+    public boolean publish(@NotNull HttpResponse response) {
+        return flight.publish(response);
+    }
+
+    /**
+     * Called by the leader to write the response body both into the client's stream and to the followers.
+     * <p>The failure of the client's stream does not stop the transfer as long as there are followers.
+     * <p>The body stops being buffered when it outgrows the memory while there is no follower.
+     *
+     * @param clientOutputStream the leader client's {@link OutputStream}.
+     * @return the {@link OutputStream} to write the response body into.
+     */
+    public OutputStream wrap(@NotNull OutputStream clientOutputStream) {
+        FanOutBuffer buffer = flight.buffer;
+        if (buffer == null) {
+            return clientOutputStream;
+        }
+        return new OutputStream() {
+            private boolean clientFailed;
+
+            private boolean shared = true;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (shared && !buffer.fitsInMemory(len)) {
+                    shared = flight.keepSharing();
+                }
+                if (shared) {
+                    buffer.write(b, off, len);
+                }
+                if (!clientFailed) {
+                    try {
+                        clientOutputStream.write(b, off, len);
+                    } catch (IOException e) {
+                        clientFailed = true;
+                        if (!flight.hasFollowers()) {
+                            throw e;
+                        }
+                        log.debug("The leader's client failed, continue for the followers: {}", e.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!clientFailed) {
+                    clientOutputStream.flush();
+                }
+            }
+        };
+    }
+
+    /**
+     * Called by the leader when the response body is fully written.
+     */
+    public void complete() {
+        flight.complete();
+    }
+
+    /**
+     * Called by a follower to wait for the leader's response head.
+     *
+     * @param request the follower's request.
+     * @return a copy of the response head or {@code null} if the follower must execute the request on its own.
+     */
+    public HttpResponse awaitResponse(@NotNull HttpRequest request) {
+        HttpResponse response = flight.awaitResponse(request);
+        if (response != null) {
+            body = flight.buffer.newReader();
+        }
+        return response;
+    }
+
+    /**
+     * @return the response body, available after {@link #awaitResponse(HttpRequest)} returns a response.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Leave the shared request. A leader that did not complete fails the followers.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            flight.leave(leader);
+        }
+    }
+
+    /**
+     * The state shared by the participants.
+     */
+    @ThreadSafe
+    static final class Flight {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition changed = lock.newCondition();
+
+        private final RequestCoalescer requestCoalescer;
+
+        private final String key;
+
+        private final HttpRequest leaderRequest;
+
+        private volatile FanOutBuffer buffer;
+
+        private HttpResponse response;
+
+        private State state = State.PENDING;
+
+        private int participants = 1;
+
+        Flight(RequestCoalescer requestCoalescer, String key, HttpRequest leaderRequest) {
+            this.requestCoalescer = requestCoalescer;
+            this.key = key;
+            this.leaderRequest = leaderRequest;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * @return {@code true} iff joined, that is the leader has not finished yet.
+         */
+        boolean join() {
+            lock.lock();
+            try {
+                if (state == State.PENDING || state == State.STREAMING) {
+                    participants++;
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called by the leader when the body outgrows the buffer's memory.
+         *
+         * @return {@code true} iff there are followers, otherwise the request stops being shared.
+         */
+        private boolean keepSharing() {
+            lock.lock();
+            try {
+                if (participants > 1) {
+                    return true;
+                }
+                state = State.ABANDONED;
+            } finally {
+                lock.unlock();
+            }
+            log.debug("No follower, stop sharing the response of {}", key);
+            requestCoalescer.remove(this);
+            return false;
+        }
+
+        boolean hasFollowers() {
+            lock.lock();
+            try {
+                return participants > 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean publish(HttpResponse response) {
+            boolean shareable = requestCoalescer.isShareable(response);
+            lock.lock();
+            try {
+                if (shareable) {
+                    this.response = copyOf(response);
+                    this.buffer = requestCoalescer.createBuffer();
+                    state = State.STREAMING;
+                } else {
+                    state = State.ABANDONED;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!shareable) {
+                requestCoalescer.remove(this);
+            }
+            return shareable;
+        }
+
+        private void complete() {
+            lock.lock();
+            try {
+                if (state == State.STREAMING) {
+                    state = State.DONE;
+                    buffer.complete();
+                }
+            } finally {
+                lock.unlock();
+            }
+            requestCoalescer.remove(this);
+        }
+
+        private HttpResponse awaitResponse(HttpRequest request) {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(requestCoalescer.getResponseTimeoutMillis());
+                while (state == State.PENDING) {
+                    if (nanos <= 0) {
+                        log.debug("Timeout on waiting for the leader's response of {}", key);
+                        return null;
+                    }
+                    nanos = changed.awaitNanos(nanos);
+                }
+                if ((state == State.STREAMING || state == State.DONE)
+                        && requestCoalescer.matchesVary(response, leaderRequest, request)) {
+                    return copyOf(response);
+                }
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void leave(boolean leader) {
+            FanOutBuffer released = null;
+            lock.lock();
+            try {
+                if (leader) {
+                    if (state == State.PENDING) {
+                        state = State.ABANDONED;
+                    } else if (state == State.STREAMING) {
+                        state = State.FAILED;
+                        buffer.fail(new IOException("The leader request failed"));
+                    }
+                    changed.signalAll();
+                }
+                if (--participants == 0) {
+                    released = buffer;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (leader) {
+                requestCoalescer.remove(this);
+            }
+            if (released != null) {
+                released.close();
+            }
+        }
+
+        private static HttpResponse copyOf(HttpResponse response) {
+            HttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+            copy.setHeaders(response.getAllHeaders());
+            return copy;
+        }
+
+        private enum State {
+            PENDING, STREAMING, DONE, ABANDONED, FAILED
+        }
+    }
+
+}
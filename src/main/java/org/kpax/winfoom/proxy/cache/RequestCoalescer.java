@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * It collapses the identical concurrent GET requests into a single upstream request.
+ * <p>The first request becomes the leader and goes upstream, the identical ones arriving
+ * while it is still in flight follow it and receive the response body as it streams in.
+ * <p>Only the responses a shared cache could store are shared, and only with the followers
+ * whose {@code Vary} nominated request headers match the leader's ones.
+ * <p>Without followers, the body is buffered only up to {@code internalBuffer.length} bytes:
+ * beyond that, the request stops being shared.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+public class RequestCoalescer implements MetricsSource {
+
+    private static final List<String> NON_COALESCED_HEADERS = List.of(HttpHeaders.AUTHORIZATION, "Cookie",
+            HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE,
+            HttpHeaders.IF_MATCH, HttpHeaders.IF_UNMODIFIED_SINCE);
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyConfig proxyConfig;
+
+    private final Map<String, InFlightResponse.Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = new LongAdder();
+
+    private final LongAdder followers = new LongAdder();
+
+    private final LongAdder fallbacks = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public boolean isEnabled() {
+        return systemConfig.isRequestCoalescingEnabled();
+    }
+
+    /**
+     * Join the in-flight identical request or start a new one.
+     *
+     * @param uri     the request URI.
+     * @param request the client's request.
+     * @return the {@link InFlightResponse} participant or {@code null} if the request cannot be coalesced.
+     */
+    public InFlightResponse join(@NotNull URI uri, @NotNull HttpRequest request) {
+        if (!isEnabled() || !"GET".equalsIgnoreCase(request.getRequestLine().getMethod())
+                || NON_COALESCED_HEADERS.stream().anyMatch(request::containsHeader)
+                || CacheControl.of(request).isNoStore()) {
+            return null;
+        }
+        String key = HttpResponseCache.toKey(uri);
+        while (true) {
+            InFlightResponse.Flight flight = new InFlightResponse.Flight(this, key, request);
+            InFlightResponse.Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                leaders.increment();
+                return new InFlightResponse(flight, true);
+            }
+            if (existing.join()) {
+                log.debug("Follow the in-flight request of {}", key);
+                return new InFlightResponse(existing, false);
+            }
+            // Finished in the meantime
+            flights.remove(key, existing);
+        }
+    }
+
+    /**
+     * A response is shared only if a shared cache could store it (RFC 9111, section 3).
+     */
+    boolean isShareable(HttpResponse response) {
+        return HttpResponseCache.isStorable(response);
+    }
+
+    boolean matchesVary(HttpResponse response, HttpRequest leaderRequest, HttpRequest request) {
+        return HttpResponseCache.getVaryNames(response).stream().allMatch(name ->
+                HttpResponseCache.selectHeaderValue(leaderRequest, name).equals(
+                        HttpResponseCache.selectHeaderValue(request, name)));
+    }
+
+    FanOutBuffer createBuffer() {
+        return new FanOutBuffer(proxyConfig.getTempDirectory(), systemConfig.getInternalBufferLength(),
+                getResponseTimeoutMillis());
+    }
+
+    long getResponseTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(systemConfig.getSocketSoTimeout());
+    }
+
+    void remove(InFlightResponse.Flight flight) {
+        flights.remove(flight.getKey(), flight);
+    }
+
+    /**
+     * @param bytes the response body bytes received by a follower.
+     */
+    public void recordFollowed(long bytes) {
+        followers.increment();
+        bytesSaved.add(bytes);
+    }
+
+    /**
+     * Record a follower that had to execute the request on its own.
+     */
+    public void recordFallback() {
+        fallbacks.increment();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "requestCoalescing";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", isEnabled());
+        metrics.put("inFlight", flights.size());
+        metrics.put("leaders", leaders.sum());
+        metrics.put("followers", followers.sum());
+        metrics.put("fallbacks", fallbacks.sum());
+        metrics.put("bytesSaved", bytesSaved.sum());
+        return metrics;
+    }
+
+}
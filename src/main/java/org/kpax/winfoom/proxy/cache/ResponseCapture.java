@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpResponse;
+import org.kpax.winfoom.annotation.NotThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * It captures a response body while it is written to the client, then stores it into the {@link HttpResponseCache}.
+ * <p>The body is kept in memory up to the memory tier's entry limit, then spilled into a disk tier file.
+ * A body exceeding {@code responseCache.maxEntrySize} is not captured at all.
+ * <p>Closing it without calling {@link #commit()} discards the captured body.
+ */
+@Slf4j
+@NotThreadSafe
+public final class ResponseCapture extends OutputStream {
+
+    private final HttpResponseCache responseCache;
+
+    private final long id;
+
+    private final String key;
+
+    private final Map<String, String> varyValues;
+
+    private final HttpResponse response;
+
+    private final long requestTime;
+
+    private final long responseTime;
+
+    private final long memoryLimit;
+
+    private final long maxLength;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private Path file;
+
+    private OutputStream fileOutputStream;
+
+    private long length;
+
+    private boolean overflow;
+
+    private boolean committed;
+
+    ResponseCapture(HttpResponseCache responseCache, long id, String key, Map<String, String> varyValues,
+                    HttpResponse response, long requestTime, long responseTime, long memoryLimit, long maxLength) {
+        this.responseCache = responseCache;
+        this.id = id;
+        this.key = key;
+        this.varyValues = varyValues;
+        this.response = response;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.memoryLimit = memoryLimit;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (overflow) {
+            return;
+        }
+        if (length + len > maxLength) {
+            log.debug("Response body too large to be cached: {}", key);
+            discard();
+            return;
+        }
+        try {
+            if (buffer != null && length + len > memoryLimit) {
+                spill();
+            }
+            if (buffer != null) {
+                buffer.write(b, off, len);
+            } else {
+                fileOutputStream.write(b, off, len);
+            }
+            length += len;
+        } catch (IOException e) {
+            // A cache failure must not fail the client's response
+            log.debug("Error on capturing the response body of " + key, e);
+            discard();
+        }
+    }
+
+    private void spill() throws IOException {
+        file = responseCache.getTempBodyFile(id);
+        if (file == null) {
+            throw new IOException("The disk tier is disabled");
+        }
+        fileOutputStream = Files.newOutputStream(file);
+        buffer.writeTo(fileOutputStream);
+        buffer = null;
+    }
+
+    /**
+     * Store the captured body, if complete.
+     *
+     * @param expectedLength the length declared by the response, negative if unknown.
+     */
+    public void commit(long expectedLength) {
+        if (overflow || committed) {
+            return;
+        }
+        if (expectedLength >= 0 && expectedLength != length) {
+            log.debug("Incomplete response body not cached: {}", key);
+            discard();
+            return;
+        }
+        committed = true;
+        try {
+            if (fileOutputStream != null) {
+                fileOutputStream.close();
+            }
+            responseCache.store(new CachedResponse(id, key, varyValues, response, requestTime, responseTime,
+                    buffer != null ? buffer.toByteArray() : null, file, length));
+            buffer = null;
+        } catch (Exception e) {
+            log.debug("Error on storing the response of " + key, e);
+            committed = false;
+            discard();
+        }
+    }
+
+    private void discard() {
+        overflow = true;
+        buffer = null;
+        if (fileOutputStream != null) {
+            try {
+                fileOutputStream.close();
+            } catch (IOException e) {
+                log.debug("Error on closing captured body file", e);
+            }
+            fileOutputStream = null;
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.debug("Cannot delete captured body file " + file, e);
+            }
+            file = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!committed) {
+            discard();
+        }
+    }
+
+}
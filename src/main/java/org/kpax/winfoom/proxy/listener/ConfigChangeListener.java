@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+package org.kpax.winfoom.proxy.listener;
+
+import java.util.Set;
+
+/**
+ * For every Spring singleton bean implementing this interface the method {@link #onConfigChange(Set)} is called
+ * when the configuration is changed while the local proxy server is running.
+ * <p>The change should only affect the new connections, the ongoing ones being left to complete.
+ *
+ * @see org.kpax.winfoom.proxy.ProxyController#reconfigure(Set)
+ */
+@FunctionalInterface
+public interface ConfigChangeListener {
+
+    /**
+     * @param properties the names of the changed properties.
+     * @throws Exception
+     */
+    void onConfigChange(Set<String> properties) throws Exception;
+
+}
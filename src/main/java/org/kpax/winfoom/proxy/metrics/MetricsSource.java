@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.metrics;
+
+import java.util.Map;
+
+/**
+ * A component exposing runtime metrics through the API.
+ * <p>The Spring beans implementing it are collected by the {@code /metrics} API command.
+ */
+public interface MetricsSource {
+
+    /**
+     * @return the name under which the metrics are published.
+     */
+    String getMetricsName();
+
+    /**
+     * @return a JSON serializable snapshot of the current metrics.
+     */
+    Map<String, Object> getMetrics();
+
+}
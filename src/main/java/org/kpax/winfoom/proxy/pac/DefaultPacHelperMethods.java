@@ -43,22 +43,28 @@
  */
 package org.kpax.winfoom.proxy.pac;
 
-import inet.ipaddr.IPAddressString;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.cache2k.operation.CacheControl;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ConfigChangeListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
+import org.kpax.winfoom.proxy.pac.datetime.PacDateTimeRange;
 import org.kpax.winfoom.proxy.pac.datetime.PacDateTimeUtils;
-import org.kpax.winfoom.proxy.pac.net.IpAddressMatcher;
 import org.kpax.winfoom.proxy.pac.net.IpAddresses;
+import org.kpax.winfoom.proxy.pac.net.IpNetwork;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.stereotype.Component;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -70,7 +76,8 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 @Slf4j
 @Component
-public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHelperMethodsMicrosoft {
+public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHelperMethodsMicrosoft,
+        ConfigChangeListener, StopListener {
 
     private static final Predicate<InetAddress> isIPv4Predicate = a -> a.getClass() == Inet4Address.class;
 
@@ -78,6 +85,76 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     private final GlobPatternMatcher globPatternMatcher;
 
+    /**
+     * The {@code isInNet} networks, by pattern and mask.
+     */
+    private final SingletonSupplier<Cache<String, IpNetwork>> ipNetworkCacheSupplier =
+            new SingletonSupplier<>(() -> buildIpNetworkCache("precompiledIpNetwork"));
+
+    /**
+     * The {@code isInNetEx} networks, by prefix.
+     */
+    private final SingletonSupplier<Cache<String, IpNetwork>> ipPrefixCacheSupplier =
+            new SingletonSupplier<>(() -> buildIpNetworkCache("precompiledIpPrefix"));
+
+    /**
+     * The compiled {@code weekdayRange}, {@code dateRange} and {@code timeRange} calls, by arguments.
+     */
+    private final SingletonSupplier<Cache<DateTimeRangeKey, PacDateTimeRange>> dateTimeRangeCacheSupplier =
+            new SingletonSupplier<>(this::buildDateTimeRangeCache);
+
+    /**
+     * Remove all the cached networks and date-time ranges.
+     */
+    public void clearCaches() {
+        ipNetworkCacheSupplier.value().ifPresent(Cache::clear);
+        ipPrefixCacheSupplier.value().ifPresent(Cache::clear);
+        dateTimeRangeCacheSupplier.value().ifPresent(Cache::clear);
+    }
+
+    /**
+     * Resize the caches, the exceeding entries being evicted.
+     */
+    @Override
+    public void onConfigChange(Set<String> properties) {
+        if (properties.contains("cacheIpNetworkCapacity")) {
+            ipNetworkCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(systemConfig.getCacheIpNetworkCapacity()));
+            ipPrefixCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(systemConfig.getCacheIpNetworkCapacity()));
+        }
+        if (properties.contains("cacheDateTimeRangeCapacity")) {
+            dateTimeRangeCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(systemConfig.getCacheDateTimeRangeCapacity()));
+        }
+    }
+
+    /**
+     * Close the caches, built again on the next use.
+     */
+    @Override
+    public void onStop() {
+        ipNetworkCacheSupplier.reset(Cache::close);
+        ipPrefixCacheSupplier.reset(Cache::close);
+        dateTimeRangeCacheSupplier.reset(Cache::close);
+    }
+
+    private Cache<String, IpNetwork> buildIpNetworkCache(String name) {
+        return Cache2kBuilder.of(String.class, IpNetwork.class)
+                .name(name)
+                .eternal(true)
+                .entryCapacity(systemConfig.getCacheIpNetworkCapacity())
+                .build();
+    }
+
+    private Cache<DateTimeRangeKey, PacDateTimeRange> buildDateTimeRangeCache() {
+        return Cache2kBuilder.of(DateTimeRangeKey.class, PacDateTimeRange.class)
+                .name("precompiledDateTimeRange")
+                .eternal(true)
+                .entryCapacity(systemConfig.getCacheDateTimeRangeCapacity())
+                .build();
+    }
+
     // *************************************************************
     //  Official helper functions.
     // *************************************************************
@@ -151,7 +228,8 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
         if (dnsResolve == null) {
             return false;
         }
-        return new IPAddressString(pattern + "/" + mask).contains(new IPAddressString(host));
+        return ipNetworkCacheSupplier.get().computeIfAbsent(pattern + "/" + mask,
+                key -> IpNetwork.of(pattern, mask)).contains(dnsResolve);
     }
 
     @Override
@@ -161,40 +239,83 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean shExpMatch(String str, String shexp) {
-        return globPatternMatcher.toPattern(shexp).matcher(str).matches();
+        return globPatternMatcher.toGlobPattern(shexp).matches(str);
     }
 
     @Override
     public boolean weekdayRange(Object... args) {
-        try {
-            return PacDateTimeUtils.isInWeekdayRange(new Date(), args);
-        } catch (PacDateTimeUtils.PacDateTimeInputException ex) {
-            log.warn("PAC script error : arguments passed to weekdayRange() function {} are faulty: {}",
-                    Arrays.toString(args), ex.getMessage());
-            return false;
-        }
+        return isInDateTimeRange(DateTimeRangeKey.WEEKDAY_RANGE, args);
+    }
+
+    /**
+     * The {@link #weekdayRange(Object...)} fixed arity version, called by the JavaScript
+     * functions, to avoid the varargs conversion.
+     */
+    public boolean weekdayRange(Object wd1, Object wd2, Object gmt) {
+        return isInDateTimeRange(DateTimeRangeKey.WEEKDAY_RANGE, new Object[]{wd1, wd2, gmt});
     }
 
     @Override
     public boolean dateRange(Object... args) {
-        try {
-            return PacDateTimeUtils.isInDateRange(new Date(), args);
-        } catch (PacDateTimeUtils.PacDateTimeInputException ex) {
-            log.warn("PAC script error : arguments passed to dateRange() function {} are faulty: {}",
-                    Arrays.toString(args), ex.getMessage());
-            return false;
-        }
+        return isInDateTimeRange(DateTimeRangeKey.DATE_RANGE, args);
+    }
+
+    /**
+     * The {@link #dateRange(Object...)} fixed arity version, called by the JavaScript
+     * functions, to avoid the varargs conversion.
+     */
+    public boolean dateRange(Object day1, Object month1, Object year1,
+                             Object day2, Object month2, Object year2, Object gmt) {
+        return isInDateTimeRange(DateTimeRangeKey.DATE_RANGE,
+                new Object[]{day1, month1, year1, day2, month2, year2, gmt});
     }
 
     @Override
     public boolean timeRange(Object... args) {
-        try {
-            return PacDateTimeUtils.isInTimeRange(new Date(), args);
-        } catch (PacDateTimeUtils.PacDateTimeInputException ex) {
-            log.warn("PAC script error : arguments passed to timeRange() function {} are faulty: {}",
-                    Arrays.toString(args), ex.getMessage());
-            return false;
+        return isInDateTimeRange(DateTimeRangeKey.TIME_RANGE, args);
+    }
+
+    /**
+     * The {@link #timeRange(Object...)} fixed arity version, called by the JavaScript
+     * functions, to avoid the varargs conversion.
+     */
+    public boolean timeRange(Object hour1, Object min1, Object sec1,
+                             Object hour2, Object min2, Object sec2, Object gmt) {
+        return isInDateTimeRange(DateTimeRangeKey.TIME_RANGE,
+                new Object[]{hour1, min1, sec1, hour2, min2, sec2, gmt});
+    }
+
+    private boolean isInDateTimeRange(String function, Object[] args) {
+        PacDateTimeRange dateTimeRange = getDateTimeRange(function, args);
+        return dateTimeRange != null && dateTimeRange.isInRange();
+    }
+
+    /**
+     * Get the compiled date-time range of a {@code weekdayRange}, {@code dateRange} or {@code timeRange} call.
+     *
+     * @param function the function's name
+     * @param args     the call's arguments
+     * @return the date-time range, or {@code null} if the arguments are faulty
+     */
+    PacDateTimeRange getDateTimeRange(String function, Object[] args) {
+        Cache<DateTimeRangeKey, PacDateTimeRange> dateTimeRangeCache = dateTimeRangeCacheSupplier.get();
+        DateTimeRangeKey key = new DateTimeRangeKey(function, args);
+        PacDateTimeRange dateTimeRange = dateTimeRangeCache.peek(key);
+        if (dateTimeRange == null) {
+            try {
+                dateTimeRange = switch (function) {
+                    case DateTimeRangeKey.WEEKDAY_RANGE -> PacDateTimeUtils.compileWeekdayRange(args);
+                    case DateTimeRangeKey.DATE_RANGE -> PacDateTimeUtils.compileDateRange(args);
+                    default -> PacDateTimeUtils.compileTimeRange(args);
+                };
+            } catch (PacDateTimeUtils.PacDateTimeInputException ex) {
+                log.warn("PAC script error : arguments passed to {}() function {} are faulty: {}",
+                        function, Arrays.toString(args), ex.getMessage());
+                return null;
+            }
+            dateTimeRangeCache.put(key, dateTimeRange);
         }
+        return dateTimeRange;
     }
 
     // *************************************************************
@@ -269,11 +390,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
 
     @Override
     public boolean isInNetEx(String ipAddress, String ipPrefix) {
-        try {
-            return new IpAddressMatcher(ipPrefix).matches(ipAddress);
-        } catch (UnknownHostException e) {
-            return false;
-        }
+        return ipPrefixCacheSupplier.get().computeIfAbsent(ipPrefix, IpNetwork::ofPrefix).contains(ipAddress);
     }
 
 
@@ -289,4 +406,45 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     }
 
 
+    /**
+     * A date-time function call: the function name and the arguments.
+     */
+    private static final class DateTimeRangeKey {
+
+        private static final String WEEKDAY_RANGE = "weekdayRange";
+
+        private static final String DATE_RANGE = "dateRange";
+
+        private static final String TIME_RANGE = "timeRange";
+
+        private final String function;
+
+        private final Object[] args;
+
+        private final int hash;
+
+        private DateTimeRangeKey(String function, Object[] args) {
+            this.function = function;
+            this.args = args;
+            this.hash = 31 * function.hashCode() + Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            DateTimeRangeKey that = (DateTimeRangeKey) o;
+            return function.equals(that.function) && Arrays.equals(args, that.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyController;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * It adjusts the script engine pool size according to the concurrent evaluations and the borrow wait times.
+ * <p>Under pressure (threads waiting for an engine or long borrow waits) the pool grows; when at most half of it
+ * has been in use, it shrinks, the idle engines being evicted by the pool. The size never exceeds
+ * {@code pacScriptEngine.pool.maxTotal}, nor the engines fitting into {@code pacScriptEngine.pool.memoryBudget},
+ * each engine being estimated by the memory allocated on its creation.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class EnginePoolSizer {
+
+    /**
+     * A borrow wait longer than the pool's max wait divided by this value means pressure.
+     */
+    private static final int WAIT_THRESHOLD_DIVISOR = 10;
+
+    /**
+     * The lowest borrow wait meaning pressure (milliseconds).
+     */
+    private static final long MIN_WAIT_THRESHOLD_MILLIS = 20;
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyController proxyController;
+
+    private final PacScriptEvaluator pacScriptEvaluator;
+
+    /**
+     * A job that adjusts the size of the current script's engine pool.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.pacScriptEnginePoolAdaptiveInterval * 1000}")
+    void adjustEnginePool() {
+        if (systemConfig.isPacScriptEnginePoolAdaptive() && proxyController.isRunning()) {
+            GenericObjectPool<GraalJSScriptEngine> enginePool = pacScriptEvaluator.getEnginePool();
+            if (enginePool != null) {
+                try {
+                    adjustEnginePool(enginePool);
+                } catch (Exception e) {
+                    log.debug("Error on adjusting the engine pool", e);
+                }
+            }
+        }
+    }
+
+    private void adjustEnginePool(GenericObjectPool<GraalJSScriptEngine> enginePool) {
+        EnginePoolStatistics statistics = pacScriptEvaluator.getEnginePoolStatistics();
+        EnginePoolStatistics.Snapshot borrows = statistics.drain();
+        long maxWaitMillis = TimeUnit.SECONDS.toMillis(systemConfig.getPacScriptEnginePoolMaxWait());
+        long waitThresholdMillis = Math.max(MIN_WAIT_THRESHOLD_MILLIS, maxWaitMillis / WAIT_THRESHOLD_DIVISOR);
+        int ceiling = getCeiling(statistics.getEngineMemoryEstimate());
+        int waiters = enginePool.getNumWaiters();
+        int limit = enginePool.getMaxTotal();
+        int newLimit = limit;
+        if (waiters > 0 || borrows.getMaxWaitMillis() >= waitThresholdMillis) {
+            newLimit = Math.max(limit + Math.max(1, limit / 4), borrows.getMaxActive() + waiters);
+        } else if (borrows.getMaxActive() <= limit / 2) {
+            newLimit = Math.max(Math.max(1, borrows.getMaxActive()), limit - Math.max(1, limit / 4));
+        }
+        newLimit = Math.max(1, Math.min(newLimit, ceiling));
+        if (newLimit != limit) {
+            log.debug("Change the engine pool size from {} to {} (waiters: {}, max borrow wait: {} ms, " +
+                            "max active: {}, ceiling: {})", limit, newLimit, waiters,
+                    borrows.getMaxWaitMillis(), borrows.getMaxActive(), ceiling);
+            enginePool.setMaxTotal(newLimit);
+            enginePool.setMaxIdle(newLimit);
+        }
+
+        // Keep warm the engines used lately
+        int minIdle = Math.min(systemConfig.getPacScriptEnginePoolMinIdle(),
+                Math.min(borrows.getMaxActive(), newLimit));
+        if (minIdle != enginePool.getMinIdle()) {
+            enginePool.setMinIdle(minIdle);
+        }
+    }
+
+    /**
+     * @param engineMemoryEstimate the memory estimate of an engine (bytes), {@code 0} if unknown.
+     * @return the highest pool size allowed.
+     */
+    private int getCeiling(long engineMemoryEstimate) {
+        int maxTotal = systemConfig.getPacScriptEnginePoolMaxTotal();
+        if (engineMemoryEstimate <= 0) {
+            return maxTotal;
+        }
+        long budget = systemConfig.getPacScriptEnginePoolMemoryBudget() * 1024L * 1024L;
+        return (int) Math.min(maxTotal, budget / engineMemoryEstimate);
+    }
+
+}
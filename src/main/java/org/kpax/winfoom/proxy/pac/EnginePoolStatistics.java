@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the script engine pool usage: the time spent waiting for an engine, the concurrent use
+ * and the memory allocated for creating an engine.
+ * <p>The borrow waits and the highest concurrent use are also accumulated in a window
+ * that is consumed by {@link #drain()}. Each window is an immutable value swapped atomically,
+ * so that a borrow recorded while draining lands either in the drained window or in the next one.
+ */
+@ThreadSafe
+class EnginePoolStatistics {
+
+    /**
+     * The borrow wait histogram's upper bounds (milliseconds), the last bucket having none.
+     */
+    private static final long[] BUCKET_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    private final LongAdder[] borrowWaitBuckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+    private final AtomicReference<Window> window = new AtomicReference<>(Window.EMPTY);
+
+    private final LongAdder engineCreations = new LongAdder();
+
+    private final LongAdder engineAllocatedBytes = new LongAdder();
+
+    EnginePoolStatistics() {
+        for (int i = 0; i < borrowWaitBuckets.length; i++) {
+            borrowWaitBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a borrow.
+     *
+     * @param waitNanos the time spent waiting for the engine (nanoseconds)
+     * @param active    the engines in use, including the borrowed one
+     */
+    void recordBorrow(long waitNanos, int active) {
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && waitMillis >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        borrowWaitBuckets[bucket].increment();
+        window.accumulateAndGet(new Window(1, waitNanos, active), Window::add);
+    }
+
+    /**
+     * Measure the memory allocated by the current thread for creating an engine.
+     *
+     * @return the current thread's allocated bytes, or {@code -1} if not supported.
+     */
+    long startEngineCreation() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean
+                && threadMXBean.isThreadAllocatedMemoryEnabled()
+                ? threadMXBean.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * Record an engine creation.
+     *
+     * @param startAllocatedBytes the value returned by {@link #startEngineCreation()}
+     */
+    void endEngineCreation(long startAllocatedBytes) {
+        long allocatedBytes = startEngineCreation();
+        // Not supported, like for the virtual threads
+        if (startAllocatedBytes >= 0 && allocatedBytes >= startAllocatedBytes) {
+            engineCreations.increment();
+            engineAllocatedBytes.add(allocatedBytes - startAllocatedBytes);
+        }
+    }
+
+    /**
+     * @return the average memory allocated for creating an engine (bytes), or {@code 0} if unknown.
+     */
+    long getEngineMemoryEstimate() {
+        long creations = engineCreations.sum();
+        return creations > 0 ? engineAllocatedBytes.sum() / creations : 0;
+    }
+
+    /**
+     * @return the borrow wait histogram, the counts per wait interval.
+     */
+    Map<String, Long> getBorrowWaitHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            histogram.put("<" + BUCKET_BOUNDS[i] + "ms", borrowWaitBuckets[i].sum());
+        }
+        histogram.put(">=" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + "ms",
+                borrowWaitBuckets[BUCKET_BOUNDS.length].sum());
+        return histogram;
+    }
+
+    /**
+     * Get the samples recorded since the previous call, then start a new window.
+     *
+     * @return the previous window snapshot.
+     */
+    Snapshot drain() {
+        return window.getAndSet(Window.EMPTY).snapshot();
+    }
+
+    private static final class Window {
+
+        private static final Window EMPTY = new Window(0, 0, 0);
+
+        private final long count;
+
+        private final long maxWaitNanos;
+
+        private final int maxActive;
+
+        private Window(long count, long maxWaitNanos, int maxActive) {
+            this.count = count;
+            this.maxWaitNanos = maxWaitNanos;
+            this.maxActive = maxActive;
+        }
+
+        private Window add(Window other) {
+            return new Window(count + other.count, Math.max(maxWaitNanos, other.maxWaitNanos),
+                    Math.max(maxActive, other.maxActive));
+        }
+
+        private Snapshot snapshot() {
+            return new Snapshot(count, TimeUnit.NANOSECONDS.toMillis(maxWaitNanos), maxActive);
+        }
+    }
+
+    /**
+     * The borrow statistics of a window.
+     */
+    static final class Snapshot {
+
+        private final long count;
+
+        private final long maxWaitMillis;
+
+        private final int maxActive;
+
+        private Snapshot(long count, long maxWaitMillis, int maxActive) {
+            this.count = count;
+            this.maxWaitMillis = maxWaitMillis;
+            this.maxActive = maxActive;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        int getMaxActive() {
+            return maxActive;
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled GLOB pattern.
+ * <p>The {@code *}, {@code ?} wildcards and the {@code [abc]}, {@code [a-z]}, {@code [!abc]}, {@code [^abc]}
+ * character classes are compiled into a bit-parallel automaton: one {@code long} holds the active states,
+ * so that a match is a single pass over the input, without backtracking and without allocation.
+ * <p>The patterns relying on the regex syntax accepted by {@link GlobPatternMatcher#convertGlobToRegEx(String)}
+ * (like {@code (ab|cd)}) and the patterns having more than {@value #MAX_ELEMENTS} non-{@code *} elements
+ * are matched with the regex instead.
+ * <p>Like the regex {@code .}, the wildcards do not match the line terminators.
+ * The regex reads a surrogate pair as a single character, so the globs and the inputs
+ * having surrogates are matched with the regex too.
+ */
+@ThreadSafe
+public final class GlobPattern {
+
+    private static final int MAX_ELEMENTS = 63;
+
+    private static final int ASCII_SIZE = 128;
+
+    private final String glob;
+
+    /**
+     * The regex used when the automaton cannot represent the pattern, otherwise {@code null}.
+     */
+    private final Pattern regex;
+
+    /**
+     * The automaton's elements, the element {@code i} moving the state {@code i} to the state {@code i + 1}.
+     */
+    private final Element[] elements;
+
+    /**
+     * For each ASCII character, the states that can be entered by reading it.
+     */
+    private final long[] asciiMasks;
+
+    /**
+     * The states followed by a {@code *}.
+     */
+    private final long loopMask;
+
+    private final long acceptMask;
+
+    /**
+     * The regex used by the automaton for the inputs having surrogates, created when first needed.
+     */
+    private volatile Pattern surrogateRegex;
+
+    private GlobPattern(String glob, Pattern regex) {
+        this.glob = glob;
+        this.regex = regex;
+        this.elements = null;
+        this.asciiMasks = null;
+        this.loopMask = 0;
+        this.acceptMask = 0;
+    }
+
+    private GlobPattern(String glob, List<Element> elements, long loopMask) {
+        this.glob = glob;
+        this.regex = null;
+        this.elements = elements.toArray(new Element[0]);
+        this.loopMask = loopMask;
+        this.acceptMask = 1L << this.elements.length;
+        this.asciiMasks = new long[ASCII_SIZE];
+        for (char c = 0; c < ASCII_SIZE; c++) {
+            asciiMasks[c] = enterMask(c);
+        }
+    }
+
+    /**
+     * Compile a GLOB pattern.
+     *
+     * @param glob the GLOB pattern, trimmed.
+     * @return the compiled pattern.
+     * @throws java.util.regex.PatternSyntaxException if the pattern falls back to an invalid regex.
+     */
+    public static GlobPattern compile(@NotNull String glob) {
+        Assert.notNull(glob, "glob cannot be null");
+        List<Element> elements = new ArrayList<>();
+        long loopMask = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return ofRegex(glob);
+            }
+            switch (c) {
+                case '*':
+                    loopMask |= 1L << elements.size();
+                    continue;
+                case '?':
+                    elements.add(Element.ANY);
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    Element element = end == -1 ? null : Element.ofClass(glob, i + 1, end);
+                    if (element == null) {
+                        return ofRegex(glob);
+                    }
+                    elements.add(element);
+                    i = end;
+                    break;
+                case '(':
+                case ')':
+                case '|':
+                case '+':
+                case '{':
+                case '}':
+                case '^':
+                case '$':
+                    return ofRegex(glob);
+                default:
+                    elements.add(Element.ofLiteral(c));
+            }
+            if (elements.size() > MAX_ELEMENTS) {
+                return ofRegex(glob);
+            }
+        }
+        return new GlobPattern(glob, elements, loopMask);
+    }
+
+    private static GlobPattern ofRegex(String glob) {
+        return new GlobPattern(glob, Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob)));
+    }
+
+    /**
+     * @param str the string to test.
+     * @return {@code true} iff the entire string matches the pattern.
+     */
+    public boolean matches(@NotNull String str) {
+        if (regex != null) {
+            return regex.matcher(str).matches();
+        }
+        long states = 1;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return getSurrogateRegex().matcher(str).matches();
+            }
+            long enter = c < ASCII_SIZE ? asciiMasks[c] : enterMask(c);
+            long loop = isLineTerminator(c) ? 0 : loopMask;
+            states = ((states << 1) & enter) | (states & loop);
+            if (states == 0) {
+                return false;
+            }
+        }
+        return (states & acceptMask) != 0;
+    }
+
+    /**
+     * @return {@code true} iff the pattern is matched by the automaton.
+     */
+    public boolean isAutomaton() {
+        return regex == null;
+    }
+
+    private Pattern getSurrogateRegex() {
+        Pattern pattern = surrogateRegex;
+        if (pattern == null) {
+            pattern = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob));
+            surrogateRegex = pattern;
+        }
+        return pattern;
+    }
+
+    private long enterMask(char c) {
+        long mask = 0;
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].matches(c)) {
+                mask |= 1L << (i + 1);
+            }
+        }
+        return mask;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+    /**
+     * A single character element: a literal, the {@code ?} wildcard or a character class.
+     */
+    private static final class Element {
+
+        private static final Element ANY = new Element(false, new char[0], true);
+
+        /**
+         * The inclusive ranges, as pairs of characters.
+         */
+        private final char[] ranges;
+
+        private final boolean negated;
+
+        private final boolean any;
+
+        private Element(boolean negated, char[] ranges, boolean any) {
+            this.negated = negated;
+            this.ranges = ranges;
+            this.any = any;
+        }
+
+        static Element ofLiteral(char c) {
+            return new Element(false, new char[]{c, c}, false);
+        }
+
+        /**
+         * Parse the content of a character class, like the regex would.
+         *
+         * @return the element or {@code null} if the class must be left to the regex.
+         */
+        static Element ofClass(String glob, int start, int end) {
+            boolean negated = start < end && (glob.charAt(start) == '!' || glob.charAt(start) == '^');
+            int from = negated ? start + 1 : start;
+            if (from == end) {
+                // Like []a] or [!]a], where the regex reads the bracket differently
+                return null;
+            }
+            List<Character> ranges = new ArrayList<>();
+            for (int i = from; i < end; i++) {
+                char c = glob.charAt(i);
+                if (c == '[' || c == '\\' || c == '*' || c == '?'
+                        || (c == '&' && i + 1 < end && glob.charAt(i + 1) == '&')) {
+                    return null;
+                }
+                if (i + 2 < end && glob.charAt(i + 1) == '-') {
+                    char last = glob.charAt(i + 2);
+                    if (last < c || last == '[' || last == '\\' || last == '*' || last == '?') {
+                        return null;
+                    }
+                    ranges.add(c);
+                    ranges.add(last);
+                    i += 2;
+                } else {
+                    ranges.add(c);
+                    ranges.add(c);
+                }
+            }
+            char[] pairs = new char[ranges.size()];
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = ranges.get(i);
+            }
+            return new Element(negated, pairs, false);
+        }
+
+        boolean matches(char c) {
+            if (any) {
+                return !isLineTerminator(c);
+            }
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+    }
+
+}
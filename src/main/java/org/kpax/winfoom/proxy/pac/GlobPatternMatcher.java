@@ -15,12 +15,18 @@ package org.kpax.winfoom.proxy.pac;
 import lombok.extern.slf4j.Slf4j;
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
+import org.cache2k.operation.CacheControl;
 import org.kpax.winfoom.annotation.NotNull;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.listener.ConfigChangeListener;
+import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -28,44 +34,116 @@ import java.util.regex.Pattern;
  */
 @Slf4j
 @Component
-public class GlobPatternMatcher {
+public class GlobPatternMatcher implements ConfigChangeListener, StopListener {
 
-    private final SingletonSupplier<Cache<String, Pattern>> globPatternCacheSupplier;
+    /**
+     * The {@code shExpMatch} calls having a string literal as pattern.
+     */
+    private static final Pattern SH_EXP_MATCH_LITERAL =
+            Pattern.compile("shExpMatch\\s*\\([^,()]*(?:\\(\\s*\\)[^,()]*)?,\\s*(['\"])(.*?)\\1\\s*\\)");
+
+    private final SystemConfig systemConfig;
+
+    private final SingletonSupplier<Cache<String, GlobPattern>> globPatternCacheSupplier;
+
+    /**
+     * The current cache capacity, never below the configured one.
+     */
+    private volatile long capacity;
+
+    /**
+     * The distinct {@code shExpMatch} literal patterns of the last PAC script.
+     */
+    private volatile int scriptPatterns;
 
     public GlobPatternMatcher(SystemConfig systemConfig) {
+        this.systemConfig = systemConfig;
+        this.capacity = systemConfig.getCacheGlobPatternCapacity();
         this.globPatternCacheSupplier =
                 new SingletonSupplier<>(() ->
-                        Cache2kBuilder.of(String.class, Pattern.class)
+                        Cache2kBuilder.of(String.class, GlobPattern.class)
                                 .name("precompiledGlobPattern")
                                 .eternal(true)
-                                .entryCapacity(systemConfig.getCacheGlobPatternCapacity())
+                                .entryCapacity(capacity)
                                 .build()
                 );
     }
 
     /**
-     * Translate a GLOB pattern into a {@link Pattern} instance.
+     * Compile a GLOB pattern.
      * <p>
      * <b>Note:</b> The result is cached.
      *
      * @param glob the GLOB pattern.
-     * @return the {@link Pattern} instance.
-     * @see #convertGlobToRegEx(String)
+     * @return the {@link GlobPattern} instance.
+     * @see GlobPattern#compile(String)
      */
-    public Pattern toPattern(@NotNull String glob) {
+    public GlobPattern toGlobPattern(@NotNull String glob) {
         Assert.notNull(glob, "glob cannot be null");
-        Cache<String, Pattern> patternCache = globPatternCacheSupplier.get();
-        Pattern pattern = patternCache.get(glob);
+        Cache<String, GlobPattern> patternCache = globPatternCacheSupplier.get();
+        GlobPattern pattern = patternCache.get(glob);
         if (pattern == null) {
             log.debug("Create pattern for {}", glob);
-            String regexPattern = convertGlobToRegEx(glob.trim());
-            log.debug("glob regexPattern={}", regexPattern);
-            pattern = Pattern.compile(regexPattern);
+            pattern = GlobPattern.compile(glob.trim());
+            log.debug("glob pattern={} automaton={}", glob, pattern.isAutomaton());
             patternCache.put(glob, pattern);
         }
         return pattern;
     }
 
+    /**
+     * Remove all the cached patterns.
+     */
+    public void clear() {
+        globPatternCacheSupplier.value().ifPresent(Cache::clear);
+    }
+
+    /**
+     * Close the cache, built again on the next use.
+     */
+    @Override
+    public void onStop() {
+        globPatternCacheSupplier.reset(Cache::close);
+    }
+
+    /**
+     * Grow the cache so that it can hold every distinct {@code shExpMatch} literal pattern of the PAC script.
+     *
+     * @param pacSource the PAC script's content.
+     */
+    public void ensureCapacity(@NotNull String pacSource) {
+        Set<String> globs = new HashSet<>();
+        Matcher matcher = SH_EXP_MATCH_LITERAL.matcher(pacSource);
+        while (matcher.find()) {
+            globs.add(matcher.group(2));
+        }
+        log.debug("The PAC script has {} distinct shExpMatch patterns", globs.size());
+        scriptPatterns = globs.size();
+        if (globs.size() > capacity) {
+            synchronized (this) {
+                if (globs.size() > capacity) {
+                    capacity = globs.size();
+                    globPatternCacheSupplier.value().ifPresent(cache ->
+                            CacheControl.of(cache).changeCapacity(capacity));
+                    log.info("The glob pattern cache capacity is set to {}", capacity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resize the cache to the configured capacity, still holding every pattern of the PAC script.
+     */
+    @Override
+    public synchronized void onConfigChange(Set<String> properties) {
+        if (properties.contains("cacheGlobPatternCapacity")) {
+            capacity = Math.max(systemConfig.getCacheGlobPatternCapacity(), scriptPatterns);
+            globPatternCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(capacity));
+            log.info("The glob pattern cache capacity is set to {}", capacity);
+        }
+    }
+
     /**
      * Create a regex out of a GLOB expression.
      * <ul>
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.proxy.ProxyInfo;
+
+import java.util.List;
+
+/**
+ * The outcome of a PAC script evaluation.
+ */
+@RequiredArgsConstructor
+@Getter
+@ThreadSafe
+public final class PacEvaluation {
+
+    /**
+     * The raw proxy line, as returned by the PAC script function.
+     */
+    private final String proxyLine;
+
+    /**
+     * The parsed proxy line, without the blacklisted proxies.
+     */
+    private final List<ProxyInfo> proxies;
+
+    private final Source source;
+
+    private final long durationNanos;
+
+    /**
+     * Where the proxy line comes from.
+     */
+    public enum Source {
+
+        /**
+         * The script compiled into Java.
+         */
+        COMPILED,
+
+        /**
+         * The JavaScript engine.
+         */
+        SCRIPT,
+
+        /**
+         * The host's last result, the script not being evaluated in time.
+         */
+        LAST_RESULT,
+
+        /**
+         * The configured fallback, the script not being evaluated in time.
+         */
+        FALLBACK
+    }
+
+}
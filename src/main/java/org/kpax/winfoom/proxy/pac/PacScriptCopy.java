@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The local copy of the last good remote PAC script, with its validators,
+ * so that the local proxy can start without waiting for the PAC server.
+ */
+@Slf4j
+@ThreadSafe
+@Component
+class PacScriptCopy {
+
+    private static final String LOCATION = "location";
+
+    private static final String CONTENT = "content";
+
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private static final String ETAG = "etag";
+
+    private final Path file;
+
+    PacScriptCopy() {
+        this(Paths.get("./config/pac-script.properties"));
+    }
+
+    /**
+     * @param file the local copy's file.
+     */
+    PacScriptCopy(@NotNull Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @param location the PAC script's location.
+     * @return the local copy or {@code null} if there is none for this location.
+     */
+    synchronized PacSource read(@NotNull URL location) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            // A malformed escape gives IllegalArgumentException
+            log.warn("Cannot read the PAC script's local copy " + file, e);
+            return null;
+        }
+        if (!location.toString().equals(properties.getProperty(LOCATION))
+                || properties.getProperty(CONTENT) == null) {
+            log.debug("No local copy for the PAC script {}", location);
+            return null;
+        }
+        return new PacSource(properties.getProperty(CONTENT),
+                NumberUtils.toLong(properties.getProperty(LAST_MODIFIED)),
+                properties.getProperty(ETAG));
+    }
+
+    /**
+     * Replace the local copy, the file being written at once.
+     *
+     * @param location the PAC script's location.
+     * @param source   the PAC script.
+     */
+    synchronized void write(@NotNull URL location, @NotNull PacSource source) {
+        Properties properties = new Properties();
+        properties.setProperty(LOCATION, location.toString());
+        properties.setProperty(CONTENT, source.getContent());
+        properties.setProperty(LAST_MODIFIED, String.valueOf(source.getLastModified()));
+        if (source.getEtag() != null) {
+            properties.setProperty(ETAG, source.getEtag());
+        }
+        try {
+            Path directory = Files.createDirectories(file.toAbsolutePath().getParent());
+            Path tempFile = Files.createTempFile(directory, "pac-script", ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    properties.store(writer, "The last good PAC script");
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            log.debug("PAC script's local copy updated");
+        } catch (IOException e) {
+            log.warn("Cannot write the PAC script's local copy " + file, e);
+        }
+    }
+
+}
@@ -35,9 +35,14 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.BaseObjectPoolConfig;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.http.HttpHeaders;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.cache2k.operation.CacheControl;
 import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.Engine;
 import org.graalvm.polyglot.HostAccess;
@@ -49,8 +54,13 @@ import org.kpax.winfoom.exception.MissingResourceException;
 import org.kpax.winfoom.exception.PacFileException;
 import org.kpax.winfoom.exception.PacScriptException;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.listener.ConfigChangeListener;
 import org.kpax.winfoom.proxy.listener.ProxyListener;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.proxy.pac.compiler.CompiledPacScript;
+import org.kpax.winfoom.proxy.pac.compiler.PacScriptCompiler;
 import org.kpax.winfoom.util.HttpUtils;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
 import org.springframework.core.annotation.Order;
@@ -60,17 +70,39 @@ import org.springframework.util.Assert;
 import javax.script.ScriptException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 @ThreadSafe
 @Order(3)
 @Component
-public class PacScriptEvaluator implements ProxyListener {
+public class PacScriptEvaluator implements ProxyListener, ConfigChangeListener, MetricsSource {
 
     /**
      * Main entry point to JavaScript PAC script as defined by Netscape.
@@ -87,10 +119,18 @@ public class PacScriptEvaluator implements ProxyListener {
 
     private final ProxyConfig proxyConfig;
 
+    private final SystemConfig systemConfig;
+
     private final DefaultPacHelperMethods pacHelperMethods;
 
+    private final GlobPatternMatcher globPatternMatcher;
+
     private final ProxyBlacklist proxyBlacklist;
 
+    private final PacScriptCopy pacScriptCopy;
+
+    private final ProxyExecutorService executorService;
+
     /**
      * The supplier for the sharable {@link Engine} instance.
      */
@@ -98,6 +138,18 @@ public class PacScriptEvaluator implements ProxyListener {
             Engine.newBuilder().allowExperimentalOptions(true).build()
     );
 
+    /**
+     * The timer interrupting the evaluations that exceed {@code pacScript.evaluation.timeout}.
+     */
+    private final SingletonSupplier<ScheduledThreadPoolExecutor> timeoutSchedulerSupplier =
+            new SingletonSupplier<>(() -> {
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                        Thread.ofPlatform().name("pac-evaluation-timeout").daemon().factory());
+                // Most evaluations complete in time, do not keep their cancelled interruptions
+                scheduler.setRemoveOnCancelPolicy(true);
+                return scheduler;
+            });
+
     private final SingletonSupplier<String> helperJSScriptSupplier = new SingletonSupplier<>(() -> {
         try {
             return IOUtils.toString(getClass().getClassLoader().
@@ -108,61 +160,332 @@ public class PacScriptEvaluator implements ProxyListener {
     });
 
     /**
-     * The {@link GenericObjectPool} supplier.
-     * <p>Since the Graaljs {@link Context} is not thread safe, we maintain a pool of {@link GraalJSScriptEngine} instances.
+     * The last proxy line of each host, used as fallback when the script cannot be evaluated in time.
+     */
+    private final SingletonSupplier<Cache<String, String>> lastResultCacheSupplier;
+
+    /**
+     * The parsed proxy lines, made of interned {@link ProxyInfo}s.
+     */
+    private final SingletonSupplier<Cache<String, List<ProxyInfo>>> proxyLineCacheSupplier;
+
+    /**
+     * The interned proxies, so that the equal ones parsed from different proxy lines are the same instance.
+     */
+    private final SingletonSupplier<Cache<ProxyInfo, ProxyInfo>> proxyInfoCacheSupplier;
+
+    /**
+     * The loaded PAC script, replaced as a whole when the script is reloaded.
+     */
+    private volatile LoadedScript loadedScript;
+
+    /**
+     * The engine pools replaced by a reload, closed as soon as none of their engines is in use.
+     */
+    private final Queue<GenericObjectPool<GraalJSScriptEngine>> retiredEnginePools = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The content of the last changed script that failed to load, not to be tried again.
      */
-    private final SingletonSupplier<GenericObjectPool<GraalJSScriptEngine>> enginePoolSingletonSupplier;
+    private String rejectedContent;
+
+    private final LongAdder compiledEvaluations = new LongAdder();
+
+    private final LongAdder scriptEvaluations = new LongAdder();
+
+    private final LongAdder reloads = new LongAdder();
 
-    private String jsMainFunction;
+    private final LongAdder evaluationTimeouts = new LongAdder();
 
+    private final LongAdder borrowTimeouts = new LongAdder();
+
+    private final EnginePoolStatistics enginePoolStatistics = new EnginePoolStatistics();
 
     public PacScriptEvaluator(ProxyConfig proxyConfig,
                               SystemConfig systemConfig,
                               DefaultPacHelperMethods pacHelperMethods,
-                              ProxyBlacklist proxyBlacklist) {
+                              GlobPatternMatcher globPatternMatcher,
+                              ProxyBlacklist proxyBlacklist,
+                              PacScriptCopy pacScriptCopy,
+                              ProxyExecutorService executorService) {
         this.proxyConfig = proxyConfig;
+        this.systemConfig = systemConfig;
         this.pacHelperMethods = pacHelperMethods;
+        this.globPatternMatcher = globPatternMatcher;
         this.proxyBlacklist = proxyBlacklist;
-        this.enginePoolSingletonSupplier =
-                new SingletonSupplier<>(() -> {
-                    GenericObjectPoolConfig<GraalJSScriptEngine> config = new GenericObjectPoolConfig<>();
-                    config.setMaxTotal(systemConfig.getPacScriptEnginePoolMaxTotal());
-                    config.setMinIdle(systemConfig.getPacScriptEnginePoolMinIdle());
-                    config.setTestOnBorrow(false);
-                    config.setTestOnCreate(false);
-                    config.setTestOnReturn(false);
-                    config.setBlockWhenExhausted(true);
-                    return new GenericObjectPool<>(
-                            new BasePooledObjectFactory<>() {
-                                @Override
-                                public GraalJSScriptEngine create() throws PacFileException, IOException {
-                                    return createScriptEngine();
-                                }
-
-                                @Override
-                                public PooledObject<GraalJSScriptEngine> wrap(GraalJSScriptEngine obj) {
-                                    return new DefaultPooledObject<>(obj);
-                                }
-                            }, config);
-                });
+        this.pacScriptCopy = pacScriptCopy;
+        this.executorService = executorService;
+        this.lastResultCacheSupplier = new SingletonSupplier<>(() ->
+                Cache2kBuilder.of(String.class, String.class)
+                        .name("pacLastResult")
+                        .eternal(true)
+                        .entryCapacity(systemConfig.getCachePacLastResultCapacity())
+                        .build()
+        );
+        this.proxyLineCacheSupplier = new SingletonSupplier<>(() ->
+                new Cache2kBuilder<String, List<ProxyInfo>>() {
+                }
+                        .name("pacProxyLine")
+                        .eternal(true)
+                        .entryCapacity(systemConfig.getCachePacProxyLineCapacity())
+                        .build()
+        );
+        this.proxyInfoCacheSupplier = new SingletonSupplier<>(() ->
+                Cache2kBuilder.of(ProxyInfo.class, ProxyInfo.class)
+                        .name("pacProxyInfo")
+                        .eternal(true)
+                        .entryCapacity(systemConfig.getCachePacProxyLineCapacity())
+                        .build()
+        );
     }
 
     @TypeQualifier(ProxyConfig.Type.PAC)
     @Override
-    public void onStart() throws Exception {
-        GraalJSScriptEngine scriptEngine = enginePoolSingletonSupplier.get().borrowObject();
+    public synchronized void onStart() throws Exception {
+        rejectedContent = null;
+        URL url = proxyConfig.getProxyPacFileLocationAsURL();
+        Assert.state(url != null, "No proxy PAC file location found");
+        if (isRemote(url) && systemConfig.isPacScriptLocalCopy()) {
+            PacSource localCopy = pacScriptCopy.read(url);
+            if (localCopy != null) {
+                try {
+                    loadedScript = load(localCopy);
+                    log.info("PAC script loaded from the local copy, refresh it from: {}", url);
+                    executorService.execute(this::refresh);
+                    return;
+                } catch (Exception e) {
+                    log.warn("Cannot load the PAC script's local copy, get it from: " + url, e);
+                }
+            }
+        }
+        loadedScript = load(readScript(null));
+        saveLocalCopy(loadedScript.source);
+    }
+
+    /**
+     * Refresh the PAC script loaded from the local copy, keeping it when the PAC server cannot be reached.
+     */
+    private void refresh() {
         try {
-            if (isJsFunctionAvailable(scriptEngine, IPV6_AWARE_PAC_MAIN_FUNCTION)) {
-                jsMainFunction = IPV6_AWARE_PAC_MAIN_FUNCTION;
-            } else if (isJsFunctionAvailable(scriptEngine, STANDARD_PAC_MAIN_FUNCTION)) {
-                jsMainFunction = STANDARD_PAC_MAIN_FUNCTION;
-            } else {
-                throw new PacFileException("Function " + STANDARD_PAC_MAIN_FUNCTION +
-                        " or " + IPV6_AWARE_PAC_MAIN_FUNCTION + " not found in PAC Script.");
+            if (reloadIfModified()) {
+                log.info("PAC script refreshed from the network");
             }
-        } finally {
-            enginePoolSingletonSupplier.get().returnObject(scriptEngine);
+        } catch (Exception e) {
+            log.warn("Cannot refresh the PAC script, keep using the local copy", e);
+        }
+    }
+
+    /**
+     * Reload the PAC script if it has changed since it was loaded.
+     * <p>The new script gets its own engine pool and is validated like on start; only then it replaces the current
+     * one, so that a failed reload leaves the current script in place. The evaluations in progress complete with
+     * the old engines, whose pool is closed once it is drained.
+     *
+     * @return {@code true} iff the script has been reloaded.
+     * @throws Exception when the changed PAC script cannot be loaded.
+     */
+    public synchronized boolean reloadIfModified() throws Exception {
+        closeDrainedEnginePools();
+        LoadedScript current = loadedScript;
+        if (current == null) {
+            return false;
+        }
+        PacSource source = readScript(current.source);
+        if (source == null) {
+            return false;
         }
+        if (source.getContent().equals(rejectedContent)) {
+            return false;
+        }
+        return reload(current, source);
+    }
+
+    /**
+     * Replace the current script with the one read from the source, unless they have the same content.
+     */
+    private boolean reload(LoadedScript current, PacSource source) throws Exception {
+        if (source.getContent().equals(current.source.getContent())) {
+            // Only the validators have changed
+            loadedScript = new LoadedScript(source, current.enginePool, current.mainFunction, current.compiledScript);
+            saveLocalCopy(source);
+            return false;
+        }
+        log.info("The PAC script has changed, reload it");
+        try {
+            loadedScript = load(source);
+        } catch (Exception e) {
+            rejectedContent = source.getContent();
+            throw e;
+        }
+        rejectedContent = null;
+        saveLocalCopy(source);
+
+        // The cached patterns and networks might belong to the old script
+        globPatternMatcher.clear();
+        pacHelperMethods.clearCaches();
+        lastResultCacheSupplier.value().ifPresent(Cache::clear);
+
+        current.enginePool.clear();
+        retiredEnginePools.add(current.enginePool);
+        closeDrainedEnginePools();
+        reloads.increment();
+        return true;
+    }
+
+    /**
+     * Apply the configuration change to the loaded script, its engine pool and the caches.
+     * <p>A new PAC file location gets its script reloaded, the evaluations in progress
+     * completing with the old one.
+     */
+    @Override
+    public synchronized void onConfigChange(Set<String> properties) throws Exception {
+        LoadedScript current = loadedScript;
+        if (current != null) {
+            if (properties.contains("proxyPacFileLocation")) {
+                log.info("The PAC file location has changed, reload the script");
+                closeDrainedEnginePools();
+                reload(current, readScript(null));
+                current = loadedScript;
+            }
+            if (properties.contains("pacScriptEnginePoolMaxTotal")) {
+                int maxTotal = systemConfig.getPacScriptEnginePoolMaxTotal();
+                if (!systemConfig.isPacScriptEnginePoolAdaptive()) {
+                    current.enginePool.setMaxTotal(maxTotal);
+                } else if (current.enginePool.getMaxTotal() > maxTotal) {
+                    // Otherwise left to EnginePoolSizer
+                    current.enginePool.setMaxTotal(maxTotal);
+                    current.enginePool.setMaxIdle(maxTotal);
+                }
+            }
+            if (properties.contains("pacScriptEnginePoolMaxWait")) {
+                current.enginePool.setMaxWait(systemConfig.getPacScriptEnginePoolMaxWait() > 0
+                        ? Duration.ofSeconds(systemConfig.getPacScriptEnginePoolMaxWait())
+                        : BaseObjectPoolConfig.DEFAULT_MAX_WAIT);
+            }
+        }
+        if (properties.contains("cachePacLastResultCapacity")) {
+            lastResultCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(systemConfig.getCachePacLastResultCapacity()));
+        }
+        if (properties.contains("cachePacProxyLineCapacity")) {
+            proxyLineCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(systemConfig.getCachePacProxyLineCapacity()));
+            proxyInfoCacheSupplier.value().ifPresent(cache ->
+                    CacheControl.of(cache).changeCapacity(systemConfig.getCachePacProxyLineCapacity()));
+        }
+    }
+
+    /**
+     * Keep the last good remote PAC script for the next start.
+     */
+    private void saveLocalCopy(PacSource source) throws MalformedURLException {
+        URL url = proxyConfig.getProxyPacFileLocationAsURL();
+        if (url != null && isRemote(url) && systemConfig.isPacScriptLocalCopy()) {
+            pacScriptCopy.write(url, source);
+        }
+    }
+
+    private static boolean isRemote(URL url) {
+        return !"file".equals(url.getProtocol());
+    }
+
+    /**
+     * Close the retired engine pools having no engine in use, on reload or when their last engine is returned.
+     */
+    private void closeDrainedEnginePools() {
+        for (Iterator<GenericObjectPool<GraalJSScriptEngine>> itr = retiredEnginePools.iterator(); itr.hasNext(); ) {
+            GenericObjectPool<GraalJSScriptEngine> enginePool = itr.next();
+            if (enginePool.getNumActive() == 0 && enginePool.getNumWaiters() == 0) {
+                log.debug("Close the drained engine pool");
+                enginePool.close();
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * Create the engine pool for the PAC script, find the main function and compile the script if enabled.
+     */
+    private LoadedScript load(PacSource source) throws Exception {
+        GenericObjectPool<GraalJSScriptEngine> enginePool = createEnginePool(source.getContent());
+        try {
+            String mainFunction;
+            GraalJSScriptEngine scriptEngine = enginePool.borrowObject();
+            try {
+                if (isJsFunctionAvailable(scriptEngine, IPV6_AWARE_PAC_MAIN_FUNCTION)) {
+                    mainFunction = IPV6_AWARE_PAC_MAIN_FUNCTION;
+                } else if (isJsFunctionAvailable(scriptEngine, STANDARD_PAC_MAIN_FUNCTION)) {
+                    mainFunction = STANDARD_PAC_MAIN_FUNCTION;
+                } else {
+                    throw new PacFileException("Function " + STANDARD_PAC_MAIN_FUNCTION +
+                            " or " + IPV6_AWARE_PAC_MAIN_FUNCTION + " not found in PAC Script.");
+                }
+            } finally {
+                enginePool.returnObject(scriptEngine);
+            }
+            globPatternMatcher.ensureCapacity(source.getContent());
+            CompiledPacScript compiledScript = null;
+            if (systemConfig.isPacScriptCompilerEnabled() && mainFunction.equals(STANDARD_PAC_MAIN_FUNCTION)) {
+                compiledScript = PacScriptCompiler.compile(source.getContent(), pacHelperMethods);
+            }
+            return new LoadedScript(source, enginePool, mainFunction, compiledScript);
+        } catch (Exception e) {
+            enginePool.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Since the Graaljs {@link Context} is not thread safe, we maintain a pool of {@link GraalJSScriptEngine} instances.
+     */
+    private GenericObjectPool<GraalJSScriptEngine> createEnginePool(String pacSource) {
+        GenericObjectPoolConfig<GraalJSScriptEngine> config = new GenericObjectPoolConfig<>();
+        if (systemConfig.isPacScriptEnginePoolAdaptive()) {
+            // Sized by EnginePoolSizer, keeping the size reached by the replaced pool
+            LoadedScript current = loadedScript;
+            int maxTotal = current != null ? current.enginePool.getMaxTotal()
+                    : Math.max(1, Math.min(systemConfig.getPacScriptEnginePoolMinIdle(),
+                    systemConfig.getPacScriptEnginePoolMaxTotal()));
+            config.setMaxTotal(maxTotal);
+            config.setMaxIdle(maxTotal);
+            config.setMinIdle(0);
+            Duration idleTimeout = Duration.ofSeconds(systemConfig.getPacScriptEnginePoolIdleTimeout());
+            config.setSoftMinEvictableIdleTime(idleTimeout);
+            config.setTimeBetweenEvictionRuns(idleTimeout);
+            config.setNumTestsPerEvictionRun(-1);
+        } else {
+            config.setMaxTotal(systemConfig.getPacScriptEnginePoolMaxTotal());
+            config.setMinIdle(systemConfig.getPacScriptEnginePoolMinIdle());
+        }
+        config.setTestOnBorrow(false);
+        config.setTestOnCreate(false);
+        config.setTestOnReturn(false);
+        config.setBlockWhenExhausted(true);
+        if (systemConfig.getPacScriptEnginePoolMaxWait() > 0) {
+            config.setMaxWait(Duration.ofSeconds(systemConfig.getPacScriptEnginePoolMaxWait()));
+        }
+        return new GenericObjectPool<>(
+                new BasePooledObjectFactory<>() {
+                    @Override
+                    public GraalJSScriptEngine create() throws PacFileException {
+                        // The first engine also creates the shared Engine, do not count it
+                        long allocatedBytes = engineSingletonSupplier.hasValue()
+                                ? enginePoolStatistics.startEngineCreation() : -1;
+                        GraalJSScriptEngine scriptEngine = createScriptEngine(pacSource);
+                        enginePoolStatistics.endEngineCreation(allocatedBytes);
+                        return scriptEngine;
+                    }
+
+                    @Override
+                    public PooledObject<GraalJSScriptEngine> wrap(GraalJSScriptEngine obj) {
+                        return new DefaultPooledObject<>(obj);
+                    }
+
+                    @Override
+                    public void destroyObject(PooledObject<GraalJSScriptEngine> p) {
+                        p.getObject().close();
+                    }
+                }, config);
     }
 
     private boolean isJsFunctionAvailable(GraalJSScriptEngine eng, String functionName) {
@@ -179,24 +502,69 @@ public class PacScriptEvaluator implements ProxyListener {
     }
 
     /**
-     * Load and parse the PAC script file.
+     * Read the PAC script file.
+     * <p>When a previous read is given, the file is read only if changed: the file's last modified time is compared,
+     * respectively the HTTP request is conditional.
+     * <p>The remote file is read within the {@code pacScript.fetch.timeout} connect and read timeouts.
      *
-     * @return the {@link PacScriptEvaluator} instance.
+     * @param previous the previous read or {@code null}.
+     * @return the script or {@code null} if not modified since the previous read.
      * @throws IOException
      */
-    private String loadScript() throws IOException {
+    private PacSource readScript(PacSource previous) throws IOException {
         URL url = proxyConfig.getProxyPacFileLocationAsURL();
         Assert.state(url != null, "No proxy PAC file location found");
-        log.info("Get PAC file from: {}", url);
-        try (InputStream inputStream = url.openStream()) {
-            String content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        if (previous == null) {
+            log.info("Get PAC file from: {}", url);
+        } else {
+            log.debug("Check PAC file for changes: {}", url);
+        }
+        long lastModified = 0;
+        String etag = null;
+        String content;
+        if (!isRemote(url)) {
+            Path path;
+            try {
+                path = Paths.get(url.toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new IOException("Invalid PAC file location: " + url, e);
+            }
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+            if (previous != null && previous.getLastModified() == lastModified) {
+                return null;
+            }
+            content = Files.readString(path, StandardCharsets.UTF_8);
+        } else {
+            URLConnection connection = url.openConnection();
+            int timeout = (int) TimeUnit.SECONDS.toMillis(systemConfig.getPacScriptFetchTimeout());
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            if (previous != null) {
+                if (previous.getLastModified() > 0) {
+                    connection.setIfModifiedSince(previous.getLastModified());
+                }
+                if (previous.getEtag() != null) {
+                    connection.setRequestProperty(HttpHeaders.IF_NONE_MATCH, previous.getEtag());
+                }
+            }
+            if (connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                ((HttpURLConnection) connection).disconnect();
+                return null;
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+            }
+            lastModified = connection.getLastModified();
+            etag = connection.getHeaderField(HttpHeaders.ETAG);
+        }
+        if (previous == null) {
             log.info("PAC content: {}", content);
-            return content;
         }
+        return new PacSource(content, lastModified, etag);
     }
 
-    private GraalJSScriptEngine createScriptEngine() throws PacFileException, IOException {
-        String pacSource = loadScript();
+    private GraalJSScriptEngine createScriptEngine(String pacSource) throws PacFileException {
         try {
             GraalJSScriptEngine scriptEngine = GraalJSScriptEngine.create(engineSingletonSupplier.get(),
                     Context.newBuilder("js")
@@ -265,29 +633,338 @@ public class PacScriptEvaluator implements ProxyListener {
      * @throws IOException        when the PAC file cannot be loaded.
      */
     public List<ProxyInfo> findProxyForURL(URI uri) throws Exception {
-        GraalJSScriptEngine scriptEngine = enginePoolSingletonSupplier.get().borrowObject();
+        return evaluate(uri).getProxies();
+    }
+
+    /**
+     * Like {@link #findProxyForURL(URI)}, also telling the raw proxy line, where it comes from and the time spent.
+     *
+     * @param uri URI to get proxies for.
+     * @return the evaluation.
+     * @throws PacScriptException when something goes wrong with the JavaScript function's call.
+     */
+    public PacEvaluation evaluate(URI uri) throws PacScriptException {
+        return evaluate(uri, true);
+    }
+
+    /**
+     * Like {@link #evaluate(URI)}, without reading or updating the last result cache and without counting
+     * the evaluation in the metrics or in the engine pool statistics, so that a diagnostic evaluation
+     * does not change how the proxied requests are handled.
+     *
+     * @param uri URI to get proxies for.
+     * @return the evaluation.
+     * @throws PacScriptException when something goes wrong with the JavaScript function's call.
+     */
+    public PacEvaluation evaluateUnrecorded(URI uri) throws PacScriptException {
+        return evaluate(uri, false);
+    }
+
+    private PacEvaluation evaluate(URI uri, boolean recorded) throws PacScriptException {
+        long start = System.nanoTime();
+        LoadedScript script = this.loadedScript;
         try {
-            Object callResult;
+            Assert.state(script != null, "No PAC script loaded");
             try {
-                callResult = scriptEngine.invokeFunction(jsMainFunction,
-                        HttpUtils.toStrippedURLStr(uri), uri.getHost());
-            } finally {
-                // Make sure we return the PacScriptEngine instance back to the pool
-                enginePoolSingletonSupplier.get().returnObject(scriptEngine);
+                return evaluate(script, uri, recorded, start);
+            } catch (IllegalStateException e) {
+                // A reload may have closed the engine pool between reading the script and borrowing an engine
+                LoadedScript current = this.loadedScript;
+                if (!script.enginePool.isClosed() || current == null || current.enginePool == script.enginePool) {
+                    throw e;
+                }
+                log.debug("The PAC script has been reloaded during the evaluation, retry with the new one");
+                script = current;
+                return evaluate(script, uri, recorded, start);
             }
-            String proxyLine = Objects.toString(callResult, null);
-            log.debug("Parse proxyLine [{}] for uri [{}]", proxyLine, uri);
-            return HttpUtils.parsePacProxyLine(proxyLine, proxyBlacklist::isActive);
         } catch (Exception ex) {
-            throw new PacScriptException("Error when executing PAC script function: " + jsMainFunction, ex);
+            throw new PacScriptException("Error when executing PAC script function: "
+                    + (script != null ? script.mainFunction : null), ex);
+        }
+    }
+
+    private PacEvaluation evaluate(LoadedScript script, URI uri, boolean recorded, long start) throws Exception {
+        if (script.compiledScript != null) {
+            if (recorded) {
+                compiledEvaluations.increment();
+            }
+            String proxyLine = script.compiledScript.findProxyForURL(HttpUtils.toStrippedURLStr(uri),
+                    uri.getHost());
+            return toEvaluation(uri, proxyLine, PacEvaluation.Source.COMPILED, start);
+        }
+        if (recorded) {
+            scriptEvaluations.increment();
+        }
+        return evaluateScript(script, uri, recorded, start);
+    }
+
+    /**
+     * Evaluate the script with the JavaScript engine, falling back when no engine is available
+     * or the evaluation does not complete in time.
+     */
+    private PacEvaluation evaluateScript(LoadedScript script, URI uri, boolean recorded, long start)
+            throws Exception {
+        String host = uri.getHost();
+        String proxyLine;
+        try {
+            proxyLine = Objects.toString(invokeScript(script, uri, recorded), null);
+        } catch (NoSuchElementException e) {
+            if (recorded) {
+                borrowTimeouts.increment();
+            }
+            log.warn("No PAC script engine available in time for {}, use fallback", host);
+            return getFallback(uri, recorded, start);
+        } catch (TimeoutException e) {
+            if (recorded) {
+                evaluationTimeouts.increment();
+            }
+            log.warn("PAC script evaluation timed out for {}, use fallback", host);
+            return getFallback(uri, recorded, start);
+        }
+        // Parsed first, so that an invalid proxy line never becomes the last result
+        PacEvaluation evaluation = toEvaluation(uri, proxyLine, PacEvaluation.Source.SCRIPT, start);
+        if (recorded && proxyLine != null && host != null && systemConfig.isPacScriptEvaluationFallbackLastResult()) {
+            lastResultCacheSupplier.get().put(host, proxyLine);
+        }
+        return evaluation;
+    }
+
+    private PacEvaluation getFallback(URI uri, boolean recorded, long start) {
+        String host = uri.getHost();
+        if (recorded && host != null && systemConfig.isPacScriptEvaluationFallbackLastResult()) {
+            String lastResult = lastResultCacheSupplier.get().peek(host);
+            if (lastResult != null) {
+                return toEvaluation(uri, lastResult, PacEvaluation.Source.LAST_RESULT, start);
+            }
+        }
+        return toEvaluation(uri, systemConfig.getPacScriptEvaluationFallback(), PacEvaluation.Source.FALLBACK, start);
+    }
+
+    private PacEvaluation toEvaluation(URI uri, String proxyLine, PacEvaluation.Source source, long start) {
+        List<ProxyInfo> proxies = HttpUtils.filterProxies(parseProxyLine(proxyLine), proxyBlacklist::isActive);
+        return new PacEvaluation(proxyLine, proxies, source, System.nanoTime() - start);
+    }
+
+    /**
+     * Parse a proxy line, once per distinct line.
+     *
+     * @return the immutable list of the interned {@link ProxyInfo}s.
+     */
+    private List<ProxyInfo> parseProxyLine(String proxyLine) {
+        if (proxyLine == null) {
+            return HttpUtils.parsePacProxyLine(null);
         }
+        Cache<String, List<ProxyInfo>> proxyLineCache = proxyLineCacheSupplier.get();
+        List<ProxyInfo> proxies = proxyLineCache.peek(proxyLine);
+        if (proxies == null) {
+            log.debug("Parse proxyLine [{}]", proxyLine);
+            Cache<ProxyInfo, ProxyInfo> proxyInfoCache = proxyInfoCacheSupplier.get();
+            List<ProxyInfo> interned = new ArrayList<>();
+            for (ProxyInfo proxyInfo : HttpUtils.parsePacProxyLine(proxyLine)) {
+                ProxyInfo existing = proxyInfoCache.peek(proxyInfo);
+                if (existing == null) {
+                    proxyInfoCache.put(proxyInfo, proxyInfo);
+                    existing = proxyInfo;
+                }
+                interned.add(existing);
+            }
+            proxies = List.copyOf(interned);
+            proxyLineCache.put(proxyLine, proxies);
+        }
+        return proxies;
+    }
+
+    /**
+     * @return the number of evaluations that can run at once without waiting for a script engine.
+     */
+    public int getEvaluationParallelism() {
+        LoadedScript script = loadedScript;
+        if (script == null || script.compiledScript != null) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return Math.max(1, script.enginePool.getMaxTotal());
+    }
+
+    /**
+     * Call the main function on a pooled engine, on the caller's thread.
+     * <p>When a timeout is configured, an interruption is scheduled for when it elapses and cancelled as soon as
+     * the evaluation finishes; the interrupted evaluation gets its engine back to the pool once it stops.
+     * A helper method in progress (like a slow {@code dnsResolve}) completes before the interruption takes effect.
+     *
+     * @throws NoSuchElementException if no engine is available within {@code pacScriptEngine.pool.maxWait}.
+     * @throws TimeoutException       if the evaluation exceeds {@code pacScript.evaluation.timeout}.
+     * @throws IllegalStateException  if the engine pool has been closed by a reload.
+     */
+    private Object invokeScript(LoadedScript script, URI uri, boolean recorded) throws Exception {
+        // Return the engine to the pool it comes from, even if the script has been reloaded meanwhile
+        GenericObjectPool<GraalJSScriptEngine> enginePool = script.enginePool;
+        long borrowStart = System.nanoTime();
+        GraalJSScriptEngine scriptEngine;
+        try {
+            scriptEngine = enginePool.borrowObject();
+        } finally {
+            if (recorded) {
+                enginePoolStatistics.recordBorrow(System.nanoTime() - borrowStart, enginePool.getNumActive());
+            }
+        }
+        int timeout = systemConfig.getPacScriptEvaluationTimeout();
+        Evaluation evaluation = null;
+        ScheduledFuture<?> interruption = null;
+        try {
+            if (timeout > 0) {
+                Evaluation timedEvaluation = new Evaluation(scriptEngine);
+                evaluation = timedEvaluation;
+                // Interrupting waits for the evaluation to stop, so do it off the timer thread
+                interruption = timeoutSchedulerSupplier.get().schedule(() -> executorService.execute(() ->
+                                timedEvaluation.interrupt(Duration.ofSeconds(timeout))),
+                        timeout, TimeUnit.SECONDS);
+            }
+            return scriptEngine.invokeFunction(script.mainFunction, HttpUtils.toStrippedURLStr(uri), uri.getHost());
+        } catch (Exception e) {
+            if (evaluation != null && evaluation.isInterrupted()) {
+                TimeoutException timeoutException = new TimeoutException("PAC script evaluation timed out");
+                timeoutException.initCause(e);
+                throw timeoutException;
+            }
+            throw e;
+        } finally {
+            if (interruption != null) {
+                interruption.cancel(false);
+            }
+            if (evaluation != null) {
+                evaluation.finish();
+            }
+            // Make sure we return the PacScriptEngine instance back to the pool
+            enginePool.returnObject(scriptEngine);
+            if (!retiredEnginePools.isEmpty() && retiredEnginePools.contains(enginePool)) {
+                // Possibly the last engine of a pool replaced by a reload
+                closeDrainedEnginePools();
+            }
+        }
+    }
+
+    /**
+     * @return the current script's engine pool or {@code null} if no script is loaded.
+     */
+    GenericObjectPool<GraalJSScriptEngine> getEnginePool() {
+        LoadedScript script = loadedScript;
+        return script != null ? script.enginePool : null;
+    }
+
+    EnginePoolStatistics getEnginePoolStatistics() {
+        return enginePoolStatistics;
+    }
+
+    @Override
+    public synchronized void onStop() {
+        log.debug("Close the engine pools");
+        LoadedScript script = loadedScript;
+        loadedScript = null;
+        if (script != null) {
+            script.enginePool.close();
+        }
+        retiredEnginePools.forEach(GenericObjectPool::close);
+        retiredEnginePools.clear();
+        timeoutSchedulerSupplier.reset(ScheduledThreadPoolExecutor::shutdownNow);
+        lastResultCacheSupplier.reset(Cache::close);
+        proxyLineCacheSupplier.reset(Cache::close);
+        proxyInfoCacheSupplier.reset(Cache::close);
     }
 
     @Override
-    public void onStop() {
-        log.debug("Reset the scriptEngineSupplier");
-        enginePoolSingletonSupplier.reset();
-        jsMainFunction = null;
+    public String getMetricsName() {
+        return "pacScript";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        LoadedScript script = loadedScript;
+        metrics.put("compiled", script != null && script.compiledScript != null);
+        metrics.put("compiledEvaluations", compiledEvaluations.sum());
+        metrics.put("scriptEvaluations", scriptEvaluations.sum());
+        metrics.put("reloads", reloads.sum());
+        metrics.put("retiredEnginePools", retiredEnginePools.size());
+        metrics.put("evaluationTimeouts", evaluationTimeouts.sum());
+        metrics.put("borrowTimeouts", borrowTimeouts.sum());
+        if (script != null) {
+            metrics.put("enginePoolMaxTotal", script.enginePool.getMaxTotal());
+            metrics.put("enginePoolActive", script.enginePool.getNumActive());
+            metrics.put("enginePoolIdle", script.enginePool.getNumIdle());
+        }
+        metrics.put("engineMemoryEstimate", enginePoolStatistics.getEngineMemoryEstimate());
+        metrics.put("borrowWaitHistogram", enginePoolStatistics.getBorrowWaitHistogram());
+        return metrics;
+    }
+
+    /**
+     * A script evaluation in progress, interrupted only while it has not finished,
+     * so that the interruption never reaches the next evaluation on the same engine.
+     */
+    private static final class Evaluation {
+
+        private final GraalJSScriptEngine scriptEngine;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private boolean finished;
+
+        private volatile boolean interrupted;
+
+        Evaluation(GraalJSScriptEngine scriptEngine) {
+            this.scriptEngine = scriptEngine;
+        }
+
+        void finish() {
+            lock.lock();
+            try {
+                finished = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isInterrupted() {
+            return interrupted;
+        }
+
+        void interrupt(Duration timeout) {
+            lock.lock();
+            try {
+                if (!finished) {
+                    interrupted = true;
+                    scriptEngine.getPolyglotContext().interrupt(timeout);
+                }
+            } catch (TimeoutException e) {
+                log.warn("The PAC script evaluation is not interrupted after {}", timeout);
+            } catch (Exception e) {
+                log.debug("Cannot interrupt the PAC script evaluation", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class LoadedScript {
+
+        private final PacSource source;
+
+        private final GenericObjectPool<GraalJSScriptEngine> enginePool;
+
+        private final String mainFunction;
+
+        /**
+         * The script compiled by {@link PacScriptCompiler}, if any.
+         */
+        private final CompiledPacScript compiledScript;
+
+        LoadedScript(PacSource source, GenericObjectPool<GraalJSScriptEngine> enginePool,
+                     String mainFunction, CompiledPacScript compiledScript) {
+            this.source = source;
+            this.enginePool = enginePool;
+            this.mainFunction = mainFunction;
+            this.compiledScript = compiledScript;
+        }
     }
 
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyController;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * It checks the PAC script for changes while the local proxy runs in PAC mode,
+ * so that a changed script is picked up without restarting the proxy.
+ *
+ * @see PacScriptEvaluator#reloadIfModified()
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class PacScriptWatcher {
+
+    private final SystemConfig systemConfig;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ProxyController proxyController;
+
+    private final PacScriptEvaluator pacScriptEvaluator;
+
+    /**
+     * A job that reloads the PAC script when changed.
+     */
+    @Scheduled(fixedDelayString = "#{systemConfig.pacScriptWatchInterval * 1000}")
+    void checkPacScript() {
+        if (systemConfig.isPacScriptWatch() && proxyController.isRunning() && proxyConfig.isAutoConfig()) {
+            try {
+                if (pacScriptEvaluator.reloadIfModified()) {
+                    log.info("PAC script reloaded");
+                }
+            } catch (Exception e) {
+                log.warn("Cannot reload the PAC script, the current one is kept", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The PAC script's content, with the validators used to detect its changes.
+ */
+@RequiredArgsConstructor
+@Getter
+final class PacSource {
+
+    private final String content;
+
+    /**
+     * The last modified time (milliseconds) or {@code 0} if unknown.
+     */
+    private final long lastModified;
+
+    /**
+     * The HTTP {@code ETag} or {@code null} if unknown.
+     */
+    private final String etag;
+
+}
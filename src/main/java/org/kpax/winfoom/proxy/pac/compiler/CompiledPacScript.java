@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.compiler;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+/**
+ * A PAC script compiled by {@link PacScriptCompiler}, evaluated without JavaScript.
+ */
+@ThreadSafe
+public final class CompiledPacScript {
+
+    private final PacDecisions.Statement body;
+
+    CompiledPacScript(PacDecisions.Statement body) {
+        this.body = body;
+    }
+
+    /**
+     * The equivalent of the JavaScript {@code FindProxyForURL(url, host)} call.
+     *
+     * @param url  the stripped URL.
+     * @param host the URL's host.
+     * @return the proxy line or {@code null} if the script returns nothing.
+     */
+    public String findProxyForURL(String url, String host) {
+        return body.execute(url, host);
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.compiler;
+
+import org.kpax.winfoom.proxy.pac.PacHelperMethodsNetscape;
+import org.kpax.winfoom.proxy.pac.net.IpNetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The nodes of a compiled PAC script.
+ * <p>Every node receives the {@code FindProxyForURL(url, host)} arguments.
+ */
+final class PacDecisions {
+
+    private PacDecisions() {
+    }
+
+    /**
+     * A statement of the main function's body.
+     */
+    @FunctionalInterface
+    interface Statement {
+
+        /**
+         * @return the returned value or {@code null} if the execution falls through.
+         */
+        String execute(String url, String host);
+    }
+
+    @FunctionalInterface
+    interface BooleanNode {
+        boolean evaluate(String url, String host);
+    }
+
+    @FunctionalInterface
+    interface StringNode {
+        String evaluate(String url, String host);
+    }
+
+    @FunctionalInterface
+    interface NumberNode {
+        double evaluate(String url, String host);
+    }
+
+    /**
+     * One of the main function's parameters.
+     */
+    static final class Parameter implements StringNode {
+
+        private final int index;
+
+        Parameter(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String evaluate(String url, String host) {
+            return index == 0 ? url : host;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Parameter && ((Parameter) o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+    }
+
+    static final class Literal implements StringNode {
+
+        private final String value;
+
+        Literal(String value) {
+            this.value = value;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        @Override
+        public String evaluate(String url, String host) {
+            return value;
+        }
+    }
+
+    /**
+     * The {@code dnsResolve(host)} call, the way the JavaScript wrapper converts the result.
+     */
+    static final class DnsResolve implements StringNode {
+
+        private final PacHelperMethodsNetscape helperMethods;
+
+        private final StringNode argument;
+
+        DnsResolve(PacHelperMethodsNetscape helperMethods, StringNode argument) {
+            this.helperMethods = helperMethods;
+            this.argument = argument;
+        }
+
+        @Override
+        public String evaluate(String url, String host) {
+            return String.valueOf(helperMethods.dnsResolve(argument.evaluate(url, host)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DnsResolve && argument.equals(((DnsResolve) o).argument);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 + argument.hashCode();
+        }
+    }
+
+    /**
+     * A disjunction of {@code dnsDomainIs(argument, domain)} calls, with the domains in a trie
+     * of reversed characters.
+     * <p>It follows {@link org.kpax.winfoom.proxy.pac.DefaultPacHelperMethods#dnsDomainIs(String, String)}:
+     * a domain matches when it equals the host's part following the first dot, with or without the dot.
+     */
+    static final class DomainSet implements BooleanNode {
+
+        private final StringNode argument;
+
+        private final TrieNode root = new TrieNode();
+
+        private final List<String> domains = new ArrayList<>();
+
+        DomainSet(StringNode argument, String domain) {
+            this.argument = argument;
+            add(domain);
+        }
+
+        StringNode getArgument() {
+            return argument;
+        }
+
+        private void add(String domain) {
+            domains.add(domain);
+            TrieNode node = root;
+            for (int i = domain.length() - 1; i >= 0; i--) {
+                node = node.getOrAddChild(domain.charAt(i));
+            }
+            node.terminal = true;
+        }
+
+        void merge(DomainSet other) {
+            other.domains.forEach(this::add);
+        }
+
+        @Override
+        public boolean evaluate(String url, String host) {
+            String value = argument.evaluate(url, host);
+            int dotPos = value.indexOf('.');
+            if (dotPos == -1 || dotPos >= value.length() - 1) {
+                return false;
+            }
+            TrieNode node = root;
+            for (int i = value.length() - 1; i >= dotPos; i--) {
+                node = node.getChild(value.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+                if (i <= dotPos + 1 && node.terminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static class TrieNode {
+
+            private char[] keys = new char[0];
+
+            private TrieNode[] children = new TrieNode[0];
+
+            private boolean terminal;
+
+            TrieNode getChild(char key) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == key) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+
+            TrieNode getOrAddChild(char key) {
+                TrieNode child = getChild(key);
+                if (child == null) {
+                    child = new TrieNode();
+                    keys = Arrays.copyOf(keys, keys.length + 1);
+                    keys[keys.length - 1] = key;
+                    children = Arrays.copyOf(children, children.length + 1);
+                    children[children.length - 1] = child;
+                }
+                return child;
+            }
+        }
+    }
+
+    /**
+     * A disjunction of {@code isInNet(argument, pattern, mask)} calls, with the networks parsed once.
+     * <p>It follows {@link org.kpax.winfoom.proxy.pac.DefaultPacHelperMethods#isInNet(String, String, String)},
+     * the resolved address being parsed once for all the networks.
+     */
+    static final class NetworkSet implements BooleanNode {
+
+        private final PacHelperMethodsNetscape helperMethods;
+
+        private final StringNode argument;
+
+        private final List<IpNetwork> networks = new ArrayList<>();
+
+        NetworkSet(PacHelperMethodsNetscape helperMethods, StringNode argument, String pattern, String mask) {
+            this.helperMethods = helperMethods;
+            this.argument = argument;
+            this.networks.add(IpNetwork.of(pattern, mask));
+        }
+
+        StringNode getArgument() {
+            return argument;
+        }
+
+        void merge(NetworkSet other) {
+            networks.addAll(other.networks);
+        }
+
+        @Override
+        public boolean evaluate(String url, String host) {
+            String address = helperMethods.dnsResolve(argument.evaluate(url, host));
+            long ipv4 = IpNetwork.parseIpv4(address);
+            if (ipv4 != -1) {
+                for (int i = 0; i < networks.size(); i++) {
+                    if (networks.get(i).containsIpv4(ipv4)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            long[] ipv6 = new long[2];
+            if (IpNetwork.parseIpv6(address, ipv6)) {
+                for (int i = 0; i < networks.size(); i++) {
+                    if (networks.get(i).containsIpv6(ipv6[0], ipv6[1])) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+}
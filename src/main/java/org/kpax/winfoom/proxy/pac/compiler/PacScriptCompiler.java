@@ -0,0 +1,715 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.compiler;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kpax.winfoom.annotation.NotNull;
+import org.kpax.winfoom.proxy.pac.GlobPattern;
+import org.kpax.winfoom.proxy.pac.PacHelperMethodsNetscape;
+import org.kpax.winfoom.proxy.pac.compiler.PacDecisions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compile the PAC scripts written in a restricted, side effect free subset of JavaScript
+ * into a {@link CompiledPacScript}, so that they can be evaluated without the JavaScript engine.
+ * <p>The supported subset is a single {@code FindProxyForURL(url, host)} function whose body is made of
+ * {@code if}/{@code else} statements, blocks and {@code return "<proxy line>"} statements.
+ * The conditions can use:
+ * <ul>
+ * <li>the {@code !}, {@code &&}, {@code ||} operators, the equality and the numeric comparison operators</li>
+ * <li>the {@code isPlainHostName}, {@code dnsDomainIs}, {@code localHostOrDomainIs}, {@code isResolvable},
+ * {@code isInNet}, {@code dnsResolve}, {@code myIpAddress}, {@code dnsDomainLevels} and {@code shExpMatch}
+ * helper functions</li>
+ * <li>the function's parameters, the string and number literals, the {@code toLowerCase()}
+ * and {@code substring()} string methods</li>
+ * </ul>
+ * <p>The {@code dnsDomainIs} and {@code isInNet} calls of a disjunction, having the same first argument
+ * and literal domains/networks, are merged into a domain trie, respectively into a network set.
+ * The literal {@code shExpMatch} patterns are compiled once into a {@link GlobPattern}.
+ * <p>Anything else makes the compilation fail, and the script is left to the JavaScript engine.
+ */
+@Slf4j
+public final class PacScriptCompiler {
+
+    private static final String MAIN_FUNCTION = "FindProxyForURL";
+
+    private static final Set<String> RESERVED_NAMES = Set.of("function", "if", "else", "return", "true", "false",
+            "var", "let", "const", "this", "null", "undefined", "isPlainHostName", "dnsDomainIs",
+            "localHostOrDomainIs", "isResolvable", "isInNet", "dnsResolve", "myIpAddress", "dnsDomainLevels",
+            "shExpMatch");
+
+    private static final Statement FALL_THROUGH = (url, host) -> null;
+
+    private final PacHelperMethodsNetscape helperMethods;
+
+    private final List<Token> tokens;
+
+    private int position;
+
+    private String[] parameters;
+
+    private PacScriptCompiler(PacHelperMethodsNetscape helperMethods, List<Token> tokens) {
+        this.helperMethods = helperMethods;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Compile a PAC script.
+     *
+     * @param source        the PAC script's content.
+     * @param helperMethods the PAC helper functions.
+     * @return the compiled script or {@code null} if the script is outside the supported subset.
+     */
+    public static CompiledPacScript compile(@NotNull String source, @NotNull PacHelperMethodsNetscape helperMethods) {
+        try {
+            CompiledPacScript compiledScript =
+                    new PacScriptCompiler(helperMethods, tokenize(source)).parseScript();
+            log.info("The PAC script has been compiled");
+            return compiledScript;
+        } catch (UnsupportedScriptException e) {
+            log.info("The PAC script cannot be compiled, it will be evaluated by the JavaScript engine: {}",
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    // *************************************************************
+    //  Parser
+    // *************************************************************
+
+    private CompiledPacScript parseScript() throws UnsupportedScriptException {
+        skipSemicolons();
+        expectName("function");
+        Token name = next();
+        if (!name.is(Kind.IDENTIFIER, MAIN_FUNCTION)) {
+            throw new UnsupportedScriptException("the script must contain only the " + MAIN_FUNCTION + " function");
+        }
+        expect("(");
+        String urlParameter = parseParameterName();
+        expect(",");
+        String hostParameter = parseParameterName();
+        if (urlParameter.equals(hostParameter)) {
+            throw new UnsupportedScriptException("duplicated parameter");
+        }
+        expect(")");
+        parameters = new String[]{urlParameter, hostParameter};
+        Statement body = parseBlock();
+        skipSemicolons();
+        if (peek().kind != Kind.END) {
+            throw new UnsupportedScriptException("the script must contain only the " + MAIN_FUNCTION + " function");
+        }
+        return new CompiledPacScript(body);
+    }
+
+    private String parseParameterName() throws UnsupportedScriptException {
+        Token token = next();
+        if (token.kind != Kind.IDENTIFIER || RESERVED_NAMES.contains(token.text)) {
+            throw new UnsupportedScriptException("unsupported parameter " + token);
+        }
+        return token.text;
+    }
+
+    private Statement parseBlock() throws UnsupportedScriptException {
+        expect("{");
+        List<Statement> statements = new ArrayList<>();
+        while (!peek().is(Kind.PUNCTUATOR, "}")) {
+            Statement statement = parseStatement();
+            if (statement != FALL_THROUGH) {
+                statements.add(statement);
+            }
+        }
+        next();
+        if (statements.isEmpty()) {
+            return FALL_THROUGH;
+        } else if (statements.size() == 1) {
+            return statements.get(0);
+        }
+        Statement[] array = statements.toArray(new Statement[0]);
+        return (url, host) -> {
+            for (Statement statement : array) {
+                String result = statement.execute(url, host);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        };
+    }
+
+    private Statement parseStatement() throws UnsupportedScriptException {
+        Token token = peek();
+        if (token.is(Kind.PUNCTUATOR, "{")) {
+            return parseBlock();
+        } else if (token.is(Kind.PUNCTUATOR, ";")) {
+            next();
+            return FALL_THROUGH;
+        } else if (token.is(Kind.IDENTIFIER, "if")) {
+            next();
+            expect("(");
+            BooleanNode condition = toBoolean(parseExpression());
+            expect(")");
+            Statement then = parseStatement();
+            Statement otherwise = FALL_THROUGH;
+            if (peek().is(Kind.IDENTIFIER, "else")) {
+                next();
+                otherwise = parseStatement();
+            }
+            Statement elseStatement = otherwise;
+            return (url, host) -> condition.evaluate(url, host) ?
+                    then.execute(url, host) : elseStatement.execute(url, host);
+        } else if (token.is(Kind.IDENTIFIER, "return")) {
+            next();
+            Token value = next();
+            // A line break right after 'return' makes it return undefined
+            if (value.kind != Kind.STRING || value.newlineBefore) {
+                throw new UnsupportedScriptException("only string literals can be returned");
+            }
+            Token following = peek();
+            if (following.is(Kind.PUNCTUATOR, ";")) {
+                next();
+            } else if (!following.is(Kind.PUNCTUATOR, "}")
+                    && !(following.newlineBefore && following.kind == Kind.IDENTIFIER)) {
+                throw new UnsupportedScriptException("only string literals can be returned");
+            }
+            String result = value.text;
+            return (url, host) -> result;
+        }
+        throw new UnsupportedScriptException("unsupported statement " + token);
+    }
+
+    private Expression parseExpression() throws UnsupportedScriptException {
+        Expression first = parseConjunction();
+        if (!peek().is(Kind.PUNCTUATOR, "||")) {
+            return first;
+        }
+        List<BooleanNode> operands = new ArrayList<>();
+        addOperand(operands, toBoolean(first));
+        while (peek().is(Kind.PUNCTUATOR, "||")) {
+            next();
+            addOperand(operands, toBoolean(parseConjunction()));
+        }
+        if (operands.size() == 1) {
+            return Expression.ofBoolean(operands.get(0));
+        }
+        BooleanNode[] array = operands.toArray(new BooleanNode[0]);
+        return Expression.ofBoolean((url, host) -> {
+            for (BooleanNode operand : array) {
+                if (operand.evaluate(url, host)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Add an operand to a disjunction, merging the domain tries and the network sets.
+     * <p>Since the merged calls are side effect free, evaluating them earlier does not change the result.
+     */
+    private void addOperand(List<BooleanNode> operands, BooleanNode operand) {
+        for (BooleanNode existing : operands) {
+            if (existing instanceof DomainSet && operand instanceof DomainSet
+                    && ((DomainSet) existing).getArgument().equals(((DomainSet) operand).getArgument())) {
+                ((DomainSet) existing).merge((DomainSet) operand);
+                return;
+            }
+            if (existing instanceof NetworkSet && operand instanceof NetworkSet
+                    && ((NetworkSet) existing).getArgument().equals(((NetworkSet) operand).getArgument())) {
+                ((NetworkSet) existing).merge((NetworkSet) operand);
+                return;
+            }
+        }
+        operands.add(operand);
+    }
+
+    private Expression parseConjunction() throws UnsupportedScriptException {
+        Expression left = parseEquality();
+        while (peek().is(Kind.PUNCTUATOR, "&&")) {
+            next();
+            BooleanNode first = toBoolean(left);
+            BooleanNode second = toBoolean(parseEquality());
+            left = Expression.ofBoolean((url, host) -> first.evaluate(url, host) && second.evaluate(url, host));
+        }
+        return left;
+    }
+
+    private Expression parseEquality() throws UnsupportedScriptException {
+        Expression left = parseRelational();
+        while (peek().isOneOf("==", "===", "!=", "!==")) {
+            boolean negated = next().text.startsWith("!");
+            Expression right = parseRelational();
+            if (left.type != right.type) {
+                throw new UnsupportedScriptException("comparison between different types");
+            }
+            BooleanNode equality;
+            if (left.type == Type.STRING) {
+                StringNode first = left.stringNode;
+                StringNode second = right.stringNode;
+                equality = (url, host) -> Objects.equals(first.evaluate(url, host), second.evaluate(url, host));
+            } else if (left.type == Type.NUMBER) {
+                NumberNode first = left.numberNode;
+                NumberNode second = right.numberNode;
+                equality = (url, host) -> first.evaluate(url, host) == second.evaluate(url, host);
+            } else {
+                BooleanNode first = left.booleanNode;
+                BooleanNode second = right.booleanNode;
+                equality = (url, host) -> first.evaluate(url, host) == second.evaluate(url, host);
+            }
+            BooleanNode result = equality;
+            left = Expression.ofBoolean(negated ? (url, host) -> !result.evaluate(url, host) : equality);
+        }
+        return left;
+    }
+
+    private Expression parseRelational() throws UnsupportedScriptException {
+        Expression left = parseUnary();
+        if (!peek().isOneOf("<", ">", "<=", ">=")) {
+            return left;
+        }
+        String operator = next().text;
+        NumberNode first = toNumber(left);
+        NumberNode second = toNumber(parseUnary());
+        return Expression.ofBoolean(switch (operator) {
+            case "<" -> (url, host) -> first.evaluate(url, host) < second.evaluate(url, host);
+            case ">" -> (url, host) -> first.evaluate(url, host) > second.evaluate(url, host);
+            case "<=" -> (url, host) -> first.evaluate(url, host) <= second.evaluate(url, host);
+            default -> (url, host) -> first.evaluate(url, host) >= second.evaluate(url, host);
+        });
+    }
+
+    private Expression parseUnary() throws UnsupportedScriptException {
+        if (peek().is(Kind.PUNCTUATOR, "!")) {
+            next();
+            BooleanNode operand = toBoolean(parseUnary());
+            return Expression.ofBoolean((url, host) -> !operand.evaluate(url, host));
+        }
+        return parsePostfix();
+    }
+
+    private Expression parsePostfix() throws UnsupportedScriptException {
+        Expression expression = parsePrimary();
+        while (peek().is(Kind.PUNCTUATOR, ".")) {
+            next();
+            Token method = next();
+            StringNode target = toString(expression);
+            List<Expression> arguments = parseArguments();
+            if (method.is(Kind.IDENTIFIER, "toLowerCase") && arguments.isEmpty()) {
+                expression = Expression.ofString((url, host) -> target.evaluate(url, host).toLowerCase(Locale.ROOT));
+            } else if (method.is(Kind.IDENTIFIER, "substring")
+                    && (arguments.size() == 1 || arguments.size() == 2)) {
+                NumberNode start = toNumber(arguments.get(0));
+                NumberNode end = arguments.size() == 2 ? toNumber(arguments.get(1)) : null;
+                expression = Expression.ofString((url, host) -> {
+                    String value = target.evaluate(url, host);
+                    return substring(value, start.evaluate(url, host),
+                            end != null ? end.evaluate(url, host) : value.length());
+                });
+            } else {
+                throw new UnsupportedScriptException("unsupported method " + method);
+            }
+        }
+        return expression;
+    }
+
+    private Expression parsePrimary() throws UnsupportedScriptException {
+        Token token = next();
+        switch (token.kind) {
+            case STRING:
+                return Expression.ofString(new Literal(token.text));
+            case NUMBER:
+                double number = Double.parseDouble(token.text);
+                return Expression.ofNumber((url, host) -> number);
+            case PUNCTUATOR:
+                if (token.text.equals("(")) {
+                    Expression expression = parseExpression();
+                    expect(")");
+                    return expression;
+                }
+                break;
+            case IDENTIFIER:
+                if (token.text.equals("true") || token.text.equals("false")) {
+                    boolean value = Boolean.parseBoolean(token.text);
+                    return Expression.ofBoolean((url, host) -> value);
+                }
+                for (int i = 0; i < parameters.length; i++) {
+                    if (parameters[i].equals(token.text)) {
+                        return Expression.ofString(new Parameter(i));
+                    }
+                }
+                if (peek().is(Kind.PUNCTUATOR, "(")) {
+                    return parseCall(token.text, parseArguments());
+                }
+                break;
+            default:
+        }
+        throw new UnsupportedScriptException("unsupported expression " + token);
+    }
+
+    private Expression parseCall(String function, List<Expression> arguments) throws UnsupportedScriptException {
+        switch (function) {
+            case "isPlainHostName": {
+                StringNode argument = toString(single(arguments, 1, function));
+                return Expression.ofBoolean((url, host) -> helperMethods.isPlainHostName(argument.evaluate(url, host)));
+            }
+            case "dnsDomainIs": {
+                StringNode argument = toString(single(arguments, 2, function));
+                StringNode domain = toString(arguments.get(1));
+                if (domain instanceof Literal) {
+                    return Expression.ofBoolean(new DomainSet(argument, ((Literal) domain).getValue()));
+                }
+                return Expression.ofBoolean((url, host) -> helperMethods.dnsDomainIs(argument.evaluate(url, host),
+                        domain.evaluate(url, host)));
+            }
+            case "localHostOrDomainIs": {
+                StringNode argument = toString(single(arguments, 2, function));
+                StringNode hostDomain = toString(arguments.get(1));
+                return Expression.ofBoolean((url, host) -> helperMethods.localHostOrDomainIs(
+                        argument.evaluate(url, host), hostDomain.evaluate(url, host)));
+            }
+            case "isResolvable": {
+                StringNode argument = toString(single(arguments, 1, function));
+                return Expression.ofBoolean((url, host) -> helperMethods.isResolvable(argument.evaluate(url, host)));
+            }
+            case "isInNet": {
+                StringNode argument = toString(single(arguments, 3, function));
+                StringNode pattern = toString(arguments.get(1));
+                StringNode mask = toString(arguments.get(2));
+                if (pattern instanceof Literal && mask instanceof Literal) {
+                    return Expression.ofBoolean(new NetworkSet(helperMethods, argument,
+                            ((Literal) pattern).getValue(), ((Literal) mask).getValue()));
+                }
+                return Expression.ofBoolean((url, host) -> helperMethods.isInNet(argument.evaluate(url, host),
+                        pattern.evaluate(url, host), mask.evaluate(url, host)));
+            }
+            case "dnsResolve":
+                return Expression.ofString(new DnsResolve(helperMethods, toString(single(arguments, 1, function))));
+            case "myIpAddress":
+                if (!arguments.isEmpty()) {
+                    throw new UnsupportedScriptException("wrong number of arguments for " + function);
+                }
+                return Expression.ofString((url, host) -> String.valueOf(helperMethods.myIpAddress()));
+            case "dnsDomainLevels": {
+                StringNode argument = toString(single(arguments, 1, function));
+                return Expression.ofNumber((url, host) -> helperMethods.dnsDomainLevels(argument.evaluate(url, host)));
+            }
+            case "shExpMatch": {
+                StringNode argument = toString(single(arguments, 2, function));
+                StringNode pattern = toString(arguments.get(1));
+                if (pattern instanceof Literal) {
+                    GlobPattern globPattern = compileGlob(((Literal) pattern).getValue());
+                    return Expression.ofBoolean((url, host) -> globPattern.matches(argument.evaluate(url, host)));
+                }
+                return Expression.ofBoolean((url, host) -> helperMethods.shExpMatch(argument.evaluate(url, host),
+                        pattern.evaluate(url, host)));
+            }
+            default:
+                throw new UnsupportedScriptException("unsupported function " + function);
+        }
+    }
+
+    private static GlobPattern compileGlob(String glob) throws UnsupportedScriptException {
+        try {
+            return GlobPattern.compile(glob.trim());
+        } catch (PatternSyntaxException e) {
+            throw new UnsupportedScriptException("invalid shExpMatch pattern " + glob);
+        }
+    }
+
+    /**
+     * @return the first argument, after checking the arguments count.
+     */
+    private static Expression single(List<Expression> arguments, int count, String function)
+            throws UnsupportedScriptException {
+        if (arguments.size() != count) {
+            throw new UnsupportedScriptException("wrong number of arguments for " + function);
+        }
+        return arguments.get(0);
+    }
+
+    private List<Expression> parseArguments() throws UnsupportedScriptException {
+        expect("(");
+        List<Expression> arguments = new ArrayList<>();
+        if (!peek().is(Kind.PUNCTUATOR, ")")) {
+            arguments.add(parseExpression());
+            while (peek().is(Kind.PUNCTUATOR, ",")) {
+                next();
+                arguments.add(parseExpression());
+            }
+        }
+        expect(")");
+        return arguments;
+    }
+
+    /**
+     * The JavaScript {@code String.prototype.substring} semantics.
+     */
+    private static String substring(String value, double start, double end) {
+        int length = value.length();
+        int from = (int) Math.min(Math.max(Double.isNaN(start) ? 0 : start, 0), length);
+        int to = (int) Math.min(Math.max(Double.isNaN(end) ? 0 : end, 0), length);
+        return value.substring(Math.min(from, to), Math.max(from, to));
+    }
+
+    private static BooleanNode toBoolean(Expression expression) throws UnsupportedScriptException {
+        if (expression.type != Type.BOOLEAN) {
+            throw new UnsupportedScriptException("boolean expression expected");
+        }
+        return expression.booleanNode;
+    }
+
+    private static StringNode toString(Expression expression) throws UnsupportedScriptException {
+        if (expression.type != Type.STRING) {
+            throw new UnsupportedScriptException("string expression expected");
+        }
+        return expression.stringNode;
+    }
+
+    private static NumberNode toNumber(Expression expression) throws UnsupportedScriptException {
+        if (expression.type != Type.NUMBER) {
+            throw new UnsupportedScriptException("number expression expected");
+        }
+        return expression.numberNode;
+    }
+
+    private Token peek() {
+        return tokens.get(position);
+    }
+
+    private Token next() {
+        Token token = tokens.get(position);
+        if (token.kind != Kind.END) {
+            position++;
+        }
+        return token;
+    }
+
+    private void expect(String punctuator) throws UnsupportedScriptException {
+        Token token = next();
+        if (!token.is(Kind.PUNCTUATOR, punctuator)) {
+            throw new UnsupportedScriptException("expected '" + punctuator + "' but found " + token);
+        }
+    }
+
+    private void expectName(String name) throws UnsupportedScriptException {
+        Token token = next();
+        if (!token.is(Kind.IDENTIFIER, name)) {
+            throw new UnsupportedScriptException("expected '" + name + "' but found " + token);
+        }
+    }
+
+    private void skipSemicolons() {
+        while (peek().is(Kind.PUNCTUATOR, ";")) {
+            next();
+        }
+    }
+
+    // *************************************************************
+    //  Tokenizer
+    // *************************************************************
+
+    private static final String[] PUNCTUATORS = {"===", "!==", "==", "!=", "<=", ">=", "&&", "||",
+            "(", ")", "{", "}", ",", ";", "!", "<", ">", "."};
+
+    private static List<Token> tokenize(String source) throws UnsupportedScriptException {
+        List<Token> tokens = new ArrayList<>();
+        boolean newlineBefore = false;
+        int i = 0;
+        int length = source.length();
+        while (i < length) {
+            char c = source.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029') {
+                newlineBefore = true;
+                i++;
+            } else if (Character.isWhitespace(c) || Character.isSpaceChar(c) || c == '\uFEFF') {
+                i++;
+            } else if (source.startsWith("//", i)) {
+                while (i < length && source.charAt(i) != '\n' && source.charAt(i) != '\r') {
+                    i++;
+                }
+            } else if (source.startsWith("/*", i)) {
+                int end = source.indexOf("*/", i + 2);
+                if (end == -1) {
+                    throw new UnsupportedScriptException("unterminated comment");
+                }
+                String comment = source.substring(i, end);
+                if (comment.indexOf('\n') >= 0 || comment.indexOf('\r') >= 0) {
+                    newlineBefore = true;
+                }
+                i = end + 2;
+            } else if (Character.isLetter(c) || c == '_' || c == '$') {
+                int start = i;
+                while (i < length && (Character.isLetterOrDigit(source.charAt(i))
+                        || source.charAt(i) == '_' || source.charAt(i) == '$')) {
+                    i++;
+                }
+                tokens.add(new Token(Kind.IDENTIFIER, source.substring(start, i), newlineBefore));
+                newlineBefore = false;
+            } else if (c >= '0' && c <= '9') {
+                int start = i;
+                while (i < length && source.charAt(i) >= '0' && source.charAt(i) <= '9') {
+                    i++;
+                }
+                if (i < length && source.charAt(i) == '.') {
+                    i++;
+                    while (i < length && source.charAt(i) >= '0' && source.charAt(i) <= '9') {
+                        i++;
+                    }
+                }
+                if (i < length && (Character.isLetter(source.charAt(i)) || source.charAt(i) == '_')) {
+                    throw new UnsupportedScriptException("unsupported number literal");
+                }
+                tokens.add(new Token(Kind.NUMBER, source.substring(start, i), newlineBefore));
+                newlineBefore = false;
+            } else if (c == '"' || c == '\'') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        throw new UnsupportedScriptException("unterminated string literal");
+                    }
+                    char sc = source.charAt(i++);
+                    if (sc == c) {
+                        break;
+                    } else if (sc == '\n' || sc == '\r') {
+                        throw new UnsupportedScriptException("unterminated string literal");
+                    } else if (sc == '\\') {
+                        if (i >= length) {
+                            throw new UnsupportedScriptException("unterminated string literal");
+                        }
+                        char escaped = source.charAt(i++);
+                        switch (escaped) {
+                            case '\\', '\'', '"', '/' -> value.append(escaped);
+                            case 'n' -> value.append('\n');
+                            case 't' -> value.append('\t');
+                            case 'r' -> value.append('\r');
+                            default -> throw new UnsupportedScriptException("unsupported escape sequence");
+                        }
+                    } else {
+                        value.append(sc);
+                    }
+                }
+                tokens.add(new Token(Kind.STRING, value.toString(), newlineBefore));
+                newlineBefore = false;
+            } else {
+                String punctuator = null;
+                for (String candidate : PUNCTUATORS) {
+                    if (source.startsWith(candidate, i)) {
+                        punctuator = candidate;
+                        break;
+                    }
+                }
+                if (punctuator == null) {
+                    throw new UnsupportedScriptException("unsupported character '" + c + "'");
+                }
+                tokens.add(new Token(Kind.PUNCTUATOR, punctuator, newlineBefore));
+                newlineBefore = false;
+                i += punctuator.length();
+            }
+        }
+        tokens.add(new Token(Kind.END, "", newlineBefore));
+        return tokens;
+    }
+
+    private enum Kind {
+        IDENTIFIER, STRING, NUMBER, PUNCTUATOR, END
+    }
+
+    private static final class Token {
+
+        private final Kind kind;
+
+        private final String text;
+
+        private final boolean newlineBefore;
+
+        Token(Kind kind, String text, boolean newlineBefore) {
+            this.kind = kind;
+            this.text = text;
+            this.newlineBefore = newlineBefore;
+        }
+
+        boolean is(Kind kind, String text) {
+            return this.kind == kind && this.text.equals(text);
+        }
+
+        boolean isOneOf(String... punctuators) {
+            if (kind == Kind.PUNCTUATOR) {
+                for (String punctuator : punctuators) {
+                    if (text.equals(punctuator)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return kind == Kind.END ? "end of script" : "'" + text + "'";
+        }
+    }
+
+    private enum Type {
+        BOOLEAN, STRING, NUMBER
+    }
+
+    /**
+     * A typed expression node.
+     */
+    private static final class Expression {
+
+        private final Type type;
+
+        private final BooleanNode booleanNode;
+
+        private final StringNode stringNode;
+
+        private final NumberNode numberNode;
+
+        private Expression(Type type, BooleanNode booleanNode, StringNode stringNode, NumberNode numberNode) {
+            this.type = type;
+            this.booleanNode = booleanNode;
+            this.stringNode = stringNode;
+            this.numberNode = numberNode;
+        }
+
+        static Expression ofBoolean(BooleanNode node) {
+            return new Expression(Type.BOOLEAN, node, null, null);
+        }
+
+        static Expression ofString(StringNode node) {
+            return new Expression(Type.STRING, null, node, null);
+        }
+
+        static Expression ofNumber(NumberNode node) {
+            return new Expression(Type.NUMBER, null, null, node);
+        }
+    }
+
+    /**
+     * Signal that the script is outside the supported subset.
+     */
+    private static class UnsupportedScriptException extends Exception {
+
+        UnsupportedScriptException(String message) {
+            super(message);
+        }
+    }
+
+}
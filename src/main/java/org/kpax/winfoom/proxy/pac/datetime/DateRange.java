@@ -27,7 +27,7 @@
 
 package org.kpax.winfoom.proxy.pac.datetime;
 
-import java.util.Calendar;
+import java.time.LocalDateTime;
 
 /**
  * Evaluates a date against a date range.
@@ -48,7 +48,7 @@ import java.util.Calendar;
  *
  * @author lbruun
  */
-class DateRange {
+class DateRange extends PacDateTimeRange {
 
     private final static int UNDEFINED = -1;
 
@@ -59,7 +59,9 @@ class DateRange {
     private final int dateMin;
     private final int dateMax;
 
-    public DateRange(int yearMin, int yearMax, int monthMin, int monthMax, int dateMin, int dateMax) {
+    public DateRange(int yearMin, int yearMax, int monthMin, int monthMax, int dateMin, int dateMax,
+                     boolean useGMT) {
+        super(useGMT);
         this.yearMin = yearMin;
         this.yearMax = ((yearMax == UNDEFINED) && (yearMin != UNDEFINED)) ? yearMin : yearMax;
         this.monthMin = monthMin;
@@ -68,11 +70,12 @@ class DateRange {
         this.dateMax = ((dateMax == UNDEFINED) && (dateMin != UNDEFINED)) ? dateMin : dateMax;
     }
 
-    public boolean isInRange(Calendar cal) {
+    @Override
+    boolean isInRange(LocalDateTime dateTime) {
 
-        int year = cal.get(Calendar.YEAR);
-        int month = cal.get(Calendar.MONTH);
-        int date = cal.get(Calendar.DATE);
+        int year = dateTime.getYear();
+        int month = dateTime.getMonthValue() - 1;
+        int date = dateTime.getDayOfMonth();
         if (yearDefined()) {
             if (!(year >= yearMin && year <= yearMax)) {
                 return false;
@@ -157,6 +160,7 @@ class DateRange {
         private int monthMax = UNDEFINED;
         private int dateMin = UNDEFINED;
         private int dateMax = UNDEFINED;
+        private boolean useGMT;
 
         private DateRangeBuilder() {
         }
@@ -183,8 +187,13 @@ class DateRange {
             return this;
         }
 
+        public DateRangeBuilder withGMT(boolean useGMT) {
+            this.useGMT = useGMT;
+            return this;
+        }
+
         public DateRange build() {
-            return new DateRange(yearMin, yearMax, monthMin, monthMax, dateMin, dateMax);
+            return new DateRange(yearMin, yearMax, monthMin, monthMax, dateMin, dateMax, useGMT);
         }
 
     }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.datetime;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A compiled {@code weekdayRange()}, {@code dateRange()} or {@code timeRange()} call,
+ * created by {@link PacDateTimeUtils}.
+ * <p>It is immutable, so it can be reused for any call having the same arguments.
+ */
+@ThreadSafe
+public abstract class PacDateTimeRange {
+
+    private final boolean useGMT;
+
+    PacDateTimeRange(boolean useGMT) {
+        this.useGMT = useGMT;
+    }
+
+    /**
+     * Evaluates if now is within this range.
+     * <p>The current time has a second precision, being shared by all the calls within the same second.
+     *
+     * @return true if within range
+     */
+    public boolean isInRange() {
+        return isInRange(PacDateTimeUtils.now(useGMT));
+    }
+
+    /**
+     * Evaluates if an instant is within this range.
+     *
+     * @param instant the instant
+     * @return true if within range
+     */
+    public boolean isInRange(Instant instant) {
+        return isInRange(LocalDateTime.ofInstant(instant, useGMT ? ZoneOffset.UTC : ZoneId.systemDefault()));
+    }
+
+    /**
+     * @param dateTime the local or the GMT date-time, as required by the call.
+     * @return true if within range
+     */
+    abstract boolean isInRange(LocalDateTime dateTime);
+
+}
@@ -29,7 +29,12 @@ package org.kpax.winfoom.proxy.pac.datetime;
 
 import org.kpax.winfoom.proxy.pac.PacHelperMethodsNetscape;
 
-import java.util.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Methods and constants useful in PAC script evaluation, specifically
@@ -53,19 +58,21 @@ public class PacDateTimeUtils {
      */
     public final static List<String> MONTH_NAMES = List.of("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC");
 
-    private static final TimeZone UTC_TIME = TimeZone.getTimeZone("UTC");
+    /**
+     * The current time, refreshed at most once per second.
+     */
+    private static volatile ClockSnapshot clockSnapshot = new ClockSnapshot(Instant.now().getEpochSecond());
 
 
     /**
-     * Evaluates if now is within a weekday range. Method arguments are as described
+     * Compiles a weekday range. Method arguments are as described
      * for {@link PacHelperMethodsNetscape#weekdayRange(Object...) }
      *
-     * @param now
-     * @param args
-     * @return true if within range
+     * @param args arguments
+     * @return the weekday range
      * @throws PacDateTimeInputException if arguments were invalid
      */
-    public static boolean isInWeekdayRange(Date now, Object... args) throws PacDateTimeInputException {
+    public static PacDateTimeRange compileWeekdayRange(Object... args) throws PacDateTimeInputException {
         ParamsInfo paramsInfo = getParamsInfo(args);
 
         if (!(paramsInfo.count >= 1 && paramsInfo.count <= 2)) {
@@ -80,35 +87,26 @@ public class PacDateTimeUtils {
             wdNumMin = getWeekday(args[0].toString());
             wdNumMax = getWeekday(args[1].toString());
         }
-
-        Calendar cal = getCalendar(now, paramsInfo.useGMT);
-        int wdNum = cal.get(Calendar.DAY_OF_WEEK);
-
-        if (wdNumMin <= wdNumMax) {
-            return (wdNum >= wdNumMin && wdNum <= wdNumMax);
-        } else {
-            return (wdNum >= wdNumMin || wdNum <= wdNumMax);
-        }
+        return new WeekdayRange(wdNumMin, wdNumMax, paramsInfo.useGMT);
     }
 
 
     /**
-     * Evaluates if now is within a time range. Method arguments are as described
+     * Compiles a time range. Method arguments are as described
      * for {@link PacHelperMethodsNetscape#timeRange(Object...) }
      *
-     * @param now
-     * @param args
-     * @return true if within range
+     * @param args arguments
+     * @return the time range
      * @throws PacDateTimeInputException if arguments were invalid
      */
-    public static boolean isInTimeRange(Date now, Object... args) throws PacDateTimeInputException {
+    public static PacDateTimeRange compileTimeRange(Object... args) throws PacDateTimeInputException {
         ParamsInfo paramsInfo = getParamsInfo(args);
 
         if (!(paramsInfo.count >= 1 && paramsInfo.count <= 6) || paramsInfo.count == 5 || paramsInfo.count == 3) {
             throw new PacDateTimeInputException("invalid number of arguments");
         }
 
-        TimeRange.TimeRangeBuilder builder = TimeRange.getBuilder();
+        TimeRange.TimeRangeBuilder builder = TimeRange.getBuilder().withGMT(paramsInfo.useGMT);
 
         if (paramsInfo.count == 1) {
             builder.withHourMinMax(getHour(args[0]), getHour(args[0]));
@@ -129,30 +127,26 @@ public class PacDateTimeUtils {
                     .withMinuteMinMax(getMinute(args[1]), getMinute(args[4]))
                     .withSecondMinMax(getSecond(args[2]), getSecond(args[5]));
         }
-        TimeRange timeRange = builder.build();
-
-        Calendar calendar = getCalendar(now, paramsInfo.useGMT);
-        return timeRange.isInRange(calendar);
+        return builder.build();
     }
 
 
     /**
-     * Evaluates if now is within a date range. Method arguments are as described
+     * Compiles a date range. Method arguments are as described
      * for {@link PacHelperMethodsNetscape#dateRange(Object...)  }
      *
-     * @param now
      * @param args arguments
-     * @return true if within range
+     * @return the date range
      * @throws PacDateTimeInputException if arguments were invalid
      */
-    public static boolean isInDateRange(Date now, Object... args) throws PacDateTimeInputException {
+    public static PacDateTimeRange compileDateRange(Object... args) throws PacDateTimeInputException {
         ParamsInfo paramsInfo = getParamsInfo(args);
 
         if (paramsInfo.count < 1 || paramsInfo.count > 6 || paramsInfo.count == 5 || paramsInfo.count == 3) {
             throw new PacDateTimeInputException("invalid number of arguments");
         }
 
-        DateRange.DateRangeBuilder builder = DateRange.builder();
+        DateRange.DateRangeBuilder builder = DateRange.builder().withGMT(paramsInfo.useGMT);
         if (paramsInfo.count == 1) {
             if (isYear(args[0])) {
                 int year = getYear(args[0]);
@@ -191,9 +185,26 @@ public class PacDateTimeUtils {
                     .withMonth(getMonth(args[1].toString()), getMonth(args[4].toString()))
                     .withDate(getDate(args[0]), getDate(args[3]));
         }
+        return builder.build();
+    }
 
-        Calendar cal = getCalendar(now, paramsInfo.useGMT);
-        return builder.build().isInRange(cal);
+    /**
+     * Get the current date-time, with a second precision.
+     * <p>The same snapshot is shared by all the calls within a second, so no
+     * date-time computation happens for them.
+     *
+     * @param useGMT whether to get the GMT or the local date-time
+     * @return the current date-time
+     */
+    static LocalDateTime now(boolean useGMT) {
+        long epochSecond = Math.floorDiv(System.currentTimeMillis(), 1000);
+        ClockSnapshot snapshot = clockSnapshot;
+        if (epochSecond != snapshot.epochSecond) {
+            // Racy, but the snapshots are immutable
+            snapshot = new ClockSnapshot(epochSecond);
+            clockSnapshot = snapshot;
+        }
+        return useGMT ? snapshot.gmt : snapshot.local;
     }
 
 
@@ -287,16 +298,6 @@ public class PacDateTimeUtils {
         return sec;
     }
 
-    private static Calendar getCalendar(Date now, boolean useGMT) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(now);
-        if (useGMT) {
-            cal.setTimeZone(UTC_TIME);
-        }
-        return cal;
-    }
-
-
     /**
      * Gets the number of actual arguments passed to a JavaScript
      * function. This is done by counting the number of arguments of type
@@ -324,7 +325,7 @@ public class PacDateTimeUtils {
     private static ParamsInfo getParamsInfo(Object... args) {
         int noOfParams = getNoOfParams(args);
         boolean useGMT;
-        if (args[noOfParams - 1] instanceof CharSequence) {
+        if (noOfParams > 0 && args[noOfParams - 1] instanceof CharSequence) {
             String p = args[noOfParams - 1].toString();
             useGMT = p.equals("GMT");
         } else {
@@ -347,6 +348,19 @@ public class PacDateTimeUtils {
         }
     }
 
+    private static class ClockSnapshot {
+        private final long epochSecond;
+        private final LocalDateTime local;
+        private final LocalDateTime gmt;
+
+        ClockSnapshot(long epochSecond) {
+            Instant instant = Instant.ofEpochSecond(epochSecond);
+            this.epochSecond = epochSecond;
+            this.local = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+            this.gmt = LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
+        }
+    }
+
     private static class ParamsInfo {
         private final int count;
         private final boolean useGMT;
@@ -13,7 +13,7 @@
  */
 package org.kpax.winfoom.proxy.pac.datetime;
 
-import java.util.Calendar;
+import java.time.LocalDateTime;
 
 /**
  * Evaluates a time of day against a time range.
@@ -49,7 +49,7 @@ import java.util.Calendar;
  * See the License for the specific language governing permissions and limitations under the License.
  */
 
-class TimeRange {
+class TimeRange extends PacDateTimeRange {
 
     private final static int UNDEFINED = -1;
 
@@ -60,7 +60,9 @@ class TimeRange {
     private final int secondMin;
     private final int secondMax;
 
-    public TimeRange(int hourMin, int hourMax, int minuteMin, int minuteMax, int secondMin, int secondMax) {
+    public TimeRange(int hourMin, int hourMax, int minuteMin, int minuteMax, int secondMin, int secondMax,
+                     boolean useGMT) {
+        super(useGMT);
         this.hourMin = hourMin;
         this.hourMax = ((hourMax == UNDEFINED) && (hourMin != UNDEFINED)) ? hourMin : hourMax;
         this.minuteMin = minuteMin;
@@ -69,11 +71,12 @@ class TimeRange {
         this.secondMax = ((secondMax == UNDEFINED) && (secondMin != UNDEFINED)) ? secondMin : secondMax;
     }
 
-    public boolean isInRange(Calendar cal) {
+    @Override
+    boolean isInRange(LocalDateTime dateTime) {
 
-        int hour = cal.get(Calendar.HOUR_OF_DAY);
-        int minute = cal.get(Calendar.MINUTE);
-        int second = cal.get(Calendar.SECOND);
+        int hour = dateTime.getHour();
+        int minute = dateTime.getMinute();
+        int second = dateTime.getSecond();
         if (hourDefined()) {
             if (hourMin <= hourMax) {
                 if (!(hour >= hourMin && hour <= hourMax)) {
@@ -165,6 +168,7 @@ class TimeRange {
         private int minuteMax = UNDEFINED;
         private int secondMin = UNDEFINED;
         private int secondMax = UNDEFINED;
+        private boolean useGMT;
 
         private TimeRangeBuilder() {
         }
@@ -187,8 +191,13 @@ class TimeRange {
             return this;
         }
 
+        public TimeRangeBuilder withGMT(boolean useGMT) {
+            this.useGMT = useGMT;
+            return this;
+        }
+
         public TimeRange build() {
-            return new TimeRange(hourMin, hourMax, minuteMin, minuteMax, secondMin, secondMax);
+            return new TimeRange(hourMin, hourMax, minuteMin, minuteMax, secondMin, secondMax, useGMT);
         }
     }
 }
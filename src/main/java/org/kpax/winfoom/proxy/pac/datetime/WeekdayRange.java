@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.datetime;
+
+import java.time.LocalDateTime;
+
+/**
+ * Evaluates a day of week against a weekday range.
+ * <p>
+ * - Weekdays are 1-7, the first one being Sunday.
+ * <p>
+ * Handles correctly the situation where a weekday range passes into next week,
+ * like Friday to Monday.
+ */
+class WeekdayRange extends PacDateTimeRange {
+
+    private final int weekdayMin;
+    private final int weekdayMax;
+
+    WeekdayRange(int weekdayMin, int weekdayMax, boolean useGMT) {
+        super(useGMT);
+        this.weekdayMin = weekdayMin;
+        this.weekdayMax = weekdayMax;
+    }
+
+    @Override
+    boolean isInRange(LocalDateTime dateTime) {
+        // DayOfWeek starts with Monday = 1
+        int weekday = dateTime.getDayOfWeek().getValue() % 7 + 1;
+        if (weekdayMin <= weekdayMax) {
+            return weekday >= weekdayMin && weekday <= weekdayMax;
+        } else {
+            return weekday >= weekdayMin || weekday <= weekdayMax;
+        }
+    }
+
+}
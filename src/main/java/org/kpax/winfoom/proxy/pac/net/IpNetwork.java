@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.net;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+/**
+ * An IPv4 or IPv6 network, held as primitive address and mask values.
+ * <p>The IPv4 addresses use the low 32 bits of a {@code long}, the IPv6 addresses use two {@code long}s.
+ * The parsing methods accept only IP literals (no DNS lookup), the IPv6 scope id is ignored.
+ */
+@ThreadSafe
+public final class IpNetwork {
+
+    /**
+     * The network that contains no address.
+     */
+    public static final IpNetwork NONE = new IpNetwork();
+
+    private static final long IPV4_MASK = 0xFFFFFFFFL;
+
+    /**
+     * Whether this is {@link #NONE}, checked first since no mask can describe an empty network.
+     */
+    private final boolean empty;
+
+    private final boolean ipv6;
+
+    private final long high;
+
+    private final long low;
+
+    private final long maskHigh;
+
+    private final long maskLow;
+
+    private IpNetwork() {
+        this.empty = true;
+        this.ipv6 = false;
+        this.high = 0;
+        this.low = 0;
+        this.maskHigh = 0;
+        this.maskLow = 0;
+    }
+
+    private IpNetwork(boolean ipv6, long high, long low, long maskHigh, long maskLow) {
+        this.empty = false;
+        this.ipv6 = ipv6;
+        this.maskHigh = maskHigh;
+        this.maskLow = maskLow;
+        this.high = high & maskHigh;
+        this.low = low & maskLow;
+    }
+
+    /**
+     * Create a network like {@code isInNet} expects it: an address pattern and a mask of the same family.
+     *
+     * @param pattern the address pattern, like {@code 10.0.0.0}.
+     * @param mask    the mask, like {@code 255.0.0.0}.
+     * @return the network or {@link #NONE} if the arguments are not valid.
+     */
+    public static IpNetwork of(String pattern, String mask) {
+        long address = parseIpv4(pattern);
+        if (address != -1) {
+            long maskAddress = parseIpv4(mask);
+            return maskAddress != -1 ? new IpNetwork(false, 0, address, 0, maskAddress) : NONE;
+        }
+        long[] address6 = new long[2];
+        long[] mask6 = new long[2];
+        if (parseIpv6(pattern, address6) && parseIpv6(mask, mask6)) {
+            return new IpNetwork(true, address6[0], address6[1], mask6[0], mask6[1]);
+        }
+        return NONE;
+    }
+
+    /**
+     * Create a network like {@code isInNetEx} expects it: an address followed by an optional prefix length.
+     *
+     * @param prefix the prefix, like {@code 10.0.0.0/8} or {@code fe80::/10}.
+     * @return the network or {@link #NONE} if the prefix is not valid.
+     */
+    public static IpNetwork ofPrefix(String prefix) {
+        int slashPos = prefix.indexOf('/');
+        String addressPart = slashPos == -1 ? prefix : prefix.substring(0, slashPos);
+        int bits;
+        long address = parseIpv4(addressPart);
+        boolean ipv6 = address == -1;
+        long[] address6 = new long[2];
+        if (ipv6 && !parseIpv6(addressPart, address6)) {
+            return NONE;
+        }
+        int maxBits = ipv6 ? 128 : 32;
+        if (slashPos == -1) {
+            bits = maxBits;
+        } else {
+            try {
+                bits = Integer.parseInt(prefix.substring(slashPos + 1));
+            } catch (NumberFormatException e) {
+                return NONE;
+            }
+            if (bits < 0 || bits > maxBits) {
+                return NONE;
+            }
+        }
+        if (ipv6) {
+            return new IpNetwork(true, address6[0], address6[1], prefixMask(Math.min(bits, 64)),
+                    prefixMask(Math.max(bits - 64, 0)));
+        }
+        return new IpNetwork(false, 0, address, 0, prefixMask(bits + 32) & IPV4_MASK);
+    }
+
+    private static long prefixMask(int bits) {
+        return bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    /**
+     * @param address the IPv4 address, as returned by {@link #parseIpv4(CharSequence)}.
+     * @return {@code true} iff this is an IPv4 network containing the address.
+     */
+    public boolean containsIpv4(long address) {
+        return !empty && !ipv6 && (address & maskLow) == low;
+    }
+
+    /**
+     * @param addressHigh the IPv6 address' first 64 bits.
+     * @param addressLow  the IPv6 address' last 64 bits.
+     * @return {@code true} iff this is an IPv6 network containing the address.
+     */
+    public boolean containsIpv6(long addressHigh, long addressLow) {
+        return !empty && ipv6 && (addressHigh & maskHigh) == high && (addressLow & maskLow) == low;
+    }
+
+    /**
+     * @param address the IP literal.
+     * @return {@code true} iff the network contains the address.
+     */
+    public boolean contains(String address) {
+        if (empty) {
+            return false;
+        }
+        long ipv4 = parseIpv4(address);
+        if (ipv4 != -1) {
+            return containsIpv4(ipv4);
+        }
+        if (!ipv6) {
+            return false;
+        }
+        long[] ipv6Address = new long[2];
+        return parseIpv6(address, ipv6Address) && containsIpv6(ipv6Address[0], ipv6Address[1]);
+    }
+
+    /**
+     * Parse a dotted-decimal IPv4 literal, without allocation.
+     *
+     * @param value the text to parse.
+     * @return the address or {@code -1} if the text is not an IPv4 literal.
+     */
+    public static long parseIpv4(CharSequence value) {
+        return value != null ? parseIpv4(value, 0, value.length()) : -1;
+    }
+
+    private static long parseIpv4(CharSequence value, int start, int end) {
+        long address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                address = (address << 8) | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return (address << 8) | octet;
+    }
+
+    /**
+     * Parse an IPv6 literal, including the {@code ::} compression and the dotted IPv4 suffix, without allocation.
+     *
+     * @param value   the text to parse, with or without the square brackets.
+     * @param address the array receiving the first, respectively the last 64 bits.
+     * @return {@code true} iff the text is an IPv6 literal.
+     */
+    public static boolean parseIpv6(CharSequence value, long[] address) {
+        if (value == null) {
+            return false;
+        }
+        int start = 0;
+        int end = value.length();
+        if (end > 1 && value.charAt(0) == '[' && value.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+        // The groups before the '::', then the groups after it
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+        int i = start;
+        if (end - start >= 2 && value.charAt(i) == ':' && value.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int groupEnd = i;
+            int group = 0;
+            boolean dotted = false;
+            while (groupEnd < end && value.charAt(groupEnd) != ':') {
+                char c = value.charAt(groupEnd);
+                int digit = Character.digit(c, 16);
+                if (c == '.') {
+                    dotted = true;
+                } else if (digit == -1) {
+                    return false;
+                }
+                group = (group << 4) | Math.max(digit, 0);
+                groupEnd++;
+            }
+            int groupLength = groupEnd - i;
+            if (dotted) {
+                // The IPv4 suffix counts for two groups and ends the address
+                long ipv4 = groupEnd == end ? parseIpv4(value, i, end) : -1;
+                if (ipv4 == -1 || headGroups + tailGroups > 6) {
+                    return false;
+                }
+                for (int shift = 16; shift >= 0; shift -= 16) {
+                    int part = (int) (ipv4 >>> shift) & 0xFFFF;
+                    if (compressed) {
+                        tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                        tailLow = (tailLow << 16) | part;
+                        tailGroups++;
+                    } else {
+                        headHigh = (headHigh << 16) | (headLow >>> 48);
+                        headLow = (headLow << 16) | part;
+                        headGroups++;
+                    }
+                }
+                break;
+            }
+            if (groupLength == 0 || groupLength > 4 || headGroups + tailGroups == 8) {
+                return false;
+            }
+            if (compressed) {
+                tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                tailLow = (tailLow << 16) | group;
+                tailGroups++;
+            } else {
+                headHigh = (headHigh << 16) | (headLow >>> 48);
+                headLow = (headLow << 16) | group;
+                headGroups++;
+            }
+            i = groupEnd;
+            if (i < end) {
+                // Skip the ':', or the '::' compression
+                i++;
+                if (i < end && value.charAt(i) == ':') {
+                    if (compressed) {
+                        return false;
+                    }
+                    compressed = true;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return false;
+        }
+        // Shift the head groups to their place, then add the tail groups
+        for (int k = headGroups; k < 8; k++) {
+            headHigh = (headHigh << 16) | (headLow >>> 48);
+            headLow <<= 16;
+        }
+        address[0] = headHigh | tailHigh;
+        address[1] = headLow | tailLow;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (empty) {
+            return "none";
+        }
+        return ipv6
+                ? String.format("%016x%016x/%016x%016x", high, low, maskHigh, maskLow)
+                : String.format("%08x/%08x", low, maskLow);
+    }
+
+}
@@ -21,15 +21,11 @@ import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.StreamSource;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 /**
  * Process a {@link ClientConnection} with a certain {@link ProxyInfo}.
@@ -87,41 +83,7 @@ public abstract class ClientConnectionProcessor {
      */
     void duplex(@NotNull final StreamSource firstSource,
                 @NotNull final StreamSource secondSource) {
-        log.debug("Start full duplex communication");
-        Future<?> secondToFirst = executorService.submit(
-                () -> {
-                    try {
-                        secondSource.getInputStream().transferTo(firstSource.getOutputStream());
-                    } catch (SocketTimeoutException e) {
-                        log.debug("Timeout exception on executing second to first transfer: {}", e.getMessage());
-                    } catch (SocketException e) {
-                        log.debug("Socket exception on executing second to first transfer: {}", e.getMessage());
-                    } catch (Exception e) {
-                        log.debug("Error on executing second to first transfer", e);
-                    }
-                });
-        try {
-            firstSource.getInputStream().transferTo(secondSource.getOutputStream());
-        } catch (SocketTimeoutException e) {
-            log.debug("Timeout exception on executing first to second transfer: {}", e.getMessage());
-        } catch (SocketException e) {
-            log.debug("Socket exception on executing first to second transfer: {}", e.getMessage());
-        } catch (Exception e) {
-            log.debug("Error on executing first to second transfer", e);
-        }
-        if (!secondToFirst.isDone()) {
-            // Wait for the async transfer to finish
-            try {
-                secondToFirst.get();
-            } catch (ExecutionException e) {// Normally, we shouldn't get here
-                log.debug("Error on executing second to first transfer", e.getCause());
-            } catch (InterruptedException e) {
-                log.debug("Transfer from second to first interrupted: {}", e.getMessage());
-            } catch (CancellationException e) {
-                log.debug("Transfer from second to first cancelled: {}", e.getMessage());
-            }
-        }
-        log.debug("End full duplex communication");
+        InputOutputs.duplex(executorService, firstSource, secondSource);
     }
 
 
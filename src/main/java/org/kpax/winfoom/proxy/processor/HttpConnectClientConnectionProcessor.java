@@ -15,16 +15,21 @@ package org.kpax.winfoom.proxy.processor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.*;
 import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.apache.http.protocol.HTTP;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.*;
+import org.kpax.winfoom.proxy.listener.StopListener;
 import org.kpax.winfoom.util.HttpUtils;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -36,16 +41,30 @@ import java.util.concurrent.ExecutorService;
 @Slf4j
 @ThreadSafe
 @Component
-class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
+class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor implements StopListener {
 
     private final TunnelConnection tunnelConnection;
 
+    private final SystemConfig systemConfig;
+
+    /**
+     * The proxies that accepted a regular CONNECT, connected optimistically from then on.
+     */
+    private final Set<HttpHost> optimisticProxies = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The proxies that refused an optimistic CONNECT, served the regular way from then on.
+     */
+    private final Set<HttpHost> nonOptimisticProxies = ConcurrentHashMap.newKeySet();
+
     public HttpConnectClientConnectionProcessor(ExecutorService executorService,
                                                 ProxyConfig proxyConfig,
                                                 ProxyBlacklist proxyBlacklist,
-                                                TunnelConnection tunnelConnection) {
+                                                TunnelConnection tunnelConnection,
+                                                SystemConfig systemConfig) {
         super(executorService, proxyConfig, proxyBlacklist);
         this.tunnelConnection = tunnelConnection;
+        this.systemConfig = systemConfig;
     }
 
     @Override
@@ -53,8 +72,15 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
             throws IOException, HttpException {
         RequestLine requestLine = clientConnection.getRequestLine();
         HttpHost target = HttpHost.create(requestLine.getUri());
-        HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort());
-        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion())) {
+        HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort(),
+                proxyInfo.getProxyHost().getSchemeName());
+        if (isOptimistic(proxy)) {
+            handleOptimistically(clientConnection, proxy, target);
+            return;
+        }
+        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(),
+                clientConnection.takeSpeculativeSocket(proxy))) {
+            promote(proxy);
             handleTunnelResponse(clientConnection, tunnel);
         } catch (TunnelRefusedException tre) {
             log.debug("The tunnel request was rejected by the proxy host", tre);
@@ -66,6 +92,83 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
         }
     }
 
+    /**
+     * In manual mode, an upstream proxy that accepted a regular tunnel and never refused an optimistic one
+     * is connected optimistically.
+     * <p>The auto config mode is excluded, since an optimistic CONNECT cannot fail over to the next proxy.
+     */
+    private boolean isOptimistic(HttpHost proxy) {
+        return isOptimisticEnabled() && optimisticProxies.contains(proxy);
+    }
+
+    private boolean isOptimisticEnabled() {
+        return systemConfig.isConnectOptimisticEnabled() && !proxyConfig.isAutoConfig();
+    }
+
+    /**
+     * Connect a proxy optimistically after it accepted a regular tunnel.
+     */
+    private void promote(HttpHost proxy) {
+        if (isOptimisticEnabled() && !nonOptimisticProxies.contains(proxy) && optimisticProxies.add(proxy)) {
+            log.debug("Use the optimistic CONNECT for {} from now on", proxy);
+        }
+    }
+
+    /**
+     * Answer the client with 200 before the upstream tunnel is established, so that the client
+     * sends its first bytes (like the TLS ClientHello) while the upstream CONNECT is in flight.
+     * These bytes wait in the client's socket and are sent as soon as the upstream accepts the tunnel.
+     * <p>Since the response is already committed, an upstream failure just aborts the client's connection.
+     */
+    private void handleOptimistically(ClientConnection clientConnection, HttpHost proxy, HttpHost target)
+            throws IOException {
+        RequestLine requestLine = clientConnection.getRequestLine();
+        log.debug("Optimistic CONNECT to {} via {}", target, proxy);
+        clientConnection.write(String.format("%s 200 Connection established",
+                requestLine.getProtocolVersion()));
+        clientConnection.write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER,
+                HttpUtils.getCurrentDate()));
+        clientConnection.writeln();
+        clientConnection.getOutputStream().flush();
+
+        Tunnel tunnel;
+        try {
+            tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(),
+                    clientConnection.takeSpeculativeSocket(proxy));
+        } catch (TunnelRefusedException e) {
+            StatusLine statusLine = e.getResponse().getStatusLine();
+            if (isDemoting(statusLine.getStatusCode())) {
+                // The client would have needed the proxy's response
+                log.debug("Optimistic CONNECT refused by {}: {}, use the regular CONNECT from now on",
+                        proxy, statusLine);
+                nonOptimisticProxies.add(proxy);
+                optimisticProxies.remove(proxy);
+            } else {
+                log.debug("Optimistic CONNECT to {} refused by {}: {}, abort the client's connection",
+                        target, proxy, statusLine);
+            }
+            return;
+        } catch (Exception e) {
+            log.debug("Optimistic CONNECT failed, abort the client's connection", e);
+            return;
+        }
+        try (tunnel) {
+            duplex(tunnel, clientConnection);
+        } catch (Exception e) {
+            log.debug("Error on optimistic tunnel", e);
+        }
+    }
+
+    /**
+     * Whether a refused optimistic CONNECT means the proxy should not be connected optimistically anymore:
+     * the proxy requires authentication or fails. A refusal for a certain target (like {@code 403})
+     * only affects that target.
+     */
+    private static boolean isDemoting(int statusCode) {
+        return statusCode == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED
+                || statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
     private void handleTunnelResponse(ClientConnection clientConnection, Tunnel tunnel) {
         try {
             // Handle the tunnel response
@@ -108,4 +211,10 @@ class HttpConnectClientConnectionProcessor extends ClientConnectionProcessor {
             clientConnection.writeErrorResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
+
+    @Override
+    public void onStop() {
+        optimisticProxies.clear();
+        nonOptimisticProxies.clear();
+    }
 }
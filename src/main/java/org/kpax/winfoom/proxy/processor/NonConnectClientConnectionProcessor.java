@@ -13,6 +13,7 @@
 package org.kpax.winfoom.proxy.processor;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.*;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -29,10 +30,18 @@ import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.HttpClientBuilderFactory;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.cache.CachedResponse;
+import org.kpax.winfoom.proxy.cache.HttpResponseCache;
+import org.kpax.winfoom.proxy.cache.InFlightResponse;
+import org.kpax.winfoom.proxy.cache.RequestCoalescer;
+import org.kpax.winfoom.proxy.cache.ResponseCapture;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -52,88 +61,238 @@ class NonConnectClientConnectionProcessor extends ClientConnectionProcessor {
 
     private final HttpClientBuilderFactory clientBuilderFactory;
 
+    private final HttpResponseCache responseCache;
+
+    private final RequestCoalescer requestCoalescer;
+
+    private final ParallelRangeDownloader parallelRangeDownloader;
+
     public NonConnectClientConnectionProcessor(ExecutorService executorService,
                                                ProxyConfig proxyConfig,
                                                ProxyBlacklist proxyBlacklist,
-                                               HttpClientBuilderFactory clientBuilderFactory) {
+                                               HttpClientBuilderFactory clientBuilderFactory,
+                                               HttpResponseCache responseCache,
+                                               RequestCoalescer requestCoalescer,
+                                               ParallelRangeDownloader parallelRangeDownloader) {
         super(executorService, proxyConfig, proxyBlacklist);
         this.clientBuilderFactory = clientBuilderFactory;
+        this.responseCache = responseCache;
+        this.requestCoalescer = requestCoalescer;
+        this.parallelRangeDownloader = parallelRangeDownloader;
     }
 
     @Override
     void handleRequest(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
-        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
-            URI uri = clientConnection.getRequestUri();
-            HttpHost target = new HttpHost(uri.getHost(),
-                    uri.getPort(),
-                    uri.getScheme());
-            HttpClientContext context = HttpClientContext.create();
-            if (proxyInfo.getType().isSocks()) {
-                InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                        proxyInfo.getProxyHost().getPort());
-                context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        URI uri = clientConnection.getRequestUri();
+        HttpRequest request = clientConnection.getRequest();
+        boolean cacheable = responseCache.isCacheable(request);
+        CachedResponse cachedResponse = cacheable ? responseCache.lookup(uri, request) : null;
+        InputStream cachedBody = cachedResponse != null ? responseCache.openBody(cachedResponse) : null;
+        InFlightResponse inFlight = null;
+        boolean validating = false;
+        try {
+            if (cachedBody != null && responseCache.isFresh(cachedResponse, request)) {
+                if (responseCache.isNotModified(cachedResponse, request)) {
+                    log.debug("Serve not modified from cache {}", cachedResponse);
+                    writeNotModifiedResponse(clientConnection, cachedResponse);
+                    responseCache.recordNotModifiedHit();
+                    return;
+                }
+                log.debug("Serve from cache {}", cachedResponse);
+                writeCachedResponse(clientConnection, cachedResponse, cachedBody);
+                responseCache.recordHit(cachedResponse);
+                return;
+            }
+            validating = cachedBody != null && responseCache.addValidators(request, cachedResponse);
+            inFlight = cachedBody == null ? requestCoalescer.join(uri, request) : null;
+            if (inFlight != null && !inFlight.isLeader()) {
+                if (follow(clientConnection, request, inFlight)) {
+                    return;
+                }
+                // Go upstream on its own
+                inFlight = null;
             }
+            try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
+                HttpHost target = new HttpHost(uri.getHost(),
+                        uri.getPort(),
+                        uri.getScheme());
+                HttpClientContext context = HttpClientContext.create();
+                if (proxyInfo.getType().isSocks()) {
+                    InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                            proxyInfo.getProxyHost().getPort());
+                    context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+                }
 
-            // Execute the request
-            try (CloseableHttpResponse response = httpClient.execute(target, clientConnection.getRequest(), context)) {
-                StatusLine statusLine = response.getStatusLine();
-                try {
-                    log.debug("Write status line: {}", statusLine);
-                    clientConnection.write(statusLine);
-                    clientConnection.write(HttpUtils.createViaHeader(
-                            clientConnection.getRequestLine().getProtocolVersion(),
-                            response.getFirstHeader(HttpHeaders.VIA)));
-
-                    response.removeHeaders(HttpHeaders.VIA);
-                    response.removeHeaders(HttpHeaders.PROXY_AUTHENTICATE);
-                    response.removeHeaders(HttpHeaders.CONNECTION);// Remove the Connection header
-                                                                   // in order to add Connection: close header later.
-
-                    for (Header header : response.getAllHeaders()) {
-                        if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
-
-                            // Strip 'chunked' from Transfer-Encoding header's value
-                            // since the response is not chunked
-                            String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
-                            if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
-                                clientConnection.write(
-                                        HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
-                                                nonChunkedTransferEncoding));
-                                log.debug("Add chunk-striped header response");
-                            } else {
-                                log.debug("Remove transfer encoding chunked header response");
-                            }
-                        } else {
-                            log.debug("Write response header: {}", header);
-                            clientConnection.write(header);
-                        }
+                // Execute the request
+                long requestTime = System.currentTimeMillis();
+                try (CloseableHttpResponse response = httpClient.execute(target, request, context)) {
+                    long responseTime = System.currentTimeMillis();
+                    if (validating && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                        log.debug("Serve from cache revalidated {}", cachedResponse);
+                        responseCache.revalidated(cachedResponse, response, requestTime, responseTime);
+                        writeCachedResponse(clientConnection, cachedResponse, cachedBody);
+                        responseCache.recordRevalidatedHit(cachedResponse);
+                        return;
                     }
-
-                    clientConnection.write(
-                            HttpUtils.createHttpHeader(HttpHeaders.CONNECTION,
-                                    HTTP.CONN_CLOSE));
-
-                    // Empty line marking the end
-                    // of header's section
-                    clientConnection.writeln();
-
-                    // Now write the request body, if any
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        log.debug("Start writing entity content");
-                        entity.writeTo(clientConnection.getOutputStream());
-                        log.debug("End writing entity content");
-
-                        // Make sure the entity is fully consumed
-                        EntityUtils.consume(entity);
+                    if (validating) {
+                        responseCache.removeValidators(request);
+                        validating = false;
+                    }
+                    if (cacheable) {
+                        responseCache.recordMiss();
+                    } else {
+                        responseCache.invalidate(uri, request, response);
+                    }
+                    // Swap the entity before the response is shared
+                    if (parallelRangeDownloader.isEligible(request, response)) {
+                        parallelRangeDownloader.apply(httpClient, target, proxyInfo, request, response);
+                    }
+                    if (inFlight != null) {
+                        inFlight.publish(response);
                     }
+                    try (ResponseCapture responseCapture = cacheable
+                            ? responseCache.capture(uri, request, response, requestTime, responseTime) : null) {
+                        writeResponse(clientConnection, response, responseCapture, inFlight);
+                    }
+                }
+            }
+        } finally {
+            // On failover, the same request is sent again through the next proxy
+            if (validating) {
+                responseCache.removeValidators(request);
+            }
+            InputOutputs.close(inFlight);
+            InputOutputs.close(cachedBody);
+        }
+    }
+
+    /**
+     * Write the response of the identical in-flight request.
+     *
+     * @return {@code false} if the response cannot be shared, so the request must go upstream on its own.
+     */
+    private boolean follow(final ClientConnection clientConnection,
+                           final HttpRequest request,
+                           final InFlightResponse inFlight) {
+        try (inFlight) {
+            HttpResponse response = inFlight.awaitResponse(request);
+            if (response == null) {
+                requestCoalescer.recordFallback();
+                return false;
+            }
+            log.debug("Serve from the in-flight response");
+            try {
+                writeHead(clientConnection, response);
+                requestCoalescer.recordFollowed(inFlight.getBody().transferTo(clientConnection.getOutputStream()));
+            } catch (Exception e) {
+                log.debug("Error on writing the in-flight response", e);
+            }
+            return true;
+        }
+    }
 
-                } catch (Exception e) {
-                    log.debug("Error on handling non CONNECT response", e);
+    private void writeResponse(final ClientConnection clientConnection,
+                               final HttpResponse response,
+                               final ResponseCapture responseCapture,
+                               final InFlightResponse inFlight) {
+        try {
+            writeHead(clientConnection, response);
+
+            // Now write the request body, if any
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                log.debug("Start writing entity content");
+                OutputStream outputStream = inFlight != null
+                        ? inFlight.wrap(clientConnection.getOutputStream())
+                        : clientConnection.getOutputStream();
+                entity.writeTo(responseCapture != null
+                        ? new TeeOutputStream(outputStream, responseCapture)
+                        : outputStream);
+                log.debug("End writing entity content");
+
+                // Make sure the entity is fully consumed
+                EntityUtils.consume(entity);
+            }
+            if (responseCapture != null) {
+                responseCapture.commit(entity != null ? entity.getContentLength() : 0);
+            }
+            if (inFlight != null) {
+                inFlight.complete();
+            }
+        } catch (Exception e) {
+            log.debug("Error on handling non CONNECT response", e);
+        }
+    }
+
+    private void writeCachedResponse(final ClientConnection clientConnection,
+                                     final CachedResponse cachedResponse,
+                                     final InputStream cachedBody) {
+        try {
+            HttpResponse response = cachedResponse.toHttpResponse(System.currentTimeMillis());
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(cachedResponse.getBodyLength()));
+            writeHead(clientConnection, response);
+            cachedBody.transferTo(clientConnection.getOutputStream());
+        } catch (Exception e) {
+            log.debug("Error on writing cached response", e);
+        }
+    }
+
+    private void writeNotModifiedResponse(final ClientConnection clientConnection,
+                                          final CachedResponse cachedResponse) {
+        try {
+            writeHead(clientConnection, responseCache.toNotModifiedResponse(cachedResponse));
+        } catch (Exception e) {
+            log.debug("Error on writing not modified response", e);
+        }
+    }
+
+    /**
+     * Write the status line and the headers, leaving the response untouched since it may be shared
+     * with the followers of an in-flight request.
+     */
+    private void writeHead(final ClientConnection clientConnection, final HttpResponse response)
+            throws IOException {
+        StatusLine statusLine = response.getStatusLine();
+        log.debug("Write status line: {}", statusLine);
+        clientConnection.write(statusLine);
+        clientConnection.write(HttpUtils.createViaHeader(
+                clientConnection.getRequestLine().getProtocolVersion(),
+                response.getFirstHeader(HttpHeaders.VIA)));
+
+        for (Header header : response.getAllHeaders()) {
+            if (HttpHeaders.VIA.equalsIgnoreCase(header.getName())
+                    || HttpHeaders.PROXY_AUTHENTICATE.equalsIgnoreCase(header.getName())
+                    // Skip the Connection header in order to add Connection: close header later.
+                    || HttpHeaders.CONNECTION.equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
+
+                // Strip 'chunked' from Transfer-Encoding header's value
+                // since the response is not chunked
+                String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
+                if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
+                    clientConnection.write(
+                            HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+                                    nonChunkedTransferEncoding));
+                    log.debug("Add chunk-striped header response");
+                } else {
+                    log.debug("Remove transfer encoding chunked header response");
                 }
+            } else {
+                log.debug("Write response header: {}", header);
+                clientConnection.write(header);
             }
         }
+
+        clientConnection.write(
+                HttpUtils.createHttpHeader(HttpHeaders.CONNECTION,
+                        HTTP.CONN_CLOSE));
+
+        // Empty line marking the end
+        // of header's section
+        clientConnection.writeln();
     }
 
     @Override
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.processor;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.metrics.MetricsSource;
+import org.kpax.winfoom.util.HttpUtils;
+import org.springframework.stereotype.Component;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * It speeds up the large downloads by fetching the response body in parts, with parallel {@code Range} requests.
+ * <p>The first part is streamed from the original response, which is then aborted.
+ * The next parts are fetched by at most {@code rangedDownload.parallelism} requests at a time and written
+ * to the client in order, so that no more than {@code rangedDownload.parallelism} parts are buffered.
+ * <p>The parts are requested with {@code If-Range}, so a changed resource is never mixed with the original one:
+ * the response is aborted instead. Without a strong validator, the response is not fetched in parts.
+ * <p><b>Note:</b> a part is buffered in a byte array, so the part size cannot exceed {@value #MAX_PART_SIZE} megabytes.
+ */
+@RequiredArgsConstructor
+@Slf4j
+@ThreadSafe
+@Component
+class ParallelRangeDownloader implements MetricsSource {
+
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    /**
+     * The request headers not copied into the part requests.
+     */
+    private static final List<String> NON_COPIED_HEADERS = List.of(HttpHeaders.RANGE, HttpHeaders.IF_RANGE,
+            HttpHeaders.CONNECTION, HttpHeaders.CONTENT_LENGTH, HttpHeaders.TRANSFER_ENCODING, HttpHeaders.HOST,
+            HttpHeaders.PROXY_AUTHORIZATION, HttpHeaders.TE, HttpHeaders.UPGRADE, "Keep-Alive", "Proxy-Connection");
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * The largest part size (megabytes), to fit in a byte array.
+     */
+    static final int MAX_PART_SIZE = 1024;
+
+    private static final int PART_RETRIES = 1;
+
+    private final SystemConfig systemConfig;
+
+    private final ExecutorService executorService;
+
+    private final LongAdder downloads = new LongAdder();
+
+    private final LongAdder parts = new LongAdder();
+
+    private final LongAdder partRetries = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        if (!isPartSizeValid()) {
+            log.warn("Invalid rangedDownload.partSize {}, allowed range: 1 - {}, the parallel download is disabled",
+                    systemConfig.getRangedDownloadPartSize(), MAX_PART_SIZE);
+        }
+    }
+
+    /**
+     * Check whether the response qualifies for a parallel download.
+     *
+     * @param request  the client's request.
+     * @param response the upstream response.
+     * @return {@code true} iff the body can be fetched in parts.
+     */
+    boolean isEligible(HttpRequest request, HttpResponse response) {
+        if (!systemConfig.isRangedDownloadEnabled()
+                || !isPartSizeValid()
+                || !"GET".equalsIgnoreCase(request.getRequestLine().getMethod())
+                || request.containsHeader(HttpHeaders.RANGE)
+                || response.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+                || response.getEntity() == null) {
+            return false;
+        }
+        Header acceptRanges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+        if (acceptRanges == null || !acceptRanges.getValue().toLowerCase(Locale.ROOT).contains("bytes")) {
+            return false;
+        }
+        long contentLength = response.getEntity().getContentLength();
+        return contentLength >= systemConfig.getRangedDownloadThreshold() * MEGABYTE
+                && contentLength > getPartSize()
+                && getValidator(response) != null;
+    }
+
+    /**
+     * Replace the response entity by one that writes the body fetched in parts.
+     *
+     * @param httpClient the {@link CloseableHttpClient} used for the original request.
+     * @param target     the target host.
+     * @param proxyInfo  the upstream proxy.
+     * @param request    the client's request.
+     * @param response   the original upstream response.
+     */
+    void apply(CloseableHttpClient httpClient, HttpHost target, ProxyInfo proxyInfo,
+               HttpRequest request, HttpResponse response) {
+        response.setEntity(new RangedEntity(response.getEntity(), httpClient, target, proxyInfo, request,
+                getValidator(response)));
+    }
+
+    private boolean isPartSizeValid() {
+        int partSize = systemConfig.getRangedDownloadPartSize();
+        return partSize > 0 && partSize <= MAX_PART_SIZE;
+    }
+
+    private long getPartSize() {
+        return systemConfig.getRangedDownloadPartSize() * MEGABYTE;
+    }
+
+    /**
+     * The strong validator to be used with {@code If-Range} (RFC 9110, section 13.1.5):
+     * a strong entity tag, otherwise a {@code Last-Modified} date at least one second before
+     * the response's {@code Date} (RFC 9110, section 8.8.2.2).
+     *
+     * @return the validator or {@code null} if there is no strong one.
+     */
+    static String getValidator(HttpResponse response) {
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null && !etag.getValue().trim().startsWith("W/")) {
+            return etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        Header date = response.getFirstHeader(HttpHeaders.DATE);
+        if (lastModified == null || date == null) {
+            return null;
+        }
+        Date lastModifiedDate = DateUtils.parseDate(lastModified.getValue());
+        Date dateDate = DateUtils.parseDate(date.getValue());
+        return lastModifiedDate != null && dateDate != null
+                && dateDate.getTime() - lastModifiedDate.getTime() >= 1000 ? lastModified.getValue() : null;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "rangedDownload";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", systemConfig.isRangedDownloadEnabled());
+        metrics.put("downloads", downloads.sum());
+        metrics.put("parts", parts.sum());
+        metrics.put("partRetries", partRetries.sum());
+        metrics.put("failures", failures.sum());
+        metrics.put("bytes", bytes.sum());
+        return metrics;
+    }
+
+    private class RangedEntity extends HttpEntityWrapper {
+
+        private final CloseableHttpClient httpClient;
+
+        private final HttpHost target;
+
+        private final ProxyInfo proxyInfo;
+
+        private final HttpRequest request;
+
+        private final String validator;
+
+        private RangedEntity(HttpEntity wrappedEntity, CloseableHttpClient httpClient, HttpHost target,
+                             ProxyInfo proxyInfo, HttpRequest request, String validator) {
+            super(wrappedEntity);
+            this.httpClient = httpClient;
+            this.target = target;
+            this.proxyInfo = proxyInfo;
+            this.request = request;
+            this.validator = validator;
+        }
+
+        /**
+         * The original content is aborted after the first part, there is nothing left to consume.
+         */
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            long contentLength = getContentLength();
+            long partSize = getPartSize();
+            int partCount = (int) ((contentLength + partSize - 1) / partSize);
+            int parallelism = Math.max(1, systemConfig.getRangedDownloadParallelism());
+            log.debug("Download {} bytes in {} parts of {} bytes, {} at a time",
+                    contentLength, partCount, partSize, parallelism);
+            downloads.increment();
+
+            @SuppressWarnings("unchecked")
+            Future<byte[]>[] futures = new Future[partCount];
+            int nextPart = 1;
+            for (; nextPart < partCount && nextPart <= parallelism; nextPart++) {
+                futures[nextPart] = submitPart(nextPart, partSize, contentLength);
+            }
+            try {
+                // The first part comes from the original response
+                InputStream content = wrappedEntity.getContent();
+                try {
+                    copy(content, outStream, partSize);
+                } finally {
+                    abort(content);
+                }
+                for (int part = 1; part < partCount; part++) {
+                    byte[] data = getPart(futures[part]);
+                    futures[part] = null;
+                    if (nextPart < partCount) {
+                        futures[nextPart] = submitPart(nextPart, partSize, contentLength);
+                        nextPart++;
+                    }
+                    outStream.write(data);
+                    bytes.add(data.length);
+                }
+                outStream.flush();
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                throw e;
+            } finally {
+                for (Future<byte[]> future : futures) {
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        }
+
+        private void copy(InputStream content, OutputStream outStream, long length) throws IOException {
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Premature end of the response body");
+                }
+                outStream.write(buffer, 0, read);
+                remaining -= read;
+            }
+            bytes.add(length);
+        }
+
+        /**
+         * Closing the original content would read it to the end.
+         */
+        private void abort(InputStream content) throws IOException {
+            if (content instanceof EofSensorInputStream eofSensorInputStream) {
+                eofSensorInputStream.abortConnection();
+            } else {
+                content.close();
+            }
+        }
+
+        private byte[] getPart(Future<byte[]> future) throws IOException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioException
+                        ? ioException : new IOException("Error on fetching the part", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted on fetching the part", e);
+            } catch (CancellationException e) {
+                throw new IOException("The part fetching has been cancelled", e);
+            }
+        }
+
+        private Future<byte[]> submitPart(int part, long partSize, long contentLength) {
+            long first = part * partSize;
+            long last = Math.min(contentLength, first + partSize) - 1;
+            return executorService.submit(() -> {
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        return fetchPart(first, last, contentLength);
+                    } catch (ClientProtocolException e) {
+                        // Most likely the resource has changed, retrying won't help
+                        throw e;
+                    } catch (IOException e) {
+                        if (attempt >= PART_RETRIES || Thread.currentThread().isInterrupted()) {
+                            throw e;
+                        }
+                        log.debug("Retry fetching the bytes {}-{}: {}", first, last, e.getMessage());
+                        partRetries.increment();
+                    }
+                }
+            });
+        }
+
+        private byte[] fetchPart(long first, long last, long contentLength) throws IOException {
+            HttpGet partRequest = new HttpGet(request.getRequestLine().getUri());
+            for (Header header : request.getAllHeaders()) {
+                if (NON_COPIED_HEADERS.stream().noneMatch(header.getName()::equalsIgnoreCase)) {
+                    partRequest.addHeader(header);
+                }
+            }
+            partRequest.setHeader(HttpHeaders.RANGE, "bytes=" + first + "-" + last);
+            partRequest.setHeader(HttpHeaders.IF_RANGE, validator);
+            HttpClientContext context = HttpClientContext.create();
+            if (proxyInfo.getType().isSocks()) {
+                context.setAttribute(HttpUtils.SOCKS_ADDRESS,
+                        new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                                proxyInfo.getProxyHost().getPort()));
+            }
+            CloseableHttpResponse partResponse = httpClient.execute(target, partRequest, context);
+            try {
+                if (partResponse.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new ClientProtocolException("Unexpected part response: " + partResponse.getStatusLine());
+                }
+                Header contentRange = partResponse.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+                Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange != null ? contentRange.getValue() : "");
+                if (!matcher.matches()
+                        || Long.parseLong(matcher.group(1)) != first
+                        || Long.parseLong(matcher.group(2)) != last
+                        || !StringUtils.equalsAny(matcher.group(3), "*", String.valueOf(contentLength))) {
+                    throw new ClientProtocolException("Unexpected part content range: " + contentRange);
+                }
+                byte[] data = new byte[(int) (last - first + 1)];
+                InputStream content = partResponse.getEntity().getContent();
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = content.read(data, offset, data.length - offset);
+                    if (read == -1) {
+                        throw new EOFException("Premature end of the part " + first + "-" + last);
+                    }
+                    offset += read;
+                }
+                EntityUtils.consume(partResponse.getEntity());
+                parts.increment();
+                return data;
+            } catch (IOException e) {
+                // Do not read the rest of a rejected response
+                partRequest.abort();
+                throw e;
+            } finally {
+                partResponse.close();
+            }
+        }
+    }
+
+}
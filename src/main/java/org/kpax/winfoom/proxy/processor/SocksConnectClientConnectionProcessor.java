@@ -24,7 +24,9 @@ import org.kpax.winfoom.exception.ProxyConnectException;
 import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.SocksConnector;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
 import org.kpax.winfoom.util.StreamSource;
 import org.springframework.stereotype.Component;
 
@@ -45,12 +47,16 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
 
     private final SystemConfig systemConfig;
 
+    private final SocksConnector socksConnector;
+
     public SocksConnectClientConnectionProcessor(ExecutorService executorService,
                                                  ProxyConfig proxyConfig,
                                                  ProxyBlacklist proxyBlacklist,
-                                                 SystemConfig systemConfig) {
+                                                 SystemConfig systemConfig,
+                                                 SocksConnector socksConnector) {
         super(executorService, proxyConfig, proxyBlacklist);
         this.systemConfig = systemConfig;
+        this.socksConnector = socksConnector;
     }
 
     @Override
@@ -58,24 +64,8 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
             throws IOException {
         RequestLine requestLine = clientConnection.getRequestLine();
         HttpHost target = HttpHost.create(requestLine.getUri());
-        Proxy proxy;
-        if (proxyInfo.getType().isSocks()) {
-            proxy = new Proxy(Proxy.Type.SOCKS,
-                    new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                            proxyInfo.getProxyHost().getPort()));
-        } else {
-            proxy = Proxy.NO_PROXY;
-        }
-
-        try (Socket socket = new Socket(proxy)) {
-            systemConfig.configureSocket(socket);
-            if (proxyInfo.getType().isSocks4()) {
-                HttpUtils.setSocks4(socket);
-            }
-            log.debug("Open connection");
-            socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
-                    systemConfig.getSocketConnectTimeout() * 1000);
-
+        log.debug("Open connection");
+        try (Socket socket = openSocket(proxyInfo, target)) {
             log.debug("Connected to {}", target);
 
             // Respond with 200 code
@@ -97,6 +87,26 @@ class SocksConnectClientConnectionProcessor extends ClientConnectionProcessor {
         }
     }
 
+    /**
+     * Open a socket to the target host, through the SOCKS proxy, if any.
+     */
+    private Socket openSocket(ProxyInfo proxyInfo, HttpHost target) throws IOException {
+        if (proxyInfo.getType().isSocks()) {
+            return socksConnector.connect(new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                            proxyInfo.getProxyHost().getPort()),
+                    proxyInfo.getType().isSocks4(), target.getHostName(), target.getPort());
+        }
+        Socket socket = systemConfig.configureSocket(new Socket());
+        try {
+            socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
+                    systemConfig.getSocketConnectTimeout() * 1000);
+            return socket;
+        } catch (IOException e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+    }
+
     @Override
     void handleError(ClientConnection clientConnection,
                      ProxyInfo proxyInfo, Exception e) throws ProxyConnectException {
@@ -24,6 +24,8 @@ import org.kpax.winfoom.proxy.ClientConnection;
 import org.kpax.winfoom.proxy.HttpClientBuilderFactory;
 import org.kpax.winfoom.proxy.ProxyBlacklist;
 import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.cache.HttpResponseCache;
+import org.kpax.winfoom.proxy.cache.RequestCoalescer;
 import org.kpax.winfoom.util.HttpUtils;
 import org.springframework.stereotype.Component;
 
@@ -44,8 +46,12 @@ class SocksNonConnectClientConnectionProcessor extends NonConnectClientConnectio
     public SocksNonConnectClientConnectionProcessor(ExecutorService executorService,
                                                     ProxyConfig proxyConfig,
                                                     ProxyBlacklist proxyBlacklist,
-                                                    HttpClientBuilderFactory clientBuilderFactory) {
-        super(executorService, proxyConfig, proxyBlacklist, clientBuilderFactory);
+                                                    HttpClientBuilderFactory clientBuilderFactory,
+                                                    HttpResponseCache responseCache,
+                                                    RequestCoalescer requestCoalescer,
+                                                    ParallelRangeDownloader parallelRangeDownloader) {
+        super(executorService, proxyConfig, proxyBlacklist, clientBuilderFactory, responseCache, requestCoalescer,
+                parallelRangeDownloader);
     }
 
     @Override
@@ -18,8 +18,15 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.beanutils.PropertyUtils;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 @Slf4j
 @UtilityClass
@@ -27,17 +34,65 @@ public class BeanUtils {
 
     public static void copyProperties(Iterator<String> fieldNamesItr, Object source, Object destination)
             throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+        copyProperties(fieldNamesItr, source, destination, new ArrayDeque<>());
+    }
+
+    /**
+     * Like {@link #copyProperties(Iterator, Object, Object)}, pushing each destination's value right before
+     * it is replaced, so that {@link #restoreProperties(Deque, Object)} can undo a copy, even a partial one.
+     *
+     * @param previousValues receives the replaced values, the last one on top.
+     */
+    public static void copyProperties(Iterator<String> fieldNamesItr, Object source, Object destination,
+                                      Deque<Map.Entry<String, Object>> previousValues)
+            throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
         Map<String, Object> objectMap = PropertyUtils.describe(source);
         while (fieldNamesItr.hasNext()) {
             String fieldName = fieldNamesItr.next();
             if (objectMap.containsKey(fieldName)) {
                 Object fieldValue = objectMap.get(fieldName);
                 log.debug("Set property: {}={}", fieldName, fieldValue);
+                Object previousValue = PropertyUtils.getProperty(destination, fieldName);
                 PropertyUtils.setProperty(destination, fieldName, fieldValue);
+                previousValues.push(new AbstractMap.SimpleImmutableEntry<>(fieldName, previousValue));
             } else {
                 throw new IllegalArgumentException("The source object does not contain the field [" + fieldName + "] ");
             }
         }
     }
 
+    /**
+     * Undo a copy, the last replaced value first, since a property may depend on another one
+     * (like {@code proxyHost} on {@code proxyType}).
+     *
+     * @param previousValues the values filled by {@link #copyProperties(Iterator, Object, Object, Deque)}, emptied.
+     * @param destination    the destination object.
+     */
+    public static void restoreProperties(Deque<Map.Entry<String, Object>> previousValues, Object destination)
+            throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+        while (!previousValues.isEmpty()) {
+            Map.Entry<String, Object> previousValue = previousValues.pop();
+            log.debug("Restore property: {}", previousValue.getKey());
+            PropertyUtils.setProperty(destination, previousValue.getKey(), previousValue.getValue());
+        }
+    }
+
+    /**
+     * @param fieldNames  the names of the fields to compare.
+     * @param source      the source object.
+     * @param destination the destination object.
+     * @return the fields having different values in the source and destination.
+     */
+    public static List<String> getChangedProperties(Collection<String> fieldNames, Object source, Object destination)
+            throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+        List<String> changed = new ArrayList<>();
+        for (String fieldName : fieldNames) {
+            if (!Objects.equals(PropertyUtils.getProperty(source, fieldName),
+                    PropertyUtils.getProperty(destination, fieldName))) {
+                changed.add(fieldName);
+            }
+        }
+        return changed;
+    }
+
 }
@@ -31,8 +31,6 @@ import org.springframework.util.Assert;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
@@ -321,24 +319,14 @@ public final class HttpUtils {
     }
 
     /**
-     * Quite a dirty hack.<br>
-     * Using Java Reflection, call the {@code java.net.SocksSocketImpl#setV4()} method.
+     * Parse the proxy line returned by PAC proxy script, then remove the proxies not matching the filter.
      *
-     * @param socket the SOCKS socket to be marked as version 4.
-     * @throws UnsupportedOperationException
+     * @param proxyLine the proxy line.
+     * @param filter    the proxies to keep ({@code DIRECT} is always kept).
+     * @return the immutable list of {@link ProxyInfo}s.
      */
-    public static void setSocks4(@NotNull final Socket socket) throws UnsupportedOperationException {
-        try {
-            Field implField = Socket.class.getDeclaredField("impl");
-            implField.setAccessible(true);
-            Object impl = implField.get(socket);
-            Class<?> implType = impl.getClass();
-            Method setV4 = implType.getDeclaredMethod("setV4");
-            setV4.setAccessible(true);
-            setV4.invoke(impl);
-        } catch (Exception e) {
-            throw new UnsupportedOperationException("SOCKS 4 not supported by the JVM", e);
-        }
+    public static List<ProxyInfo> parsePacProxyLine(final String proxyLine, Predicate<ProxyInfo> filter) {
+        return filterProxies(parsePacProxyLine(proxyLine), filter);
     }
 
     /**
@@ -347,33 +335,58 @@ public final class HttpUtils {
      * @param proxyLine the proxy line.
      * @return the immutable list of {@link ProxyInfo}s.
      */
-    public static List<ProxyInfo> parsePacProxyLine(final String proxyLine, Predicate<ProxyInfo> filter) {
+    public static List<ProxyInfo> parsePacProxyLine(final String proxyLine) {
         if (StringUtils.isBlank(proxyLine)) {
-            return Collections.singletonList(new ProxyInfo(ProxyInfo.PacType.DIRECT));
+            return List.of(new ProxyInfo(ProxyInfo.PacType.DIRECT));
         }
         List<ProxyInfo> proxyInfos = new ArrayList<>();
         for (String s : proxyLine.trim().split(";")) {
             log.debug("Process token: [{}]", s);
-            String[] split = s.trim().split("\\s+");
+            String[] split = StringUtils.split(s);
             Assert.isTrue(split.length > 0,
                     String.format("Invalid proxy line [%s]: empty",
                             proxyLine));
-            ProxyInfo.PacType type = ProxyInfo.PacType.valueOf(split[0].trim());
+            ProxyInfo.PacType type = ProxyInfo.PacType.valueOf(split[0]);
             if (type == ProxyInfo.PacType.DIRECT) {
                 proxyInfos.add(new ProxyInfo(ProxyInfo.PacType.DIRECT));
             } else {
                 Assert.isTrue(split.length > 1,
                         String.format("Invalid proxy line [%s]: proxy host:port required",
                                 proxyLine));
-                ProxyInfo proxyInfo = new ProxyInfo(type, HttpHost.create(split[1].trim()));
-                if (filter.test(proxyInfo)) {
-                    proxyInfos.add(proxyInfo);
-                } else {
-                    log.debug("Ignore blacklisted proxy {}", proxyInfo);
+                HttpHost proxyHost = HttpHost.create(split[1]);
+                if (type == ProxyInfo.PacType.HTTPS) {
+                    // The connection to the proxy itself is secured
+                    proxyHost = new HttpHost(proxyHost.getHostName(), proxyHost.getPort(), "https");
+                }
+                proxyInfos.add(new ProxyInfo(type, proxyHost));
+            }
+        }
+        return List.copyOf(proxyInfos);
+    }
+
+    /**
+     * Remove the proxies not matching the filter.
+     *
+     * @param proxies the proxies.
+     * @param filter  the proxies to keep ({@code DIRECT} is always kept).
+     * @return the proxies themselves when all of them are kept, otherwise the immutable list of the kept ones.
+     */
+    public static List<ProxyInfo> filterProxies(final List<ProxyInfo> proxies, Predicate<ProxyInfo> filter) {
+        List<ProxyInfo> kept = null;
+        for (int i = 0; i < proxies.size(); i++) {
+            ProxyInfo proxyInfo = proxies.get(i);
+            if (proxyInfo.getType().isDirect() || filter.test(proxyInfo)) {
+                if (kept != null) {
+                    kept.add(proxyInfo);
+                }
+            } else {
+                log.debug("Ignore blacklisted proxy {}", proxyInfo);
+                if (kept == null) {
+                    kept = new ArrayList<>(proxies.subList(0, i));
                 }
             }
         }
-        return proxyInfos;
+        return kept != null ? Collections.unmodifiableList(kept) : proxies;
     }
 
     public static boolean isConnectionRefused(@NotNull final SocketException e) {
@@ -21,7 +21,13 @@ import org.springframework.util.Assert;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugen Covaci
@@ -60,6 +66,53 @@ public final class InputOutputs {
 
     }
 
+    /**
+     * Simultaneously transfer bytes between two sources in a mutually independent manner.
+     *
+     * @param executorService the executor of the second to first transfer.
+     * @param firstSource     The first source.
+     * @param secondSource    The second source.
+     */
+    public static void duplex(@NotNull final ExecutorService executorService,
+                              @NotNull final StreamSource firstSource,
+                              @NotNull final StreamSource secondSource) {
+        log.debug("Start full duplex communication");
+        Future<?> secondToFirst = executorService.submit(
+                () -> {
+                    try {
+                        secondSource.getInputStream().transferTo(firstSource.getOutputStream());
+                    } catch (SocketTimeoutException e) {
+                        log.debug("Timeout exception on executing second to first transfer: {}", e.getMessage());
+                    } catch (SocketException e) {
+                        log.debug("Socket exception on executing second to first transfer: {}", e.getMessage());
+                    } catch (Exception e) {
+                        log.debug("Error on executing second to first transfer", e);
+                    }
+                });
+        try {
+            firstSource.getInputStream().transferTo(secondSource.getOutputStream());
+        } catch (SocketTimeoutException e) {
+            log.debug("Timeout exception on executing first to second transfer: {}", e.getMessage());
+        } catch (SocketException e) {
+            log.debug("Socket exception on executing first to second transfer: {}", e.getMessage());
+        } catch (Exception e) {
+            log.debug("Error on executing first to second transfer", e);
+        }
+        if (!secondToFirst.isDone()) {
+            // Wait for the async transfer to finish
+            try {
+                secondToFirst.get();
+            } catch (ExecutionException e) {// Normally, we shouldn't get here
+                log.debug("Error on executing second to first transfer", e.getCause());
+            } catch (InterruptedException e) {
+                log.debug("Transfer from second to first interrupted: {}", e.getMessage());
+            } catch (CancellationException e) {
+                log.debug("Transfer from second to first cancelled: {}", e.getMessage());
+            }
+        }
+        log.debug("End full duplex communication");
+    }
+
     public static void close(@NotNull final Socket socket) {
         log.debug("Close socket");
         try {
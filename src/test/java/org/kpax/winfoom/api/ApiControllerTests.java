@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.exception.PacScriptException;
+import org.kpax.winfoom.proxy.ProxyController;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.pac.PacEvaluation;
+import org.kpax.winfoom.proxy.pac.PacScriptEvaluator;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check the {@code /pac} API command against a mocked PAC script evaluator.
+ */
+class ApiControllerTests {
+
+    private static final String API_TOKEN = "dXNlcjpwYXNzd29yZA==";
+
+    private static final String PROXY_LINE = "PROXY proxy.example.com:8080; DIRECT";
+
+    private static final PacEvaluation EVALUATION = new PacEvaluation(PROXY_LINE,
+            List.of(new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("proxy.example.com", 8080)),
+                    new ProxyInfo(ProxyInfo.PacType.DIRECT)),
+            PacEvaluation.Source.SCRIPT, TimeUnit.MICROSECONDS.toNanos(1500));
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyController proxyController = mock(ProxyController.class);
+
+    private final ConfigurableApplicationContext applicationContext = mock(ConfigurableApplicationContext.class);
+
+    private final PacScriptEvaluator pacScriptEvaluator = mock(PacScriptEvaluator.class);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private int apiPort;
+
+    private ProxyExecutorService executorService;
+
+    private ApiController apiController;
+
+    private CloseableHttpClient httpClient;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            apiPort = serverSocket.getLocalPort();
+        }
+        when(proxyConfig.getApiPort()).thenReturn(apiPort);
+        when(proxyConfig.getApiToken()).thenReturn(API_TOKEN);
+        when(proxyConfig.isAutoConfig()).thenReturn(true);
+        when(systemConfig.getApiServerRequestTimeout()).thenReturn(30);
+        when(proxyController.isRunning()).thenReturn(true);
+        when(applicationContext.getBean(PacScriptEvaluator.class)).thenReturn(pacScriptEvaluator);
+        when(pacScriptEvaluator.getEvaluationParallelism()).thenReturn(16);
+        when(pacScriptEvaluator.evaluateUnrecorded(any())).thenReturn(EVALUATION);
+
+        executorService = new ProxyExecutorService();
+        apiController = new ApiController(proxyConfig, systemConfig, proxyController, executorService,
+                applicationContext);
+        // Like the container does, the server being started on construction
+        Method init = ApiController.class.getDeclaredMethod("init");
+        init.setAccessible(true);
+        init.invoke(apiController);
+        httpClient = HttpClients.custom().setMaxConnPerRoute(10).build();
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        httpClient.close();
+        apiController.close();
+        executorService.onStop();
+    }
+
+    @Test
+    void pacGet_url_evaluatedWithoutSideEffects() throws Exception {
+        Map<?, ?> result = objectMapper.readValue(get("/pac?url=http%3A%2F%2Fexample.com%2Fpath"), Map.class);
+        assertEquals("http://example.com/path", result.get("url"));
+        assertEquals(PROXY_LINE, result.get("proxyLine"));
+        assertEquals(List.of("PROXY proxy.example.com:8080", "DIRECT"), result.get("proxies"));
+        assertEquals("SCRIPT", result.get("source"));
+        assertEquals(1500, result.get("durationMicros"));
+
+        verify(pacScriptEvaluator).evaluateUnrecorded(URI.create("http://example.com/path"));
+        verify(pacScriptEvaluator, never()).evaluate(any());
+        verify(pacScriptEvaluator, never()).findProxyForURL(any());
+    }
+
+    @Test
+    void pacGet_noUrl_error() throws Exception {
+        assertEquals("Failed to evaluate the PAC script: no url parameter found", get("/pac"));
+        verifyNoEvaluation();
+    }
+
+    @Test
+    void pacGet_noHost_error() throws Exception {
+        Map<?, ?> result = objectMapper.readValue(get("/pac?url=example.com"), Map.class);
+        assertEquals("Invalid URL: no host found", result.get("error"));
+        verifyNoEvaluation();
+    }
+
+    @Test
+    void pacGet_evaluationFailure_error() throws Exception {
+        when(pacScriptEvaluator.evaluateUnrecorded(any())).thenThrow(
+                new PacScriptException("Error when executing PAC script function: FindProxyForURL",
+                        new IllegalArgumentException("Invalid proxy line")));
+        Map<?, ?> result = objectMapper.readValue(get("/pac?url=http://example.com/"), Map.class);
+        assertEquals("http://example.com/", result.get("url"));
+        assertEquals("java.lang.IllegalArgumentException: Invalid proxy line", result.get("error"));
+    }
+
+    @Test
+    void pacGet_proxyStopped_notEvaluated() throws Exception {
+        when(proxyController.isRunning()).thenReturn(false);
+        assertEquals("The local proxy server is down, you need to start it before evaluating the PAC script",
+                get("/pac?url=http://example.com/"));
+        verifyNoEvaluation();
+    }
+
+    @Test
+    void pacGet_notPac_notEvaluated() throws Exception {
+        when(proxyConfig.isAutoConfig()).thenReturn(false);
+        assertEquals("The proxy type is not PAC", get("/pac?url=http://example.com/"));
+        verifyNoEvaluation();
+    }
+
+    @Test
+    void pacGet_wrongToken_forbidden() throws Exception {
+        HttpGet request = new HttpGet(apiUri("/pac?url=http://example.com/"));
+        request.setHeader(HttpHeaders.AUTHORIZATION, "Basic d3Jvbmc6dG9rZW4=");
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            assertEquals(HttpStatus.SC_FORBIDDEN, response.getStatusLine().getStatusCode());
+        }
+        verifyNoEvaluation();
+    }
+
+    @Test
+    void pacPost_urls_resultsInOrder() throws Exception {
+        Map<?, ?> batch = objectMapper.readValue(post("/pac",
+                "[\"http://a.example.com/\", \"http://b.example.com/\", \"c.example.com\"]"), Map.class);
+        assertEquals(3, batch.get("count"));
+        assertEquals(4, batch.get("parallelism"));
+        List<?> results = (List<?>) batch.get("results");
+        assertEquals("http://a.example.com/", ((Map<?, ?>) results.get(0)).get("url"));
+        assertEquals(PROXY_LINE, ((Map<?, ?>) results.get(1)).get("proxyLine"));
+        assertEquals("Invalid URL: no host found", ((Map<?, ?>) results.get(2)).get("error"));
+
+        verify(pacScriptEvaluator, times(2)).evaluateUnrecorded(any());
+        verify(pacScriptEvaluator, never()).evaluate(any());
+        verify(pacScriptEvaluator, never()).findProxyForURL(any());
+    }
+
+    @Test
+    void pacPost_invalidJson_error() throws Exception {
+        assertTrue(post("/pac", "{\"url\": ").startsWith("Failed to parse JSON"));
+        verifyNoEvaluation();
+    }
+
+    @Test
+    void pacPost_fewEngines_quarterOfThem() throws Exception {
+        when(pacScriptEvaluator.getEvaluationParallelism()).thenReturn(8);
+        AtomicInteger maxRunning = countRunning(new AtomicInteger());
+
+        Map<?, ?> batch = objectMapper.readValue(post("/pac", urls(6)), Map.class);
+        assertEquals(2, batch.get("parallelism"));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    void pacPost_concurrentBatches_atMostFourEvaluations() throws Exception {
+        when(pacScriptEvaluator.getEvaluationParallelism()).thenReturn(64);
+        AtomicInteger maxRunning = countRunning(new AtomicInteger());
+
+        // Each batch may run 4 evaluations, but not more than 4 all the batches together
+        List<CompletableFuture<String>> batches = List.of(postAsync(urls(8)), postAsync(urls(8)), postAsync(urls(8)));
+        for (CompletableFuture<String> batch : batches) {
+            assertEquals(8, objectMapper.readValue(batch.get(30, TimeUnit.SECONDS), Map.class).get("count"));
+        }
+        assertEquals(4, maxRunning.get());
+        verify(pacScriptEvaluator, times(24)).evaluateUnrecorded(any());
+    }
+
+    /**
+     * Make each evaluation last a while, counting the evaluations running at once.
+     *
+     * @return the maximum of the evaluations that ran at once.
+     */
+    private AtomicInteger countRunning(AtomicInteger running) throws PacScriptException {
+        AtomicInteger maxRunning = new AtomicInteger();
+        when(pacScriptEvaluator.evaluateUnrecorded(any())).thenAnswer(invocation -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } finally {
+                running.decrementAndGet();
+            }
+            return EVALUATION;
+        });
+        return maxRunning;
+    }
+
+    private void verifyNoEvaluation() throws Exception {
+        verify(pacScriptEvaluator, never()).evaluateUnrecorded(any());
+        verify(pacScriptEvaluator, never()).evaluate(any());
+    }
+
+    private String urls(int count) throws IOException {
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "http://host" + i + ".example.com/";
+        }
+        return objectMapper.writeValueAsString(urls);
+    }
+
+    private String get(String path) throws IOException {
+        return execute(new HttpGet(apiUri(path)));
+    }
+
+    private String post(String path, String json) throws IOException {
+        HttpPost request = new HttpPost(apiUri(path));
+        request.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        return execute(request);
+    }
+
+    private CompletableFuture<String> postAsync(String json) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return post("/pac", json);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, executorService);
+    }
+
+    private String execute(HttpUriRequest request) throws IOException {
+        request.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + API_TOKEN);
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    private URI apiUri(String path) {
+        return URI.create("http://127.0.0.1:" + apiPort + path);
+    }
+
+}
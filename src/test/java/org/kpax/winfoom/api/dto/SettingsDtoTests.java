@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.api.dto;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.exception.InvalidProxySettingsException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SettingsDtoTests {
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    @BeforeEach
+    void beforeEach() {
+        when(systemConfig.getMaxConnections()).thenReturn(600);
+        when(systemConfig.getMaxConnectionsPerRoute()).thenReturn(20);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "null|null|true",
+            "100|50|true",
+            "100|100|true",
+            "100|101|false",
+            // Checked against the current maxConnections
+            "null|600|true",
+            "null|601|false",
+            // Checked against the current maxConnectionsPerRoute
+            "20|null|true",
+            "19|null|false",
+    })
+    void validate_maxConnectionsPerRoute_mergedWithCurrent(Integer maxConnections, Integer maxConnectionsPerRoute,
+                                                           boolean valid) {
+        SettingsDto settingsDto = new SettingsDto();
+        settingsDto.setMaxConnections(maxConnections);
+        settingsDto.setMaxConnectionsPerRoute(maxConnectionsPerRoute);
+        if (valid) {
+            assertDoesNotThrow(() -> settingsDto.validate(systemConfig));
+        } else {
+            InvalidProxySettingsException e = assertThrows(InvalidProxySettingsException.class,
+                    () -> settingsDto.validate(systemConfig));
+            assertTrue(e.getMessage().contains("maxConnectionsPerRoute"));
+        }
+    }
+
+}
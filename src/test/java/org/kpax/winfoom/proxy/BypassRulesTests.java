@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BypassRulesTests {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            // The domain and its subdomains
+            "example.com|example.com|true",
+            "example.com|EXAMPLE.com|true",
+            "example.com|example.com.|true",
+            "example.com|www.example.com|true",
+            "example.com|a.b.example.com|true",
+            "example.com|badexample.com|false",
+            "example.com|example.com.evil.org|false",
+            "example.com|example.org|false",
+            "example.com|com|false",
+            "Example.COM.|www.example.com|true",
+            // Only the subdomains
+            ".example.com|example.com|false",
+            ".example.com|www.example.com|true",
+            ".example.com|badexample.com|false",
+            "*.example.com|example.com|false",
+            "*.example.com|www.example.com|true",
+            "*.example.com|a.b.example.com|true",
+            // A parent domain and a more specific one
+            "*.example.com, www.example.com|example.com|false",
+            "*.example.com, www.example.com|www.example.com|true",
+            "com|example.com|true",
+            // Everything
+            "*|example.com|true",
+            "*|10.1.2.3|true",
+            "*|::1|true",
+            // The plain hostnames
+            "<local>|localhost|true",
+            "<local>|intranet|true",
+            "<local>|intranet.corp|false",
+            "<local>|127.0.0.1|false",
+            "<LOCAL>|localhost|true",
+            // Several entries, with commas or whitespaces
+            "example.com, 10.0.0.0/8 <local>|10.20.30.40|true",
+            "example.com, 10.0.0.0/8 <local>|localhost|true",
+            "example.com, 10.0.0.0/8 <local>|www.example.com|true",
+            "example.com, 10.0.0.0/8 <local>|example.org|false",
+    })
+    void matches_domains(String bypassList, String host, boolean matches) {
+        assertEquals(matches, BypassRules.compile(bypassList).matches(host));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "10.0.0.0/8|10.0.0.0|true",
+            "10.0.0.0/8|10.255.255.255|true",
+            "10.0.0.0/8|11.0.0.0|false",
+            "10.0.0.0/8|9.255.255.255|false",
+            "192.168.1.0/24|192.168.1.200|true",
+            "192.168.1.0/24|192.168.2.1|false",
+            "192.168.1.10|192.168.1.10|true",
+            "192.168.1.10|192.168.1.11|false",
+            "192.168.1.10/32|192.168.1.10|true",
+            "172.16.0.0/12|172.31.255.255|true",
+            "172.16.0.0/12|172.32.0.0|false",
+            "0.0.0.0/0|8.8.8.8|true",
+            "0.0.0.0/0|::1|false",
+            // The address bits past the prefix are ignored
+            "10.1.2.3/8|10.200.0.1|true",
+            // Not an IPv4 literal
+            "10.0.0.0/8|10.0.0|false",
+            "10.0.0.0/8|10.0.0.256|false",
+            "10.0.0.0/8|10.0.0.1.example.com|false",
+            // IPv6
+            "fe80::/10|fe80::1|true",
+            "fe80::/10|[fe80::1]|true",
+            "fe80::/10|febf:ffff::1|true",
+            "fe80::/10|fec0::1|false",
+            "::1|::1|true",
+            "::1|[::1]|true",
+            "::1|::2|false",
+            "[::1]|0:0:0:0:0:0:0:1|true",
+            "2001:db8::/32|2001:db8:1::1|true",
+            "2001:db8::/32|2001:db9::1|false",
+            "::/0|2001:db8::1|true",
+            "::/0|10.0.0.1|false",
+            // IPv4-mapped IPv6 literals match the IPv4 networks
+            "10.0.0.0/8|::ffff:10.1.2.3|true",
+            "10.0.0.0/8|::ffff:11.1.2.3|false",
+            // The networks only match the IP literals
+            "127.0.0.0/8|localhost|false",
+            "::/0|localhost:8080|false",
+            "::/0|example.com:8080|false",
+            "::/0|fe80::1::2|false",
+            "::/0|fe80::g|false",
+            // The scope id is ignored
+            "fe80::/10|fe80::1%eth0|true",
+            "fe80::/10|[fe80::1%25eth0]|true",
+    })
+    void matches_networks(String bypassList, String host, boolean matches) {
+        assertEquals(matches, BypassRules.compile(bypassList).matches(host));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            // Ports are not supported, the hosts are matched without their port
+            "example.com:8080",
+            "10.0.0.1:8080",
+            "[::1]:8080",
+            // Invalid networks
+            "10.0.0.0/33",
+            "10.0.0.0/-1",
+            "10.0.0.0/a",
+            "fe80::/129",
+            "fe80::1::2/64",
+            "example.com/24",
+            // Invalid domains
+            ".",
+            "*.",
+    })
+    void compile_invalid_throws(String bypassList) {
+        assertThrows(IllegalArgumentException.class, () -> BypassRules.compile(bypassList));
+    }
+
+    @Test
+    void compile_turkishLocale_sameRules() {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.forLanguageTag("tr-TR"));
+        try {
+            BypassRules bypassRules = BypassRules.compile("INTRANET.LOCAL, <LOCAL>");
+            assertTrue(bypassRules.matches("intranet.local"));
+            assertTrue(bypassRules.matches("www.intranet.local"));
+            assertTrue(bypassRules.matches("localhost"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    void matches_emptyList_false() {
+        assertSame(BypassRules.EMPTY, BypassRules.compile(null));
+        assertSame(BypassRules.EMPTY, BypassRules.compile(" "));
+        assertFalse(BypassRules.EMPTY.matches("localhost"));
+        assertFalse(BypassRules.EMPTY.matches("127.0.0.1"));
+    }
+
+    @Test
+    void matches_emptyHost_false() {
+        BypassRules bypassRules = BypassRules.compile("*");
+        assertFalse(bypassRules.matches(null));
+        assertFalse(bypassRules.matches(""));
+    }
+
+}
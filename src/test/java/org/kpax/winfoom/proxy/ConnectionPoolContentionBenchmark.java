@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.BasicHttpContext;
+import org.kpax.winfoom.util.InputOutputs;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease/release contention benchmark of the {@link PoolingConnectionManager} implementations.
+ * <p>Each route points to a local {@link ServerSocket} that only accepts connections,
+ * so that after warm-up all the leases are served from the pool.
+ * <p>Run it with: {@code java -cp target/test-classes:<test classpath> org.kpax.winfoom.proxy.ConnectionPoolContentionBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class ConnectionPoolContentionBenchmark {
+
+    @Param({"default", "striped"})
+    private String manager;
+
+    @Param({"1", "16"})
+    private int routeCount;
+
+    private PoolingConnectionManager connectionManager;
+
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+
+    private final List<Socket> acceptedSockets = new ArrayList<>();
+
+    private HttpRoute[] routes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        connectionManager = "striped".equals(manager)
+                ? new StripedHttpClientConnectionManager(registry, null)
+                : new DefaultPoolingConnectionManager(registry, null);
+        connectionManager.setMaxTotal(600);
+        connectionManager.setDefaultMaxPerRoute(20);
+
+        // Keep the benchmark on the pool, not on the stale connection check
+        connectionManager.setValidateAfterInactivity(-1);
+
+        routes = new HttpRoute[routeCount];
+        for (int i = 0; i < routeCount; i++) {
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+            serverSockets.add(serverSocket);
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        synchronized (acceptedSockets) {
+                            acceptedSockets.add(socket);
+                        }
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            routes[i] = new HttpRoute(new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(),
+                    serverSocket.getLocalPort()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connectionManager.close();
+        serverSockets.forEach(InputOutputs::close);
+        synchronized (acceptedSockets) {
+            acceptedSockets.forEach(InputOutputs::close);
+            acceptedSockets.clear();
+        }
+        serverSockets.clear();
+    }
+
+    @Benchmark
+    public void leaseAndRelease() throws Exception {
+        HttpRoute route = routes[ThreadLocalRandom.current().nextInt(routes.length)];
+        HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                .get(30, TimeUnit.SECONDS);
+        if (!connection.isOpen()) {
+            BasicHttpContext context = new BasicHttpContext();
+            connectionManager.connect(connection, route, 5000, context);
+            connectionManager.routeComplete(connection, route, context);
+        }
+        connectionManager.releaseConnection(connection, null, 60, TimeUnit.SECONDS);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ConnectionPoolContentionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
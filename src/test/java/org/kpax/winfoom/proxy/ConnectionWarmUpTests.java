@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.pac.PacScriptEvaluator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check the connections warm-up against a local server that counts the accepted connections.
+ */
+class ConnectionWarmUpTests {
+
+    private static final int CONNECTIONS = 3;
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final ProxyController proxyController = mock(ProxyController.class);
+
+    private final HttpClientBuilderFactory clientBuilderFactory = mock(HttpClientBuilderFactory.class);
+
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger closed = new AtomicInteger();
+
+    /**
+     * Whether the server answers the requests, otherwise it holds them.
+     */
+    private volatile boolean answering = true;
+
+    private ExecutorService serverExecutor;
+
+    private ServerSocket serverSocket;
+
+    private ProxyExecutorService executorService;
+
+    private ConnectionWarmUp connectionWarmUp;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        serverExecutor = Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverExecutor.submit(this::accept);
+
+        when(systemConfig.getConnectionManagerWarmupConnections()).thenReturn(CONNECTIONS);
+        when(systemConfig.getConnectionManagerWarmupDeadline()).thenReturn(30);
+        when(systemConfig.getConnectionManagerWarmupUrls())
+                .thenReturn("http://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+        when(proxyConfig.isAutoConfig()).thenReturn(false);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        when(proxyController.isRunning()).thenReturn(true);
+        // Like the proxy's connection managers, enough connections per route
+        when(clientBuilderFactory.createClientBuilder(any())).thenAnswer(invocation ->
+                HttpClients.custom().setMaxConnPerRoute(CONNECTIONS).setMaxConnTotal(CONNECTIONS));
+
+        executorService = new ProxyExecutorService();
+        connectionWarmUp = new ConnectionWarmUp(systemConfig, proxyConfig, proxyController, executorService,
+                clientBuilderFactory, mock(PacScriptEvaluator.class));
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        connectionWarmUp.onStop();
+        serverSocket.close();
+        serverExecutor.shutdownNow();
+        executorService.onStop();
+    }
+
+    @Test
+    void onStart_answeringServer_distinctConnections() throws Exception {
+        connectionWarmUp.onStart();
+        awaitState(ConnectionWarmUp.State.DONE, 10);
+
+        // Each connection is held until all of them are opened, so none is reused
+        assertEquals(CONNECTIONS, accepted.get());
+        assertEquals(CONNECTIONS, requests.get());
+        assertEquals(CONNECTIONS, connectionWarmUp.getMetrics().get("requested"));
+        assertEquals(CONNECTIONS, connectionWarmUp.getMetrics().get("opened"));
+        assertEquals(0, connectionWarmUp.getMetrics().get("failed"));
+    }
+
+    @Test
+    void onStart_disabled_nothingDone() throws Exception {
+        when(systemConfig.getConnectionManagerWarmupConnections()).thenReturn(0);
+        connectionWarmUp.onStart();
+        Thread.sleep(200);
+        assertEquals(ConnectionWarmUp.State.IDLE, connectionWarmUp.getMetrics().get("state"));
+        assertEquals(0, accepted.get());
+    }
+
+    @Test
+    void onStart_proxyNotStartedInTime_expired() throws Exception {
+        when(systemConfig.getConnectionManagerWarmupDeadline()).thenReturn(1);
+        when(proxyController.isRunning()).thenReturn(false);
+        connectionWarmUp.onStart();
+        awaitState(ConnectionWarmUp.State.EXPIRED, 5);
+        assertEquals(0, accepted.get());
+        assertEquals(0, connectionWarmUp.getMetrics().get("requested"));
+    }
+
+    @Test
+    void onStart_pastDeadline_expiredAndConnectionsClosed() throws Exception {
+        answering = false;
+        when(systemConfig.getConnectionManagerWarmupDeadline()).thenReturn(1);
+        connectionWarmUp.onStart();
+        awaitState(ConnectionWarmUp.State.EXPIRED, 5);
+
+        long elapsedMillis = (long) connectionWarmUp.getMetrics().get("elapsedMillis");
+        assertTrue(elapsedMillis >= 1000 && elapsedMillis < 3000, "elapsed: " + elapsedMillis);
+        assertEquals(0, connectionWarmUp.getMetrics().get("opened"));
+        await(() -> closed.get() == CONNECTIONS, 5);
+    }
+
+    @Test
+    void onStop_warmingUp_cancelledAndConnectionsClosed() throws Exception {
+        answering = false;
+        connectionWarmUp.onStart();
+        await(() -> requests.get() == CONNECTIONS, 5);
+
+        long start = System.nanoTime();
+        connectionWarmUp.onStop();
+        awaitState(ConnectionWarmUp.State.CANCELLED, 5);
+
+        // Not held until the deadline
+        await(() -> closed.get() == CONNECTIONS, 5);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(CONNECTIONS, accepted.get());
+    }
+
+    private void awaitState(ConnectionWarmUp.State state, int timeoutSeconds) throws Exception {
+        await(() -> connectionWarmUp.getMetrics().get("state") == state, timeoutSeconds);
+    }
+
+    private void await(BooleanSupplier condition, int timeoutSeconds) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out, metrics: " + connectionWarmUp.getMetrics());
+            Thread.sleep(10);
+        }
+    }
+
+    private Void accept() throws Exception {
+        while (!serverSocket.isClosed()) {
+            Socket socket = serverSocket.accept();
+            accepted.incrementAndGet();
+            serverExecutor.submit(() -> serve(socket));
+        }
+        return null;
+    }
+
+    /**
+     * Answer the requests of a connection, kept alive, until the client closes it.
+     */
+    private Void serve(Socket socket) throws IOException {
+        try (socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty()) {
+                    requests.incrementAndGet();
+                    if (answering) {
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+                                .getBytes(StandardCharsets.ISO_8859_1));
+                        socket.getOutputStream().flush();
+                    }
+                }
+            }
+        } finally {
+            // Either closed or reset by the client
+            closed.incrementAndGet();
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.MessageConstraints;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HttpCoreContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class IdempotentRequestRetryHandlerTests {
+
+    private static final String CONTENT = "12345";
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final IdempotentRequestRetryHandler retryHandler = new IdempotentRequestRetryHandler(systemConfig);
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void beforeEach() {
+        when(systemConfig.getRequestRetryCount()).thenReturn(1);
+    }
+
+    @Test
+    void retryRequest_sentGetNoResponse_retried() {
+        assertTrue(retryHandler.retryRequest(new NoHttpResponseException("dropped"), 1,
+                context(new BasicHttpRequest("GET", "http://example.com/"), true)));
+    }
+
+    @Test
+    void retryRequest_sentPutNoResponse_notRetried() {
+        assertFalse(retryHandler.retryRequest(new NoHttpResponseException("dropped"), 1,
+                context(entityRequest("PUT", new ByteArrayEntity(CONTENT.getBytes())), true)));
+    }
+
+    @Test
+    void retryRequest_sentDeleteNoResponse_notRetried() {
+        assertFalse(retryHandler.retryRequest(new NoHttpResponseException("dropped"), 1,
+                context(new BasicHttpRequest("DELETE", "http://example.com/"), true)));
+    }
+
+    @Test
+    void retryRequest_sentGetOtherError_notRetried() {
+        assertFalse(retryHandler.retryRequest(new IOException("reset"), 1,
+                context(new BasicHttpRequest("GET", "http://example.com/"), true)));
+    }
+
+    @Test
+    void retryRequest_notSentPut_retried() {
+        assertTrue(retryHandler.retryRequest(new IOException("reset"), 1,
+                context(entityRequest("PUT", new ByteArrayEntity(CONTENT.getBytes())), false)));
+    }
+
+    @Test
+    void retryRequest_notSentPost_notRetried() {
+        assertFalse(retryHandler.retryRequest(new IOException("reset"), 1,
+                context(entityRequest("POST", new ByteArrayEntity(CONTENT.getBytes())), false)));
+    }
+
+    @Test
+    void retryRequest_connectFailure_notRetried() {
+        assertFalse(retryHandler.retryRequest(new ConnectException("refused"), 1,
+                context(new BasicHttpRequest("GET", "http://example.com/"), false)));
+    }
+
+    @Test
+    void retryRequest_retryCountExceeded_notRetried() {
+        assertFalse(retryHandler.retryRequest(new NoHttpResponseException("dropped"), 2,
+                context(new BasicHttpRequest("GET", "http://example.com/"), true)));
+    }
+
+    @Test
+    void retryRequest_nonRepeatableEntity_notRetried() {
+        assertFalse(retryHandler.retryRequest(new IOException("reset"), 1,
+                context(entityRequest("PUT", new InputStreamEntity(new ByteArrayInputStream(CONTENT.getBytes()))), false)));
+        assertEquals(1L, retryHandler.getMetrics().get("nonRepeatable"));
+    }
+
+    @Test
+    void retryRequest_streamingFailed_notRetried() throws IOException {
+        BasicHttpEntityEnclosingRequest request = entityRequest("PUT", null);
+        try (RepeatableHttpEntity entity = repeatableEntity(request)) {
+            request.setEntity(entity);
+            assertThrows(IOException.class, () -> entity.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Broken pipe");
+                }
+            }));
+            assertFalse(entity.isRepeatable());
+            assertThrows(IOException.class, () -> entity.writeTo(new ByteArrayOutputStream()));
+            assertFalse(retryHandler.retryRequest(new IOException("Broken pipe"), 1, context(request, false)));
+        }
+    }
+
+    @Test
+    void retryRequest_streamingSucceeded_retriedAndReplayed() throws IOException {
+        BasicHttpEntityEnclosingRequest request = entityRequest("PUT", null);
+        try (RepeatableHttpEntity entity = repeatableEntity(request)) {
+            request.setEntity(entity);
+            ByteArrayOutputStream first = new ByteArrayOutputStream();
+            entity.writeTo(first);
+            assertTrue(entity.isRepeatable());
+            assertTrue(retryHandler.retryRequest(new IOException("reset"), 1, context(request, false)));
+
+            ByteArrayOutputStream replay = new ByteArrayOutputStream();
+            entity.writeTo(replay);
+            assertEquals(CONTENT, replay.toString(StandardCharsets.UTF_8));
+            assertEquals(first.toString(StandardCharsets.UTF_8), replay.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    private RepeatableHttpEntity repeatableEntity(HttpRequest request) {
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(
+                new HttpTransportMetricsImpl(),
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                InputOutputs.DEFAULT_BUFFER_SIZE,
+                MessageConstraints.DEFAULT,
+                StandardCharsets.UTF_8.newDecoder());
+        inputBuffer.bind(new ByteArrayInputStream(CONTENT.getBytes()));
+        return new RepeatableHttpEntity(request, inputBuffer, tempDir, 100);
+    }
+
+    private static BasicHttpEntityEnclosingRequest entityRequest(String method, HttpEntity entity) {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(method, "http://example.com/");
+        request.addHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(CONTENT.length()));
+        request.setEntity(entity);
+        return request;
+    }
+
+    private static HttpClientContext context(HttpRequest request, boolean sent) {
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpCoreContext.HTTP_REQUEST, HttpRequestWrapper.wrap(request));
+        context.setAttribute(HttpCoreContext.HTTP_REQ_SENT, sent);
+        return context;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeaseWaitStatisticsTests {
+
+    private final HttpRoute route = new HttpRoute(new HttpHost("example.com", 80));
+
+    private final LeaseWaitStatistics statistics = new LeaseWaitStatistics();
+
+    @Test
+    void drain_samples_snapshotThenEmpty() {
+        statistics.record(route, TimeUnit.MILLISECONDS.toNanos(10));
+        statistics.record(route, TimeUnit.MILLISECONDS.toNanos(30));
+
+        LeaseWaitStatistics.Snapshot snapshot = statistics.drain(route);
+        assertEquals(2, snapshot.getCount());
+        assertEquals(20, snapshot.getAverageMillis());
+        assertEquals(30, snapshot.getMaxMillis());
+        assertEquals(0, statistics.drain(route).getCount());
+    }
+
+    @Test
+    void peek_samples_windowKept() {
+        statistics.record(route, TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(1, statistics.peek(route).getCount());
+        assertEquals(1, statistics.drain(route).getCount());
+        assertEquals(0, statistics.peek(route).getCount());
+    }
+
+    @Test
+    void drain_unknownRoute_empty() {
+        assertSame(LeaseWaitStatistics.Snapshot.EMPTY, statistics.drain(route));
+    }
+
+    @Test
+    void drain_concurrentRecords_noSampleLost() throws Exception {
+        int threads = 4;
+        int samples = 100_000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean recording = new AtomicBoolean(true);
+        List<Thread> recorders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread recorder = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < samples; j++) {
+                    statistics.record(route, 1);
+                }
+            });
+            recorder.start();
+            recorders.add(recorder);
+        }
+        long drained = 0;
+        start.countDown();
+        while (recording.get()) {
+            drained += statistics.drain(route).getCount();
+            recording.set(recorders.stream().anyMatch(Thread::isAlive));
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        drained += statistics.drain(route).getCount();
+        assertEquals((long) threads * samples, drained);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check the Unix domain socket listener.
+ */
+@DisabledOnOs(OS.WINDOWS)
+class LocalProxyServerTests {
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final ClientConnectionHandlerSelector clientConnectionHandlerSelector =
+            mock(ClientConnectionHandlerSelector.class);
+
+    private final ClientConnectionHandler clientConnectionHandler = mock(ClientConnectionHandler.class);
+
+    private final ProxyExecutorService executorService = new ProxyExecutorService();
+
+    private LocalProxyServer localProxyServer;
+
+    @TempDir
+    Path tempDir;
+
+    private Path socketPath;
+
+    @BeforeEach
+    void beforeEach() {
+        socketPath = tempDir.resolve("winfoom.sock");
+        when(systemConfig.getServerSocketUnixPath()).thenReturn(socketPath.toString());
+        when(systemConfig.getServerSocketBacklog()).thenReturn(10);
+        when(systemConfig.getServerSocketSocks5Port()).thenReturn(0);
+        when(systemConfig.getSocketSoTimeout()).thenReturn(5);
+        when(proxyConfig.getLocalPort()).thenReturn(0);
+        when(clientConnectionHandlerSelector.select()).thenReturn(clientConnectionHandler);
+        localProxyServer = new LocalProxyServer(systemConfig, proxyConfig, executorService,
+                clientConnectionHandlerSelector, mock(Socks5ConnectionHandler.class));
+    }
+
+    @AfterEach
+    void afterEach() {
+        localProxyServer.onStop();
+        executorService.onStop();
+    }
+
+    @Test
+    void start_unixPath_handlesConnections() throws Exception {
+        doAnswer(invocation -> {
+            SocketChannelStreams channelStreams = invocation.getArgument(0);
+            byte[] request = channelStreams.getInputStream().readNBytes(4);
+            channelStreams.getOutputStream().write(("re:" + new String(request, StandardCharsets.UTF_8))
+                    .getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(clientConnectionHandler).handleConnection(any(SocketChannelStreams.class));
+        localProxyServer.start();
+        try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            client.write(ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)));
+            try (InputStream inputStream = Channels.newInputStream(client)) {
+                assertEquals("re:ping", new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    void start_staleSocketFile_replaced() throws Exception {
+        try (ServerSocketChannel previous = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            previous.bind(UnixDomainSocketAddress.of(socketPath));
+        }
+        assertTrue(Files.exists(socketPath));
+        localProxyServer.start();
+        try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            assertTrue(client.isConnected());
+        }
+    }
+
+    @Test
+    void start_regularFile_keptAndFails() throws Exception {
+        Files.writeString(socketPath, "data");
+        assertThrows(IOException.class, () -> localProxyServer.start());
+        assertEquals("data", Files.readString(socketPath));
+    }
+
+    @Test
+    void start_socketInUse_fails() throws Exception {
+        try (ServerSocketChannel other = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            other.bind(UnixDomainSocketAddress.of(socketPath));
+            assertThrows(IOException.class, () -> localProxyServer.start());
+            assertTrue(Files.exists(socketPath));
+        }
+    }
+
+    @Test
+    void onStop_ownSocketFile_deleted() throws Exception {
+        localProxyServer.start();
+        assertTrue(Files.exists(socketPath));
+        localProxyServer.onStop();
+        assertFalse(Files.exists(socketPath));
+    }
+
+    @Test
+    void onStop_replacedSocketFile_kept() throws Exception {
+        localProxyServer.start();
+        Files.delete(socketPath);
+        Files.writeString(socketPath, "data");
+        localProxyServer.onStop();
+        assertEquals("data", Files.readString(socketPath));
+    }
+
+    @Test
+    void read_noData_timesOut() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+                 SocketChannelStreams channelStreams = new SocketChannelStreams(server.accept(), 200)) {
+                long start = System.nanoTime();
+                assertThrows(SocketTimeoutException.class, () -> channelStreams.getInputStream().read());
+                assertTrue(System.nanoTime() - start >= 150_000_000L);
+                client.write(ByteBuffer.wrap(new byte[]{7}));
+                assertEquals(7, channelStreams.getInputStream().read());
+            }
+        }
+    }
+
+}
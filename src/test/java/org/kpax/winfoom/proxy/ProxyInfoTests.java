@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyInfoTests {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "PROXY|a.example.com|8080|PROXY|a.example.com|8080|true",
+            "DIRECT|''|0|DIRECT|''|0|true",
+            "PROXY|a.example.com|8080|HTTP|a.example.com|8080|false",
+            "PROXY|a.example.com|8080|PROXY|a.example.com|8081|false",
+            "PROXY|a.example.com|8080|PROXY|b.example.com|8080|false",
+            "SOCKS|a.example.com|1080|SOCKS5|a.example.com|1080|false",
+            "PROXY|a.example.com|8080|DIRECT|''|0|false",
+    })
+    void equals_typeAndHost(String type1, String host1, int port1, String type2, String host2, int port2,
+                            boolean equal) {
+        ProxyInfo proxyInfo1 = create(type1, host1, port1);
+        ProxyInfo proxyInfo2 = create(type2, host2, port2);
+        assertEquals(equal, proxyInfo1.equals(proxyInfo2));
+        assertEquals(equal, proxyInfo2.equals(proxyInfo1));
+        if (equal) {
+            assertEquals(proxyInfo1.hashCode(), proxyInfo2.hashCode());
+        }
+    }
+
+    private static ProxyInfo create(String type, String host, int port) {
+        return new ProxyInfo(ProxyInfo.PacType.valueOf(type), host.isEmpty() ? null : new HttpHost(host, port));
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.ssl.SSLContexts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the upstream TLS handshakes against a local TLS server.
+ */
+class ProxyTlsContextTests {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private KeyStore keyStore;
+
+    private SSLServerSocket serverSocket;
+
+    private Thread serverThread;
+
+    private ProxyTlsContext proxyTlsContext;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(systemConfig.getTlsSessionCacheSize()).thenReturn(10);
+        when(systemConfig.getTlsSessionCacheTimeout()).thenReturn(60);
+        keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream inputStream = getClass().getResourceAsStream("/localhost.p12")) {
+            keyStore.load(inputStream, PASSWORD);
+        }
+        SSLContext serverContext = SSLContexts.custom().loadKeyMaterial(keyStore, PASSWORD).build();
+        serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                    socket.startHandshake();
+                    socket.getOutputStream().write(42);
+                    socket.getOutputStream().flush();
+                } catch (IOException e) {
+                    // Handshake refused by the client or server closed
+                }
+            }
+        });
+        serverThread.start();
+        proxyTlsContext = new ProxyTlsContext(systemConfig);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        serverSocket.close();
+        serverThread.join(5000);
+    }
+
+    @Test
+    void secure_trustedServer_handshakesCounted() throws Exception {
+        proxyTlsContext.init(SSLContexts.custom().loadTrustMaterial(keyStore, null).build());
+        HttpHost host = new HttpHost("localhost", serverSocket.getLocalPort(), ProxyTlsContext.HTTPS_SCHEME);
+        for (int i = 0; i < 2; i++) {
+            try (Socket socket = proxyTlsContext.secure(connect(), host)) {
+                assertTrue(socket instanceof SSLSocket);
+                assertEquals(42, socket.getInputStream().read());
+            }
+        }
+        Map<String, Object> metrics = proxyTlsContext.getMetrics();
+        assertEquals(2L, metrics.get("handshakes"));
+        assertEquals(0L, metrics.get("failed"));
+        assertFalse(metrics.containsKey("resumed"));
+    }
+
+    @Test
+    void secure_untrustedServer_failedAndClosed() throws Exception {
+        proxyTlsContext.init(SSLContexts.custom().build());
+        HttpHost host = new HttpHost("localhost", serverSocket.getLocalPort(), ProxyTlsContext.HTTPS_SCHEME);
+        Socket socket = connect();
+        assertThrows(SSLException.class, () -> proxyTlsContext.secure(socket, host));
+        assertTrue(socket.isClosed());
+        Map<String, Object> metrics = proxyTlsContext.getMetrics();
+        assertEquals(0L, metrics.get("handshakes"));
+        assertEquals(1L, metrics.get("failed"));
+    }
+
+    @Test
+    void secure_plainHost_sameSocket() throws Exception {
+        proxyTlsContext.init(SSLContexts.custom().build());
+        try (Socket socket = connect()) {
+            assertSame(socket, proxyTlsContext.secure(socket, new HttpHost("localhost", serverSocket.getLocalPort())));
+        }
+        assertEquals(0L, proxyTlsContext.getMetrics().get("handshakes"));
+    }
+
+    private Socket connect() throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.pac.PacScriptEvaluator;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the inbound SOCKS5 handshake bytes.
+ */
+class Socks5ConnectionHandlerTests {
+
+    private static final byte[] NO_AUTHENTICATION_GREETING = {5, 1, 0};
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final ProxyBypass proxyBypass = mock(ProxyBypass.class);
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    private ProxyExecutorService proxyExecutorService;
+
+    private ServerSocket serverSocket;
+
+    private Socks5ConnectionHandler socks5ConnectionHandler;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        when(proxyBypass.select(anyString(), any())).thenAnswer(invocation -> invocation.getArgument(1));
+        when(systemConfig.configureSocket(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(5);
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxyExecutorService = new ProxyExecutorService();
+        socks5ConnectionHandler = new Socks5ConnectionHandler(systemConfig, proxyConfig, proxyExecutorService,
+                mock(PacScriptEvaluator.class), mock(ProxyBlacklist.class), mock(TunnelConnection.class),
+                mock(SocksConnector.class), proxyBypass);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        serverSocket.close();
+        executorService.shutdownNow();
+        proxyExecutorService.onStop();
+    }
+
+    @Test
+    void handleConnection_noAcceptableMethods_rejected() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(new byte[]{5, 1, 2});
+            assertArrayEquals(new byte[]{5, (byte) 0xFF}, read(socket, 2));
+        }
+    }
+
+    @Test
+    void handleConnection_invalidRequestVersion_generalFailure() throws Exception {
+        assertEquals(1, request(new byte[]{4, 1, 0, 1, 127, 0, 0, 1, 0, 80}));
+    }
+
+    @Test
+    void handleConnection_nonZeroReserved_generalFailure() throws Exception {
+        assertEquals(1, request(new byte[]{5, 1, 1, 1, 127, 0, 0, 1, 0, 80}));
+    }
+
+    @Test
+    void handleConnection_bindCommand_commandNotSupported() throws Exception {
+        assertEquals(7, request(new byte[]{5, 2, 0, 1, 127, 0, 0, 1, 0, 80}));
+    }
+
+    @Test
+    void handleConnection_unknownAddressType_addressTypeNotSupported() throws Exception {
+        assertEquals(8, request(new byte[]{5, 1, 0, 2, 127, 0, 0, 1, 0, 80}));
+    }
+
+    @Test
+    void handleConnection_directConnect_relayed() throws Exception {
+        try (ServerSocket echoServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            executorService.submit(() -> {
+                try (Socket socket = echoServerSocket.accept()) {
+                    socket.getInputStream().transferTo(socket.getOutputStream());
+                }
+                return null;
+            });
+            int port = echoServerSocket.getLocalPort();
+            try (Socket socket = connect()) {
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(NO_AUTHENTICATION_GREETING);
+                assertArrayEquals(new byte[]{5, 0}, read(socket, 2));
+                outputStream.write(new byte[]{5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port});
+                assertEquals(0, read(socket, 10)[1]);
+                outputStream.write(new byte[]{'p', 'i', 'n', 'g'});
+                assertArrayEquals(new byte[]{'p', 'i', 'n', 'g'}, read(socket, 4));
+            }
+        }
+    }
+
+    /**
+     * Negotiate then send the request.
+     *
+     * @return the reply code.
+     */
+    private int request(byte[] request) throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(NO_AUTHENTICATION_GREETING);
+            assertArrayEquals(new byte[]{5, 0}, read(socket, 2));
+            outputStream.write(request);
+            byte[] reply = read(socket, 10);
+            assertEquals(5, reply[0]);
+            return reply[1];
+        }
+    }
+
+    /**
+     * Connect to the handler running against the accepted socket.
+     */
+    private Socket connect() throws Exception {
+        executorService.submit(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                socks5ConnectionHandler.handleConnection(socket);
+            }
+            return null;
+        });
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static byte[] read(Socket socket, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(bytes);
+        return bytes;
+    }
+
+}
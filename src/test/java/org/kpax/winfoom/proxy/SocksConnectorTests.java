@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the SOCKS handshake bytes against a scripted local SOCKS server.
+ */
+class SocksConnectorTests {
+
+    private static final byte[] SUCCEEDED_IPV4 = {5, 0, 0, 1, 10, 0, 0, 1, 0x1F, (byte) 0x90};
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    private ServerSocket serverSocket;
+
+    private SocksConnector socksConnector;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS5);
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        socksConnector = new SocksConnector(systemConfig, proxyConfig);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        serverSocket.close();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void socks5_noAuthentication_domainName() throws Exception {
+        Future<byte[]> received = serve(new int[]{3, 18}, new byte[][]{{5, 0}, SUCCEEDED_IPV4});
+        try (Socket socket = connect(false, "example.com", 443)) {
+            assertTrue(socket.isConnected());
+        }
+        assertArrayEquals(concat(
+                new byte[]{5, 1, 0},
+                new byte[]{5, 1, 0, 3, 11}, ascii("example.com"), new byte[]{1, (byte) 0xBB}),
+                received.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void socks5_usernamePassword_authenticated() throws Exception {
+        when(proxyConfig.getProxyUsername()).thenReturn("user");
+        when(proxyConfig.getProxyPassword()).thenReturn("secret");
+        Future<byte[]> received = serve(new int[]{4, 13, 10},
+                new byte[][]{{5, 2}, {1, 0}, SUCCEEDED_IPV4});
+        try (Socket socket = connect(false, "10.1.2.3", 80)) {
+            assertTrue(socket.isConnected());
+        }
+        assertArrayEquals(concat(
+                new byte[]{5, 2, 0, 2},
+                new byte[]{1, 4}, ascii("user"), new byte[]{6}, ascii("secret"),
+                new byte[]{5, 1, 0, 1, 10, 1, 2, 3, 0, 80}),
+                received.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void socks5_authenticationRejected_fails() throws Exception {
+        when(proxyConfig.getProxyUsername()).thenReturn("user");
+        when(proxyConfig.getProxyPassword()).thenReturn("wrong");
+        serve(new int[]{4, 12}, new byte[][]{{5, 2}, {1, 1}});
+        SocketException e = assertThrows(SocketException.class, () -> connect(false, "example.com", 443));
+        assertEquals(SocksConnector.AUTHENTICATION_FAILED, e.getMessage());
+    }
+
+    @Test
+    void socks5_noAcceptableMethods_fails() throws Exception {
+        serve(new int[]{3}, new byte[][]{{5, (byte) 0xFF}});
+        SocketException e = assertThrows(SocketException.class, () -> connect(false, "example.com", 443));
+        assertEquals(SocksConnector.AUTHENTICATION_FAILED, e.getMessage());
+    }
+
+    @Test
+    void socks5_usernameTooLong_rejectedBeforeSending() throws Exception {
+        when(proxyConfig.getProxyUsername()).thenReturn("u".repeat(256));
+        when(proxyConfig.getProxyPassword()).thenReturn("secret");
+        Future<byte[]> received = serve(new int[]{4}, new byte[][]{{5, 2}});
+        SocketException e = assertThrows(SocketException.class, () -> connect(false, "example.com", 443));
+        assertTrue(e.getMessage().contains("username too long"));
+        assertArrayEquals(new byte[]{5, 2, 0, 2}, received.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void socks5_passwordTooLong_rejected() throws Exception {
+        when(proxyConfig.getProxyUsername()).thenReturn("user");
+        when(proxyConfig.getProxyPassword()).thenReturn("p".repeat(256));
+        serve(new int[]{4}, new byte[][]{{5, 2}});
+        SocketException e = assertThrows(SocketException.class, () -> connect(false, "example.com", 443));
+        assertTrue(e.getMessage().contains("password too long"));
+    }
+
+    @Test
+    void socks5_maxLengthCredentials_sent() throws Exception {
+        when(proxyConfig.getProxyUsername()).thenReturn("u".repeat(255));
+        when(proxyConfig.getProxyPassword()).thenReturn("p".repeat(255));
+        Future<byte[]> received = serve(new int[]{4, 3 + 255 + 255, 10},
+                new byte[][]{{5, 2}, {1, 0}, SUCCEEDED_IPV4});
+        connect(false, "10.1.2.3", 80).close();
+        byte[] bytes = received.get(5, TimeUnit.SECONDS);
+        assertEquals((byte) 255, bytes[5]);
+        assertEquals((byte) 255, bytes[5 + 1 + 255]);
+    }
+
+    @Test
+    void socks5_connectionRefused_fails() throws Exception {
+        serve(new int[]{3, 18}, new byte[][]{{5, 0}, {5, 5, 0, 1, 0, 0, 0, 0, 0, 0}});
+        SocketException e = assertThrows(SocketException.class, () -> connect(false, "example.com", 443));
+        assertEquals("SOCKS: Connection refused", e.getMessage());
+    }
+
+    @Test
+    void socks5_domainBoundAddress_fullyRead() throws Exception {
+        serve(new int[]{3, 18},
+                new byte[][]{{5, 0}, concat(new byte[]{5, 0, 0, 3, 4}, ascii("host"), new byte[]{0, 80, 42})});
+        try (Socket socket = connect(false, "example.com", 443)) {
+            // The first tunneled byte follows the reply
+            assertEquals(42, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void socks4a_domainName() throws Exception {
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS4);
+        Future<byte[]> received = serve(new int[]{9 + 12}, new byte[][]{{0, 90, 0, 0, 0, 0, 0, 0}});
+        connect(true, "example.com", 443).close();
+        assertArrayEquals(concat(
+                new byte[]{4, 1, 1, (byte) 0xBB, 0, 0, 0, 1, 0}, ascii("example.com"), new byte[]{0}),
+                received.get(5, TimeUnit.SECONDS));
+    }
+
+    private Socket connect(boolean socks4, String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(5000);
+            socksConnector.connect(socket, (InetSocketAddress) serverSocket.getLocalSocketAddress(),
+                    socks4, host, port, 5000);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Accept one connection, then read each request of the given length and answer the matching reply.
+     *
+     * @return all the bytes received.
+     */
+    private Future<byte[]> serve(int[] requestLengths, byte[][] replies) {
+        return executorService.submit(() -> {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(5000);
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                for (int i = 0; i < requestLengths.length; i++) {
+                    byte[] request = new byte[requestLengths[i]];
+                    inputStream.readFully(request);
+                    received.write(request);
+                    socket.getOutputStream().write(replies[i]);
+                    socket.getOutputStream().flush();
+                }
+                // Wait for the client to close
+                inputStream.read();
+            }
+            return received.toByteArray();
+        });
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            outputStream.writeBytes(array);
+        }
+        return outputStream.toByteArray();
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the warm sockets to the upstream proxy against a local server.
+ */
+class SpeculativeConnectorTests {
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    private ProxyExecutorService executorService;
+
+    private ServerSocket serverSocket;
+
+    private Thread serverThread;
+
+    private HttpHost proxy;
+
+    private SpeculativeConnector speculativeConnector;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(systemConfig.isConnectionSpeculativeEnabled()).thenReturn(true);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(5);
+        when(systemConfig.configureSocket(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    accepted.add(serverSocket.accept());
+                } catch (Exception e) {
+                    // Server closed
+                }
+            }
+        });
+        serverThread.start();
+        proxy = new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(), serverSocket.getLocalPort());
+        executorService = new ProxyExecutorService();
+        speculativeConnector = new SpeculativeConnector(systemConfig, executorService);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        speculativeConnector.onStop();
+        serverSocket.close();
+        serverThread.join(5000);
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+        executorService.onStop();
+    }
+
+    @Test
+    void take_noDemandYet_nothingConnected() throws Exception {
+        Thread.sleep(100);
+        assertTrue(accepted.isEmpty());
+        assertEquals(0L, speculativeConnector.getMetrics().get("started"));
+    }
+
+    @Test
+    void take_firstTime_nullThenWarmSocket() throws Exception {
+        assertNull(speculativeConnector.take(proxy));
+        awaitAccepted(SpeculativeConnector.MAX_WARM_SOCKETS);
+
+        try (Socket socket = speculativeConnector.take(proxy)) {
+            assertNotNull(socket);
+            assertTrue(socket.isConnected());
+            assertEquals(serverSocket.getLocalPort(), socket.getPort());
+        }
+        awaitAccepted(SpeculativeConnector.MAX_WARM_SOCKETS + 1);
+        Thread.sleep(100);
+        assertEquals(SpeculativeConnector.MAX_WARM_SOCKETS + 1, accepted.size());
+        assertEquals(1L, speculativeConnector.getMetrics().get("used"));
+        assertEquals(SpeculativeConnector.MAX_WARM_SOCKETS, speculativeConnector.getMetrics().get("warm"));
+    }
+
+    @Test
+    void take_otherProxy_warmSocketsCancelled() throws Exception {
+        assertNull(speculativeConnector.take(proxy));
+        awaitAccepted(SpeculativeConnector.MAX_WARM_SOCKETS);
+
+        try (ServerSocket otherServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            HttpHost otherProxy = new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(),
+                    otherServerSocket.getLocalPort());
+            assertNull(speculativeConnector.take(otherProxy));
+            assertEquals((long) SpeculativeConnector.MAX_WARM_SOCKETS,
+                    speculativeConnector.getMetrics().get("cancelled"));
+            speculativeConnector.onStop();
+        }
+    }
+
+    @Test
+    void take_disabled_nothingConnected() throws Exception {
+        when(systemConfig.isConnectionSpeculativeEnabled()).thenReturn(false);
+        assertNull(speculativeConnector.take(proxy));
+        Thread.sleep(100);
+        assertTrue(accepted.isEmpty());
+    }
+
+    @Test
+    void onStop_warmSocketsClosed() throws Exception {
+        assertNull(speculativeConnector.take(proxy));
+        awaitAccepted(SpeculativeConnector.MAX_WARM_SOCKETS);
+        speculativeConnector.onStop();
+        assertEquals(0, speculativeConnector.getMetrics().get("warm"));
+        for (Socket socket : accepted) {
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    private void awaitAccepted(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && accepted.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, accepted.size());
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.conn.ConnectionShutdownException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check the lease/release cycle of the striped connection manager against a local server.
+ */
+class StripedHttpClientConnectionManagerTests {
+
+    private ServerSocket serverSocket;
+
+    private HttpRoute route;
+
+    private StripedHttpClientConnectionManager connectionManager;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        route = new HttpRoute(new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(), serverSocket.getLocalPort()));
+        connectionManager = new StripedHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build(), null);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        connectionManager.close();
+        serverSocket.close();
+    }
+
+    @Test
+    void release_keepAlive_connectionReused() throws Exception {
+        HttpClientConnection connection = leaseConnected();
+        int localPort = ((ManagedHttpClientConnection) connection).getLocalPort();
+        connectionManager.releaseConnection(connection, null, 10, TimeUnit.SECONDS);
+        assertEquals(1, connectionManager.getStats(route).getAvailable());
+
+        HttpClientConnection reused = lease(1000);
+        assertTrue(reused.isOpen());
+        assertEquals(localPort, ((ManagedHttpClientConnection) reused).getLocalPort());
+        assertEquals(1, connectionManager.getStats(route).getLeased());
+        assertEquals(0, connectionManager.getStats(route).getAvailable());
+    }
+
+    @Test
+    void release_connectionDetached() throws Exception {
+        HttpClientConnection connection = leaseConnected();
+        connectionManager.releaseConnection(connection, null, 10, TimeUnit.SECONDS);
+
+        assertFalse(connection.isOpen());
+        assertTrue(connection.isStale());
+        assertThrows(ConnectionShutdownException.class, () -> ((ManagedHttpClientConnection) connection).getSocket());
+        assertThrows(ConnectionShutdownException.class, () -> connection.setSocketTimeout(1000));
+
+        // A second release is ignored
+        connectionManager.releaseConnection(connection, null, 10, TimeUnit.SECONDS);
+        assertEquals(0, connectionManager.getStats(route).getLeased());
+        assertEquals(1, connectionManager.getStats(route).getAvailable());
+    }
+
+    @Test
+    void release_notRouteComplete_closed() throws Exception {
+        HttpClientConnection connection = lease(1000);
+        connectionManager.connect(connection, route, 1000, HttpClientContext.create());
+        connectionManager.releaseConnection(connection, null, 10, TimeUnit.SECONDS);
+        assertEquals(0, connectionManager.getStats(route).getAvailable());
+    }
+
+    @Test
+    void lease_expired_newConnection() throws Exception {
+        HttpClientConnection connection = leaseConnected();
+        connectionManager.releaseConnection(connection, null, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+
+        HttpClientConnection other = lease(1000);
+        assertFalse(other.isOpen());
+        assertEquals(0, connectionManager.getStats(route).getAvailable());
+    }
+
+    @Test
+    void closeExpiredConnections_expired_closed() throws Exception {
+        connectionManager.releaseConnection(leaseConnected(), null, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+        connectionManager.closeExpiredConnections();
+        assertEquals(0, connectionManager.getStats(route).getAvailable());
+    }
+
+    @Test
+    void lease_maxPerRouteReached_timesOut() throws Exception {
+        connectionManager.setDefaultMaxPerRoute(1);
+        HttpClientConnection connection = leaseConnected();
+        assertThrows(ConnectionPoolTimeoutException.class, () -> lease(100));
+
+        connectionManager.releaseConnection(connection, null, 10, TimeUnit.SECONDS);
+        assertTrue(lease(100).isOpen());
+    }
+
+    @Test
+    void lease_maxTotalReached_idleConnectionOfOtherRouteClosed() throws Exception {
+        try (ServerSocket otherServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            connectionManager.setMaxTotal(1);
+            connectionManager.releaseConnection(leaseConnected(), null, 10, TimeUnit.SECONDS);
+
+            HttpRoute otherRoute = new HttpRoute(new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(),
+                    otherServerSocket.getLocalPort()));
+            HttpClientConnection connection = connectionManager.requestConnection(otherRoute, null)
+                    .get(100, TimeUnit.MILLISECONDS);
+            assertNotNull(connection);
+            assertEquals(0, connectionManager.getStats(route).getAvailable());
+            assertEquals(1, connectionManager.getTotalStats().getLeased());
+        }
+    }
+
+    @Test
+    void cancel_waitingGet_wokenUp() throws Exception {
+        connectionManager.setDefaultMaxPerRoute(1);
+        leaseConnected();
+        ConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                connectionRequest.get(0, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                error.set(e);
+            }
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(connectionRequest.cancel());
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(error.get() instanceof ExecutionException);
+        assertTrue(error.get().getCause() instanceof CancellationException);
+        assertFalse(interrupted.get());
+        assertEquals(0, connectionManager.getStats(route).getPending());
+    }
+
+    @Test
+    void cancel_beforeGet_fails() {
+        ConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+        assertTrue(connectionRequest.cancel());
+        assertFalse(connectionRequest.cancel());
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> connectionRequest.get(100, TimeUnit.MILLISECONDS));
+        assertTrue(e.getCause() instanceof CancellationException);
+    }
+
+    @Test
+    void cancel_afterGet_ignored() throws Exception {
+        ConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+        assertNotNull(connectionRequest.get(100, TimeUnit.MILLISECONDS));
+        assertFalse(connectionRequest.cancel());
+    }
+
+    @Test
+    void connect_defaultSocketConfig_applied() throws Exception {
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(1234).build());
+        HttpClientConnection connection = leaseConnected();
+        assertEquals(1234, connection.getSocketTimeout());
+    }
+
+    private HttpClientConnection lease(long timeoutMillis) throws Exception {
+        return connectionManager.requestConnection(route, null).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private HttpClientConnection leaseConnected() throws Exception {
+        HttpClientConnection connection = lease(1000);
+        HttpClientContext context = HttpClientContext.create();
+        connectionManager.connect(connection, route, 1000, context);
+        connectionManager.routeComplete(connection, route, context);
+        return connection;
+    }
+
+}
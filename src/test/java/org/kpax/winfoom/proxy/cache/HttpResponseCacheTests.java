@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the freshness, validation, {@code Vary} and conditional request handling of the memory tier.
+ */
+class HttpResponseCacheTests {
+
+    private static final URI URI = java.net.URI.create("http://example.com/resource");
+
+    private static final byte[] BODY = "cached body".getBytes(StandardCharsets.UTF_8);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    @TempDir
+    Path tempDirectory;
+
+    private HttpResponseCache responseCache;
+
+    @BeforeEach
+    void beforeEach() {
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory.resolve("temp"));
+        when(systemConfig.isResponseCacheEnabled()).thenReturn(true);
+        when(systemConfig.getResponseCacheMemoryMaxSize()).thenReturn(1);
+        when(systemConfig.getResponseCacheDiskMaxSize()).thenReturn(0);
+        when(systemConfig.getResponseCacheMaxEntrySize()).thenReturn(1);
+        responseCache = new HttpResponseCache(systemConfig, proxyConfig);
+        responseCache.init();
+    }
+
+    @Test
+    void lookup_stored_bodyServed() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60"));
+        try (InputStream inputStream = responseCache.openBody(cachedResponse)) {
+            assertArrayEquals(BODY, inputStream.readAllBytes());
+        }
+        assertEquals(1L, responseCache.getMetrics().get("stores"));
+    }
+
+    @Test
+    void capture_noValidatorsNorFreshness_notStored() {
+        assertNull(responseCache.capture(URI, request(), response(), System.currentTimeMillis(),
+                System.currentTimeMillis()));
+    }
+
+    @Test
+    void capture_noStore_notStored() {
+        assertNull(responseCache.capture(URI, request(), response("Cache-Control", "no-store, max-age=60"),
+                System.currentTimeMillis(), System.currentTimeMillis()));
+    }
+
+    @Test
+    void isFresh_maxAge_fresh() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60"));
+        assertTrue(responseCache.isFresh(cachedResponse, request()));
+    }
+
+    @Test
+    void isFresh_expiresInThePast_stale() throws Exception {
+        CachedResponse cachedResponse = store(response("Expires", DateUtils.formatDate(new Date(0)),
+                "ETag", "\"v1\""));
+        assertFalse(responseCache.isFresh(cachedResponse, request()));
+    }
+
+    @Test
+    void isFresh_responseNoCache_stale() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "no-cache, max-age=60"));
+        assertFalse(responseCache.isFresh(cachedResponse, request()));
+    }
+
+    @Test
+    void isFresh_requestNoCache_stale() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60"));
+        assertFalse(responseCache.isFresh(cachedResponse, request("Cache-Control", "no-cache")));
+    }
+
+    @Test
+    void isFresh_requestMaxAgeExceeded_stale() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=600", "Age", "100"));
+        assertTrue(responseCache.isFresh(cachedResponse, request("Cache-Control", "max-age=200")));
+        assertFalse(responseCache.isFresh(cachedResponse, request("Cache-Control", "max-age=50")));
+    }
+
+    @Test
+    void addValidators_storedValidators_added() throws Exception {
+        String lastModified = DateUtils.formatDate(new Date(0));
+        CachedResponse cachedResponse = store(response("ETag", "\"v1\"", "Last-Modified", lastModified));
+        HttpRequest request = request();
+        assertTrue(responseCache.addValidators(request, cachedResponse));
+        assertEquals("\"v1\"", request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue());
+        assertEquals(lastModified, request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE).getValue());
+
+        responseCache.removeValidators(request);
+        assertFalse(request.containsHeader(HttpHeaders.IF_NONE_MATCH));
+        assertFalse(request.containsHeader(HttpHeaders.IF_MODIFIED_SINCE));
+    }
+
+    @Test
+    void addValidators_failover_addedAgainForTheNextProxy() throws Exception {
+        CachedResponse cachedResponse = store(response("ETag", "\"v1\""));
+        HttpRequest request = request();
+        assertTrue(responseCache.addValidators(request, cachedResponse));
+
+        // The first proxy cannot be connected, the same request goes through the next one
+        responseCache.removeValidators(request);
+        assertFalse(request.containsHeader(HttpHeaders.IF_NONE_MATCH));
+        assertTrue(responseCache.addValidators(request, cachedResponse));
+        assertEquals(1, request.getHeaders(HttpHeaders.IF_NONE_MATCH).length);
+    }
+
+    @Test
+    void addValidators_clientConditional_untouched() throws Exception {
+        CachedResponse cachedResponse = store(response("ETag", "\"v1\""));
+        HttpRequest request = request("If-None-Match", "\"v0\"");
+        assertFalse(responseCache.addValidators(request, cachedResponse));
+        assertEquals("\"v0\"", request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue());
+    }
+
+    @Test
+    void revalidated_notModified_headersUpdatedAndFresh() throws Exception {
+        CachedResponse cachedResponse = store(response("ETag", "\"v1\"", "X-Kept", "yes"));
+        assertFalse(responseCache.isFresh(cachedResponse, request()));
+
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED,
+                "Not Modified");
+        notModified.addHeader("Cache-Control", "max-age=60");
+        notModified.addHeader("Date", DateUtils.formatDate(new Date()));
+        long now = System.currentTimeMillis();
+        responseCache.revalidated(cachedResponse, notModified, now, now);
+
+        assertTrue(responseCache.isFresh(cachedResponse, request()));
+        assertEquals("yes", cachedResponse.getFirstHeaderValue("X-Kept"));
+        assertEquals("\"v1\"", cachedResponse.getFirstHeaderValue(HttpHeaders.ETAG));
+        assertEquals(1L, responseCache.getMetrics().get("revalidations"));
+    }
+
+    @Test
+    void lookup_vary_matchingVariantOnly() throws Exception {
+        store(response("Cache-Control", "max-age=60", "Vary", "Accept-Encoding"),
+                request("Accept-Encoding", "gzip"));
+        assertNotNull(responseCache.lookup(URI, request("Accept-Encoding", "gzip")));
+        assertNull(responseCache.lookup(URI, request("Accept-Encoding", "br")));
+        assertNull(responseCache.lookup(URI, request()));
+    }
+
+    @Test
+    void lookup_varyStar_notStored() {
+        assertNull(responseCache.capture(URI, request(), response("Cache-Control", "max-age=60", "Vary", "*"),
+                System.currentTimeMillis(), System.currentTimeMillis()));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "\"v1\"|\"v1\"|true",
+            "\"v1\"|W/\"v1\"|true",
+            "W/\"v1\"|\"v1\"|true",
+            "\"v1\"|\"v0\", \"v1\"|true",
+            "\"v1\"|*|true",
+            "\"v1\"|\"v0\"|false",
+            "\"v1\"|\"v1|false",
+            "\"v1\"|W/|false",
+    })
+    void isNotModified_ifNoneMatch(String etag, String ifNoneMatch, boolean notModified) throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60", "ETag", etag));
+        assertEquals(notModified, responseCache.isNotModified(cachedResponse, request("If-None-Match", ifNoneMatch)));
+    }
+
+    @Test
+    void isNotModified_ifModifiedSince() throws Exception {
+        Date lastModified = new Date(System.currentTimeMillis() - 3_600_000);
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60",
+                "Last-Modified", DateUtils.formatDate(lastModified)));
+        assertTrue(responseCache.isNotModified(cachedResponse,
+                request("If-Modified-Since", DateUtils.formatDate(lastModified))));
+        assertTrue(responseCache.isNotModified(cachedResponse,
+                request("If-Modified-Since", DateUtils.formatDate(new Date()))));
+        assertFalse(responseCache.isNotModified(cachedResponse,
+                request("If-Modified-Since", DateUtils.formatDate(new Date(lastModified.getTime() - 60_000)))));
+        assertFalse(responseCache.isNotModified(cachedResponse, request("If-Modified-Since", "not a date")));
+        assertFalse(responseCache.isNotModified(cachedResponse, request()));
+    }
+
+    @Test
+    void isNotModified_ifNoneMatchMismatch_ifModifiedSinceIgnored() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60", "ETag", "\"v1\"",
+                "Last-Modified", DateUtils.formatDate(new Date(0))));
+        HttpRequest request = request("If-None-Match", "\"v0\"");
+        request.addHeader("If-Modified-Since", DateUtils.formatDate(new Date()));
+        assertFalse(responseCache.isNotModified(cachedResponse, request));
+    }
+
+    @Test
+    void toNotModifiedResponse_onlyAllowedHeaders() throws Exception {
+        CachedResponse cachedResponse = store(response("Cache-Control", "max-age=60", "ETag", "\"v1\"",
+                "Content-Type", "text/plain", "Vary", "Accept"));
+        HttpResponse notModified = responseCache.toNotModifiedResponse(cachedResponse);
+        assertEquals(HttpStatus.SC_NOT_MODIFIED, notModified.getStatusLine().getStatusCode());
+        assertEquals("\"v1\"", notModified.getFirstHeader(HttpHeaders.ETAG).getValue());
+        assertEquals("max-age=60", notModified.getFirstHeader(HttpHeaders.CACHE_CONTROL).getValue());
+        assertEquals("Accept", notModified.getFirstHeader(HttpHeaders.VARY).getValue());
+        assertTrue(notModified.containsHeader(HttpHeaders.DATE));
+        assertTrue(notModified.containsHeader(HttpHeaders.AGE));
+        assertFalse(notModified.containsHeader(HttpHeaders.CONTENT_TYPE));
+        assertNull(notModified.getEntity());
+    }
+
+    private CachedResponse store(HttpResponse response) throws Exception {
+        return store(response, request());
+    }
+
+    private CachedResponse store(HttpResponse response, HttpRequest request) throws Exception {
+        long now = System.currentTimeMillis();
+        try (ResponseCapture capture = responseCache.capture(URI, request, response, now, now)) {
+            assertNotNull(capture);
+            capture.write(BODY);
+            capture.commit(BODY.length);
+        }
+        CachedResponse cachedResponse = responseCache.lookup(URI, request);
+        assertNotNull(cachedResponse);
+        return cachedResponse;
+    }
+
+    private static HttpRequest request(String... headers) {
+        HttpRequest request = new BasicHttpRequest("GET", URI.toString(), HttpVersion.HTTP_1_1);
+        for (int i = 0; i < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        return request;
+    }
+
+    private static HttpResponse response(String... headers) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader(HttpHeaders.DATE, DateUtils.formatDate(new Date()));
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+}
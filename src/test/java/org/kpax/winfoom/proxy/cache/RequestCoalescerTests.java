@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.cache;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the sharing of an upstream response between a leader and its followers.
+ */
+class RequestCoalescerTests {
+
+    private static final URI URI = java.net.URI.create("http://example.com/resource");
+
+    private static final int MEMORY_LIMIT = 64;
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    @TempDir
+    Path tempDirectory;
+
+    private RequestCoalescer requestCoalescer;
+
+    @BeforeEach
+    void beforeEach() {
+        when(systemConfig.isRequestCoalescingEnabled()).thenReturn(true);
+        when(systemConfig.getInternalBufferLength()).thenReturn(MEMORY_LIMIT);
+        when(systemConfig.getSocketSoTimeout()).thenReturn(5);
+        when(proxyConfig.getTempDirectory()).thenReturn(tempDirectory);
+        requestCoalescer = new RequestCoalescer(systemConfig, proxyConfig);
+    }
+
+    @Test
+    void join_identicalRequests_leaderAndFollower() throws Exception {
+        byte[] body = randomBytes(MEMORY_LIMIT * 4);
+        try (InFlightResponse leader = requestCoalescer.join(URI, request());
+             InFlightResponse follower = requestCoalescer.join(URI, request())) {
+            assertTrue(leader.isLeader());
+            assertFalse(follower.isLeader());
+            assertTrue(leader.publish(response("Cache-Control", "max-age=60")));
+
+            ByteArrayOutputStream clientOutputStream = new ByteArrayOutputStream();
+            write(leader.wrap(clientOutputStream), body);
+            assertEquals(1, countTempFiles());
+            leader.complete();
+
+            HttpResponse response = follower.awaitResponse(request());
+            assertNotNull(response);
+            assertEquals("max-age=60", response.getFirstHeader("Cache-Control").getValue());
+            assertArrayEquals(body, follower.getBody().readAllBytes());
+            assertArrayEquals(body, clientOutputStream.toByteArray());
+        }
+        assertEquals(0, countTempFiles());
+    }
+
+    @Test
+    void join_followerDuringSmallBody_wholeBodyShared() throws Exception {
+        byte[] body = randomBytes(MEMORY_LIMIT);
+        try (InFlightResponse leader = requestCoalescer.join(URI, request())) {
+            assertTrue(leader.publish(response("Cache-Control", "max-age=60")));
+            OutputStream outputStream = leader.wrap(new ByteArrayOutputStream());
+            outputStream.write(body, 0, MEMORY_LIMIT / 2);
+            try (InFlightResponse follower = requestCoalescer.join(URI, request())) {
+                assertFalse(follower.isLeader());
+                outputStream.write(body, MEMORY_LIMIT / 2, MEMORY_LIMIT / 2);
+                leader.complete();
+                assertNotNull(follower.awaitResponse(request()));
+                assertArrayEquals(body, follower.getBody().readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void wrap_noFollowerBeyondMemory_sharingStopped() throws Exception {
+        byte[] body = randomBytes(MEMORY_LIMIT * 4);
+        try (InFlightResponse leader = requestCoalescer.join(URI, request())) {
+            assertTrue(leader.publish(response("Cache-Control", "max-age=60")));
+            ByteArrayOutputStream clientOutputStream = new ByteArrayOutputStream();
+            write(leader.wrap(clientOutputStream), body);
+            assertArrayEquals(body, clientOutputStream.toByteArray());
+            assertEquals(0, countTempFiles());
+            assertEquals(0, requestCoalescer.getMetrics().get("inFlight"));
+
+            // A late identical request does not follow a partially buffered body
+            try (InFlightResponse other = requestCoalescer.join(URI, request())) {
+                assertTrue(other.isLeader());
+            }
+            leader.complete();
+        }
+    }
+
+    @Test
+    void publish_notShareable_followerOnItsOwn() {
+        try (InFlightResponse leader = requestCoalescer.join(URI, request());
+             InFlightResponse follower = requestCoalescer.join(URI, request())) {
+            assertFalse(leader.publish(response("Cache-Control", "no-store")));
+            assertNull(follower.awaitResponse(request()));
+        }
+    }
+
+    @Test
+    void awaitResponse_varyMismatch_followerOnItsOwn() {
+        try (InFlightResponse leader = requestCoalescer.join(URI, request("Accept-Encoding", "gzip"));
+             InFlightResponse follower = requestCoalescer.join(URI, request("Accept-Encoding", "br"))) {
+            assertTrue(leader.publish(response("Cache-Control", "max-age=60", "Vary", "Accept-Encoding")));
+            assertNull(follower.awaitResponse(request("Accept-Encoding", "br")));
+        }
+    }
+
+    @Test
+    void close_leaderFailed_followerFails() {
+        InFlightResponse leader = requestCoalescer.join(URI, request());
+        try (InFlightResponse follower = requestCoalescer.join(URI, request())) {
+            assertTrue(leader.publish(response("Cache-Control", "max-age=60")));
+            assertNotNull(follower.awaitResponse(request()));
+            leader.close();
+            assertThrows(IOException.class, () -> follower.getBody().readAllBytes());
+        }
+    }
+
+    @Test
+    void join_notCoalesced() {
+        assertNull(requestCoalescer.join(URI, request("Authorization", "Basic dXNlcjpwYXNz")));
+        assertNull(requestCoalescer.join(URI, request("Range", "bytes=0-10")));
+        assertNull(requestCoalescer.join(URI, new BasicHttpRequest("POST", URI.toString(), HttpVersion.HTTP_1_1)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "200|Cache-Control: max-age=60|true",
+            "200|Cache-Control: s-maxage=60|true",
+            "200|Expires: Thu, 01 Jan 2099 00:00:00 GMT|true",
+            "200|ETag: \"v1\"|true",
+            "200|Last-Modified: Thu, 01 Jan 2000 00:00:00 GMT|true",
+            "301|Cache-Control: max-age=60|true",
+            "302|Cache-Control: max-age=60|true",
+            "302|ETag: \"v1\"|false",
+            "200|Content-Type: text/plain|false",
+            "206|Cache-Control: max-age=60|false",
+            "500|Cache-Control: max-age=60|false",
+            "200|Cache-Control: private, max-age=60|false",
+            "200|Cache-Control: no-store|false",
+            "200|Cache-Control: max-age=60; Set-Cookie: a=b|false",
+            "200|Cache-Control: max-age=60; Vary: *|false",
+    })
+    void isShareable(int statusCode, String headers, boolean shareable) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "Reason");
+        for (String header : headers.split("; ")) {
+            String[] nameValue = header.split(": ", 2);
+            response.addHeader(nameValue[0], nameValue[1]);
+        }
+        assertEquals(shareable, requestCoalescer.isShareable(response));
+    }
+
+    private long countTempFiles() throws Exception {
+        try (Stream<Path> files = Files.list(tempDirectory)) {
+            return files.count();
+        }
+    }
+
+    private static void write(OutputStream outputStream, byte[] body) throws Exception {
+        for (int i = 0; i < body.length; i += 16) {
+            outputStream.write(body, i, Math.min(16, body.length - i));
+        }
+        outputStream.flush();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static HttpRequest request(String... headers) {
+        HttpRequest request = new BasicHttpRequest("GET", URI.toString(), HttpVersion.HTTP_1_1);
+        for (int i = 0; i < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        return request;
+    }
+
+    private static HttpResponse response(String... headers) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.pac.datetime.PacDateTimeRange;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the {@code weekdayRange}, {@code dateRange} and {@code timeRange} PAC functions.
+ */
+class DefaultPacHelperMethodsTests {
+
+    /**
+     * Friday 2024-01-12, 12:30 GMT.
+     */
+    private static final Instant FRIDAY = Instant.parse("2024-01-12T12:30:00Z");
+
+    /**
+     * Tuesday 2024-01-16, 12:30 GMT.
+     */
+    private static final Instant TUESDAY = Instant.parse("2024-01-16T12:30:00Z");
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    @BeforeEach
+    void beforeEach() {
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(100);
+        when(systemConfig.getCacheDateTimeRangeCapacity()).thenReturn(100);
+        pacHelperMethods = new DefaultPacHelperMethods(systemConfig, new GlobPatternMatcher(systemConfig));
+    }
+
+    @AfterEach
+    void afterEach() {
+        pacHelperMethods.onStop();
+    }
+
+    @Test
+    void weekdayRange_wraparound_pinnedClock() {
+        PacDateTimeRange dateTimeRange = pacHelperMethods.getDateTimeRange("weekdayRange",
+                new Object[]{"FRI", "MON", "GMT"});
+        assertTrue(dateTimeRange.isInRange(FRIDAY));
+        assertFalse(dateTimeRange.isInRange(TUESDAY));
+    }
+
+    @Test
+    void dateRange_fixedArity_pinnedClock() {
+        PacDateTimeRange dateTimeRange = pacHelperMethods.getDateTimeRange("dateRange",
+                new Object[]{"DEC", "JAN", "GMT", null, null, null, null});
+        assertTrue(dateTimeRange.isInRange(FRIDAY));
+        assertFalse(dateTimeRange.isInRange(Instant.parse("2024-02-01T00:00:00Z")));
+    }
+
+    @Test
+    void timeRange_fixedArity_pinnedClock() {
+        PacDateTimeRange dateTimeRange = pacHelperMethods.getDateTimeRange("timeRange",
+                new Object[]{12, 0, 13, 0, "GMT", null, null});
+        assertTrue(dateTimeRange.isInRange(FRIDAY));
+        assertFalse(dateTimeRange.isInRange(Instant.parse("2024-01-12T13:01:00Z")));
+    }
+
+    @Test
+    void getDateTimeRange_sameArguments_cached() {
+        assertSame(pacHelperMethods.getDateTimeRange("weekdayRange", new Object[]{"MON", "FRI", null}),
+                pacHelperMethods.getDateTimeRange("weekdayRange", new Object[]{"MON", "FRI", null}));
+    }
+
+    @Test
+    void getDateTimeRange_faultyArguments_null() {
+        assertNull(pacHelperMethods.getDateTimeRange("weekdayRange", new Object[]{"FOO", null, null}));
+        assertNull(pacHelperMethods.getDateTimeRange("weekdayRange", new Object[]{null, null, null}));
+    }
+
+    @Test
+    void rangeFunctions_faultyArguments_false() {
+        assertFalse(pacHelperMethods.weekdayRange("FOO", null, null));
+        assertFalse(pacHelperMethods.weekdayRange(null, null, null));
+        assertFalse(pacHelperMethods.weekdayRange("MON", "TUE", "WED", "THU"));
+        assertFalse(pacHelperMethods.dateRange("FOO", null, null, null, null, null, null));
+        assertFalse(pacHelperMethods.dateRange(1, 2, 3));
+        assertFalse(pacHelperMethods.timeRange(24, null, null, null, null, null, null));
+        assertFalse(pacHelperMethods.timeRange(8, 60, 17, 0));
+        assertFalse(pacHelperMethods.timeRange());
+    }
+
+}
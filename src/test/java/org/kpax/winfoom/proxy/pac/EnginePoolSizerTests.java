@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyController;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check how the script engine pool is resized according to its usage.
+ */
+class EnginePoolSizerTests {
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyController proxyController = mock(ProxyController.class);
+
+    private final PacScriptEvaluator pacScriptEvaluator = mock(PacScriptEvaluator.class);
+
+    private final EnginePoolStatistics statistics = spy(new EnginePoolStatistics());
+
+    private GenericObjectPool<GraalJSScriptEngine> enginePool;
+
+    private EnginePoolSizer enginePoolSizer;
+
+    @BeforeEach
+    void beforeEach() {
+        when(systemConfig.isPacScriptEnginePoolAdaptive()).thenReturn(true);
+        when(systemConfig.getPacScriptEnginePoolMaxTotal()).thenReturn(8);
+        when(systemConfig.getPacScriptEnginePoolMinIdle()).thenReturn(2);
+        when(systemConfig.getPacScriptEnginePoolMaxWait()).thenReturn(1);
+        when(systemConfig.getPacScriptEnginePoolMemoryBudget()).thenReturn(10);
+        when(proxyController.isRunning()).thenReturn(true);
+
+        enginePool = new GenericObjectPool<>(new BasePooledObjectFactory<>() {
+            @Override
+            public GraalJSScriptEngine create() {
+                return mock(GraalJSScriptEngine.class);
+            }
+
+            @Override
+            public PooledObject<GraalJSScriptEngine> wrap(GraalJSScriptEngine engine) {
+                return new DefaultPooledObject<>(engine);
+            }
+        });
+        enginePool.setMaxWait(Duration.ofSeconds(10));
+        when(pacScriptEvaluator.getEnginePool()).thenReturn(enginePool);
+        when(pacScriptEvaluator.getEnginePoolStatistics()).thenReturn(statistics);
+
+        enginePoolSizer = new EnginePoolSizer(systemConfig, proxyController, pacScriptEvaluator);
+    }
+
+    @AfterEach
+    void afterEach() {
+        enginePool.close();
+    }
+
+    @Test
+    void adjustEnginePool_waiters_grows() throws Exception {
+        setLimit(2);
+        enginePool.borrowObject();
+        enginePool.borrowObject();
+        Thread waiter = new Thread(() -> {
+            try {
+                enginePool.returnObject(enginePool.borrowObject());
+            } catch (Exception e) {
+                // Closed pool
+            }
+        });
+        waiter.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (enginePool.getNumWaiters() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, enginePool.getNumWaiters());
+        statistics.recordBorrow(0, 2);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(3, enginePool.getMaxTotal());
+        assertEquals(3, enginePool.getMaxIdle());
+
+        // The waiter gets the new engine
+        waiter.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    void adjustEnginePool_longBorrowWait_grows() {
+        setLimit(4);
+        // Above the threshold of 100 ms, that is the max wait of a second divided by 10
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(150), 4);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(5, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_shortBorrowWait_unchanged() {
+        setLimit(4);
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(50), 4);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(4, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_pressure_maxTotalNotExceeded() {
+        setLimit(8);
+        statistics.recordBorrow(TimeUnit.SECONDS.toNanos(1), 8);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(8, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_halfUsed_shrinks() {
+        setLimit(8);
+        statistics.recordBorrow(0, 5);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(8, enginePool.getMaxTotal());
+
+        statistics.recordBorrow(0, 4);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(6, enginePool.getMaxTotal());
+        assertEquals(6, enginePool.getMaxIdle());
+
+        // Never below the engines in use
+        statistics.recordBorrow(0, 3);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(5, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_unused_shrinksDownToOne() {
+        setLimit(8);
+        int[] expectedLimits = {6, 5, 4, 3, 2, 1, 1};
+        for (int expectedLimit : expectedLimits) {
+            enginePoolSizer.adjustEnginePool();
+            assertEquals(expectedLimit, enginePool.getMaxTotal());
+        }
+    }
+
+    @Test
+    void adjustEnginePool_memoryBudget_ceiling() {
+        // 10 MB fit 2 engines of 4 MB
+        doReturn(4L * 1024 * 1024).when(statistics).getEngineMemoryEstimate();
+        setLimit(4);
+        statistics.recordBorrow(0, 4);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(2, enginePool.getMaxTotal());
+
+        statistics.recordBorrow(TimeUnit.SECONDS.toNanos(1), 2);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(2, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_memoryBudgetTooLow_oneEngine() {
+        doReturn(20L * 1024 * 1024).when(statistics).getEngineMemoryEstimate();
+        setLimit(4);
+        statistics.recordBorrow(TimeUnit.SECONDS.toNanos(1), 4);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(1, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_minIdle_clamped() {
+        setLimit(8);
+        statistics.recordBorrow(0, 6);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(2, enginePool.getMinIdle());
+
+        // Not above the engines used lately
+        statistics.recordBorrow(0, 1);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(1, enginePool.getMinIdle());
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(0, enginePool.getMinIdle());
+    }
+
+    @Test
+    void adjustEnginePool_minIdle_notAboveLimit() {
+        when(systemConfig.getPacScriptEnginePoolMinIdle()).thenReturn(8);
+        doReturn(4L * 1024 * 1024).when(statistics).getEngineMemoryEstimate();
+        setLimit(8);
+        statistics.recordBorrow(0, 8);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(2, enginePool.getMaxTotal());
+        assertEquals(2, enginePool.getMinIdle());
+    }
+
+    @Test
+    void adjustEnginePool_windowDrained() {
+        setLimit(8);
+        statistics.recordBorrow(0, 8);
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(8, enginePool.getMaxTotal());
+        assertEquals(0, statistics.drain().getCount());
+
+        // The previous window is not counted again
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(6, enginePool.getMaxTotal());
+    }
+
+    @Test
+    void adjustEnginePool_notAdaptive_unchanged() {
+        when(systemConfig.isPacScriptEnginePoolAdaptive()).thenReturn(false);
+        setLimit(8);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(8, enginePool.getMaxTotal());
+        verify(pacScriptEvaluator, never()).getEnginePoolStatistics();
+    }
+
+    @Test
+    void adjustEnginePool_proxyStopped_unchanged() {
+        when(proxyController.isRunning()).thenReturn(false);
+        setLimit(8);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(8, enginePool.getMaxTotal());
+        verify(pacScriptEvaluator, never()).getEnginePoolStatistics();
+    }
+
+    @Test
+    void adjustEnginePool_noScript_nothingDone() {
+        when(pacScriptEvaluator.getEnginePool()).thenReturn(null);
+        statistics.recordBorrow(0, 1);
+
+        enginePoolSizer.adjustEnginePool();
+        assertEquals(1, statistics.drain().getCount());
+    }
+
+    private void setLimit(int limit) {
+        enginePool.setMaxTotal(limit);
+        enginePool.setMaxIdle(limit);
+    }
+
+}
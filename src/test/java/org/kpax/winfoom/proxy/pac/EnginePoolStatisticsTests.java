@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnginePoolStatisticsTests {
+
+    private final EnginePoolStatistics statistics = new EnginePoolStatistics();
+
+    @Test
+    void drain_borrows_snapshotThenEmpty() {
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(30), 2);
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(10), 3);
+        statistics.recordBorrow(0, 1);
+
+        EnginePoolStatistics.Snapshot snapshot = statistics.drain();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(30, snapshot.getMaxWaitMillis());
+        assertEquals(3, snapshot.getMaxActive());
+
+        EnginePoolStatistics.Snapshot empty = statistics.drain();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMaxWaitMillis());
+        assertEquals(0, empty.getMaxActive());
+    }
+
+    @Test
+    void getBorrowWaitHistogram_borrows_countedPerBucket() {
+        statistics.recordBorrow(0, 1);
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(1), 1);
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(3), 1);
+        statistics.recordBorrow(TimeUnit.MILLISECONDS.toNanos(5000), 1);
+
+        Map<String, Long> histogram = statistics.getBorrowWaitHistogram();
+        assertEquals(1, histogram.get("<1ms"));
+        assertEquals(1, histogram.get("<2ms"));
+        assertEquals(1, histogram.get("<4ms"));
+        assertEquals(1, histogram.get(">=1024ms"));
+        assertEquals(4, histogram.values().stream().mapToLong(Long::longValue).sum());
+
+        // Not drained
+        statistics.drain();
+        assertEquals(4, statistics.getBorrowWaitHistogram().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    void getEngineMemoryEstimate_noCreation_unknown() {
+        assertEquals(0, statistics.getEngineMemoryEstimate());
+        statistics.endEngineCreation(-1);
+        assertEquals(0, statistics.getEngineMemoryEstimate());
+    }
+
+    @Test
+    void drain_concurrentBorrows_noSampleLost() throws Exception {
+        int threads = 4;
+        int samples = 100_000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean recording = new AtomicBoolean(true);
+        List<Thread> recorders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int active = i + 1;
+            Thread recorder = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < samples; j++) {
+                    statistics.recordBorrow(1, active);
+                }
+            });
+            recorder.start();
+            recorders.add(recorder);
+        }
+        long drained = 0;
+        int maxActive = 0;
+        start.countDown();
+        while (recording.get()) {
+            EnginePoolStatistics.Snapshot snapshot = statistics.drain();
+            drained += snapshot.getCount();
+            maxActive = Math.max(maxActive, snapshot.getMaxActive());
+            recording.set(recorders.stream().anyMatch(Thread::isAlive));
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        EnginePoolStatistics.Snapshot snapshot = statistics.drain();
+        drained += snapshot.getCount();
+        maxActive = Math.max(maxActive, snapshot.getMaxActive());
+        assertEquals((long) threads * samples, drained);
+        assertEquals(threads, maxActive);
+    }
+
+}
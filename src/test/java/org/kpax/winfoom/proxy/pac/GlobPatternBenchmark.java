@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * {@code shExpMatch} benchmark of the {@link GlobPattern} automaton against the regex
+ * produced by {@link GlobPatternMatcher#convertGlobToRegEx(String)}.
+ * <p>Run it with: {@code java -cp target/test-classes:<test classpath> org.kpax.winfoom.proxy.pac.GlobPatternBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobPatternBenchmark {
+
+    private static final String[] HOSTS = {
+            "www.example.com",
+            "a.b.corp.c.example.org",
+            "build-agent-0042.eu-west-1.compute.internal.corp.example.net",
+            "x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.x.corp.x.x.x.x.x.x.x.x.example",
+            "10.20.30.40"
+    };
+
+    @Param({"*.example.com", "*.*.corp.*.example.*", "10.[0-9]*.*.*", "*[!a-z]*"})
+    private String glob;
+
+    private GlobPattern globPattern;
+
+    private Pattern regex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        globPattern = GlobPattern.compile(glob);
+        regex = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob));
+    }
+
+    @Benchmark
+    public void automaton(Blackhole blackhole) {
+        for (String host : HOSTS) {
+            blackhole.consume(globPattern.matches(host));
+        }
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        for (String host : HOSTS) {
+            blackhole.consume(regex.matcher(host).matches());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(GlobPatternBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check the glob automaton against the regex it replaces.
+ */
+class GlobPatternTests {
+
+    private static final String[] GLOBS = {"", "*", "**", "?", "??", "a", "A", "a*", "*a", "*a*", "a?c", "a*c",
+            "*.example.com", "*.EXAMPLE.com", "www.example.com", "www?example?com", "10.*", "10.?.*.4", "*.*",
+            "*?", "?*", "*??*", "a**b", "[abc]", "[a-c]x", "[!a-c]*", "[^a-c]*", "[a-cx-z]?", "[.]*", "[a!]",
+            "[-a]", "[a-]", "[a]b]", "[(]", "[$]", "a\\b", "a\\*", "*\\", "a!b", "!a", "a]", "a-b", "a+b", "a{2}",
+            "(a|b)*", "^a", "a$", "^a*$", "a|b", "a^b", "[a&&b]", "[\\d]", "[[a]]", "[a-c", "[]", "[b-a]",
+            "*[0-9][0-9]", "*.corp.example.com", "?.b.c.d.e", "*.*.*.*"};
+
+    private static final String[] INPUTS = {"", "a", "A", "b", "c", "x", "ab", "abc", "aXc", "aac", "ac", "abbc",
+            "aab", "ba", "bab", "www.example.com", "www.EXAMPLE.com", "wwwxexamplexcom", "example.com",
+            "a.example.com", ".example.com", "10.1.2.4", "10.12.3.4", "11.1.2.4", "10.", "a.b.c.d.e", "x.b.c.d.e",
+            ".", "-", "!", "!a", "a!b", "a!", "a]", "]", "a]b]", "ab]", "(", "$", "a\\b", "a\\", "a\\xyz", "\\",
+            "a-b", "a+b", "aab", "aa", "a^b", "^a", "a$", "host42", "host4", "1", "a.corp.example.com", "é", "aé",
+            "éa"};
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            // Wildcards
+            "*|''|true",
+            "*|anything|true",
+            "?|''|false",
+            "?|a|true",
+            "?|ab|false",
+            "a?c|abc|true",
+            "a?c|ac|false",
+            "a*c|ac|true",
+            "a*c|abbbc|true",
+            "a*c|abbbcd|false",
+            "*.example.com|www.example.com|true",
+            "*.example.com|example.com|false",
+            "*.example.com|www.example.com.evil.org|false",
+            // The dot is a literal
+            "www.example.com|wwwxexample.com|false",
+            "10.*|10.1.2.3|true",
+            "10.*|100.1.2.3|false",
+            // Character classes
+            "[a-c]x|bx|true",
+            "[a-c]x|dx|false",
+            "[!a-c]x|dx|true",
+            "[!a-c]x|ax|false",
+            "[^a-c]x|dx|true",
+            "[a!]|!|true",
+            "[a]b]|ab]|true",
+            // Escapes: the backslash is a literal
+            "a\\b|a\\b|true",
+            "a\\b|ab|false",
+            "a\\*|a\\xyz|true",
+            "a\\*|a*|false",
+            // Case sensitive
+            "*.example.com|www.EXAMPLE.com|false",
+            "A|a|false",
+            // Anchored at both ends
+            "a|ba|false",
+            "a|ab|false",
+            "^a*$|abc|true",
+            "a$|a|true",
+            "^a|ba|false",
+            // Regex syntax let through
+            "'(a|b)*'|abba|true",
+            "'(a|b)*'|cab|false",
+            "a+b|aab|true",
+            "a+b|a+b|false",
+            "a{2}|aa|true",
+    })
+    void matches_sameAsRegex(String glob, String input, boolean matches) {
+        assertEquals(matches, GlobPattern.compile(glob).matches(input));
+        assertEquals(matches, regexMatches(glob, input));
+    }
+
+    @Test
+    void matches_allGlobsAndInputs_sameAsRegex() {
+        for (String glob : GLOBS) {
+            Pattern regex;
+            try {
+                regex = Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob));
+            } catch (PatternSyntaxException e) {
+                assertThrows(PatternSyntaxException.class, () -> GlobPattern.compile(glob), glob);
+                continue;
+            }
+            GlobPattern globPattern = GlobPattern.compile(glob);
+            for (String input : INPUTS) {
+                assertEquals(regex.matcher(input).matches(), globPattern.matches(input),
+                        () -> "glob [" + glob + "] input [" + input + "]");
+            }
+        }
+    }
+
+    @Test
+    void matches_lineTerminators_sameAsRegex() {
+        for (String glob : new String[]{"*", "?", "a*b", "a?b", "[!x]", "*\n*"}) {
+            for (String input : new String[]{"\n", "\r", "\u0085", "\u2028", "\u2029", "a\nb", "a\rb", "a\n",
+                    "a\u2028b"}) {
+                assertEquals(regexMatches(glob, input), GlobPattern.compile(glob).matches(input),
+                        () -> "glob [" + glob + "] input [" + input + "]");
+            }
+        }
+    }
+
+    @Test
+    void matches_surrogatePairs_sameAsRegex() {
+        String emoji = "\uD83D\uDE00";
+        for (String glob : new String[]{"?", "??", "a?", "*", "[!x]", "a" + emoji + "?", "*" + emoji}) {
+            for (String input : new String[]{emoji, "a" + emoji, emoji + emoji, "a" + emoji + "b",
+                    "\uD83D", "a\uDE00"}) {
+                assertEquals(regexMatches(glob, input), GlobPattern.compile(glob).matches(input),
+                        () -> "glob [" + glob + "] input [" + input + "]");
+            }
+        }
+    }
+
+    @Test
+    void compile_automatonOrRegex() {
+        assertTrue(GlobPattern.compile("*.example.com").isAutomaton());
+        assertTrue(GlobPattern.compile("[!a-c]?x*").isAutomaton());
+        assertTrue(GlobPattern.compile("a\\b").isAutomaton());
+        assertFalse(GlobPattern.compile("(a|b)*").isAutomaton());
+        assertFalse(GlobPattern.compile("^a$").isAutomaton());
+        assertFalse(GlobPattern.compile("[\\d]").isAutomaton());
+        assertFalse(GlobPattern.compile("a".repeat(64)).isAutomaton());
+        assertTrue(GlobPattern.compile("a".repeat(63) + "*").isAutomaton());
+    }
+
+    private static boolean regexMatches(String glob, String input) {
+        return Pattern.compile(GlobPatternMatcher.convertGlobToRegEx(glob)).matcher(input).matches();
+    }
+
+}
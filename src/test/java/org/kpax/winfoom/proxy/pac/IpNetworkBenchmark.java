@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import inet.ipaddr.IPAddressString;
+import org.kpax.winfoom.proxy.pac.net.IpNetwork;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code isInNet} benchmark of the {@link IpNetwork} primitive matching against
+ * the {@link IPAddressString} parsing per call, over a rule list ending with the matching network.
+ * <p>Run it with: {@code java -cp target/test-classes:<test classpath> org.kpax.winfoom.proxy.pac.IpNetworkBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IpNetworkBenchmark {
+
+    @Param({"1", "50"})
+    private int ruleCount;
+
+    @Param({"10.49.3.4", "2001:db8:31::1"})
+    private String address;
+
+    private String[][] rules;
+
+    private IpNetwork[] networks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean ipv6 = address.indexOf(':') != -1;
+        rules = new String[ruleCount][];
+        networks = new IpNetwork[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            int network = ruleCount == 1 ? 49 : i;
+            rules[i] = ipv6
+                    ? new String[]{"2001:db8:" + Integer.toHexString(network) + "::", "ffff:ffff:ffff::"}
+                    : new String[]{"10." + network + ".0.0", "255.255.0.0"};
+            networks[i] = IpNetwork.of(rules[i][0], rules[i][1]);
+        }
+    }
+
+    @Benchmark
+    public boolean ipNetwork() {
+        long ipv4 = IpNetwork.parseIpv4(address);
+        long[] ipv6 = new long[2];
+        boolean isIpv6 = ipv4 == -1 && IpNetwork.parseIpv6(address, ipv6);
+        for (IpNetwork network : networks) {
+            if (isIpv6 ? network.containsIpv6(ipv6[0], ipv6[1]) : network.containsIpv4(ipv4)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean ipAddressString() {
+        for (String[] rule : rules) {
+            if (new IPAddressString(rule[0] + "/" + rule[1]).contains(new IPAddressString(address))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IpNetworkBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
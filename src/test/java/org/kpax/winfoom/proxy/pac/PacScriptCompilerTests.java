@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.pac.compiler.CompiledPacScript;
+import org.kpax.winfoom.proxy.pac.compiler.PacScriptCompiler;
+import org.kpax.winfoom.util.HttpUtils;
+
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the compiled PAC scripts against the JavaScript engine.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class PacScriptCompilerTests {
+
+    private static final String[] HOSTS = {"localhost", "intranet", "a.corp.example.com", "x.b.corp.example.com",
+            "corp.example.com", "foo.intranet.net", "intranet.net", "www", "www.example.com", "a.svc.b",
+            "a.svc.local", "10.2.3.4", "11.2.3.4", "192.168.5.5", "192.169.5.5", "example.com", "a.b.example.com",
+            "UPPER.example.org", "a.b.c.d.e"};
+
+    private static final String[] URLS = {"http://%s/", "https://%s/path?query", "ftp://%s/file", "ws://%s:8080/"};
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyBlacklist proxyBlacklist = mock(ProxyBlacklist.class);
+
+    private GlobPatternMatcher globPatternMatcher;
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    private CompiledPacScript compiledScript;
+
+    @BeforeAll
+    void beforeAll() throws Exception {
+        URL pacUrl = getClass().getClassLoader().getResource("proxy-compiled.pac");
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacUrl);
+        when(systemConfig.getPacScriptEnginePoolMaxTotal()).thenReturn(2);
+        when(systemConfig.getPacScriptEnginePoolMinIdle()).thenReturn(0);
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(100);
+        when(systemConfig.getCachePacProxyLineCapacity()).thenReturn(100);
+        when(proxyBlacklist.isActive(any())).thenReturn(true);
+
+        globPatternMatcher = new GlobPatternMatcher(systemConfig);
+        pacHelperMethods = new DefaultPacHelperMethods(systemConfig, globPatternMatcher);
+
+        // The compiler is disabled, so that the evaluator uses the JavaScript engine
+        pacScriptEvaluator = new PacScriptEvaluator(proxyConfig, systemConfig, pacHelperMethods,
+                globPatternMatcher, proxyBlacklist, mock(PacScriptCopy.class), mock(ProxyExecutorService.class));
+        pacScriptEvaluator.onStart();
+
+        compiledScript = PacScriptCompiler.compile(
+                IOUtils.toString(pacUrl, StandardCharsets.UTF_8), pacHelperMethods);
+    }
+
+    @AfterAll
+    void afterAll() {
+        pacScriptEvaluator.onStop();
+        pacHelperMethods.onStop();
+        globPatternMatcher.onStop();
+    }
+
+    @Test
+    void compile_supportedScript_notNull() {
+        assertNotNull(compiledScript);
+    }
+
+    @Test
+    void findProxyForURL_compiledScript_sameAsJavaScript() throws Exception {
+        for (String host : HOSTS) {
+            for (String url : URLS) {
+                URI uri = new URI(String.format(url, host));
+                List<ProxyInfo> expected = pacScriptEvaluator.findProxyForURL(uri);
+                List<ProxyInfo> actual = HttpUtils.parsePacProxyLine(
+                        compiledScript.findProxyForURL(HttpUtils.toStrippedURLStr(uri), uri.getHost()),
+                        proxyBlacklist::isActive);
+                assertEquals(expected, actual, "Different result for " + uri);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "function FindProxyForURL(url, host) { var proxy = 'DIRECT'; return proxy; }",
+            "function FindProxyForURL(url, host) { return\n'DIRECT'; }",
+            "function FindProxyForURL(url, host) { return 'PROXY ' + host; }",
+            "function FindProxyForURL(url, host) { if (weekdayRange('MON', 'FRI')) return 'DIRECT'; }",
+            "function FindProxyForURL(url, host) { if (dnsResolve(host)) return 'DIRECT'; }",
+            "function FindProxyForURL(url, host) { if (host.length > 1) return 'DIRECT'; }",
+            "function FindProxyForURL(url, host) { return 'DIRECT'; } function helper() {}",
+            "function FindProxyForURLEx(url, host) { return 'DIRECT'; }"
+    })
+    void compile_unsupportedScript_null(String script) {
+        assertNull(PacScriptCompiler.compile(script, pacHelperMethods));
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check the PAC script's local copy file.
+ */
+class PacScriptCopyTests {
+
+    private static final String SCRIPT = """
+            function FindProxyForURL(url, host) {
+                // Ünïcode = \\u0041 #not a comment
+                return "PROXY proxy.example.com:8080";
+            }
+            """;
+
+    @TempDir
+    Path tempDirectory;
+
+    @Test
+    void read_written_sameSource() throws Exception {
+        PacScriptCopy pacScriptCopy = new PacScriptCopy(tempDirectory.resolve("pac-script.properties"));
+        URL location = new URL("http://pac.example.com/proxy.pac");
+        pacScriptCopy.write(location, new PacSource(SCRIPT, 1_700_000_000_000L, "\"etag-1\""));
+
+        PacSource source = pacScriptCopy.read(location);
+        assertEquals(SCRIPT, source.getContent());
+        assertEquals(1_700_000_000_000L, source.getLastModified());
+        assertEquals("\"etag-1\"", source.getEtag());
+    }
+
+    @Test
+    void read_writtenWithoutValidators_noValidators() throws Exception {
+        PacScriptCopy pacScriptCopy = new PacScriptCopy(tempDirectory.resolve("pac-script.properties"));
+        URL location = new URL("http://pac.example.com/proxy.pac");
+        pacScriptCopy.write(location, new PacSource(SCRIPT, 0, null));
+
+        PacSource source = pacScriptCopy.read(location);
+        assertEquals(0, source.getLastModified());
+        assertNull(source.getEtag());
+    }
+
+    @Test
+    void read_anotherLocation_null() throws Exception {
+        PacScriptCopy pacScriptCopy = new PacScriptCopy(tempDirectory.resolve("pac-script.properties"));
+        pacScriptCopy.write(new URL("http://pac.example.com/proxy.pac"), new PacSource(SCRIPT, 0, null));
+        assertNull(pacScriptCopy.read(new URL("http://pac.example.com/other.pac")));
+    }
+
+    @Test
+    void read_noFile_null() throws Exception {
+        PacScriptCopy pacScriptCopy = new PacScriptCopy(tempDirectory.resolve("pac-script.properties"));
+        assertNull(pacScriptCopy.read(new URL("http://pac.example.com/proxy.pac")));
+    }
+
+    @Test
+    void read_malformedFile_null() throws Exception {
+        Path file = tempDirectory.resolve("pac-script.properties");
+        Files.writeString(file, "location=http\\://pac.example.com/proxy.pac\ncontent=\\u00", StandardCharsets.UTF_8);
+        assertNull(new PacScriptCopy(file).read(new URL("http://pac.example.com/proxy.pac")));
+    }
+
+    @Test
+    void write_existingCopy_replacedWithoutTempFileLeft() throws Exception {
+        Path file = tempDirectory.resolve("config").resolve("pac-script.properties");
+        PacScriptCopy pacScriptCopy = new PacScriptCopy(file);
+        URL location = new URL("http://pac.example.com/proxy.pac");
+        pacScriptCopy.write(location, new PacSource(SCRIPT, 1, "\"etag-1\""));
+        pacScriptCopy.write(location, new PacSource("// changed", 2, null));
+
+        assertEquals("// changed", pacScriptCopy.read(location).getContent());
+        assertNull(pacScriptCopy.read(location).getEtag());
+        try (Stream<Path> files = Files.list(file.getParent())) {
+            assertEquals(List.of(file), files.toList());
+        }
+    }
+
+    @Test
+    void write_unwritableLocation_noFailure() throws Exception {
+        Path notDirectory = Files.createFile(tempDirectory.resolve("config"));
+        PacScriptCopy pacScriptCopy = new PacScriptCopy(notDirectory.resolve("pac-script.properties"));
+        URL location = new URL("http://pac.example.com/proxy.pac");
+        assertDoesNotThrow(() -> pacScriptCopy.write(location, new PacSource(SCRIPT, 0, null)));
+        assertNull(pacScriptCopy.read(location));
+    }
+
+    @Test
+    void read_whileWrittenByAnotherInstance_alwaysWhole() throws Exception {
+        Path file = tempDirectory.resolve("pac-script.properties");
+        URL location = new URL("http://pac.example.com/proxy.pac");
+        // Large enough for the file not to be written at once
+        String first = SCRIPT.repeat(1000);
+        String second = "// changed\n".repeat(2000);
+        PacScriptCopy writer = new PacScriptCopy(file);
+        writer.write(location, new PacSource(first, 1, null));
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writerThread = new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                writer.write(location, i % 2 == 0 ? new PacSource(second, 2, null) : new PacSource(first, 1, null));
+            }
+            writing.set(false);
+        });
+        writerThread.start();
+
+        // Like a second process, not synchronized with the writer
+        PacScriptCopy reader = new PacScriptCopy(file);
+        int reads = 0;
+        while (writing.get()) {
+            PacSource source = reader.read(location);
+            assertNotNull(source);
+            assertTrue(source.getContent().equals(first) || source.getContent().equals(second));
+            assertEquals(source.getContent().equals(first) ? 1 : 2, source.getLastModified());
+            reads++;
+        }
+        writerThread.join();
+        assertTrue(reads > 0);
+    }
+
+}
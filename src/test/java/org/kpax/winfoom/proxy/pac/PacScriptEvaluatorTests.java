@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.exception.PacScriptException;
+import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.ProxyInfo;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check the PAC script evaluation with the JavaScript engine: the timeouts and their fallbacks, the reloads.
+ */
+class PacScriptEvaluatorTests {
+
+    private static final String PROXY_LINE = "PROXY proxy.example.com:8080";
+
+    /**
+     * Loop until interrupted for the port 8081.
+     */
+    private static final String SCRIPT = """
+            function FindProxyForURL(url, host) {
+                // LOOP
+                if (shExpMatch(url, "*:8081/")) {
+                    while (true) {
+                    }
+                }
+                return "PROXY proxy.example.com:8080";
+            }
+            """;
+
+    private static final URI IN_TIME_URI = URI.create("http://example.com/");
+
+    private static final URI LOOPING_URI = URI.create("http://example.com:8081/");
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyBlacklist proxyBlacklist = mock(ProxyBlacklist.class);
+
+    @TempDir
+    Path tempDirectory;
+
+    private Path pacFile;
+
+    private long lastModified;
+
+    private ProxyExecutorService executorService;
+
+    private GlobPatternMatcher globPatternMatcher;
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        pacFile = tempDirectory.resolve("proxy.pac");
+        Files.writeString(pacFile, SCRIPT, StandardCharsets.UTF_8);
+        lastModified = Files.getLastModifiedTime(pacFile).toMillis();
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(pacFile.toUri().toURL());
+        when(systemConfig.getPacScriptEnginePoolMaxTotal()).thenReturn(1);
+        when(systemConfig.getPacScriptEnginePoolMinIdle()).thenReturn(0);
+        when(systemConfig.getPacScriptEnginePoolMaxWait()).thenReturn(1);
+        when(systemConfig.getPacScriptEvaluationTimeout()).thenReturn(1);
+        when(systemConfig.getPacScriptEvaluationFallback()).thenReturn("DIRECT");
+        when(systemConfig.isPacScriptEvaluationFallbackLastResult()).thenReturn(true);
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(100);
+        when(systemConfig.getCachePacProxyLineCapacity()).thenReturn(100);
+        when(systemConfig.getCachePacLastResultCapacity()).thenReturn(100);
+        when(proxyBlacklist.isActive(any())).thenReturn(true);
+
+        globPatternMatcher = new GlobPatternMatcher(systemConfig);
+        pacHelperMethods = new DefaultPacHelperMethods(systemConfig, globPatternMatcher);
+        executorService = spy(new ProxyExecutorService());
+        pacScriptEvaluator = new PacScriptEvaluator(proxyConfig, systemConfig, pacHelperMethods,
+                globPatternMatcher, proxyBlacklist, mock(PacScriptCopy.class), executorService);
+    }
+
+    @AfterEach
+    void afterEach() {
+        pacScriptEvaluator.onStop();
+        pacHelperMethods.onStop();
+        globPatternMatcher.onStop();
+        executorService.onStop();
+    }
+
+    @Test
+    void evaluate_inTime_onCallerThread() throws Exception {
+        pacScriptEvaluator.onStart();
+        PacEvaluation evaluation = pacScriptEvaluator.evaluate(IN_TIME_URI);
+        assertEquals(PacEvaluation.Source.SCRIPT, evaluation.getSource());
+        assertEquals(PROXY_LINE, evaluation.getProxyLine());
+        // Neither the evaluation nor its interruption has been handed off
+        verifyNoInteractions(executorService);
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("scriptEvaluations"));
+        assertEquals(0L, pacScriptEvaluator.getMetrics().get("evaluationTimeouts"));
+    }
+
+    @Test
+    void evaluate_noTimeout_inTime() throws Exception {
+        when(systemConfig.getPacScriptEvaluationTimeout()).thenReturn(0);
+        pacScriptEvaluator.onStart();
+        assertEquals(PacEvaluation.Source.SCRIPT, pacScriptEvaluator.evaluate(IN_TIME_URI).getSource());
+        verifyNoInteractions(executorService);
+    }
+
+    @Test
+    void evaluate_looping_interruptedToFallback() throws Exception {
+        pacScriptEvaluator.onStart();
+        PacEvaluation evaluation = pacScriptEvaluator.evaluate(LOOPING_URI);
+        assertEquals(PacEvaluation.Source.FALLBACK, evaluation.getSource());
+        assertEquals("DIRECT", evaluation.getProxyLine());
+        assertTrue(evaluation.getProxies().get(0).getType().isDirect());
+        assertTrue(evaluation.getDurationNanos() >= TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("evaluationTimeouts"));
+        assertEquals(0L, pacScriptEvaluator.getMetrics().get("borrowTimeouts"));
+
+        // The interrupted engine is back to the pool, with no interruption left over
+        assertEquals(0, pacScriptEvaluator.getEnginePool().getNumActive());
+        assertEquals(PacEvaluation.Source.SCRIPT, pacScriptEvaluator.evaluate(IN_TIME_URI).getSource());
+    }
+
+    @Test
+    void evaluate_loopingAfterInTime_lastResult() throws Exception {
+        pacScriptEvaluator.onStart();
+        assertEquals(PacEvaluation.Source.SCRIPT, pacScriptEvaluator.evaluate(IN_TIME_URI).getSource());
+        PacEvaluation evaluation = pacScriptEvaluator.evaluate(LOOPING_URI);
+        assertEquals(PacEvaluation.Source.LAST_RESULT, evaluation.getSource());
+        assertEquals(PROXY_LINE, evaluation.getProxyLine());
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("evaluationTimeouts"));
+    }
+
+    @Test
+    void evaluate_lastResultDisabled_fallback() throws Exception {
+        when(systemConfig.isPacScriptEvaluationFallbackLastResult()).thenReturn(false);
+        when(systemConfig.getPacScriptEvaluationFallback()).thenReturn("PROXY fallback.example.com:3128");
+        pacScriptEvaluator.onStart();
+        pacScriptEvaluator.evaluate(IN_TIME_URI);
+        PacEvaluation evaluation = pacScriptEvaluator.evaluate(LOOPING_URI);
+        assertEquals(PacEvaluation.Source.FALLBACK, evaluation.getSource());
+        assertEquals("PROXY fallback.example.com:3128", evaluation.getProxyLine());
+        assertEquals("fallback.example.com", evaluation.getProxies().get(0).getProxyHost().getHostName());
+    }
+
+    @Test
+    void evaluate_noEngineInTime_borrowTimeout() throws Exception {
+        when(systemConfig.getPacScriptEvaluationTimeout()).thenReturn(3);
+        pacScriptEvaluator.onStart();
+        CompletableFuture<PacEvaluation> looping = evaluateAsync(LOOPING_URI);
+        while (pacScriptEvaluator.getEnginePool().getNumActive() == 0) {
+            Thread.sleep(10);
+        }
+
+        // The single engine is held by the looping evaluation for longer than the borrow timeout
+        PacEvaluation evaluation = pacScriptEvaluator.evaluate(IN_TIME_URI);
+        assertEquals(PacEvaluation.Source.FALLBACK, evaluation.getSource());
+        assertEquals("DIRECT", evaluation.getProxyLine());
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("borrowTimeouts"));
+        assertEquals(0L, pacScriptEvaluator.getMetrics().get("evaluationTimeouts"));
+
+        assertEquals(PacEvaluation.Source.FALLBACK, looping.get(10, TimeUnit.SECONDS).getSource());
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("evaluationTimeouts"));
+        assertEquals(2L, pacScriptEvaluator.getMetrics().get("scriptEvaluations"));
+    }
+
+    @Test
+    void reloadIfModified_whileEvaluating_retiredPoolClosedOnLastReturn() throws Exception {
+        when(systemConfig.getPacScriptEvaluationTimeout()).thenReturn(2);
+        when(systemConfig.isPacScriptEvaluationFallbackLastResult()).thenReturn(false);
+        pacScriptEvaluator.onStart();
+        GenericObjectPool<GraalJSScriptEngine> oldEnginePool = pacScriptEvaluator.getEnginePool();
+        CompletableFuture<PacEvaluation> looping = evaluateAsync(LOOPING_URI);
+        while (oldEnginePool.getNumActive() == 0) {
+            Thread.sleep(10);
+        }
+
+        rewriteScript("PROXY other.example.com:8080");
+        assertTrue(pacScriptEvaluator.reloadIfModified());
+        assertNotSame(oldEnginePool, pacScriptEvaluator.getEnginePool());
+        assertFalse(oldEnginePool.isClosed());
+        assertEquals(1, pacScriptEvaluator.getMetrics().get("retiredEnginePools"));
+        assertEquals("PROXY other.example.com:8080", pacScriptEvaluator.evaluate(IN_TIME_URI).getProxyLine());
+
+        // The evaluation in progress completes with the old engine, which closes the old pool on return
+        assertEquals(PacEvaluation.Source.FALLBACK, looping.get(10, TimeUnit.SECONDS).getSource());
+        assertTrue(oldEnginePool.isClosed());
+        assertEquals(0, pacScriptEvaluator.getMetrics().get("retiredEnginePools"));
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("reloads"));
+    }
+
+    @Test
+    void evaluate_concurrentReloads_neverFails() throws Exception {
+        when(systemConfig.getPacScriptEnginePoolMaxTotal()).thenReturn(2);
+        when(systemConfig.getPacScriptEnginePoolMaxWait()).thenReturn(0);
+        when(systemConfig.getPacScriptEvaluationTimeout()).thenReturn(0);
+        pacScriptEvaluator.onStart();
+        String otherProxyLine = "PROXY other.example.com:8080";
+        Set<String> expectedProxyLines = Set.of(PROXY_LINE, otherProxyLine);
+        AtomicBoolean reloading = new AtomicBoolean(true);
+        List<CompletableFuture<Integer>> evaluators = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            evaluators.add(CompletableFuture.supplyAsync(() -> {
+                int evaluations = 0;
+                while (reloading.get()) {
+                    try {
+                        // Either script, never an error on a pool closed by a reload
+                        PacEvaluation evaluation = pacScriptEvaluator.evaluate(IN_TIME_URI);
+                        assertEquals(PacEvaluation.Source.SCRIPT, evaluation.getSource());
+                        assertTrue(expectedProxyLines.contains(evaluation.getProxyLine()));
+                    } catch (PacScriptException e) {
+                        throw new RuntimeException(e);
+                    }
+                    evaluations++;
+                }
+                return evaluations;
+            }));
+        }
+        try {
+            for (int i = 0; i < 10; i++) {
+                rewriteScript(i % 2 == 0 ? otherProxyLine : PROXY_LINE);
+                assertTrue(pacScriptEvaluator.reloadIfModified());
+                Thread.sleep(20);
+            }
+        } finally {
+            reloading.set(false);
+        }
+        for (CompletableFuture<Integer> evaluator : evaluators) {
+            assertTrue(evaluator.get(10, TimeUnit.SECONDS) > 0);
+        }
+        assertEquals(10L, pacScriptEvaluator.getMetrics().get("reloads"));
+        assertEquals(0, pacScriptEvaluator.getMetrics().get("retiredEnginePools"));
+    }
+
+    @Test
+    void evaluate_sameProxyLine_parsedOnce() throws Exception {
+        pacScriptEvaluator.onStart();
+        List<ProxyInfo> proxies = pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies();
+        assertSame(proxies, pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies());
+        assertThrows(UnsupportedOperationException.class, () -> proxies.add(new ProxyInfo(ProxyInfo.PacType.DIRECT)));
+    }
+
+    @Test
+    void evaluate_equalProxiesInDifferentLines_interned() throws Exception {
+        rewriteScript("PROXY proxy.example.com:8080; DIRECT");
+        pacScriptEvaluator.onStart();
+        ProxyInfo proxyInfo = pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies().get(0);
+
+        rewriteScript("PROXY other.example.com:8080; PROXY proxy.example.com:8080");
+        assertTrue(pacScriptEvaluator.reloadIfModified());
+        List<ProxyInfo> proxies = pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies();
+        assertEquals(2, proxies.size());
+        assertSame(proxyInfo, proxies.get(1));
+    }
+
+    @Test
+    void evaluate_blacklistedProxy_filteredOutOfTheCachedLine() throws Exception {
+        rewriteScript("PROXY proxy.example.com:8080; PROXY other.example.com:8080; DIRECT");
+        pacScriptEvaluator.onStart();
+        List<ProxyInfo> proxies = pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies();
+        assertEquals(3, proxies.size());
+
+        when(proxyBlacklist.isActive(proxies.get(0))).thenReturn(false);
+        List<ProxyInfo> filtered = pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies();
+        assertEquals(List.of(proxies.get(1), proxies.get(2)), filtered);
+
+        when(proxyBlacklist.isActive(any())).thenReturn(false);
+        assertEquals(List.of(proxies.get(2)), pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies());
+
+        when(proxyBlacklist.isActive(any())).thenReturn(true);
+        assertSame(proxies, pacScriptEvaluator.evaluate(IN_TIME_URI).getProxies());
+    }
+
+    @Test
+    void evaluate_invalidProxyLine_alwaysThrows() throws Exception {
+        rewriteScript("FOO proxy.example.com:8080");
+        pacScriptEvaluator.onStart();
+        for (int i = 0; i < 2; i++) {
+            PacScriptException e = assertThrows(PacScriptException.class,
+                    () -> pacScriptEvaluator.evaluate(IN_TIME_URI));
+            assertInstanceOf(IllegalArgumentException.class, e.getCause());
+        }
+
+        // Not kept as the last result
+        PacEvaluation evaluation = pacScriptEvaluator.evaluate(LOOPING_URI);
+        assertEquals(PacEvaluation.Source.FALLBACK, evaluation.getSource());
+        assertEquals("DIRECT", evaluation.getProxyLine());
+    }
+
+    @Test
+    void evaluateUnrecorded_inTime_noLastResultNorMetrics() throws Exception {
+        pacScriptEvaluator.onStart();
+        PacEvaluation evaluation = pacScriptEvaluator.evaluateUnrecorded(IN_TIME_URI);
+        assertEquals(PacEvaluation.Source.SCRIPT, evaluation.getSource());
+        assertEquals(PROXY_LINE, evaluation.getProxyLine());
+        assertEquals(0L, pacScriptEvaluator.getMetrics().get("scriptEvaluations"));
+        assertEquals(0, pacScriptEvaluator.getEnginePoolStatistics().drain().getCount());
+
+        // The proxied requests do not get it as the last result
+        assertEquals(PacEvaluation.Source.FALLBACK, pacScriptEvaluator.evaluate(LOOPING_URI).getSource());
+        verify(proxyBlacklist, never()).blacklist(any());
+    }
+
+    @Test
+    void evaluateUnrecorded_looping_lastResultNotUsed() throws Exception {
+        pacScriptEvaluator.onStart();
+        pacScriptEvaluator.evaluate(IN_TIME_URI);
+        PacEvaluation evaluation = pacScriptEvaluator.evaluateUnrecorded(LOOPING_URI);
+        assertEquals(PacEvaluation.Source.FALLBACK, evaluation.getSource());
+        assertEquals("DIRECT", evaluation.getProxyLine());
+        assertEquals(0L, pacScriptEvaluator.getMetrics().get("evaluationTimeouts"));
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("scriptEvaluations"));
+        verify(proxyBlacklist, never()).blacklist(any());
+    }
+
+    private CompletableFuture<PacEvaluation> evaluateAsync(URI uri) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return pacScriptEvaluator.evaluate(uri);
+            } catch (PacScriptException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Change the script's proxy line, with a later last modified time so that the change is always detected.
+     */
+    private void rewriteScript(String proxyLine) throws Exception {
+        Files.writeString(pacFile, SCRIPT.replace(PROXY_LINE, proxyLine), StandardCharsets.UTF_8);
+        lastModified += 1000;
+        Files.setLastModifiedTime(pacFile, FileTime.fromMillis(lastModified));
+    }
+
+}
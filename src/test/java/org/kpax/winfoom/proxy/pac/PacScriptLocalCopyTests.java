@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac;
+
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check the start from the local copy of a remote PAC script and its refresh from the PAC server.
+ */
+class PacScriptLocalCopyTests {
+
+    private static final String FIRST_PROXY_LINE = "PROXY first.example.com:8080";
+
+    private static final String SECOND_PROXY_LINE = "PROXY second.example.com:8080";
+
+    private static final String FIRST_SCRIPT = script(FIRST_PROXY_LINE);
+
+    private static final String SECOND_SCRIPT = script(SECOND_PROXY_LINE);
+
+    private static final URI URI = java.net.URI.create("http://example.com/");
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    /**
+     * The If-None-Match header of each request, empty if none.
+     */
+    private final List<String> ifNoneMatchHeaders = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The tasks submitted by the evaluator, run by the test.
+     */
+    private final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile String serverContent = SECOND_SCRIPT;
+
+    private volatile String serverEtag = "\"second\"";
+
+    private volatile boolean serverAvailable = true;
+
+    @TempDir
+    Path tempDirectory;
+
+    private URL location;
+
+    private ExecutorService serverExecutor;
+
+    private ServerSocket serverSocket;
+
+    private ProxyExecutorService executorService;
+
+    private GlobPatternMatcher globPatternMatcher;
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    private PacScriptCopy pacScriptCopy;
+
+    private PacScriptEvaluator pacScriptEvaluator;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        serverExecutor = Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverExecutor.submit(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    serverExecutor.submit(() -> serve(socket));
+                } catch (IOException e) {
+                    // Server closed
+                }
+            }
+        });
+        location = new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/proxy.pac");
+
+        when(proxyConfig.getProxyPacFileLocationAsURL()).thenReturn(location);
+        when(systemConfig.isPacScriptLocalCopy()).thenReturn(true);
+        when(systemConfig.getPacScriptFetchTimeout()).thenReturn(5);
+        when(systemConfig.getPacScriptEnginePoolMaxTotal()).thenReturn(1);
+        when(systemConfig.getPacScriptEnginePoolMinIdle()).thenReturn(0);
+        when(systemConfig.getPacScriptEnginePoolMaxWait()).thenReturn(1);
+        when(systemConfig.getPacScriptEvaluationFallback()).thenReturn("DIRECT");
+        when(systemConfig.getCacheGlobPatternCapacity()).thenReturn(100);
+        when(systemConfig.getCachePacProxyLineCapacity()).thenReturn(100);
+        when(systemConfig.getCachePacLastResultCapacity()).thenReturn(100);
+        ProxyBlacklist proxyBlacklist = mock(ProxyBlacklist.class);
+        when(proxyBlacklist.isActive(any())).thenReturn(true);
+
+        globPatternMatcher = new GlobPatternMatcher(systemConfig);
+        pacHelperMethods = new DefaultPacHelperMethods(systemConfig, globPatternMatcher);
+        executorService = spy(new ProxyExecutorService());
+        doAnswer(invocation -> tasks.add(invocation.getArgument(0))).when(executorService).execute(any());
+        pacScriptCopy = new PacScriptCopy(tempDirectory.resolve("pac-script.properties"));
+        pacScriptEvaluator = new PacScriptEvaluator(proxyConfig, systemConfig, pacHelperMethods,
+                globPatternMatcher, proxyBlacklist, pacScriptCopy, executorService);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        pacScriptEvaluator.onStop();
+        pacHelperMethods.onStop();
+        globPatternMatcher.onStop();
+        executorService.onStop();
+        serverSocket.close();
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void onStart_localCopy_loadedWithoutNetwork() throws Exception {
+        pacScriptCopy.write(location, new PacSource(FIRST_SCRIPT, 0, "\"first\""));
+        pacScriptEvaluator.onStart();
+
+        assertEquals(FIRST_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertTrue(ifNoneMatchHeaders.isEmpty());
+        // The refresh is left to another thread
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    void refresh_newerContent_enginesSwapped() throws Exception {
+        pacScriptCopy.write(location, new PacSource(FIRST_SCRIPT, 0, "\"first\""));
+        pacScriptEvaluator.onStart();
+        GenericObjectPool<GraalJSScriptEngine> firstEnginePool = pacScriptEvaluator.getEnginePool();
+
+        tasks.get(0).run();
+        assertEquals(List.of("\"first\""), ifNoneMatchHeaders);
+        assertEquals(SECOND_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertNotSame(firstEnginePool, pacScriptEvaluator.getEnginePool());
+        assertTrue(firstEnginePool.isClosed());
+        assertEquals(1L, pacScriptEvaluator.getMetrics().get("reloads"));
+
+        // The local copy follows
+        PacSource localCopy = pacScriptCopy.read(location);
+        assertEquals(SECOND_SCRIPT, localCopy.getContent());
+        assertEquals("\"second\"", localCopy.getEtag());
+    }
+
+    @Test
+    void refresh_notModified_kept() throws Exception {
+        serverContent = FIRST_SCRIPT;
+        serverEtag = "\"first\"";
+        pacScriptCopy.write(location, new PacSource(FIRST_SCRIPT, 0, "\"first\""));
+        pacScriptEvaluator.onStart();
+        GenericObjectPool<GraalJSScriptEngine> enginePool = pacScriptEvaluator.getEnginePool();
+
+        tasks.get(0).run();
+        assertEquals(List.of("\"first\""), ifNoneMatchHeaders);
+        assertEquals(FIRST_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertSame(enginePool, pacScriptEvaluator.getEnginePool());
+        assertEquals(0L, pacScriptEvaluator.getMetrics().get("reloads"));
+    }
+
+    @Test
+    void refresh_serverUnavailable_localCopyKept() throws Exception {
+        serverAvailable = false;
+        pacScriptCopy.write(location, new PacSource(FIRST_SCRIPT, 0, "\"first\""));
+        pacScriptEvaluator.onStart();
+
+        assertDoesNotThrow(() -> tasks.get(0).run());
+        assertEquals(1, ifNoneMatchHeaders.size());
+        assertEquals(FIRST_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertEquals(FIRST_SCRIPT, pacScriptCopy.read(location).getContent());
+    }
+
+    @Test
+    void refresh_invalidContent_localCopyKept() throws Exception {
+        serverContent = "function notTheMainFunction(url, host) {}";
+        pacScriptCopy.write(location, new PacSource(FIRST_SCRIPT, 0, "\"first\""));
+        pacScriptEvaluator.onStart();
+
+        assertDoesNotThrow(() -> tasks.get(0).run());
+        assertEquals(FIRST_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertEquals(FIRST_SCRIPT, pacScriptCopy.read(location).getContent());
+    }
+
+    @Test
+    void onStart_noLocalCopy_fetchedAndSaved() throws Exception {
+        pacScriptEvaluator.onStart();
+
+        assertEquals(List.of(""), ifNoneMatchHeaders);
+        assertEquals(SECOND_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertTrue(tasks.isEmpty());
+        PacSource localCopy = pacScriptCopy.read(location);
+        assertEquals(SECOND_SCRIPT, localCopy.getContent());
+        assertEquals("\"second\"", localCopy.getEtag());
+    }
+
+    @Test
+    void onStart_localCopyOfAnotherLocation_fetched() throws Exception {
+        pacScriptCopy.write(new URL("http://127.0.0.1/other.pac"), new PacSource(FIRST_SCRIPT, 0, null));
+        pacScriptEvaluator.onStart();
+
+        assertEquals(1, ifNoneMatchHeaders.size());
+        assertEquals(SECOND_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertEquals(SECOND_SCRIPT, pacScriptCopy.read(location).getContent());
+    }
+
+    @Test
+    void onStart_invalidLocalCopy_fetched() throws Exception {
+        pacScriptCopy.write(location, new PacSource("function notTheMainFunction(url, host) {}", 0, null));
+        pacScriptEvaluator.onStart();
+
+        assertEquals(1, ifNoneMatchHeaders.size());
+        assertEquals(SECOND_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertEquals(SECOND_SCRIPT, pacScriptCopy.read(location).getContent());
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    void onStart_localCopyDisabled_fetchedAndNotSaved() throws Exception {
+        when(systemConfig.isPacScriptLocalCopy()).thenReturn(false);
+        pacScriptCopy.write(location, new PacSource(FIRST_SCRIPT, 0, "\"first\""));
+        pacScriptEvaluator.onStart();
+
+        assertEquals(1, ifNoneMatchHeaders.size());
+        assertEquals(SECOND_PROXY_LINE, pacScriptEvaluator.evaluate(URI).getProxyLine());
+        assertEquals(FIRST_SCRIPT, pacScriptCopy.read(location).getContent());
+    }
+
+    private static String script(String proxyLine) {
+        return """
+                function FindProxyForURL(url, host) {
+                    return "%s";
+                }
+                """.formatted(proxyLine);
+    }
+
+    /**
+     * Answer with the current script, or not modified when the request matches its ETag,
+     * unless the server is made unavailable.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            reader.readLine();
+            Map<String, String> headers = new HashMap<>();
+            for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            String ifNoneMatch = headers.getOrDefault("if-none-match", "");
+            ifNoneMatchHeaders.add(ifNoneMatch);
+            String etag = serverEtag;
+            byte[] body = serverContent.getBytes(StandardCharsets.UTF_8);
+            StringBuilder head = new StringBuilder();
+            if (!serverAvailable) {
+                head.append("HTTP/1.1 503 Service Unavailable\r\n")
+                        .append("Content-Length: 0\r\n")
+                        .append("Connection: close\r\n\r\n");
+                body = new byte[0];
+            } else if (ifNoneMatch.equals(etag)) {
+                head.append("HTTP/1.1 304 Not Modified\r\n")
+                        .append("ETag: ").append(etag).append("\r\n")
+                        .append("Connection: close\r\n\r\n");
+                body = new byte[0];
+            } else {
+                head.append("HTTP/1.1 200 OK\r\n")
+                        .append("ETag: ").append(etag).append("\r\n")
+                        .append("Content-Length: ").append(body.length).append("\r\n")
+                        .append("Connection: close\r\n\r\n");
+            }
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            outputStream.write(body);
+            outputStream.flush();
+        } catch (IOException e) {
+            // Client gone
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.datetime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.time.Instant;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check the compiled {@code weekdayRange}, {@code dateRange} and {@code timeRange} calls against a pinned clock.
+ */
+class PacDateTimeUtilsTests {
+
+    /**
+     * A Sunday.
+     */
+    private static final Instant SUNDAY = Instant.parse("2024-01-07T12:00:00Z");
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-07T12:00:00Z|SUN",
+            "2024-01-08T12:00:00Z|MON",
+            "2024-01-09T12:00:00Z|TUE",
+            "2024-01-10T12:00:00Z|WED",
+            "2024-01-11T12:00:00Z|THU",
+            "2024-01-12T12:00:00Z|FRI",
+            "2024-01-13T12:00:00Z|SAT"
+    })
+    void weekdayRange_singleDay_onlyThatDay(String instant, String weekday) throws Exception {
+        for (String name : PacDateTimeUtils.WEEKDAY_NAMES) {
+            assertEquals(name.equals(weekday),
+                    PacDateTimeUtils.compileWeekdayRange(name, "GMT").isInRange(Instant.parse(instant)), name);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-12T12:00:00Z|true",
+            "2024-01-13T12:00:00Z|true",
+            "2024-01-14T12:00:00Z|true",
+            "2024-01-15T12:00:00Z|true",
+            "2024-01-16T12:00:00Z|false",
+            "2024-01-17T12:00:00Z|false",
+            "2024-01-18T12:00:00Z|false"
+    })
+    void weekdayRange_wraparound(String instant, boolean expected) throws Exception {
+        assertEquals(expected,
+                PacDateTimeUtils.compileWeekdayRange("FRI", "MON", "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-12T12:00:00Z|true",
+            "2024-01-13T12:00:00Z|false",
+            "2024-01-14T12:00:00Z|false",
+            "2024-01-15T12:00:00Z|true",
+            "2024-01-17T12:00:00Z|true"
+    })
+    void weekdayRange_withinWeek(String instant, boolean expected) throws Exception {
+        assertEquals(expected,
+                PacDateTimeUtils.compileWeekdayRange("MON", "FRI", "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "JUN|AUG|2024-05-31T12:00:00Z|false",
+            "JUN|AUG|2024-06-01T12:00:00Z|true",
+            "JUN|AUG|2024-08-31T12:00:00Z|true",
+            "JUN|AUG|2024-09-01T12:00:00Z|false",
+            "NOV|FEB|2024-01-15T12:00:00Z|true",
+            "NOV|FEB|2024-11-15T12:00:00Z|true",
+            "NOV|FEB|2024-03-15T12:00:00Z|false",
+            "NOV|FEB|2024-10-31T12:00:00Z|false"
+    })
+    void dateRange_months(String month1, String month2, String instant, boolean expected) throws Exception {
+        assertEquals(expected,
+                PacDateTimeUtils.compileDateRange(month1, month2, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2022-12-31T12:00:00Z|false",
+            "2023-01-01T12:00:00Z|true",
+            "2025-12-31T12:00:00Z|true",
+            "2026-01-01T12:00:00Z|false"
+    })
+    void dateRange_years(String instant, boolean expected) throws Exception {
+        assertEquals(expected, PacDateTimeUtils.compileDateRange(2023, 2025, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-10T12:00:00Z|false",
+            "2024-01-27T12:00:00Z|true",
+            "2024-01-31T12:00:00Z|true",
+            "2024-02-05T12:00:00Z|true",
+            "2024-02-06T12:00:00Z|false"
+    })
+    void dateRange_daysOfMonthWraparound(String instant, boolean expected) throws Exception {
+        assertEquals(expected, PacDateTimeUtils.compileDateRange(27, 5, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2023-12-31T12:00:00Z|false",
+            "2024-02-10T12:00:00Z|true",
+            "2024-03-15T12:00:00Z|true",
+            "2024-03-16T12:00:00Z|false",
+            "2025-02-10T12:00:00Z|false"
+    })
+    void dateRange_fullDates(String instant, boolean expected) throws Exception {
+        assertEquals(expected, PacDateTimeUtils.compileDateRange(1, "JAN", 2024, 15, "MAR", 2024, "GMT")
+                .isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-07T08:59:59Z|false",
+            "2024-01-07T09:00:00Z|true",
+            "2024-01-07T17:00:59Z|true",
+            "2024-01-07T17:01:00Z|false"
+    })
+    void timeRange_hours(String instant, boolean expected) throws Exception {
+        assertEquals(expected, PacDateTimeUtils.compileTimeRange(9, 17, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-07T21:59:59Z|false",
+            "2024-01-07T23:30:00Z|true",
+            "2024-01-08T01:30:00Z|true",
+            "2024-01-08T02:30:00Z|false"
+    })
+    void timeRange_hoursWraparound(String instant, boolean expected) throws Exception {
+        assertEquals(expected, PacDateTimeUtils.compileTimeRange(22, 2, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-07T08:29:59Z|false",
+            "2024-01-07T08:30:00Z|true",
+            "2024-01-07T17:15:00Z|true",
+            "2024-01-07T17:15:30Z|false",
+            "2024-01-07T17:16:00Z|false"
+    })
+    void timeRange_minutes(String instant, boolean expected) throws Exception {
+        assertEquals(expected,
+                PacDateTimeUtils.compileTimeRange(8, 30, 17, 15, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "2024-01-07T12:00:09Z|false",
+            "2024-01-07T12:00:10Z|true",
+            "2024-01-07T12:00:20Z|true",
+            "2024-01-07T12:00:21Z|false"
+    })
+    void timeRange_seconds(String instant, boolean expected) throws Exception {
+        assertEquals(expected,
+                PacDateTimeUtils.compileTimeRange(12, 0, 10, 12, 0, 20, "GMT").isInRange(Instant.parse(instant)));
+    }
+
+    @Test
+    void isInRange_gmtAndLocal_differentDays() throws Exception {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT-05:00"));
+        try {
+            // Monday 02:00 GMT, Sunday 21:00 local
+            Instant instant = Instant.parse("2024-01-08T02:00:00Z");
+            assertTrue(PacDateTimeUtils.compileWeekdayRange("MON", "GMT").isInRange(instant));
+            assertFalse(PacDateTimeUtils.compileWeekdayRange("MON").isInRange(instant));
+            assertTrue(PacDateTimeUtils.compileWeekdayRange("SUN").isInRange(instant));
+
+            assertTrue(PacDateTimeUtils.compileTimeRange(2, "GMT").isInRange(instant));
+            assertFalse(PacDateTimeUtils.compileTimeRange(2).isInRange(instant));
+            assertTrue(PacDateTimeUtils.compileTimeRange(21).isInRange(instant));
+
+            assertTrue(PacDateTimeUtils.compileDateRange(8, "GMT").isInRange(instant));
+            assertTrue(PacDateTimeUtils.compileDateRange(7).isInRange(instant));
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test
+    void compile_faultyArguments_throws() {
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                PacDateTimeUtils::compileWeekdayRange);
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileWeekdayRange("FOO"));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileWeekdayRange("mon"));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileWeekdayRange("MON", "TUE", "WED"));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileDateRange("FOO"));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileDateRange(1, 2, 3));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileDateRange(0));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileDateRange(1.5));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileTimeRange(24));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileTimeRange(1, 2, 3));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileTimeRange(8, 60, 17, 0));
+        assertThrows(PacDateTimeUtils.PacDateTimeInputException.class,
+                () -> PacDateTimeUtils.compileTimeRange(null, null));
+    }
+
+    @Test
+    void compile_undefinedArgumentsIgnored() throws Exception {
+        assertTrue(PacDateTimeUtils.compileWeekdayRange("SUN", null, null).isInRange(SUNDAY));
+        assertTrue(PacDateTimeUtils.compileTimeRange(12, null, null, null, null, null, null).isInRange(SUNDAY));
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.pac.net;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IpNetworkTests {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "0.0.0.0|0",
+            "10.1.2.3|167838211",
+            "255.255.255.255|4294967295",
+            "127.0.0.1|2130706433",
+            "010.001.002.003|167838211",
+    })
+    void parseIpv4_valid(String value, long address) {
+        assertEquals(address, IpNetwork.parseIpv4(value));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "1", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1.2.3.256", "1..2.3", ".1.2.3", "1.2.3.",
+            "0001.2.3.4", "1.2.3.a", "a.b.c.d", "-1.2.3.4", "1.2.3.4/8", " 1.2.3.4", "::1", "example.com"})
+    void parseIpv4_invalid(String value) {
+        assertEquals(-1, IpNetwork.parseIpv4(value));
+    }
+
+    @Test
+    void parseIpv4_null() {
+        assertEquals(-1, IpNetwork.parseIpv4(null));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"::", "::1", "1::", "fe80::1", "FE80::AbCd", "2001:db8::8a2e:370:7334",
+            "2001:0db8:0000:0000:0000:ff00:0042:8329", "1:2:3:4:5:6:7:8", "1::8", "1:2:3:4:5:6::8", "1::3:4:5:6:7:8",
+            "::ffff:10.1.2.3", "::10.1.2.3", "64:ff9b::192.0.2.33", "1:2:3:4:5:6:10.1.2.3", "[::1]", "[fe80::1]",
+            "0:0:0:0:0:0:0:0", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"})
+    void parseIpv6_valid_sameAsInetAddress(String value) throws Exception {
+        long[] address = new long[2];
+        assertTrue(IpNetwork.parseIpv6(value, address), value);
+        ByteBuffer expected = ByteBuffer.wrap(toIpv6Bytes(value.replace("[", "").replace("]", "")));
+        assertEquals(expected.getLong(0), address[0], value);
+        assertEquals(expected.getLong(8), address[1], value);
+    }
+
+    @Test
+    void parseIpv6_scopeId_ignored() {
+        long[] address = new long[2];
+        assertTrue(IpNetwork.parseIpv6("fe80::1%eth0", address));
+        assertEquals(0xfe80000000000000L, address[0]);
+        assertEquals(1L, address[1]);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", ":", ":::", "1", "1:2", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", ":1::2",
+            "1::2:", "1:2:3:4:5:6:7:8::", "::1:2:3:4:5:6:7:8", "12345::1", "00001::1", "::00000", "fe80::1:00001",
+            "g::1", "1:2:3:4:5:6:7:10.1.2.3", "::10.1.2", "::10.1.2.3:1", "::256.1.2.3", "1.2.3.4", "[::1",
+            "example.com"})
+    void parseIpv6_invalid(String value) {
+        assertFalse(IpNetwork.parseIpv6(value, new long[2]), value);
+    }
+
+    @Test
+    void parseIpv6_null() {
+        assertFalse(IpNetwork.parseIpv6(null, new long[2]));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "10.0.0.0|255.0.0.0|10.1.2.3|true",
+            "10.0.0.0|255.0.0.0|10.255.255.255|true",
+            "10.0.0.0|255.0.0.0|11.0.0.0|false",
+            "192.168.1.0|255.255.255.0|192.168.1.77|true",
+            "192.168.1.0|255.255.255.0|192.168.2.77|false",
+            "192.168.1.7|255.255.255.255|192.168.1.7|true",
+            "192.168.1.7|255.255.255.255|192.168.1.8|false",
+            // The pattern bits outside the mask are ignored
+            "10.9.9.9|255.0.0.0|10.1.2.3|true",
+            "0.0.0.0|0.0.0.0|8.8.8.8|true",
+            "10.0.0.0|255.0.0.0|::ffff:10.1.2.3|false",
+            "fe80::|ffc0::|fe80::1|true",
+            "fe80::|ffc0::|[fe80::1]|true",
+            "fe80::|ffc0::|fec0::1|false",
+            "fe80::|ffc0::|10.1.2.3|false",
+            // Not of the same family
+            "10.0.0.0|ffc0::|10.1.2.3|false",
+            "fe80::|255.0.0.0|fe80::1|false",
+            // Not IP literals
+            "10.0.0.0|255.0.0.0|localhost|false",
+            "intranet|255.0.0.0|10.1.2.3|false",
+            "10.0.0.0|255.0.0|10.1.2.3|false",
+            "fe80::|ffc0::|00001::1|false",
+    })
+    void of_contains(String pattern, String mask, String address, boolean contains) {
+        assertEquals(contains, IpNetwork.of(pattern, mask).contains(address));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "10.0.0.0/8|10.1.2.3|true",
+            "10.0.0.0/8|11.1.2.3|false",
+            "172.16.0.0/12|172.31.255.255|true",
+            "172.16.0.0/12|172.32.0.0|false",
+            "192.168.1.7|192.168.1.7|true",
+            "192.168.1.7|192.168.1.8|false",
+            "192.168.1.7/32|192.168.1.7|true",
+            "0.0.0.0/0|0.0.0.0|true",
+            "0.0.0.0/0|255.255.255.255|true",
+            "0.0.0.0/0|::1|false",
+            "10.0.0.0/8|::ffff:10.1.2.3|false",
+            "fe80::/10|fe80::1|true",
+            "fe80::/10|febf:ffff::|true",
+            "fe80::/10|fec0::|false",
+            "2001:db8::/32|2001:db8:ffff::1|true",
+            "2001:db8::/32|2001:db9::1|false",
+            "2001:db8::/64|2001:db8::ffff:ffff:ffff:ffff|true",
+            "2001:db8::/64|2001:db8:0:1::|false",
+            "2001:db8::1/127|2001:db8::|true",
+            "2001:db8::1/127|2001:db8::2|false",
+            "::1|::1|true",
+            "::1|::2|false",
+            "::1/128|[::1]|true",
+            "::/0|2001:db8::1|true",
+            "::/0|10.1.2.3|false",
+    })
+    void ofPrefix_contains(String prefix, String address, boolean contains) {
+        assertEquals(contains, IpNetwork.ofPrefix(prefix).contains(address));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "/8", "10.0.0.0/", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/a", "10.0.0/8",
+            "::/129", "fe80::/-1", "00001::/16", "example.com/8", "10.0.0.0/8/8"})
+    void ofPrefix_invalid_none(String prefix) {
+        assertSame(IpNetwork.NONE, IpNetwork.ofPrefix(prefix));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "10.0.0.0|255.0.0.256",
+            "10.0.0.0|ffc0::",
+            "fe80::|255.0.0.0",
+            "intranet|255.0.0.0",
+            "fe80::|00ffc0::",
+    })
+    void of_invalid_none(String pattern, String mask) {
+        assertSame(IpNetwork.NONE, IpNetwork.of(pattern, mask));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0.0.0.0", "255.255.255.255", "10.1.2.3", "::", "::1", "fe80::1", "::ffff:0.0.0.0"})
+    void none_containsNothing(String address) {
+        assertFalse(IpNetwork.NONE.contains(address));
+    }
+
+    @Test
+    void none_containsNoPrimitiveAddress() {
+        assertFalse(IpNetwork.NONE.containsIpv4(0));
+        assertFalse(IpNetwork.NONE.containsIpv4(0xFFFFFFFFL));
+        assertFalse(IpNetwork.NONE.containsIpv6(0, 0));
+        assertFalse(IpNetwork.NONE.containsIpv6(-1, -1));
+    }
+
+    private static byte[] toIpv6Bytes(String value) throws Exception {
+        byte[] bytes = InetAddress.getByName(value).getAddress();
+        if (bytes.length == 16) {
+            return bytes;
+        }
+        // InetAddress reads the IPv4-mapped addresses as IPv4 ones
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(bytes, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.processor;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ClientConnection;
+import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.Tunnel;
+import org.kpax.winfoom.proxy.TunnelConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Check when an upstream proxy is connected optimistically.
+ */
+class HttpConnectClientConnectionProcessorTests {
+
+    private static final ProxyInfo PROXY = new ProxyInfo(ProxyInfo.PacType.PROXY,
+            new HttpHost("proxy.example.com", 3128));
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final TunnelConnection tunnelConnection = mock(TunnelConnection.class);
+
+    private final ClientConnection clientConnection = mock(ClientConnection.class);
+
+    private final Tunnel tunnel = mock(Tunnel.class);
+
+    private final StringBuilder written = new StringBuilder();
+
+    private ExecutorService executorService;
+
+    private HttpConnectClientConnectionProcessor processor;
+
+    /**
+     * The status of the upstream proxy's refusal, zero when it accepts the tunnel.
+     */
+    private int refusalStatus;
+
+    /**
+     * Whether the client has been answered before the upstream tunnel was requested.
+     */
+    private boolean optimistic;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        executorService = Executors.newCachedThreadPool();
+        when(systemConfig.isConnectOptimisticEnabled()).thenReturn(true);
+        when(proxyConfig.isAutoConfig()).thenReturn(false);
+
+        when(clientConnection.getRequestLine()).thenReturn(
+                new BasicRequestLine("CONNECT", "example.com:443", HttpVersion.HTTP_1_1));
+        when(clientConnection.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(new byte[0]));
+        when(clientConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        doAnswer(invocation -> written.append(invocation.getArgument(0).toString()).append("\r\n"))
+                .when(clientConnection).write(any());
+        doAnswer(invocation -> written.append("\r\n")).when(clientConnection).writeln();
+
+        BasicStatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK,
+                "Connection established");
+        when(tunnel.getStatusLine()).thenReturn(statusLine);
+        when(tunnel.getResponse()).thenReturn(new BasicHttpResponse(statusLine));
+        when(tunnel.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(new byte[0]));
+        when(tunnel.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(tunnelConnection.open(any(), any(), any(), any())).thenAnswer(invocation -> {
+            optimistic = written.length() > 0;
+            if (refusalStatus != 0) {
+                throw new TunnelRefusedException("CONNECT refused by proxy",
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, refusalStatus, "Refused"));
+            }
+            return tunnel;
+        });
+
+        processor = new HttpConnectClientConnectionProcessor(executorService, proxyConfig,
+                mock(ProxyBlacklist.class), tunnelConnection, systemConfig);
+    }
+
+    @AfterEach
+    void afterEach() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void process_acceptedRegularTunnel_promoted() throws Exception {
+        assertFalse(connect());
+        assertTrue(connect());
+        assertTrue(connect());
+    }
+
+    @Test
+    void process_optimisticDisabled_neverPromoted() throws Exception {
+        when(systemConfig.isConnectOptimisticEnabled()).thenReturn(false);
+        assertFalse(connect());
+        assertFalse(connect());
+    }
+
+    @Test
+    void process_autoConfig_neverPromoted() throws Exception {
+        when(proxyConfig.isAutoConfig()).thenReturn(true);
+        assertFalse(connect());
+        assertFalse(connect());
+    }
+
+    @Test
+    void process_regularTunnelRefused_proxyResponseRelayedAndNotPromoted() throws Exception {
+        refusalStatus = HttpStatus.SC_FORBIDDEN;
+        assertFalse(connect());
+        verify(clientConnection).writeHttpResponse(any());
+
+        refusalStatus = 0;
+        assertFalse(connect());
+        assertTrue(connect());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, HttpStatus.SC_INTERNAL_SERVER_ERROR,
+            HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_SERVICE_UNAVAILABLE})
+    void process_optimisticTunnelRefusedByProxy_demoted(int status) throws Exception {
+        assertFalse(connect());
+        refusalStatus = status;
+        assertTrue(connect());
+
+        // The regular way from then on, even after an accepted tunnel
+        refusalStatus = 0;
+        assertFalse(connect());
+        assertFalse(connect());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {HttpStatus.SC_FORBIDDEN, HttpStatus.SC_NOT_FOUND})
+    void process_optimisticTunnelRefusedForTarget_staysOptimistic(int status) throws Exception {
+        assertFalse(connect());
+        refusalStatus = status;
+        assertTrue(connect());
+        assertTrue(connect());
+
+        refusalStatus = 0;
+        assertTrue(connect());
+    }
+
+    @Test
+    void process_optimisticTunnelRefused_clientConnectionAborted() throws Exception {
+        assertFalse(connect());
+        refusalStatus = HttpStatus.SC_FORBIDDEN;
+        clearInvocations(tunnel);
+
+        // The response is committed, only the early 200 head has been written
+        assertTrue(connect());
+        assertTrue(written.toString().startsWith("HTTP/1.1 200 Connection established\r\n"));
+        assertTrue(written.toString().endsWith("\r\n\r\n"));
+        assertFalse(written.toString().contains("Refused"));
+        verify(clientConnection, never()).writeHttpResponse(any());
+        verify(tunnel, never()).getInputStream();
+    }
+
+    @Test
+    void onStop_promotedProxiesForgotten() throws Exception {
+        assertFalse(connect());
+        assertTrue(connect());
+        processor.onStop();
+        assertFalse(connect());
+    }
+
+    /**
+     * Process a CONNECT request through the proxy.
+     *
+     * @return whether it has been handled optimistically.
+     */
+    private boolean connect() throws Exception {
+        written.setLength(0);
+        optimistic = false;
+        processor.process(clientConnection, PROXY);
+        return optimistic;
+    }
+
+}
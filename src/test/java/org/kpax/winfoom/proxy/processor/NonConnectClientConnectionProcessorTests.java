@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.processor;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.exception.ProxyConnectException;
+import org.kpax.winfoom.proxy.ClientConnection;
+import org.kpax.winfoom.proxy.HttpClientBuilderFactory;
+import org.kpax.winfoom.proxy.ProxyBlacklist;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.proxy.cache.HttpResponseCache;
+import org.kpax.winfoom.proxy.cache.RequestCoalescer;
+import org.kpax.winfoom.proxy.cache.ResponseCapture;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the cache revalidation against a local server when the first proxy cannot be connected.
+ */
+class NonConnectClientConnectionProcessorTests {
+
+    private static final String ETAG = "\"v1\"";
+
+    private static final byte[] BODY = "cached body".getBytes(StandardCharsets.UTF_8);
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final ProxyConfig proxyConfig = mock(ProxyConfig.class);
+
+    private final HttpClientBuilderFactory clientBuilderFactory = mock(HttpClientBuilderFactory.class);
+
+    private final ClientConnection clientConnection = mock(ClientConnection.class);
+
+    private final List<String> receivedIfNoneMatch = new CopyOnWriteArrayList<>();
+
+    private final StringBuilder written = new StringBuilder();
+
+    private final ByteArrayOutputStream writtenBody = new ByteArrayOutputStream();
+
+    private ExecutorService executorService;
+
+    private ServerSocket serverSocket;
+
+    private HttpResponseCache responseCache;
+
+    private NonConnectClientConnectionProcessor processor;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        executorService = Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executorService.submit(this::serve);
+
+        when(systemConfig.isResponseCacheEnabled()).thenReturn(true);
+        when(systemConfig.getResponseCacheMemoryMaxSize()).thenReturn(1);
+        when(systemConfig.getResponseCacheDiskMaxSize()).thenReturn(0);
+        when(systemConfig.getResponseCacheMaxEntrySize()).thenReturn(1);
+        // Memory tier only, so there is nothing to initialize
+        responseCache = new HttpResponseCache(systemConfig, proxyConfig);
+
+        processor = new NonConnectClientConnectionProcessor(executorService, proxyConfig,
+                mock(ProxyBlacklist.class), clientBuilderFactory, responseCache, mock(RequestCoalescer.class),
+                mock(ParallelRangeDownloader.class));
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        serverSocket.close();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void handleRequest_failoverToNextProxy_revalidatedAgain() throws Exception {
+        URI uri = URI.create("http://127.0.0.1:" + serverSocket.getLocalPort() + "/resource");
+        HttpRequest request = new BasicHttpRequest("GET", uri.toString(), HttpVersion.HTTP_1_1);
+        store(uri, request);
+        mockClientConnection(uri, request);
+
+        int closedPort;
+        try (ServerSocket closedServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            closedPort = closedServerSocket.getLocalPort();
+        }
+        ProxyInfo unreachableProxy = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("127.0.0.1", closedPort));
+        ProxyInfo direct = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+        when(clientBuilderFactory.createClientBuilder(unreachableProxy))
+                .thenReturn(HttpClients.custom().setProxy(new HttpHost("127.0.0.1", closedPort)));
+        when(clientBuilderFactory.createClientBuilder(direct)).thenReturn(HttpClients.custom());
+
+        assertThrows(ProxyConnectException.class, () -> processor.process(clientConnection, unreachableProxy));
+        assertFalse(request.containsHeader(HttpHeaders.IF_NONE_MATCH));
+
+        processor.process(clientConnection, direct);
+
+        // The client made an unconditional request, so it gets the full cached response
+        assertEquals(List.of(ETAG), receivedIfNoneMatch);
+        assertTrue(written.toString().startsWith("HTTP/1.1 200 OK"), written.toString());
+        assertArrayEquals(BODY, writtenBody.toByteArray());
+        assertFalse(request.containsHeader(HttpHeaders.IF_NONE_MATCH));
+        assertEquals(1L, responseCache.getMetrics().get("revalidations"));
+    }
+
+    private void store(URI uri, HttpRequest request) throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader(HttpHeaders.DATE, DateUtils.formatDate(new Date()));
+        response.addHeader(HttpHeaders.ETAG, ETAG);
+        long now = System.currentTimeMillis();
+        try (ResponseCapture capture = responseCache.capture(uri, request, response, now, now)) {
+            assertNotNull(capture);
+            capture.write(BODY);
+            capture.commit(BODY.length);
+        }
+    }
+
+    private void mockClientConnection(URI uri, HttpRequest request) throws Exception {
+        when(clientConnection.getRequest()).thenReturn(request);
+        when(clientConnection.getRequestUri()).thenReturn(uri);
+        when(clientConnection.getRequestLine()).thenReturn(request.getRequestLine());
+        when(clientConnection.getOutputStream()).thenReturn(writtenBody);
+        doAnswer(invocation -> written.append(invocation.getArgument(0).toString()).append("\r\n"))
+                .when(clientConnection).write(any());
+        doAnswer(invocation -> written.append("\r\n")).when(clientConnection).writeln();
+    }
+
+    /**
+     * Answer {@code 304 Not Modified} to the conditional requests, {@code 200 OK} otherwise.
+     */
+    private Void serve() throws Exception {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.ISO_8859_1));
+                String ifNoneMatch = null;
+                for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+                    if (line.regionMatches(true, 0, HttpHeaders.IF_NONE_MATCH + ":", 0,
+                            HttpHeaders.IF_NONE_MATCH.length() + 1)) {
+                        ifNoneMatch = line.substring(line.indexOf(':') + 1).trim();
+                        receivedIfNoneMatch.add(ifNoneMatch);
+                    }
+                }
+                String response = ifNoneMatch != null
+                        ? "HTTP/1.1 304 Not Modified\r\nETag: " + ETAG + "\r\nCache-Control: max-age=60\r\n"
+                        + "Connection: close\r\n\r\n"
+                        : "HTTP/1.1 200 OK\r\nContent-Length: 3\r\nConnection: close\r\n\r\nnew";
+                socket.getOutputStream().write(response.getBytes(StandardCharsets.ISO_8859_1));
+                socket.getOutputStream().flush();
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy.processor;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check the parallel download against a local server accepting byte ranges.
+ */
+class ParallelRangeDownloaderTests {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private static final String ETAG = "\"v1\"";
+
+    private static final byte[] BODY = new byte[3 * 1024 * 1024 + 1000];
+
+    static {
+        new Random(0).nextBytes(BODY);
+    }
+
+    private final SystemConfig systemConfig = mock(SystemConfig.class);
+
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    private ExecutorService executorService;
+
+    private ServerSocket serverSocket;
+
+    private volatile String currentEtag = ETAG;
+
+    private ParallelRangeDownloader parallelRangeDownloader;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        when(systemConfig.isRangedDownloadEnabled()).thenReturn(true);
+        when(systemConfig.getRangedDownloadThreshold()).thenReturn(1);
+        when(systemConfig.getRangedDownloadPartSize()).thenReturn(1);
+        when(systemConfig.getRangedDownloadParallelism()).thenReturn(2);
+        executorService = Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executorService.submit(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    executorService.submit(() -> serve(socket));
+                } catch (IOException e) {
+                    // Server closed
+                }
+            }
+        });
+        parallelRangeDownloader = new ParallelRangeDownloader(systemConfig, executorService);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        serverSocket.close();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void writeTo_parts_wholeBody() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            HttpGet request = new HttpGet("/resource");
+            try (CloseableHttpResponse response = httpClient.execute(getTarget(), request)) {
+                assertTrue(parallelRangeDownloader.isEligible(request, response));
+                parallelRangeDownloader.apply(httpClient, getTarget(), new ProxyInfo(ProxyInfo.PacType.DIRECT),
+                        request, response);
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                response.getEntity().writeTo(outputStream);
+                assertArrayEquals(BODY, outputStream.toByteArray());
+            }
+        }
+        assertEquals(3, rangeRequests.get());
+        assertEquals(3L, parallelRangeDownloader.getMetrics().get("parts"));
+        assertEquals(0L, parallelRangeDownloader.getMetrics().get("failures"));
+    }
+
+    @Test
+    void writeTo_resourceChanged_fails() throws Exception {
+        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+            HttpGet request = new HttpGet("/resource");
+            try (CloseableHttpResponse response = httpClient.execute(getTarget(), request)) {
+                assertTrue(parallelRangeDownloader.isEligible(request, response));
+                parallelRangeDownloader.apply(httpClient, getTarget(), new ProxyInfo(ProxyInfo.PacType.DIRECT),
+                        request, response);
+                currentEtag = "\"v2\"";
+                assertThrows(IOException.class, () -> response.getEntity().writeTo(new ByteArrayOutputStream()));
+            }
+        }
+        assertEquals(1L, parallelRangeDownloader.getMetrics().get("failures"));
+    }
+
+    @ParameterizedTest
+    @CsvSource({"0", "-1", "1025", "4096"})
+    void isEligible_invalidPartSize_false(int partSize) {
+        when(systemConfig.getRangedDownloadPartSize()).thenReturn(partSize);
+        assertFalse(parallelRangeDownloader.isEligible(new HttpGet("/resource"), response(ETAG, null, null)));
+    }
+
+    @Test
+    void isEligible_validResponse_true() {
+        assertTrue(parallelRangeDownloader.isEligible(new HttpGet("/resource"), response(ETAG, null, null)));
+    }
+
+    @Test
+    void isEligible_rangeRequest_false() {
+        HttpGet request = new HttpGet("/resource");
+        request.addHeader("Range", "bytes=0-10");
+        assertFalse(parallelRangeDownloader.isEligible(request, response(ETAG, null, null)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "\"v1\"|null|null|\"v1\"",
+            "W/\"v1\"|null|null|null",
+            "W/\"v1\"|Sat, 01 Jan 2000 00:00:00 GMT|Sat, 01 Jan 2000 00:00:01 GMT|Sat, 01 Jan 2000 00:00:00 GMT",
+            "null|Sat, 01 Jan 2000 00:00:00 GMT|Sun, 02 Jan 2000 00:00:00 GMT|Sat, 01 Jan 2000 00:00:00 GMT",
+            "null|Sat, 01 Jan 2000 00:00:00 GMT|Sat, 01 Jan 2000 00:00:00 GMT|null",
+            "null|Sat, 01 Jan 2000 00:00:00 GMT|null|null",
+            "null|not a date|Sat, 01 Jan 2000 00:00:00 GMT|null",
+            "null|null|null|null",
+    })
+    void getValidator_strongOnly(String etag, String lastModified, String date, String validator) {
+        assertEquals(validator, ParallelRangeDownloader.getValidator(response(etag, lastModified, date)));
+    }
+
+    private HttpHost getTarget() {
+        return new HttpHost(InetAddress.getLoopbackAddress().getHostAddress(), serverSocket.getLocalPort());
+    }
+
+    private static HttpResponse response(String etag, String lastModified, String date) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Accept-Ranges", "bytes");
+        if (etag != null) {
+            response.addHeader("ETag", etag);
+        }
+        if (lastModified != null) {
+            response.addHeader("Last-Modified", lastModified);
+        }
+        if (date != null) {
+            response.addHeader("Date", date);
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContentLength(BODY.length);
+        response.setEntity(entity);
+        return response;
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            reader.readLine();
+            Map<String, String> headers = new HashMap<>();
+            for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            Matcher matcher = RANGE_PATTERN.matcher(headers.getOrDefault("range", ""));
+            boolean ranged = matcher.matches() && currentEtag.equals(headers.get("if-range"));
+            int first = ranged ? Integer.parseInt(matcher.group(1)) : 0;
+            int last = ranged ? Integer.parseInt(matcher.group(2)) : BODY.length - 1;
+            StringBuilder head = new StringBuilder();
+            if (ranged) {
+                rangeRequests.incrementAndGet();
+                head.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(first).append('-').append(last)
+                        .append('/').append(BODY.length).append("\r\n");
+            } else {
+                head.append("HTTP/1.1 200 OK\r\n");
+            }
+            head.append("Accept-Ranges: bytes\r\n")
+                    .append("ETag: ").append(currentEtag).append("\r\n")
+                    .append("Content-Length: ").append(last - first + 1).append("\r\n")
+                    .append("Connection: close\r\n\r\n");
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            outputStream.write(BODY, first, last - first + 1);
+            outputStream.flush();
+        } catch (IOException e) {
+            // Aborted by the client
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BeanUtilsTests {
+
+    @Test
+    void restoreProperties_dependentProperty_restoredInReverseOrder() throws Exception {
+        Bean destination = new Bean();
+        destination.setType("a");
+        destination.setHost("a.example.com");
+        Bean source = new Bean();
+        source.setType("b");
+        source.setHost("b.example.com");
+
+        Deque<Map.Entry<String, Object>> previousValues = new ArrayDeque<>();
+        BeanUtils.copyProperties(List.of("type", "host").iterator(), source, destination, previousValues);
+        assertEquals("b.example.com", destination.getHost());
+        assertEquals("a.example.com", destination.hostA);
+
+        BeanUtils.restoreProperties(previousValues, destination);
+        assertTrue(previousValues.isEmpty());
+        assertEquals("a", destination.getType());
+        assertEquals("a.example.com", destination.getHost());
+        assertNull(destination.hostB);
+    }
+
+    @Test
+    void restoreProperties_partialCopy_undone() throws Exception {
+        Bean destination = new Bean();
+        destination.setCount(1);
+        Bean source = new Bean();
+        source.setCount(2);
+
+        Deque<Map.Entry<String, Object>> previousValues = new ArrayDeque<>();
+        assertThrows(IllegalArgumentException.class, () -> BeanUtils.copyProperties(
+                List.of("count", "unknown").iterator(), source, destination, previousValues));
+        assertEquals(2, destination.getCount());
+
+        BeanUtils.restoreProperties(previousValues, destination);
+        assertEquals(1, destination.getCount());
+    }
+
+    /**
+     * A bean whose host depends on its type, like {@code ProxyConfig}.
+     */
+    public static class Bean {
+
+        private String type = "a";
+
+        private String hostA;
+
+        private String hostB;
+
+        private Integer count;
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getHost() {
+            return type.equals("a") ? hostA : hostB;
+        }
+
+        public void setHost(String host) {
+            if (type.equals("a")) {
+                hostA = host;
+            } else {
+                hostB = host;
+            }
+        }
+
+        public Integer getCount() {
+            return count;
+        }
+
+        public void setCount(Integer count) {
+            this.count = count;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.util;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.kpax.winfoom.proxy.ProxyInfo;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpUtilsTests {
+
+    private static final ProxyInfo PROXY_A = new ProxyInfo(ProxyInfo.PacType.PROXY,
+            new HttpHost("a.example.com", 8080));
+
+    private static final ProxyInfo PROXY_B = new ProxyInfo(ProxyInfo.PacType.SOCKS5,
+            new HttpHost("b.example.com", 1080));
+
+    private static final ProxyInfo DIRECT = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    @Test
+    void filterProxies_noneBlacklisted_sameList() {
+        List<ProxyInfo> proxies = List.of(PROXY_A, PROXY_B, DIRECT);
+        assertSame(proxies, HttpUtils.filterProxies(proxies, proxyInfo -> true));
+    }
+
+    @Test
+    void filterProxies_someBlacklisted_orderKept() {
+        List<ProxyInfo> filtered = HttpUtils.filterProxies(List.of(PROXY_A, DIRECT, PROXY_B),
+                proxyInfo -> proxyInfo != PROXY_A);
+        assertEquals(List.of(DIRECT, PROXY_B), filtered);
+        assertThrows(UnsupportedOperationException.class, () -> filtered.add(PROXY_A));
+
+        assertEquals(List.of(PROXY_A, DIRECT), HttpUtils.filterProxies(List.of(PROXY_A, DIRECT, PROXY_B),
+                proxyInfo -> proxyInfo != PROXY_B));
+    }
+
+    @Test
+    void filterProxies_allBlacklisted_directKept() {
+        assertEquals(List.of(DIRECT), HttpUtils.filterProxies(List.of(PROXY_A, DIRECT, PROXY_B),
+                proxyInfo -> false));
+        assertTrue(HttpUtils.filterProxies(List.of(PROXY_A, PROXY_B), proxyInfo -> false).isEmpty());
+    }
+
+    @Test
+    void filterProxies_directNotTested() {
+        List<ProxyInfo> proxies = List.of(DIRECT);
+        assertSame(proxies, HttpUtils.filterProxies(proxies, proxyInfo -> {
+            throw new AssertionError("DIRECT is always kept");
+        }));
+    }
+
+    @Test
+    void parsePacProxyLine_validLine_parsed() {
+        List<ProxyInfo> proxies = HttpUtils.parsePacProxyLine(
+                " PROXY a.example.com:8080;SOCKS5 b.example.com:1080 ; DIRECT ");
+        assertEquals(List.of(PROXY_A, PROXY_B, DIRECT), proxies);
+        assertThrows(UnsupportedOperationException.class, () -> proxies.add(DIRECT));
+    }
+
+    @Test
+    void parsePacProxyLine_blank_direct() {
+        assertEquals(List.of(DIRECT), HttpUtils.parsePacProxyLine(null));
+        assertEquals(List.of(DIRECT), HttpUtils.parsePacProxyLine(" "));
+    }
+
+    @Test
+    void parsePacProxyLine_https_secured() {
+        HttpHost proxyHost = HttpUtils.parsePacProxyLine("HTTPS a.example.com:8443").get(0).getProxyHost();
+        assertEquals("https", proxyHost.getSchemeName());
+        assertEquals(8443, proxyHost.getPort());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"FOO a.example.com:8080", "PROXY", "proxy a.example.com:8080",
+            "PROXY a.example.com:8080;;DIRECT", "PROXY a.example.com:port"})
+    void parsePacProxyLine_invalid_throws(String proxyLine) {
+        assertThrows(IllegalArgumentException.class, () -> HttpUtils.parsePacProxyLine(proxyLine));
+    }
+
+}